@@ -0,0 +1,398 @@
+import java.net.InetSocketAddress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/******************************************************************************
+ * Measures how many clients a running Server can hold and how long its
+ * broadcasts take to arrive. Run it once against each server mode:
+ *     java Server [--mode=thread|virtual|nio]
+ *     java ConnectionBenchmark --clients=5000 --probes=50 --rounds=200
+ * The benchmark connects the given number of clients (stopping at the first
+ * one that fails, which gives the connection capacity), then one of them
+ * broadcasts a numbered message per round and the probe clients time how
+ * long each one takes to arrive. All the clients are served by a single
+ * selector thread so that the benchmark itself stays cheap. Raise the
+ * open file limit (ulimit -n) on both sides for large client counts.
+ *****************************************************************************/
+public class ConnectionBenchmark {
+
+    /** The size of every message sent between Client and Server. */
+    private static final int MESSAGE_SIZE = 1024 + 51;
+
+    /** The server's address. */
+    private static String host = "127.0.0.1";
+
+    /** The server's port. */
+    private static int port = 48700;
+
+    /** The number of clients to connect. */
+    private static int clientCount = 1000;
+
+    /** The number of clients that time the broadcasts. */
+    private static int probeCount = 20;
+
+    /** The number of broadcasts to time. */
+    private static int rounds = 100;
+
+    /** The server's public key, used for the handshake. */
+    private static PublicKey publicKey;
+
+    /** Broadcast latencies in nanoseconds, one per probe and round. */
+    private static List<Long> latencies =
+        Collections.synchronizedList(new ArrayList<Long>());
+
+    /** Send time of the current round. */
+    private static volatile long roundStart;
+
+    /** The current round number. */
+    private static volatile int round = -1;
+
+    /** Counts down as probes receive the current round's broadcast. */
+    private static volatile CountDownLatch roundDone;
+
+    /**************************************************************************
+     * One benchmark connection, with its key and partially read message.
+     *************************************************************************/
+    private static class Connection {
+
+        /** The connection's socket. */
+        private SocketChannel channel;
+
+        /** The connection's symmetric key. */
+        private SecretKey key;
+
+        /** True if this connection times the broadcasts. */
+        private boolean probe;
+
+        /** Holds the message currently being read. */
+        private ByteBuffer inbound = ByteBuffer.allocate(MESSAGE_SIZE);
+
+    }
+
+    /**************************************************************************
+     * Reads every connection's messages on a single thread, timing the ones
+     * that arrive at probes.
+     *************************************************************************/
+    private static class Drain implements Runnable {
+
+        /** Selects the connections with data to read. */
+        private Selector selector;
+
+        /** Connections waiting to be registered with the selector. */
+        private ConcurrentLinkedQueue<Connection> pending =
+            new ConcurrentLinkedQueue<Connection>();
+
+        /** The last time any message was read, in nanoseconds. */
+        private volatile long lastRead = System.nanoTime();
+
+        /**********************************************************************
+         * Constructs a Drain with its own selector.
+         * @throws IOException if the selector can't be opened
+         *********************************************************************/
+        public Drain() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**********************************************************************
+         * Starts reading a connection's messages.
+         * @param connection is the connection, already in non-blocking mode
+         *********************************************************************/
+        public void add(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Connection connection;
+                    while ((connection = pending.poll()) != null) {
+                        connection.channel.register(selector,
+                            SelectionKey.OP_READ, connection);
+                    }
+                    Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        read((Connection) key.attachment(), key);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**********************************************************************
+         * Reads whatever a connection has received.
+         * @param connection is the connection to read
+         * @param key is the connection's selection key
+         *********************************************************************/
+        private void read(Connection connection, SelectionKey key) {
+            try {
+                while (true) {
+                    int n = connection.channel.read(connection.inbound);
+                    if (n == -1) {
+                        key.cancel();
+                        return;
+                    }
+                    if (connection.inbound.hasRemaining())
+                        return;
+                    lastRead = System.nanoTime();
+                    if (connection.probe)
+                        received(connection);
+                    connection.inbound.clear();
+                }
+            } catch (IOException e) {
+                key.cancel();
+            }
+        }
+
+        /**********************************************************************
+         * Records the latency of a broadcast that arrived at a probe.
+         * @param connection is the probe that received a whole message
+         *********************************************************************/
+        private void received(Connection connection) throws IOException {
+            byte[] message = connection.inbound.array();
+            if (message[0] != '@' || message[1] != 'b')
+                return;
+            int size = Integer.parseInt(
+                new String(message, 41, 10, "ISO-8859-1").trim());
+            byte[] plainText = crypt(Cipher.DECRYPT_MODE, connection.key,
+                Arrays.copyOfRange(message, 5, 21),
+                Arrays.copyOfRange(message, 51, 51 + size));
+            int number;
+            try {
+                number = Integer.parseInt(new String(plainText, "ISO-8859-1"));
+            } catch (NumberFormatException e) {
+                // A broadcast from some other client, not a timed one
+                return;
+            }
+            if (number == round) {
+                latencies.add(System.nanoTime() - roundStart);
+                roundDone.countDown();
+            }
+        }
+
+    }
+
+    /**************************************************************************
+     * Runs the benchmark.
+     * @param args are --host, --port, --clients, --probes and --rounds options
+     *************************************************************************/
+    public static void main(String[] args) throws Exception {
+        for (String arg: args) {
+            String[] option = arg.substring(2).split("=", 2);
+            if (option[0].equals("host")) {
+                host = option[1];
+            } else if (option[0].equals("port")) {
+                port = Integer.parseInt(option[1]);
+            } else if (option[0].equals("clients")) {
+                clientCount = Integer.parseInt(option[1]);
+            } else if (option[0].equals("probes")) {
+                probeCount = Integer.parseInt(option[1]);
+            } else if (option[0].equals("rounds")) {
+                rounds = Integer.parseInt(option[1]);
+            }
+        }
+        publicKey = loadPublicKey("RSApub.der");
+
+        Drain drain = new Drain();
+        Thread drainThread = new Thread(drain, "drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+
+        // Connect as many clients as possible, up to the requested number
+        List<Connection> connections = new ArrayList<Connection>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; ++i) {
+            try {
+                Connection connection = connect("b" + i);
+                connection.probe = i >= 1 && i <= probeCount;
+                connections.add(connection);
+                drain.add(connection);
+            } catch (IOException e) {
+                System.out.println("Connection " + i + " failed: " + e);
+                break;
+            }
+        }
+        long connectTime = System.nanoTime() - connectStart;
+        System.out.println("Connected clients: " + connections.size()
+            + " in " + TimeUnit.NANOSECONDS.toMillis(connectTime) + " ms");
+
+        // Let the client list updates settle before timing anything
+        while (System.nanoTime() - drain.lastRead
+            < TimeUnit.SECONDS.toNanos(2)) {
+            Thread.sleep(200);
+        }
+
+        int probes = Math.min(probeCount, connections.size() - 1);
+        if (probes < 1) {
+            System.out.println("Not enough clients to time broadcasts.");
+            return;
+        }
+        Connection sender = connections.get(0);
+        int lost = 0;
+        for (int i = 0; i < rounds; ++i) {
+            roundDone = new CountDownLatch(probes);
+            round = i;
+            roundStart = System.nanoTime();
+            broadcast(sender, Integer.toString(i));
+            if (!roundDone.await(10, TimeUnit.SECONDS))
+                lost += (int) roundDone.getCount();
+        }
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        System.out.println("Broadcasts timed: " + sorted.size()
+            + " (" + lost + " lost)");
+        if (!sorted.isEmpty()) {
+            System.out.printf("Latency p50 %.3f ms, p99 %.3f ms, "
+                + "max %.3f ms%n", percentile(sorted, 50),
+                percentile(sorted, 99), percentile(sorted, 100));
+        }
+        System.exit(0);
+    }
+
+    /**************************************************************************
+     * Connects one client and performs the handshake.
+     * @param name is the client's name
+     * @return the connected client, in non-blocking mode
+     * @throws IOException if the client couldn't connect
+     *************************************************************************/
+    private static Connection connect(String name) throws IOException {
+        Connection connection = new Connection();
+        try {
+            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(128);
+            connection.key = keyGen.generateKey();
+        } catch (Exception e) {
+            throw new IOException("Couldn't generate a key.", e);
+        }
+        byte[] secret;
+        try {
+            Cipher c = Cipher.getInstance(
+                "RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+            c.init(Cipher.ENCRYPT_MODE, publicKey);
+            secret = c.doFinal(connection.key.getEncoded());
+        } catch (Exception e) {
+            throw new IOException("Couldn't encrypt the key.", e);
+        }
+        connection.channel = SocketChannel.open(
+            new InetSocketAddress(host, port));
+        writeFully(connection.channel, ByteBuffer.wrap(secret));
+        writeFully(connection.channel,
+            ByteBuffer.wrap((name + "\n").getBytes("ISO-8859-1")));
+        connection.channel.configureBlocking(false);
+        return connection;
+    }
+
+    /**************************************************************************
+     * Sends a broadcast message from a client.
+     * @param sender is the sending client
+     * @param text is the text to broadcast
+     *************************************************************************/
+    private static void broadcast(Connection sender, String text)
+        throws IOException {
+        byte[] message = new byte[MESSAGE_SIZE];
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        byte[] cipherText = crypt(Cipher.ENCRYPT_MODE, sender.key, iv,
+            text.getBytes("ISO-8859-1"));
+        System.arraycopy("@bcst".getBytes("ISO-8859-1"), 0, message, 0, 5);
+        System.arraycopy(iv, 0, message, 5, 16);
+        System.arraycopy("b0".getBytes("ISO-8859-1"), 0, message, 31, 2);
+        System.arraycopy(String.format("%10d", cipherText.length)
+            .getBytes("ISO-8859-1"), 0, message, 41, 10);
+        System.arraycopy(cipherText, 0, message, 51, cipherText.length);
+        writeFully(sender.channel, ByteBuffer.wrap(message));
+    }
+
+    /**************************************************************************
+     * Writes a whole buffer to a channel, even a non-blocking one.
+     * @param channel is the channel to write to
+     * @param buffer is the data to write
+     *************************************************************************/
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0)
+                Thread.yield();
+        }
+    }
+
+    /**************************************************************************
+     * Encrypts or decrypts with AES/CBC/PKCS5Padding.
+     * @param mode is Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key is the symmetric key
+     * @param iv is the initialization vector
+     * @param data is the data to encrypt or decrypt
+     * @return the result
+     *************************************************************************/
+    private static byte[] crypt(int mode, SecretKey key, byte[] iv,
+        byte[] data) throws IOException {
+        try {
+            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            c.init(mode, key, new IvParameterSpec(iv));
+            return c.doFinal(data);
+        } catch (Exception e) {
+            throw new IOException("AES failed.", e);
+        }
+    }
+
+    /**************************************************************************
+     * Reads the server's public key.
+     * @param filename is the local file containing the public key
+     * @return the public key
+     *************************************************************************/
+    private static PublicKey loadPublicKey(String filename) throws Exception {
+        File f = new File(filename);
+        FileInputStream fs = new FileInputStream(f);
+        byte[] keybytes = new byte[(int) f.length()];
+        fs.read(keybytes);
+        fs.close();
+        return KeyFactory.getInstance("RSA").generatePublic(
+            new X509EncodedKeySpec(keybytes));
+    }
+
+    /**************************************************************************
+     * Finds a percentile of sorted latencies.
+     * @param sorted are the latencies in nanoseconds, in increasing order
+     * @param percent is the percentile to find, from 0 to 100
+     * @return the latency at that percentile, in milliseconds
+     *************************************************************************/
+    private static double percentile(List<Long> sorted, double percent) {
+        int index = (int) Math.ceil(percent / 100 * sorted.size()) - 1;
+        index = Math.max(0, Math.min(sorted.size() - 1, index));
+        return sorted.get(index) / 1e6;
+    }
+
+}
@@ -0,0 +1,577 @@
+import java.security.PublicKey;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/******************************************************************************
+ * Simulates many users of a running Server. Each session is a headless
+ * Client, with the real handshake and encryption, listening on its own
+ * thread (a virtual one where the JVM has them). Once every session has
+ * connected, a driver performs operations at a target rate, each by a
+ * random session: a broadcast, a private send to another session, a kick
+ * of another session or an exit. A session that exits or is kicked comes
+ * back under a new name, so the number of users stays the same, or with
+ * --resume=on under the same name, resuming its session with the ticket
+ * the Server gave it (which needs the Server's --tickets=on). With
+ * --ecdh=on the sessions agree on their keys with the Server rather than
+ * send them encrypted with RSA, so that the two handshakes can be compared.
+ *
+ *     java Server [--mode=thread|virtual|nio]
+ *     java LoadGenerator --clients=2000 --rate=500 --duration=60
+ *         --mix=broadcast:10,send:85,kick:1,exit:4
+ *
+ * Every message carries the time it was due to be sent, so its latency is
+ * measured from then to its arrival at each receiver, including any time
+ * the driver fell behind. Run from the directory holding RSApub.der and
+ * ECpub.der, and raise the open file limit (ulimit -n) on both sides for
+ * many sessions.
+ *****************************************************************************/
+public class LoadGenerator {
+
+    /** The operations, in the order of their counts and weights. */
+    private static final String[] OPERATIONS = {
+        "broadcast", "send", "kick", "exit"
+    };
+
+    /** The index of the broadcast operation. */
+    private static final int BROADCAST = 0;
+
+    /** The index of the private send operation. */
+    private static final int SEND = 1;
+
+    /** The index of the kick operation. */
+    private static final int KICK = 2;
+
+    /** The index of the exit operation. */
+    private static final int EXIT = 3;
+
+    /** What a timed message starts with, after its sender's name. */
+    private static final String STAMP = ": t=";
+
+    /** How a kick is reported by Client.receiveMessage. */
+    private static final String KICKED = "You have been kicked by: ";
+
+    /** The server's address. */
+    private static String host = "127.0.0.1";
+
+    /** The server's port. */
+    private static int port = 48700;
+
+    /** The number of sessions. */
+    private static int clientCount = 1000;
+
+    /** The number of sessions to start per second. */
+    private static int connectRate = 200;
+
+    /** The number of operations per second. */
+    private static double rate = 100;
+
+    /** How long to drive operations, in seconds. */
+    private static int duration = 30;
+
+    /** The size of each message's plaintext. */
+    private static int size = 64;
+
+    /** The weight of each operation. */
+    private static int[] weights = { 10, 85, 1, 4 };
+
+    /** True if sessions come back with their tickets, under their names. */
+    private static boolean resume = false;
+
+    /** True if sessions agree on their keys instead of using RSA. */
+    private static boolean keyAgreement = false;
+
+    /** The server's public key. */
+    private static PublicKey publicKey;
+
+    /** The server's identity key, or null for RSA. */
+    private static PublicKey identityKey = null;
+
+    /** The sessions. */
+    private static Session[] sessions;
+
+    /** False once the run is over, so sessions stop coming back. */
+    private static volatile boolean running = true;
+
+    /** Counts down as each session first connects or fails to. */
+    private static CountDownLatch connected;
+
+    /** Numbers the names of the sessions. */
+    private static AtomicInteger names = new AtomicInteger();
+
+    /** The sessions that couldn't connect or lost their connection. */
+    private static LongAdder failures = new LongAdder();
+
+    /** Why the first session failed. */
+    private static AtomicReference<String> firstFailure =
+        new AtomicReference<String>();
+
+    /** The sessions that came back after an exit or a kick. */
+    private static LongAdder reconnects = new LongAdder();
+
+    /** The kicks received. */
+    private static LongAdder kicked = new LongAdder();
+
+    /** The time each handshake took. */
+    private static Latencies handshakes = new Latencies();
+
+    /** The time each handshake took when a session came back. */
+    private static Latencies rehandshakes = new Latencies();
+
+    /** The sessions that came back with a ticket the Server accepted. */
+    private static LongAdder resumed = new LongAdder();
+
+    /** The time from each timed message being due to its arrival. */
+    private static Latencies latencies = new Latencies();
+
+    /**************************************************************************
+     * One simulated user, which keeps its place in sessions across
+     * reconnects.
+     *************************************************************************/
+    private static class Session implements Runnable {
+
+        /** The connected Client, null while connecting. */
+        private volatile Client client;
+
+        /** The name of the Client. */
+        private volatile String name;
+
+        /** True once this session first connected or failed to. */
+        private boolean counted = false;
+
+        /** Connects, listens, and reconnects after an exit or a kick. */
+        public void run() {
+            Client.Ticket ticket = null;
+            while (true) {
+                String next = ticket != null 
+                    ? ticket.getName() : "lg" + names.incrementAndGet();
+                long start = System.nanoTime();
+                Client connecting = null;
+                try {
+                    connecting = new Client(next, host, port, publicKey,
+                        ticket);
+                    if (identityKey != null)
+                        connecting.offerKeyAgreement(identityKey);
+                    connecting.sendSymmetricKey();
+                    connecting.sendName();
+                } catch (IllegalStateException e) {
+                    if (connecting != null)
+                        connecting.closeConnection();
+                    failed(e);
+                    return;
+                }
+                if (counted) {
+                    rehandshakes.record(System.nanoTime() - start);
+                    if (connecting.isResumed())
+                        resumed.increment();
+                } else {
+                    handshakes.record(System.nanoTime() - start);
+                }
+                name = next;
+                client = connecting;
+                countConnected();
+                try {
+                    listen(connecting);
+                } catch (IllegalStateException e) {
+                    client = null;
+                    connecting.closeConnection();
+                    if (running)
+                        failed(e);
+                    return;
+                }
+                client = null;
+                connecting.closeConnection();
+                if (!running)
+                    return;
+                reconnects.increment();
+                if (resume)
+                    ticket = connecting.getTicket();
+            }
+        }
+
+        /**********************************************************************
+         * Receives messages, timing the timed ones, until the Server confirms
+         * an exit.
+         * @param listening is the connected Client
+         *********************************************************************/
+        private void listen(Client listening) {
+            while (true) {
+                String message = listening.receiveMessage();
+                if (message.equals("@exit"))
+                    return;
+                if (message.startsWith(KICKED)) {
+                    // The Client has already asked to exit
+                    client = null;
+                    kicked.increment();
+                    continue;
+                }
+                int stamp = message.indexOf(STAMP);
+                if (stamp == -1)
+                    continue;
+                int end = message.indexOf(' ', stamp + STAMP.length());
+                try {
+                    long due = Long.parseLong(message.substring(
+                        stamp + STAMP.length(), end));
+                    latencies.record(System.nanoTime() - due);
+                } catch (RuntimeException e) {
+                    // Not one of ours
+                }
+            }
+        }
+
+        /** Counts this session as connected the first time. */
+        private void countConnected() {
+            if (!counted) {
+                counted = true;
+                connected.countDown();
+            }
+        }
+
+        /**********************************************************************
+         * Counts a failed session.
+         * @param e is why it failed
+         *********************************************************************/
+        private void failed(IllegalStateException e) {
+            failures.increment();
+            String reason = e.getMessage();
+            if (e.getCause() != null)
+                reason += " (" + e.getCause() + ")";
+            firstFailure.compareAndSet(null, reason);
+            countConnected();
+        }
+
+    }
+
+    /**************************************************************************
+     * A uniform sample of durations, with their exact count and maximum, so
+     * that percentiles stay accurate without keeping every duration.
+     *************************************************************************/
+    private static class Latencies {
+
+        /** The number of durations sampled. */
+        private static final int SAMPLES = 100000;
+
+        /** The sampled durations, in nanoseconds. */
+        private long[] samples = new long[SAMPLES];
+
+        /** The number of durations recorded. */
+        private long count = 0;
+
+        /** The longest duration recorded. */
+        private long max = 0;
+
+        /** Picks which durations replace samples once they are full. */
+        private Random random = new Random();
+
+        /**********************************************************************
+         * Records a duration.
+         * @param nanos is the duration in nanoseconds
+         *********************************************************************/
+        public synchronized void record(long nanos) {
+            if (count < SAMPLES) {
+                samples[(int) count] = nanos;
+            } else {
+                long slot = (long) (random.nextDouble() * (count + 1));
+                if (slot < SAMPLES)
+                    samples[(int) slot] = nanos;
+            }
+            ++count;
+            max = Math.max(max, nanos);
+        }
+
+        /** Gives the number of durations recorded. */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**********************************************************************
+         * Describes the percentiles of the durations recorded.
+         * @return the percentiles in milliseconds
+         *********************************************************************/
+        public synchronized String summary() {
+            if (count == 0)
+                return "none";
+            long[] sorted = Arrays.copyOf(samples,
+                (int) Math.min(count, SAMPLES));
+            Arrays.sort(sorted);
+            return String.format("p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, "
+                + "p99.9 %.3f ms, max %.3f ms", percentile(sorted, 0.5),
+                percentile(sorted, 0.9), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), max / 1e6);
+        }
+
+        /**********************************************************************
+         * Gives a percentile of sorted durations.
+         * @param sorted are the durations, in nanoseconds
+         * @param fraction is the percentile as a fraction, such as 0.99
+         * @return the percentile in milliseconds
+         *********************************************************************/
+        private static double percentile(long[] sorted, double fraction) {
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(index, 0)] / 1e6;
+        }
+
+    }
+
+    /**************************************************************************
+     * Runs the load generator.
+     * @param args are --host, --port, --clients, --connect-rate, --rate,
+     * --duration, --size, --mix, --resume, --ecdh and --log options
+     *************************************************************************/
+    public static void main(String[] args) throws Exception {
+        Log.configure("warn");
+        for (String arg: args) {
+            String[] option = arg.substring(2).split("=", 2);
+            if (option[0].equals("host")) {
+                host = option[1];
+            } else if (option[0].equals("port")) {
+                port = Integer.parseInt(option[1]);
+            } else if (option[0].equals("clients")) {
+                clientCount = Integer.parseInt(option[1]);
+            } else if (option[0].equals("connect-rate")) {
+                connectRate = Integer.parseInt(option[1]);
+            } else if (option[0].equals("rate")) {
+                rate = Double.parseDouble(option[1]);
+            } else if (option[0].equals("duration")) {
+                duration = Integer.parseInt(option[1]);
+            } else if (option[0].equals("size")) {
+                size = Integer.parseInt(option[1]);
+            } else if (option[0].equals("mix")) {
+                weights = parseMix(option[1]);
+            } else if (option[0].equals("resume")) {
+                resume = option[1].equals("on");
+            } else if (option[0].equals("ecdh")) {
+                keyAgreement = option[1].equals("on");
+            } else if (option[0].equals("log")) {
+                if (!Log.configure(option[1]))
+                    throw new IllegalArgumentException("Bad --log: " + arg);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        publicKey = Client.readPublicKey("RSApub.der");
+        if (keyAgreement)
+            identityKey = Client.readIdentityKey("ECpub.der");
+
+        // Start the sessions a few at a time, so the backlog doesn't overflow
+        ThreadFactory threads;
+        if (VirtualThreads.isSupported()) {
+            threads = VirtualThreads.factory();
+        } else {
+            threads = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(null, r, "session", 256 * 1024);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+        sessions = new Session[clientCount];
+        connected = new CountDownLatch(clientCount);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; ++i) {
+            sessions[i] = new Session();
+            threads.newThread(sessions[i]).start();
+            pace(connectStart + (long) ((i + 1) * 1e9 / connectRate));
+        }
+        connected.await();
+        long connectTime = System.nanoTime() - connectStart;
+        System.out.println("Sessions: " + (clientCount - failures.sum())
+            + " connected in " + TimeUnit.NANOSECONDS.toMillis(connectTime)
+            + " ms, " + failures.sum() + " failed");
+        System.out.println("Handshakes: " + handshakes.summary());
+        if (failures.sum() == clientCount) {
+            System.out.println("First failure: " + firstFailure.get());
+            System.exit(1);
+        }
+
+        // Let the key and client list updates settle before timing anything
+        Thread.sleep(2000);
+        long[] counts = drive();
+        running = false;
+        // Let the last messages arrive
+        Thread.sleep(2000);
+
+        long total = 0;
+        StringBuilder sent = new StringBuilder();
+        for (int i = 0; i < OPERATIONS.length; ++i) {
+            total += counts[i];
+            sent.append(", " + counts[i] + " " + OPERATIONS[i]);
+        }
+        System.out.printf("Sent: %d in %d s (%.1f/s)%s, %d skipped, "
+            + "%d errors%n", total, duration, (double) total / duration, sent,
+            counts[OPERATIONS.length], counts[OPERATIONS.length + 1]);
+        System.out.printf("Delivered: %d (%.1f/s), %d kicked, %d reconnects, "
+            + "%d failed%n", latencies.getCount(),
+            (double) latencies.getCount() / duration, kicked.sum(),
+            reconnects.sum(), failures.sum());
+        System.out.println("Latency: " + latencies.summary());
+        System.out.println("Reconnect handshakes: " + rehandshakes.summary()
+            + ", " + resumed.sum() + " resumed");
+        if (firstFailure.get() != null)
+            System.out.println("First failure: " + firstFailure.get());
+        System.exit(0);
+    }
+
+    /**************************************************************************
+     * Parses the weights of the operations, such as "broadcast:1,send:9".
+     * Operations left out aren't performed.
+     * @param mix is the list of operations and weights
+     * @return the weight of each operation
+     *************************************************************************/
+    private static int[] parseMix(String mix) {
+        int[] parsed = new int[OPERATIONS.length];
+        for (String entry: mix.split(",")) {
+            String[] pair = entry.trim().split(":", 2);
+            int operation = Arrays.asList(OPERATIONS).indexOf(pair[0]);
+            if (operation == -1 || pair.length < 2)
+                throw new IllegalArgumentException("Bad --mix: " + entry);
+            parsed[operation] = Integer.parseInt(pair[1]);
+        }
+        return parsed;
+    }
+
+    /**************************************************************************
+     * Performs operations at the target rate for the duration. Each is due a
+     * fixed interval after the one before; if the driver falls behind, it
+     * catches up without waiting rather than lowering the rate.
+     * @return the number of each operation performed, then the number
+     * skipped for want of a connected session and the number that failed
+     *************************************************************************/
+    private static long[] drive() {
+        long[] counts = new long[OPERATIONS.length + 2];
+        int totalWeight = 0;
+        for (int weight: weights) {
+            totalWeight += weight;
+        }
+        if (totalWeight == 0)
+            throw new IllegalArgumentException("The mix is empty.");
+        Random random = new Random();
+        long period = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(5);
+        long reported = 0;
+        for (long due = start; due < end; due += period) {
+            pace(due);
+            int pick = random.nextInt(totalWeight);
+            int operation = 0;
+            while (pick >= weights[operation]) {
+                pick -= weights[operation];
+                ++operation;
+            }
+            try {
+                if (perform(operation, due, random))
+                    ++counts[operation];
+                else
+                    ++counts[OPERATIONS.length];
+            } catch (IllegalStateException e) {
+                // The session lost its connection or is on its way out
+                ++counts[OPERATIONS.length + 1];
+            }
+            if (due >= nextReport) {
+                long delivered = latencies.getCount();
+                System.out.println(TimeUnit.NANOSECONDS.toSeconds(
+                    due - start) + " s: " + (delivered - reported) / 5
+                    + " delivered/s, " + live() + " sessions");
+                reported = delivered;
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+        return counts;
+    }
+
+    /**************************************************************************
+     * Performs one operation, by a random connected session.
+     * @param operation is the index of the operation
+     * @param due is when the operation was due, in System.nanoTime() terms
+     * @param random picks the sessions
+     * @return false if there were too few connected sessions
+     *************************************************************************/
+    private static boolean perform(int operation, long due, Random random) {
+        Session session = pick(random);
+        Client client = session == null ? null : session.client;
+        if (client == null)
+            return false;
+        if (operation == EXIT) {
+            session.client = null;
+            client.alertExit();
+            return true;
+        }
+        if (operation == BROADCAST) {
+            client.sendMessage(text(due));
+            return true;
+        }
+        Session other = pick(random);
+        String otherName = other == null ? null : other.name;
+        if (other == session || otherName == null)
+            return false;
+        if (operation == SEND) {
+            client.sendMessage(text(due), otherName);
+        } else {
+            other.client = null;
+            client.sendKick(otherName);
+        }
+        return true;
+    }
+
+    /**************************************************************************
+     * Picks a random connected session, giving up after a few tries.
+     * @param random picks the session
+     * @return the session, null if none was found
+     *************************************************************************/
+    private static Session pick(Random random) {
+        for (int i = 0; i < 8; ++i) {
+            Session session = sessions[random.nextInt(sessions.length)];
+            if (session.client != null)
+                return session;
+        }
+        return null;
+    }
+
+    /**************************************************************************
+     * Counts the connected sessions.
+     * @return the number of sessions connected
+     *************************************************************************/
+    private static int live() {
+        int count = 0;
+        for (Session session: sessions) {
+            if (session.client != null)
+                ++count;
+        }
+        return count;
+    }
+
+    /**************************************************************************
+     * Makes the text of a timed message, padded to the message size.
+     * @param due is when the message was due to be sent
+     * @return the text
+     *************************************************************************/
+    private static String text(long due) {
+        StringBuilder text = new StringBuilder(size);
+        text.append("t=").append(due).append(' ');
+        while (text.length() < size) {
+            text.append('x');
+        }
+        return text.toString();
+    }
+
+    /**************************************************************************
+     * Waits until a given time.
+     * @param until is the time, in System.nanoTime() terms
+     *************************************************************************/
+    private static void pace(long until) {
+        long now;
+        while ((now = System.nanoTime()) < until) {
+            LockSupport.parkNanos(until - now);
+        }
+    }
+
+}
@@ -0,0 +1,358 @@
+package chat.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/******************************************************************************
+ * Reaches into the chat program for the benchmarks. The program's classes
+ * are in the default package, which a named package can't import, so they
+ * are looked up by name and their private members opened by reflection.
+ * All of that is done while setting up a trial, never in what is measured;
+ * the methods measured are called through MethodHandles.
+ *
+ * The RSA key files are read from the directory named by the chat.keys
+ * system property, "bin" by default, so run the benchmarks from the root of
+ * the repository or pass -Dchat.keys=DIR.
+ *****************************************************************************/
+public final class ChatFixture {
+
+    /** Opens private members for MethodHandles. */
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /** Not constructed. */
+    private ChatFixture() {
+    }
+
+    /**************************************************************************
+     * Loads a class of the chat program.
+     * @param name is the binary name of the class, such as "Server"
+     * @return the class
+     *************************************************************************/
+    public static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("No class " + name, e);
+        }
+    }
+
+    /**************************************************************************
+     * Opens a method of the chat program, private or not.
+     * @param owner is the binary name of the class declaring the method
+     * @param name is the name of the method
+     * @param parameters are the types of its parameters
+     * @return a handle to the method
+     *************************************************************************/
+    public static MethodHandle method(String owner, String name,
+        Class<?>... parameters) {
+        try {
+            Method method = type(owner).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return LOOKUP.unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + owner + "."
+                + name + Arrays.toString(parameters), e);
+        }
+    }
+
+    /**************************************************************************
+     * Reads a static field of the chat program, private or not.
+     * @param owner is the binary name of the class declaring the field
+     * @param name is the name of the field
+     * @return the value of the field
+     *************************************************************************/
+    public static Object get(String owner, String name) {
+        try {
+            return field(owner, name).get(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can't read " + name, e);
+        }
+    }
+
+    /**************************************************************************
+     * Sets a static field of the chat program, private or not.
+     * @param owner is the binary name of the class declaring the field
+     * @param name is the name of the field
+     * @param value is the new value of the field
+     *************************************************************************/
+    public static void set(String owner, String name, Object value) {
+        try {
+            field(owner, name).set(null, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can't set " + name, e);
+        }
+    }
+
+    /**************************************************************************
+     * Opens a static field.
+     * @param owner is the binary name of the class declaring the field
+     * @param name is the name of the field
+     * @return the field
+     *************************************************************************/
+    private static Field field(String owner, String name) {
+        try {
+            Field field = type(owner).getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("No field " + owner + "."
+                + name, e);
+        }
+    }
+
+    /**************************************************************************
+     * Calls a method of the chat program once, for setting up.
+     * @param handle is the method
+     * @param arguments are its arguments
+     * @return what it returned
+     *************************************************************************/
+    public static Object call(MethodHandle handle, Object... arguments) {
+        try {
+            return handle.invokeWithArguments(arguments);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Setting up failed", e);
+        }
+    }
+
+    /**************************************************************************
+     * Finds one of the chat program's cipher suites.
+     * @param name is the name of the suite, such as "aes-gcm"
+     * @return the CipherSuite
+     *************************************************************************/
+    public static Object suite(String name) {
+        Object suite = call(method("CipherSuite", "forName", String.class),
+            name);
+        if (suite == null)
+            throw new IllegalArgumentException("No cipher suite " + name);
+        return suite;
+    }
+
+    /**************************************************************************
+     * Makes a new 128-bit AES key, as a Client does, and derives the key a
+     * suite encrypts with from it.
+     * @param suite is the CipherSuite
+     * @return the key to encrypt with
+     *************************************************************************/
+    public static SecretKey newKey(Object suite) {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+            return (SecretKey) call(method("CipherSuite", "cipherKey",
+                SecretKey.class), suite, generator.generateKey());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't make a key", e);
+        }
+    }
+
+    /**************************************************************************
+     * Builds a message as a Client sends it: the command, IV, receiver,
+     * sender and size in a 51-byte header, then the ciphertext.
+     * @param code is the command, such as "@bcst"
+     * @param receiver is the name of the receiver, may be empty
+     * @param sender is the name of the sender
+     * @param iv is the 16-byte IV the plaintext was encrypted with
+     * @param ciphertext is the encrypted plaintext
+     * @return the message
+     *************************************************************************/
+    public static byte[] message(String code, String receiver, String sender,
+        byte[] iv, byte[] ciphertext) {
+        byte[] message = new byte[51 + ciphertext.length];
+        copy(code, message, 0, 5);
+        System.arraycopy(iv, 0, message, 5, 16);
+        copy(receiver, message, 21, 10);
+        copy(sender, message, 31, 10);
+        copy(String.format("%10d", ciphertext.length), message, 41, 10);
+        System.arraycopy(ciphertext, 0, message, 51, ciphertext.length);
+        return message;
+    }
+
+    /**************************************************************************
+     * Copies a String into a header field, one byte per character.
+     * @param text is the String
+     * @param message is the message holding the field
+     * @param offset is the start of the field
+     * @param length is the size of the field
+     *************************************************************************/
+    private static void copy(String text, byte[] message, int offset,
+        int length) {
+        for (int i = 0; i < length && i < text.length(); ++i) {
+            message[offset + i] = (byte) text.charAt(i);
+        }
+    }
+
+    /**************************************************************************
+     * Gives the name of a fake Client.
+     * @param index is the number of the Client
+     * @return its name
+     *************************************************************************/
+    public static String clientName(int index) {
+        return "client" + index;
+    }
+
+    /**************************************************************************
+     * Connects fake Clients to the Server without any sockets, as if each
+     * had finished the handshake with compact frames. Their queues are
+     * never written; every queue keeps its last few frames and drops the
+     * older ones, so the queues stay small however long a benchmark runs.
+     * @param clients is the number of Clients
+     * @param suite is the CipherSuite they all use
+     * @return the key of each Client, by number
+     *************************************************************************/
+    @SuppressWarnings("unchecked")
+    public static SecretKey[] connect(int clients, Object suite) {
+        call(method("OutboundQueue", "setLimits", int.class, int.class,
+            String.class), 64, 1024 * 1024, "drop-oldest");
+        Map<String,Object> keys = (Map<String,Object>) get("Server",
+            "clientKeys");
+        Map<String,Object> suites = (Map<String,Object>) get("Server",
+            "clientSuites");
+        Map<String,Object> formats = (Map<String,Object>) get("Server",
+            "clientFormats");
+        Map<String,Object> outputs = (Map<String,Object>) get("Server",
+            "clientOutputs");
+        Object compact = get("Frames", "COMPACT");
+        SecretKey[] clientKeys = new SecretKey[clients];
+        try {
+            Constructor<?> queue = type("OutboundQueue").getConstructor(
+                type("OutboundQueue$Listener"));
+            for (int i = 0; i < clients; ++i) {
+                String name = clientName(i);
+                clientKeys[i] = newKey(suite);
+                keys.put(name, clientKeys[i]);
+                suites.put(name, suite);
+                formats.put(name, compact);
+                outputs.put(name, queue.newInstance((Object) null));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't connect clients", e);
+        }
+        return clientKeys;
+    }
+
+    /**************************************************************************
+     * Disconnects every fake Client.
+     *************************************************************************/
+    public static void disconnectAll() {
+        for (String map: new String[] { "clientKeys", "clientSuites",
+            "clientFormats", "clientOutputs" }) {
+            ((Map<?,?>) get("Server", map)).clear();
+        }
+    }
+
+    /**************************************************************************
+     * Gives the directory holding the RSA key files.
+     * @return the directory
+     *************************************************************************/
+    public static File keyDirectory() {
+        return new File(System.getProperty("chat.keys", "bin"));
+    }
+
+    /**************************************************************************
+     * Loads the Server's private key, from the key directory.
+     *************************************************************************/
+    public static void loadPrivateKey() {
+        File file = new File(keyDirectory(), "RSApriv.der");
+        if (!file.isFile()) {
+            throw new IllegalStateException("No " + file + "; run from the "
+                + "repository root or set -Dchat.keys");
+        }
+        call(method("Server", "setPrivateKey", String.class),
+            file.getPath());
+    }
+
+    /**************************************************************************
+     * Loads the Server's ECDSA identity key, from the key directory, which
+     * turns key agreement on.
+     *************************************************************************/
+    public static void loadIdentityKey() {
+        File file = new File(keyDirectory(), "ECpriv.der");
+        if (!file.isFile()) {
+            throw new IllegalStateException("No " + file + "; run from the "
+                + "repository root or set -Dchat.keys");
+        }
+        call(method("Server", "setIdentityKey", String.class),
+            file.getPath());
+    }
+
+    /**************************************************************************
+     * Builds a Client's half of a key agreement, as the Client sends it
+     * during the handshake.
+     * @param group is the group, "x25519" or "p256"
+     * @return the 256-byte offer
+     *************************************************************************/
+    public static byte[] offerKeyAgreement(String group) {
+        try {
+            Object exchange = type("KeyExchange").getConstructor(
+                String.class).newInstance(group);
+            return (byte[]) call(method("KeyExchange", "offer"), exchange);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't offer a key agreement",
+                e);
+        }
+    }
+
+    /**************************************************************************
+     * Encrypts a Client's secret key with the Server's public key, as the
+     * Client does during the handshake.
+     * @param secret is the secret key
+     * @return the 256-byte encrypted secret
+     *************************************************************************/
+    public static byte[] wrapSecret(SecretKey secret) {
+        try {
+            PublicKey publicKey = KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(read(new File(
+                    keyDirectory(), "RSApub.der"))));
+            Cipher rsa = Cipher.getInstance(
+                "RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+            rsa.init(Cipher.ENCRYPT_MODE, publicKey);
+            return rsa.doFinal(secret.getEncoded());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't wrap the secret", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read the public key", e);
+        }
+    }
+
+    /**************************************************************************
+     * Reads a whole file.
+     * @param file is the file to read
+     * @return the file's contents
+     * @throws IOException if the file can't be read
+     *************************************************************************/
+    public static byte[] read(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = input.read(bytes, read, bytes.length - read);
+                if (n == -1)
+                    throw new IOException("File shrank: " + file);
+                read += n;
+            }
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package chat.bench;
+
+import java.io.File;
+
+import java.lang.invoke.MethodHandle;
+
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******************************************************************************
+ * Compares the per-message cost of building a new Cipher for every message
+ * with reusing a Cipher from CipherCache, and of seeding a new SecureRandom
+ * for every IV with taking one from IvSource.
+ *****************************************************************************/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CipherBenchmark {
+
+    /** The symmetric transformation used by the chat program. */
+    private static final String AES = "AES/CBC/PKCS5Padding";
+
+    /** The key transport transformation used by the chat program. */
+    private static final String RSA = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+
+    /**************************************************************************
+     * An AES key and a message to encrypt with it.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Aes {
+
+        /** The size of the message. */
+        @Param({ "64", "1024" })
+        public int size;
+
+        /** CipherCache.get(String) */
+        private MethodHandle cached;
+
+        /** The key. */
+        private SecretKey key;
+
+        /** The IV. */
+        private IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+
+        /** The message. */
+        private byte[] message;
+
+        /** Makes the key and message. */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            cached = ChatFixture.method("CipherCache", "get", String.class);
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+            key = generator.generateKey();
+            message = new byte[size];
+            new SecureRandom().nextBytes(message);
+        }
+
+    }
+
+    /**************************************************************************
+     * The Server's private key and a secret encrypted with its public key.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Rsa {
+
+        /** CipherCache.get(String) */
+        private MethodHandle cached;
+
+        /** The Server's private key. */
+        private PrivateKey privateKey;
+
+        /** The encrypted secret. */
+        private byte[] secret;
+
+        /** Reads the keys and wraps a secret. */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            cached = ChatFixture.method("CipherCache", "get", String.class);
+            privateKey = KeyFactory.getInstance("RSA").generatePrivate(
+                new PKCS8EncodedKeySpec(ChatFixture.read(new File(
+                    ChatFixture.keyDirectory(), "RSApriv.der"))));
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+            secret = ChatFixture.wrapSecret(generator.generateKey());
+        }
+
+    }
+
+    /**************************************************************************
+     * The IvSource of the benchmark thread.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Ivs {
+
+        /** IvSource.next() */
+        private MethodHandle next;
+
+        /** Opens IvSource. */
+        @Setup(Level.Trial)
+        public void setUp() {
+            next = ChatFixture.method("IvSource", "next");
+        }
+
+    }
+
+    /** Encrypts a message with a new Cipher. */
+    @Benchmark
+    public byte[] aesNewCipher(Aes state) throws Exception {
+        Cipher c = Cipher.getInstance(AES);
+        c.init(Cipher.ENCRYPT_MODE, state.key, state.iv);
+        return c.doFinal(state.message);
+    }
+
+    /** Encrypts a message with the thread's cached Cipher. */
+    @Benchmark
+    public byte[] aesCachedCipher(Aes state) throws Throwable {
+        Cipher c = (Cipher) state.cached.invoke(AES);
+        c.init(Cipher.ENCRYPT_MODE, state.key, state.iv);
+        return c.doFinal(state.message);
+    }
+
+    /** Decrypts a secret with a new Cipher. */
+    @Benchmark
+    public byte[] rsaNewCipher(Rsa state) throws Exception {
+        Cipher c = Cipher.getInstance(RSA);
+        c.init(Cipher.DECRYPT_MODE, state.privateKey);
+        return c.doFinal(state.secret);
+    }
+
+    /** Decrypts a secret with the thread's cached Cipher. */
+    @Benchmark
+    public byte[] rsaCachedCipher(Rsa state) throws Throwable {
+        Cipher c = (Cipher) state.cached.invoke(RSA);
+        c.init(Cipher.DECRYPT_MODE, state.privateKey);
+        return c.doFinal(state.secret);
+    }
+
+    /** Makes an IV with a newly seeded SecureRandom. */
+    @Benchmark
+    public byte[] ivNewSecureRandom() {
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        return iv;
+    }
+
+    /** Takes an IV from the thread's IvSource. */
+    @Benchmark
+    public byte[] ivSource(Ivs state) throws Throwable {
+        return (byte[]) state.next.invoke();
+    }
+
+}
@@ -0,0 +1,103 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******************************************************************************
+ * Measures the CPU cost of compressing a chat message with each codec, and
+ * of restoring it, to weigh against the bytes it saves on the wire. The
+ * messages are made up of common chat words, in a random order.
+ *****************************************************************************/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CompressionBenchmark {
+
+    /** The words the messages are made up of. */
+    private static final String[] WORDS = { "hey", "are", "you", "coming",
+        "to", "the", "meeting", "later", "today", "I", "think", "so", "but",
+        "not", "sure", "what", "time", "it", "starts", "lol", "thanks",
+        "sounds", "good", "see", "then", "build", "failed", "again", "with",
+        "a", "NullPointerException", "in", "server", "log", "let", "me",
+        "know", "when", "fixed" };
+
+    /**************************************************************************
+     * A message, and the same message compressed with a codec.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Message {
+
+        /** The codec's name. */
+        @Param({ "deflate", "deflate-fast" })
+        public String codec;
+
+        /** The size of the message. */
+        @Param({ "256", "4096" })
+        public int size;
+
+        /** Compression.compress(byte[], int) */
+        private MethodHandle compress;
+
+        /** Compression.decompress(byte[], int) */
+        private MethodHandle decompress;
+
+        /** The codec. */
+        private Object compression;
+
+        /** The message. */
+        private byte[] plain;
+
+        /** The compressed message. */
+        private byte[] compressed;
+
+        /** Makes the message and compresses it. */
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            compression = ChatFixture.call(ChatFixture.method("Compression",
+                "forName", String.class), codec);
+            compress = ChatFixture.method("Compression", "compress",
+                byte[].class, int.class);
+            decompress = ChatFixture.method("Compression", "decompress",
+                byte[].class, int.class);
+            Random random = new Random(42);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < size) {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+                text.append(random.nextInt(8) == 0 ? '\n' : ' ');
+            }
+            plain = text.substring(0, size).getBytes("ISO-8859-1");
+            compressed = (byte[]) compress.invoke(compression, plain, 0);
+        }
+
+    }
+
+    /** Compresses the message. */
+    @Benchmark
+    public Object compress(Message state) throws Throwable {
+        return state.compress.invoke(state.compression, state.plain, 0);
+    }
+
+    /** Restores the compressed message. */
+    @Benchmark
+    public Object decompress(Message state) throws Throwable {
+        return state.decompress.invoke(state.compressed, Integer.MAX_VALUE);
+    }
+
+}
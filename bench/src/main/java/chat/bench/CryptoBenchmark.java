@@ -0,0 +1,158 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******************************************************************************
+ * Measures the Server's own encrypt and decrypt, for each cipher suite and
+ * a short and a long message, and RSAdecrypt, which unwraps each new
+ * Client's secret key. Each invocation uses the next of a few messages and
+ * IVs in turn, since GCM and ChaCha20 refuse to reuse an IV back to back.
+ *****************************************************************************/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CryptoBenchmark {
+
+    /** The number of messages and IVs used in turn, a power of two. */
+    private static final int ROTATION = 16;
+
+    /**************************************************************************
+     * Messages encrypted with one suite.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Messages {
+
+        /** The cipher suite. */
+        @Param({ "aes-cbc", "aes-gcm", "chacha20-poly1305" })
+        public String suiteName;
+
+        /** The size of the plaintext. */
+        @Param({ "64", "1024" })
+        public int size;
+
+        /** Server.encrypt(byte[], SecretKey, IvParameterSpec, CipherSuite) */
+        private MethodHandle encrypt;
+
+        /** Server.decrypt(byte[], int, SecretKey, CipherSuite) */
+        private MethodHandle decrypt;
+
+        /** The CipherSuite. */
+        private Object suite;
+
+        /** The key of the suite. */
+        private SecretKey key;
+
+        /** The plaintext. */
+        private byte[] plaintext;
+
+        /** The IVs to encrypt with, in turn. */
+        private IvParameterSpec[] ivs = new IvParameterSpec[ROTATION];
+
+        /** The messages to decrypt, in turn. */
+        private byte[][] messages = new byte[ROTATION][];
+
+        /** The size of the ciphertext in each message. */
+        private int ciphertextSize;
+
+        /** The number of the next message and IV. */
+        private int next = 0;
+
+        /** Sets up the suite, key and messages. */
+        @Setup(Level.Trial)
+        public void setUp() {
+            Class<?> suiteType = ChatFixture.type("CipherSuite");
+            encrypt = ChatFixture.method("Server", "encrypt", byte[].class,
+                SecretKey.class, IvParameterSpec.class, suiteType);
+            decrypt = ChatFixture.method("Server", "decrypt", byte[].class,
+                int.class, SecretKey.class, suiteType);
+            suite = ChatFixture.suite(suiteName);
+            key = ChatFixture.newKey(suite);
+            Random random = new Random(size);
+            plaintext = new byte[size];
+            random.nextBytes(plaintext);
+            for (int i = 0; i < ROTATION; ++i) {
+                byte[] iv = new byte[16];
+                random.nextBytes(iv);
+                ivs[i] = new IvParameterSpec(iv);
+                byte[] ciphertext = (byte[]) ChatFixture.call(encrypt,
+                    plaintext, key, ivs[i], suite);
+                messages[i] = ChatFixture.message("@bcst", "", "client0",
+                    iv, ciphertext);
+                ciphertextSize = ciphertext.length;
+            }
+        }
+
+        /** Gives the number of the next message and IV. */
+        private int next() {
+            next = (next + 1) & (ROTATION - 1);
+            return next;
+        }
+
+    }
+
+    /**************************************************************************
+     * A Client's secret key, encrypted with the Server's public key.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Secret {
+
+        /** Server.RSAdecrypt(byte[]) */
+        private MethodHandle rsaDecrypt;
+
+        /** The encrypted secret. */
+        private byte[] secret;
+
+        /** Loads the Server's private key and wraps a secret. */
+        @Setup(Level.Trial)
+        public void setUp() {
+            ChatFixture.loadPrivateKey();
+            rsaDecrypt = ChatFixture.method("Server", "RSAdecrypt",
+                byte[].class);
+            secret = ChatFixture.wrapSecret(ChatFixture.newKey(
+                ChatFixture.suite("aes-cbc")));
+        }
+
+    }
+
+    /** Encrypts a message for one Client. */
+    @Benchmark
+    public byte[] encrypt(Messages state) throws Throwable {
+        return (byte[]) state.encrypt.invoke(state.plaintext, state.key,
+            state.ivs[state.next()], state.suite);
+    }
+
+    /** Decrypts a message from one Client. */
+    @Benchmark
+    public byte[] decrypt(Messages state) throws Throwable {
+        return (byte[]) state.decrypt.invoke(state.messages[state.next()],
+            state.ciphertextSize, state.key, state.suite);
+    }
+
+    /** Unwraps the secret key a new Client sends. */
+    @Benchmark
+    public byte[] rsaDecrypt(Secret state) throws Throwable {
+        return (byte[]) state.rsaDecrypt.invoke(state.secret);
+    }
+
+}
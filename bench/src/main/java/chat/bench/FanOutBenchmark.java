@@ -0,0 +1,132 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******************************************************************************
+ * Measures the work the Server does for a room of Clients: broadcast, which
+ * decrypts a message and encrypts and queues it for everyone else, and
+ * sendClientList, which encrypts the whole client list for one Client. The
+ * Clients are fakes connected by ChatFixture, with no sockets, so only the
+ * Server's own work is measured. Broadcasts run on the calling thread or,
+ * with fanOutThreads, on a FanOut pool as in a running Server.
+ *****************************************************************************/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    /** The number of messages used in turn, a power of two. */
+    private static final int ROTATION = 16;
+
+    /** The handler of each connection, which the methods belong to. */
+    private static final String HANDLER = "Server$ConnectionHandler";
+
+    /** The number of connected Clients. */
+    @Param({ "10", "100", "1000" })
+    public int clients;
+
+    /** The number of fan-out threads, 0 to send on the calling thread. */
+    @Param({ "0", "4" })
+    public int fanOutThreads;
+
+    /** The size of the broadcast plaintext. */
+    @Param({ "256" })
+    public int size;
+
+    /** Server.ConnectionHandler.broadcast(byte[], String, String) */
+    private MethodHandle broadcast;
+
+    /** Server.ConnectionHandler.sendClientList(String) */
+    private MethodHandle sendClientList;
+
+    /** The name of the sender. */
+    private String sender = ChatFixture.clientName(0);
+
+    /** The broadcasts, from the sender, in turn. */
+    private byte[][] messages = new byte[ROTATION][];
+
+    /** The size field of the broadcasts. */
+    private String sizeField;
+
+    /** The number of the next broadcast. */
+    private int next = 0;
+
+    /** Connects the Clients and builds the broadcasts. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        broadcast = ChatFixture.method(HANDLER, "broadcast", byte[].class,
+            String.class, String.class);
+        sendClientList = ChatFixture.method(HANDLER, "sendClientList",
+            String.class);
+        if (fanOutThreads > 0) {
+            try {
+                ChatFixture.set("Server", "fanOut", ChatFixture.type("FanOut")
+                    .getConstructor(int.class, int.class)
+                    .newInstance(fanOutThreads, 32));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Can't start FanOut", e);
+            }
+        }
+        Object suite = ChatFixture.suite("aes-gcm");
+        SecretKey key = ChatFixture.connect(clients, suite)[0];
+        MethodHandle encrypt = ChatFixture.method("Server", "encrypt",
+            byte[].class, SecretKey.class, IvParameterSpec.class,
+            ChatFixture.type("CipherSuite"));
+        Random random = new Random(size);
+        byte[] plaintext = new byte[size];
+        random.nextBytes(plaintext);
+        for (int i = 0; i < ROTATION; ++i) {
+            byte[] iv = new byte[16];
+            random.nextBytes(iv);
+            byte[] ciphertext = (byte[]) ChatFixture.call(encrypt,
+                plaintext, key, new IvParameterSpec(iv), suite);
+            messages[i] = ChatFixture.message("@bcst", "", sender, iv,
+                ciphertext);
+            sizeField = String.format("%10d", ciphertext.length);
+        }
+    }
+
+    /** Disconnects the Clients. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ChatFixture.disconnectAll();
+        ChatFixture.set("Server", "fanOut", null);
+    }
+
+    /** Broadcasts a message to every other Client. */
+    @Benchmark
+    public void broadcast() throws Throwable {
+        next = (next + 1) & (ROTATION - 1);
+        broadcast.invoke(messages[next], sender, sizeField);
+    }
+
+    /** Sends the whole client list to one Client. */
+    @Benchmark
+    public void sendClientList() throws Throwable {
+        sendClientList.invoke(sender);
+    }
+
+}
@@ -0,0 +1,74 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******************************************************************************
+ * Measures the handshakes one core of the Server can do per second: the
+ * Server's share of establishing a new Client's key, by unwrapping it with
+ * RSA or by answering an X25519 or P-256 key agreement, which takes a new
+ * key pair, the agreement and an ECDSA signature.
+ *****************************************************************************/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class HandshakeBenchmark {
+
+    /**************************************************************************
+     * The block a new Client sends, for one way of establishing its key.
+     *************************************************************************/
+    @State(Scope.Thread)
+    public static class Block {
+
+        /** How the key is established: "rsa", "x25519" or "p256". */
+        @Param({ "rsa", "x25519", "p256" })
+        public String handshake;
+
+        /** Server.establishKey(byte[]) */
+        private MethodHandle establishKey;
+
+        /** The block. */
+        private byte[] block;
+
+        /** Loads the Server's keys and builds the block. */
+        @Setup(Level.Trial)
+        public void setUp() {
+            ChatFixture.loadPrivateKey();
+            ChatFixture.loadIdentityKey();
+            establishKey = ChatFixture.method("Server", "establishKey",
+                byte[].class);
+            if (handshake.equals("rsa")) {
+                block = ChatFixture.wrapSecret(ChatFixture.newKey(
+                    ChatFixture.suite("aes-cbc")));
+            } else {
+                block = ChatFixture.offerKeyAgreement(handshake);
+            }
+        }
+
+    }
+
+    /** Establishes a new Client's key. */
+    @Benchmark
+    public Object establishKey(Block state) throws Throwable {
+        return state.establishKey.invoke(state.block);
+    }
+
+}
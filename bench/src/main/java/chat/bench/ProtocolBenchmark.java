@@ -0,0 +1,120 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******************************************************************************
+ * Measures how the Server takes apart each message it receives: parsing
+ * the header with parseMessage, and decode, which looks up the sender's
+ * key and suite and decrypts the message.
+ *****************************************************************************/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    /** The number of messages used in turn, a power of two. */
+    private static final int ROTATION = 16;
+
+    /** The handler of each connection, which the methods belong to. */
+    private static final String HANDLER = "Server$ConnectionHandler";
+
+    /** The cipher suite of the sender. */
+    @Param({ "aes-gcm", "chacha20-poly1305" })
+    public String suiteName;
+
+    /** The size of the plaintext. */
+    @Param({ "64", "1024" })
+    public int size;
+
+    /** Server.ConnectionHandler.parseMessage(byte[]) */
+    private MethodHandle parseMessage;
+
+    /** Server.ConnectionHandler.decode(String, byte[], String) */
+    private MethodHandle decode;
+
+    /** The name of the sender. */
+    private String sender = ChatFixture.clientName(0);
+
+    /** The messages, from the sender, in turn. */
+    private byte[][] messages = new byte[ROTATION][];
+
+    /** The size field of the messages. */
+    private String sizeField;
+
+    /** The number of the next message. */
+    private int next = 0;
+
+    /** Connects the sender and builds its messages. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        parseMessage = ChatFixture.method(HANDLER, "parseMessage",
+            byte[].class);
+        decode = ChatFixture.method(HANDLER, "decode", String.class,
+            byte[].class, String.class);
+        Object suite = ChatFixture.suite(suiteName);
+        SecretKey key = ChatFixture.connect(1, suite)[0];
+        MethodHandle encrypt = ChatFixture.method("Server", "encrypt",
+            byte[].class, SecretKey.class, IvParameterSpec.class,
+            ChatFixture.type("CipherSuite"));
+        Random random = new Random(size);
+        byte[] plaintext = new byte[size];
+        random.nextBytes(plaintext);
+        for (int i = 0; i < ROTATION; ++i) {
+            byte[] iv = new byte[16];
+            random.nextBytes(iv);
+            byte[] ciphertext = (byte[]) ChatFixture.call(encrypt,
+                plaintext, key, new IvParameterSpec(iv), suite);
+            messages[i] = ChatFixture.message("@bcst", "", sender, iv,
+                ciphertext);
+            sizeField = String.format("%10d", ciphertext.length);
+        }
+    }
+
+    /** Disconnects the sender. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ChatFixture.disconnectAll();
+    }
+
+    /** Gives the next message. */
+    private byte[] next() {
+        next = (next + 1) & (ROTATION - 1);
+        return messages[next];
+    }
+
+    /** Parses the header of a message. */
+    @Benchmark
+    public String[] parseMessage() throws Throwable {
+        return (String[]) parseMessage.invoke(next());
+    }
+
+    /** Decrypts a message with its sender's key. */
+    @Benchmark
+    public byte[] decode() throws Throwable {
+        return (byte[]) decode.invoke(sender, next(), sizeField);
+    }
+
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ * Recycles the byte arrays that outgoing frames are built in, so sending a
+ * message to many Clients doesn't leave a new array behind for each of them.
+ * Arrays come in power-of-two size classes, from 256 bytes up to the largest
+ * compact frame; an array is usually longer than what is written in it, so
+ * whoever uses one keeps track of the length it filled. Each class keeps a
+ * bounded number of free arrays; requests bigger than the largest class, and
+ * arrays released into a full class, are left to the garbage collector.
+ *
+ * An array must be released exactly once, by whoever holds it last, and not
+ * touched afterwards. In debug mode every array handed out is tracked, so
+ * arrays released twice are reported at once, and arrays that have been
+ * held for a long time are reported with the stack that acquired them.
+ *****************************************************************************/
+public class BufferPool {
+
+    /** The size of the smallest class. */
+    private static final int SMALLEST_CLASS = 256;
+
+    /** The number of size classes: 256 bytes to 128 KiB. */
+    private static final int CLASSES = 10;
+
+    /** The number of bytes of free arrays kept in each class. */
+    private static final int KEPT_BYTES = 4 * 1024 * 1024;
+
+    /** How long an array may be held before debug mode reports it, in ms. */
+    private static final long LEAK_MILLIS = 10 * 1000L;
+
+    /** The free arrays of each size class. */
+    private static List<ArrayBlockingQueue<byte[]>> free =
+        new ArrayList<ArrayBlockingQueue<byte[]>>();
+
+    static {
+        for (int i = 0; i < CLASSES; ++i) {
+            int size = SMALLEST_CLASS << i;
+            free.add(new ArrayBlockingQueue<byte[]>(
+                Math.max(16, KEPT_BYTES / size)));
+        }
+    }
+
+    /** The number of arrays handed out. */
+    private static AtomicLong acquired = new AtomicLong();
+
+    /** The number of arrays that had to be allocated. */
+    private static AtomicLong allocated = new AtomicLong();
+
+    /** The arrays handed out and not yet released, in debug mode only. */
+    private static Map<byte[],Lease> leases = null;
+
+    /**************************************************************************
+     * Where and when an array was handed out, for debug mode.
+     *************************************************************************/
+    private static class Lease {
+
+        /** The stack that acquired the array. */
+        private Throwable origin = new Throwable("Acquired here");
+
+        /** When the array was acquired. */
+        private long time = System.currentTimeMillis();
+
+        /** True once the lease was reported as a possible leak. */
+        private boolean reported = false;
+
+    }
+
+    /**************************************************************************
+     * Turns on debug mode, which tracks every array handed out. Reports
+     * arrays held for over ten seconds, every ten seconds. Only call before
+     * Clients connect.
+     *************************************************************************/
+    public static void enableDebug() {
+        leases = new IdentityHashMap<byte[],Lease>();
+        ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "buffer-leaks");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reportLeaks();
+            }
+        }, LEAK_MILLIS, LEAK_MILLIS, TimeUnit.MILLISECONDS);
+        Log.info(Log.SERVER, "Tracking pooled buffers for leaks.");
+    }
+
+    /**************************************************************************
+     * Hands out an array of at least the given size. Its contents are
+     * whatever its last user left in it.
+     * @param size is the number of bytes needed
+     * @return the array
+     *************************************************************************/
+    public static byte[] acquire(int size) {
+        acquired.incrementAndGet();
+        int index = classOf(size);
+        byte[] buffer = null;
+        if (index != -1)
+            buffer = free.get(index).poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = new byte[index == -1 ? size : SMALLEST_CLASS << index];
+        }
+        if (leases != null) {
+            synchronized (leases) {
+                leases.put(buffer, new Lease());
+            }
+        }
+        return buffer;
+    }
+
+    /**************************************************************************
+     * Gives an array back to the pool. The caller must not use it again.
+     * @param buffer is an array returned by acquire()
+     *************************************************************************/
+    public static void release(byte[] buffer) {
+        if (leases != null) {
+            Lease lease;
+            synchronized (leases) {
+                lease = leases.remove(buffer);
+            }
+            if (lease == null) {
+                System.err.println("Buffer released twice, or not from the "
+                    + "pool.");
+                new Throwable("Released here").printStackTrace();
+                return;
+            }
+        }
+        int index = classOf(buffer.length);
+        if (index != -1 && buffer.length == SMALLEST_CLASS << index)
+            free.get(index).offer(buffer);
+    }
+
+    /**************************************************************************
+     * Finds the smallest size class that holds a number of bytes.
+     * @param size is the number of bytes
+     * @return the index of the class, -1 if it is bigger than every class
+     *************************************************************************/
+    private static int classOf(int size) {
+        int index = 0;
+        while (index < CLASSES && SMALLEST_CLASS << index < size) {
+            ++index;
+        }
+        return index == CLASSES ? -1 : index;
+    }
+
+    /**************************************************************************
+     * Prints the arrays held for longer than they should be, once each, with
+     * the stack that acquired them. Only called in debug mode.
+     *************************************************************************/
+    private static void reportLeaks() {
+        long now = System.currentTimeMillis();
+        List<Lease> leaked = new ArrayList<Lease>();
+        synchronized (leases) {
+            for (Lease lease: leases.values()) {
+                if (!lease.reported && now - lease.time > LEAK_MILLIS) {
+                    lease.reported = true;
+                    leaked.add(lease);
+                }
+            }
+        }
+        for (Lease lease: leaked) {
+            System.err.println("Possible buffer leak, held for "
+                + (now - lease.time) + " ms.");
+            lease.origin.printStackTrace();
+        }
+    }
+
+    /** Gives the number of arrays handed out. */
+    public static long getAcquired() {
+        return acquired.get();
+    }
+
+    /** Gives the number of arrays that had to be allocated. */
+    public static long getAllocated() {
+        return allocated.get();
+    }
+
+}
@@ -0,0 +1,71 @@
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/******************************************************************************
+ * Keeps one Cipher per transformation per thread. Looking up a provider and
+ * building a Cipher costs far more than encrypting a short chat message, so
+ * the hot paths reuse the cached Cipher and only call init() with the key and
+ * IV of each message. A Cipher isn't thread-safe, which is why every thread
+ * gets its own.
+ *****************************************************************************/
+public class CipherCache {
+
+    /** The Ciphers of the current thread, keyed by transformation. */
+    private static final ThreadLocal<Map<String,Cipher>> ciphers =
+        new ThreadLocal<Map<String,Cipher>>() {
+            @Override
+            protected Map<String,Cipher> initialValue() {
+                return new HashMap<String,Cipher>();
+            }
+        };
+
+    /**************************************************************************
+     * Gives the current thread's Cipher for a transformation, creating it the
+     * first time. The Cipher must be initialized before every use.
+     * @param transformation is the transformation, such as
+     * "AES/CBC/PKCS5Padding"
+     * @return the cached Cipher
+     * @throws NoSuchAlgorithmException if the algorithm doesn't exist
+     * @throws NoSuchPaddingException if the padding doesn't exist
+     *************************************************************************/
+    public static Cipher get(String transformation)
+        throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String,Cipher> cache = ciphers.get();
+        Cipher cipher = cache.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            cache.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**************************************************************************
+     * Gives the current thread's Cipher for a transformation and mode, so
+     * that encrypting and decrypting don't share a Cipher. Authenticated
+     * ciphers refuse to be initialized twice in a row with the same key and
+     * IV, which happens when a Client decrypts the echo of its own message.
+     * @param transformation is the transformation, such as
+     * "AES/GCM/NoPadding"
+     * @param mode is Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @return the cached Cipher
+     * @throws NoSuchAlgorithmException if the algorithm doesn't exist
+     * @throws NoSuchPaddingException if the padding doesn't exist
+     *************************************************************************/
+    public static Cipher get(String transformation, int mode)
+        throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String,Cipher> cache = ciphers.get();
+        String name = transformation + "#" + mode;
+        Cipher cipher = cache.get(name);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            cache.put(name, cipher);
+        }
+        return cipher;
+    }
+
+}
@@ -0,0 +1,270 @@
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/******************************************************************************
+ * A symmetric cipher used for chat messages. Besides the original AES-CBC,
+ * which has no integrity check of its own, there are two authenticated
+ * suites: AES-GCM, which is fastest where the CPU has AES instructions, and
+ * ChaCha20-Poly1305 (Java 11 and newer), which is fastest where it doesn't.
+ *
+ * A Client lists the suites it supports on its name line, for example
+ *     alice	frames=2	suites=aes-gcm,chacha20-poly1305,aes-cbc
+ * and the Server answers with a @pkey message naming the one it picked.
+ * Clients that don't list any suites keep using AES-CBC.
+ *
+ * All suites take the 16-byte IV of the message header; the authenticated
+ * ones use its first 12 bytes as their nonce. All of them are keyed with the
+ * Client's 128-bit secret key, which is stretched to 256 bits with SHA-256
+ * for ChaCha20.
+ *****************************************************************************/
+public class CipherSuite {
+
+    /** AES-128 in CBC mode - the original cipher, kept for old Clients. */
+    public static final CipherSuite AES_CBC = new CipherSuite("aes-cbc",
+        "AES/CBC/PKCS5Padding", 16);
+
+    /** AES-128 in GCM mode with a 128-bit tag. */
+    public static final CipherSuite AES_GCM = new CipherSuite("aes-gcm",
+        "AES/GCM/NoPadding", 12);
+
+    /** ChaCha20 with a Poly1305 tag. */
+    public static final CipherSuite CHACHA20_POLY1305 = new CipherSuite(
+        "chacha20-poly1305", "ChaCha20-Poly1305", 12);
+
+    /** Every suite, authenticated ones first. */
+    private static final CipherSuite[] ALL = { AES_GCM, CHACHA20_POLY1305,
+        AES_CBC };
+
+    /** The size of the messages encrypted by the startup benchmark. */
+    private static final int BENCHMARK_MESSAGE = 1024;
+
+    /** How long each suite is warmed up, then timed, at startup. */
+    private static final long BENCHMARK_NANOS = 200 * 1000 * 1000L;
+
+    /** The name of the suite, as sent on the wire. */
+    private String name;
+
+    /** The JCE transformation of the suite. */
+    private String transformation;
+
+    /** The number of IV bytes used by the suite. */
+    private int nonceSize;
+
+    /**************************************************************************
+     * Constructs a CipherSuite.
+     * @param name is the name of the suite, as sent on the wire
+     * @param transformation is the JCE transformation of the suite
+     * @param nonceSize is the number of IV bytes used by the suite
+     *************************************************************************/
+    private CipherSuite(String name, String transformation, int nonceSize) {
+        this.name = name;
+        this.transformation = transformation;
+        this.nonceSize = nonceSize;
+    }
+
+    /** Gives access to the name of the suite. */
+    public String getName() {
+        return this.name;
+    }
+
+    /**************************************************************************
+     * Finds a suite by its name.
+     * @param name is the name of the suite, as sent on the wire
+     * @return the suite, or null if there is no such suite
+     *************************************************************************/
+    public static CipherSuite forName(String name) {
+        for (CipherSuite suite: ALL) {
+            if (suite.name.equals(name.trim()))
+                return suite;
+        }
+        return null;
+    }
+
+    /**************************************************************************
+     * Gives the suites this JVM can run, authenticated ones first.
+     * @return the supported suites
+     *************************************************************************/
+    public static List<CipherSuite> supported() {
+        List<CipherSuite> suites = new ArrayList<CipherSuite>();
+        for (CipherSuite suite: ALL) {
+            try {
+                CipherCache.get(suite.transformation);
+                suites.add(suite);
+            } catch (NoSuchAlgorithmException e) {
+                // Not in this JVM
+            } catch (NoSuchPaddingException e) {
+                // Not in this JVM
+            }
+        }
+        return suites;
+    }
+
+    /**************************************************************************
+     * Joins the names of some suites into the list sent on the name line.
+     * @param suites are the suites
+     * @return the comma-separated names
+     *************************************************************************/
+    public static String names(List<CipherSuite> suites) {
+        String names = "";
+        for (CipherSuite suite: suites) {
+            names += (names.isEmpty() ? "" : ",") + suite.name;
+        }
+        return names;
+    }
+
+    /**************************************************************************
+     * Derives the key this suite encrypts with from a Client's secret key.
+     * Done once per key, not per message.
+     * @param secretKey is the Client's 128-bit AES key
+     * @return the key to hand to init()
+     *************************************************************************/
+    public SecretKey cipherKey(SecretKey secretKey) {
+        if (this != CHACHA20_POLY1305)
+            return secretKey;
+        try {
+            byte[] stretched = MessageDigest.getInstance("SHA-256")
+                .digest(secretKey.getEncoded());
+            return new SecretKeySpec(stretched, "ChaCha20");
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Hash algorithm doesn't exist.");
+            e.printStackTrace();
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**************************************************************************
+     * Gives this thread's Cipher for the suite, initialized for one message.
+     * @param mode is Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key is a key returned by cipherKey()
+     * @param iv is the 16-byte IV from the message header
+     * @return the initialized Cipher
+     * @throws NoSuchAlgorithmException if the algorithm doesn't exist
+     * @throws NoSuchPaddingException if the padding doesn't exist
+     * @throws InvalidKeyException if the key doesn't suit the cipher
+     * @throws InvalidAlgorithmParameterException if the IV isn't valid
+     *************************************************************************/
+    public Cipher init(int mode, SecretKey key, byte[] iv)
+        throws NoSuchAlgorithmException, NoSuchPaddingException,
+        InvalidKeyException, InvalidAlgorithmParameterException {
+        return init(mode, key, iv, 0);
+    }
+
+    /**************************************************************************
+     * Gives this thread's Cipher for the suite, initialized for one message
+     * whose IV is read from inside a larger array, such as a frame.
+     * @param mode is Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key is a key returned by cipherKey()
+     * @param iv is the array holding the 16-byte IV
+     * @param offset is the position of the IV in the array
+     * @return the initialized Cipher
+     * @throws NoSuchAlgorithmException if the algorithm doesn't exist
+     * @throws NoSuchPaddingException if the padding doesn't exist
+     * @throws InvalidKeyException if the key doesn't suit the cipher
+     * @throws InvalidAlgorithmParameterException if the IV isn't valid
+     *************************************************************************/
+    public Cipher init(int mode, SecretKey key, byte[] iv, int offset)
+        throws NoSuchAlgorithmException, NoSuchPaddingException,
+        InvalidKeyException, InvalidAlgorithmParameterException {
+        AlgorithmParameterSpec parameters;
+        if (this == AES_GCM) {
+            parameters = new GCMParameterSpec(128, iv, offset, nonceSize);
+        } else {
+            parameters = new IvParameterSpec(iv, offset, nonceSize);
+        }
+        Cipher c = CipherCache.get(transformation, mode);
+        try {
+            c.init(mode, key, parameters);
+        } catch (InvalidKeyException e) {
+            if (mode != Cipher.DECRYPT_MODE || this != CHACHA20_POLY1305)
+                throw e;
+            // ChaCha20 also refuses to decrypt the same message twice in a
+            // row with one Cipher; never fall back like this for encrypting
+            c = Cipher.getInstance(transformation);
+            c.init(mode, key, parameters);
+        }
+        return c;
+    }
+
+    /**************************************************************************
+     * Times every supported suite and ranks them, printing the throughput of
+     * each. Authenticated suites always rank above AES-CBC, which is only
+     * used with Clients that know nothing else.
+     * @return the supported suites, the preferred one first
+     *************************************************************************/
+    public static List<CipherSuite> rankByThroughput() {
+        final Map<CipherSuite,Double> throughput =
+            new HashMap<CipherSuite,Double>();
+        List<CipherSuite> suites = supported();
+        // Warm every suite up first, so the JIT compiler is done with the
+        // shared code before any of them is timed
+        for (CipherSuite suite: suites) {
+            benchmark(suite);
+        }
+        for (CipherSuite suite: suites) {
+            double megabytes = benchmark(suite);
+            throughput.put(suite, megabytes);
+            Log.info(Log.CRYPTO, String.format("Cipher suite %-18s %8.1f MB/s",
+                suite.name, megabytes));
+        }
+        Collections.sort(suites, new Comparator<CipherSuite>() {
+            @Override
+            public int compare(CipherSuite a, CipherSuite b) {
+                if ((a == AES_CBC) != (b == AES_CBC))
+                    return a == AES_CBC ? 1 : -1;
+                return Double.compare(throughput.get(b), throughput.get(a));
+            }
+        });
+        Log.info(Log.CRYPTO, "Preferred cipher suites: " + names(suites));
+        return suites;
+    }
+
+    /**************************************************************************
+     * Measures how fast a suite encrypts chat-sized messages, for a fixed
+     * amount of time.
+     * @param suite is the suite to time
+     * @return the throughput in megabytes per second, 0 if it failed
+     *************************************************************************/
+    private static double benchmark(CipherSuite suite) {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+            SecretKey key = suite.cipherKey(generator.generateKey());
+            byte[] message = new byte[BENCHMARK_MESSAGE];
+            byte[] iv = new byte[IvSource.IV_SIZE];
+            long operations = 0;
+            long elapsed = 0;
+            long start = System.nanoTime();
+            do {
+                IvSource.next(iv, 0);
+                suite.init(Cipher.ENCRYPT_MODE, key, iv).doFinal(message);
+                ++operations;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < BENCHMARK_NANOS);
+            return operations * (double) BENCHMARK_MESSAGE * 1000.0 / elapsed;
+        } catch (Exception e) {
+            System.err.println("Couldn't time cipher suite " + suite.name);
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+}
@@ -3,6 +3,9 @@ import javax.swing.JFrame;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import java.net.Socket;
@@ -17,12 +20,13 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.AEADBadTagException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
 
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.*;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 
@@ -77,6 +81,15 @@ public class Client {
     private CopyOnWriteArrayList<String> otherClients = 
         new CopyOnWriteArrayList<String>();
     
+    /** The version of the roster that otherClients matches. */
+    private int rosterVersion = 0;
+    
+    /**
+     * True while waiting for the whole client list, which the Server sends
+     * when we connect and when we ask for it after missing a delta.
+     */
+    private boolean rosterRequested = true;
+    
     /* 
      * A list of codes to be inserted in front of the message, so the Server
      * knows what to do with each message.
@@ -111,6 +124,24 @@ public class Client {
     /** The iv code - sends initialization vector to Server. */
     private static final String IV = "@ivec";
     
+    /** The group key code - the Server sends a new group key. */
+    private static final String GROUP_KEY = "@gkey";
+    
+    /** The group broadcast code - a broadcast encrypted with the group key. */
+    private static final String GROUP_BROADCAST = "@gbct";
+    
+    /** The pair key code - the Server gives us a key shared with a Client. */
+    private static final String PAIR_KEY = "@pair";
+    
+    /** The pair send code - a message encrypted with a pair key. */
+    private static final String PAIR_SEND = "@psnd";
+    
+    /** The roster delta code - tells us who joined or left. */
+    private static final String ROSTER_DELTA = "@rdlt";
+    
+    /** The ticket code - gives us a ticket to resume our session with. */
+    private static final String TICKET = "@tckt";
+    
     /** The public key used to encrypt our symmetric key. */
     private PublicKey publicKey;
     
@@ -120,12 +151,115 @@ public class Client {
      */
     private SecretKey secretKey;
     
+    /** The cipher suite chosen by the Server. */
+    private CipherSuite suite = CipherSuite.AES_CBC;
+    
+    /** The secret key as used by the cipher suite. */
+    private SecretKey cipherKey;
+    
+    /**
+     * The codec chat messages to and from the Server are compressed with, 
+     * null if the Server doesn't compress them.
+     */
+    private Compression compression;
+    
+    /** The size below which chat messages are sent as they are. */
+    private int compressThreshold = Compression.DEFAULT_THRESHOLD;
+    
+    /**
+     * The group keys received from the Server, by epoch. Broadcasts are
+     * encrypted once with the newest one instead of with the secret key.
+     */
+    private ConcurrentHashMap<Integer,SecretKey> groupKeys = 
+        new ConcurrentHashMap<Integer,SecretKey>();
+    
+    /** The cipher suite used with the group keys. */
+    private CipherSuite groupSuite = CipherSuite.AES_CBC;
+    
+    /** The epoch of the newest group key, 0 while there is none. */
+    private volatile int groupEpoch = 0;
+    
+    /**
+     * The keys shared with other Clients, by name. Messages to those Clients
+     * are encrypted with them, so the Server passes them on without being 
+     * able to read them.
+     */
+    private ConcurrentHashMap<String,SecretKey> pairKeys = 
+        new ConcurrentHashMap<String,SecretKey>();
+    
+    /** The cipher suite used with the pair keys. */
+    private CipherSuite pairSuite = CipherSuite.AES_CBC;
+    
     /** Reads data from the server. */
     private  DataInputStream input;
     
+    /** Reassembles the frames read from the server. */
+    private FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+    
     /** Sends data to the server. */
     private  DataOutputStream output;
     
+    /**
+     * True for the chat window's Client, which exits when the connection
+     * fails. A headless Client throws IllegalStateException instead, so a
+     * load generator can carry on with its other sessions.
+     */
+    private boolean exitOnFailure = true;
+    
+    /** The newest ticket from the Server, null until one arrives. */
+    private volatile Ticket ticket = null;
+    
+    /** The ticket this Client is resuming a session with, if any. */
+    private Ticket resuming = null;
+    
+    /** True if the Server accepted the ticket this Client resumed with. */
+    private boolean resumed = false;
+    
+    /** 
+     * The Server's ECDSA identity key, or null to send the secret key with
+     * RSA rather than agree on one.
+     */
+    private PublicKey identityKey = null;
+    
+    /** This Client's half of the key agreement in progress, if any. */
+    private KeyExchange keyExchange = null;
+    
+    /**************************************************************************
+     * A ticket the Server gave a Client to resume its session with, after
+     * losing its connection, without another RSA key transport. The ticket
+     * itself is sealed by the Server; it is kept with the secret key and 
+     * name it restores.
+     *************************************************************************/
+    public static class Ticket {
+        
+        /** The name the ticket was issued to. */
+        private String name;
+        
+        /** The ticket, as sent by the Server. */
+        private byte[] sealed;
+        
+        /** The secret key of the session the ticket resumes. */
+        private SecretKey secretKey;
+        
+        /**********************************************************************
+         * Constructs a Ticket.
+         * @param name is the name the ticket was issued to
+         * @param sealed is the ticket, as sent by the Server
+         * @param secretKey is the secret key of the session
+         *********************************************************************/
+        private Ticket(String name, byte[] sealed, SecretKey secretKey) {
+            this.name = name;
+            this.sealed = sealed;
+            this.secretKey = secretKey;
+        }
+        
+        /** Gives access to the name the ticket was issued to. */
+        public String getName() {
+            return this.name;
+        }
+        
+    }
+    
     /**************************************************************************
      * Instantiates a Client object connecting to a particular IP and having
      * a given name.
@@ -138,40 +272,97 @@ public class Client {
         this.name = name;
         this.serverIP = serverIP;
         setPublicKey("RSApub.der");
-        secretKey = generateAESKey();
+        if (new File("ECpub.der").exists())
+            setIdentityKey("ECpub.der");
+        connect(port);
+        
+    }
+    
+    /**************************************************************************
+     * Instantiates a headless Client, which throws IllegalStateException
+     * rather than exiting when the connection fails.
+     * @param name is the name of the client
+     * @param serverIP is the IP address of the server
+     * @param serverPort is the port the server listens on
+     * @param publicKey is the server's public key, see readPublicKey
+     *************************************************************************/
+    public Client(String name, String serverIP, int serverPort, 
+        PublicKey publicKey) {
+        
+        this(name, serverIP, serverPort, publicKey, null);
+        
+    }
+    
+    /**************************************************************************
+     * Instantiates a headless Client that resumes an earlier session with a
+     * ticket, if the ticket was issued to the same name. Should the Server
+     * turn the ticket down, sendName() falls back to the RSA key transport.
+     * @param name is the name of the client
+     * @param serverIP is the IP address of the server
+     * @param serverPort is the port the server listens on
+     * @param publicKey is the server's public key, see readPublicKey
+     * @param ticket is the ticket from the earlier session, may be null
+     *************************************************************************/
+    public Client(String name, String serverIP, int serverPort, 
+        PublicKey publicKey, Ticket ticket) {
+        
+        this.name = name;
+        this.serverIP = serverIP;
+        this.publicKey = publicKey;
+        exitOnFailure = false;
+        if (ticket != null && ticket.name.equals(name))
+            resuming = ticket;
+        connect(serverPort);
+        
+    }
+    
+    /**************************************************************************
+     * Generates the secret key and connects to the server.
+     * @param serverPort is the port the server listens on
+     *************************************************************************/
+    private void connect(int serverPort) {
+        secretKey = resuming != null ? resuming.secretKey : generateAESKey();
+        cipherKey = secretKey;
     	
         try {
-            socket = new Socket(InetAddress.getByName(serverIP), port);
+            socket = new Socket(InetAddress.getByName(serverIP), serverPort);
         } catch (UnknownHostException e) {
-            System.err.println("Could not resolve server IP to a host.");
-            e.printStackTrace();
-            System.exit(1);
+            fail("Could not resolve server IP to a host.", e, true);
         } catch (IOException e) {
-            System.err.println("Could not resolve server IP to a host.");
-            e.printStackTrace();
-            System.exit(1);
+            fail("Could not resolve server IP to a host.", e, true);
         }
         
-        System.out.println("Client is connected to the host.");
+        Log.info(Log.SERVER, "Client is connected to the host.");
         
         try {
             input = new DataInputStream(socket.getInputStream());
         } catch (IOException e) {
-            System.err.println("Couldn't create a reader for client "
-                + "socket.");
-            e.printStackTrace();
-            System.exit(1);
+            fail("Couldn't create a reader for client socket.", e, true);
         }
         
         try {
             output = new DataOutputStream(socket.getOutputStream());
         } catch (IOException e) {
-            System.err.println("Couldn't create a writer to server "
-                + "socket.");
-            e.printStackTrace();
-            System.exit(1);
+            fail("Couldn't create a writer to server socket.", e, true);
         }
-        
+    }
+    
+    /**************************************************************************
+     * Reports a failed connection. The chat window's Client prints it, and
+     * exits if it can't go on; a headless Client throws instead.
+     * @param reason is what failed
+     * @param cause is the exception that caused it, may be null
+     * @param fatal is true if the chat window's Client can't go on
+     * @throws IllegalStateException if this Client is headless
+     *************************************************************************/
+    private void fail(String reason, Exception cause, boolean fatal) {
+        if (!exitOnFailure)
+            throw new IllegalStateException(reason, cause);
+        System.err.println(reason);
+        if (cause != null)
+            cause.printStackTrace();
+        if (fatal)
+            System.exit(1);
     }
     
     /**************************************************************************
@@ -180,10 +371,7 @@ public class Client {
      *************************************************************************/
     private IvParameterSpec generateIV() {
         // Generate an initialization vector
-        SecureRandom r = new SecureRandom();
-    	byte ivbytes[] = new byte[16];
-    	r.nextBytes(ivbytes);
-    	return new IvParameterSpec(ivbytes);
+        return new IvParameterSpec(IvSource.next());
     }
     
     /**************************************************************************
@@ -192,65 +380,77 @@ public class Client {
      * ***********************************************************************/
     private void setPublicKey(String filename){
         try {
-            File f = new File(filename);
-            FileInputStream fs = new FileInputStream(f);
-            byte[] keybytes = new byte[(int)f.length()];
-            fs.read(keybytes);
-            fs.close();
-            X509EncodedKeySpec keyspec = new X509EncodedKeySpec(keybytes);
-            KeyFactory rsafactory = KeyFactory.getInstance("RSA");
-            publicKey = rsafactory.generatePublic(keyspec);
+            publicKey = readPublicKey(filename);
         } catch(Exception e) {
             System.out.println("Public Key Exception");
             System.exit(1);
         }
     }
     
+    /**************************************************************************
+     * Reads the server's identity key. Used for checking its half of the 
+     * key agreement
+     * @param filename is the local file containing the identity key
+     *************************************************************************/
+    private void setIdentityKey(String filename) {
+        try {
+            identityKey = readIdentityKey(filename);
+        } catch (Exception e) {
+            System.out.println("No identity key, using RSA.");
+        }
+    }
+    
+    /**************************************************************************
+     * Reads the server's identity key, for a headless Client.
+     * @param filename is the local file containing the identity key
+     * @return the identity key
+     * @throws Exception if the file can't be read or holds no EC key
+     *************************************************************************/
+    public static PublicKey readIdentityKey(String filename) 
+        throws Exception {
+        return KeyExchange.readPublicKey(filename);
+    }
+    
+    /**************************************************************************
+     * Makes this Client agree on its secret key with the Server, rather than
+     * send it encrypted with RSA. Only call before sendSymmetricKey(). A 
+     * Server that turns the agreement down is sent the RSA-encrypted key.
+     * @param identityKey is the Server's identity key, see readIdentityKey
+     *************************************************************************/
+    public void offerKeyAgreement(PublicKey identityKey) {
+        this.identityKey = identityKey;
+    }
+    
+    /**************************************************************************
+     * Reads the server's public key, for a headless Client.
+     * @param filename is the local file containing the public key
+     * @return the public key
+     * @throws Exception if the file can't be read or holds no RSA key
+     *************************************************************************/
+    public static PublicKey readPublicKey(String filename) throws Exception {
+        File f = new File(filename);
+        FileInputStream fs = new FileInputStream(f);
+        byte[] keybytes = new byte[(int)f.length()];
+        fs.read(keybytes);
+        fs.close();
+        X509EncodedKeySpec keyspec = new X509EncodedKeySpec(keybytes);
+        KeyFactory rsafactory = KeyFactory.getInstance("RSA");
+        return rsafactory.generatePublic(keyspec);
+    }
+    
     /**************************************************************************
      * Sends a message to one other Client.
      * @param message is the message sent to the Client
      * @param otherClient is the name of the other Client receiving the message
      *************************************************************************/
     public void sendMessage(String message, String otherClient) {
-        
-        /*
-         * Message format:
-         * @send (5 bytes)
-         * iv (16 bytes)
-         * receiverName (10 bytes)
-         * SenderName (10 bytes)
-         * size (10 bytes)
-         * message (1024 bytes)
-         */
-        byte[] buffer = new byte[1024 + 51];
-        try {
-            byte[] send = SEND.getBytes("ISO-8859-1");
-            byte[] iv = generateIV().getIV();
-            byte[] receiver = Arrays.copyOf(
-                otherClient.getBytes("ISO-8859-1"), 10);
-            byte[] sender = Arrays.copyOf(name.getBytes("ISO-8859-1"), 10);
-            byte[] msg = message.getBytes("ISO-8859-1");
-            msg = encrypt(msg, iv);
-            byte[] size = 
-                String.format("%10d", msg.length).getBytes("ISO-8859-1");
-            System.arraycopy(send, 0, buffer, 0, 5);
-            System.arraycopy(iv, 0, buffer, 5, 16);
-            System.arraycopy(receiver, 0, buffer, 21, 10);
-            System.arraycopy(sender, 0, buffer, 31, 10);
-            System.arraycopy(size, 0, buffer, 41, 10);
-            System.arraycopy(msg, 0, buffer, 51, msg.length);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            System.exit(1);
+        SecretKey key = pairKeys.get(otherClient);
+        if (key == null) {
+            sendFrame(SEND, otherClient, message);
+        } else {
+            // Only the other Client can read it
+            sendFrame(PAIR_SEND, otherClient, message, key, pairSuite);
         }
-        try {
-            output.write(buffer, 0, 1024 + 51);
-        } catch (IOException e) {
-            System.err.println("Couldn't send encrypted message.");
-            e.printStackTrace();
-            System.exit(1);
-        }
-        
     }
     
     /**************************************************************************
@@ -258,41 +458,14 @@ public class Client {
      * @param message is the message sent to the other Clients
      *************************************************************************/
     public void sendMessage(String message) {
-        
-        /*
-         * Message format:
-         * @bcst (5 bytes)
-         *       (10 bytes)
-         * SenderName (10 bytes)
-         * size (10 bytes)
-         * message (1024 bytes)
-         */
-        byte[] buffer = new byte[1024 + 51];
-        try {
-            byte[] broadcast = BROADCAST.getBytes("ISO-8859-1");
-            byte[] iv = generateIV().getIV();
-            byte[] sender = Arrays.copyOf(name.getBytes("ISO-8859-1"), 10);
-            byte[] msg = message.getBytes("ISO-8859-1");
-            msg = encrypt(msg, iv);
-            byte[] size = 
-                String.format("%10d", msg.length).getBytes("ISO-8859-1");
-            System.arraycopy(broadcast, 0, buffer, 0, 5);
-            System.arraycopy(iv, 0, buffer, 5, 16);
-            System.arraycopy(sender, 0, buffer, 31, 10);
-            System.arraycopy(size, 0, buffer, 41, 10);
-            System.arraycopy(msg, 0, buffer, 51, msg.length);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-        try {
-            output.write(buffer, 0, 1024 + 51);
-        } catch (IOException e) {
-            System.err.println("Couldn't send encrypted message.");
-            e.printStackTrace();
-            System.exit(1);
+        int epoch = groupEpoch;
+        if (epoch == 0) {
+            sendFrame(BROADCAST, "", message);
+        } else {
+            // The Server relays it to the other Clients without re-encrypting
+            sendFrame(GROUP_BROADCAST, String.valueOf(epoch), message, 
+                groupKeys.get(epoch), groupSuite);
         }
-        
     }
     
     /**************************************************************************
@@ -300,67 +473,68 @@ public class Client {
      * @param command is the name of the command to be sent to the server
      *************************************************************************/
     public void sendKick(String users) {
-        
-        /*
-         * Message format:
-         * @kick (5 bytes)
-         *       (10 bytes)
-         * SenderName (10 bytes)
-         * size (10 bytes)
-         * users (1024 bytes)
-         */
-        byte[] buffer = new byte[1024 + 51];
-        try {
-            byte[] kick = KICK.getBytes("ISO-8859-1");
-            byte[] iv = generateIV().getIV();
-            byte[] sender = Arrays.copyOf(name.getBytes("ISO-8859-1"), 10);
-            byte[] msg = users.getBytes("ISO-8859-1");
-            msg = encrypt(msg, iv);
-            byte[] size = 
-                String.format("%10d", msg.length).getBytes("ISO-8859-1");
-            System.arraycopy(kick, 0, buffer, 0, 5);
-            System.arraycopy(iv, 0, buffer, 5, 16);
-            System.arraycopy(sender, 0, buffer, 31, 10);
-            System.arraycopy(size, 0, buffer, 41, 10);
-            System.arraycopy(msg, 0, buffer, 51, msg.length);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-        try {
-            output.write(buffer, 0, 1024 + 51);
-        } catch (IOException e) {
-            System.err.println("Couldn't send encrypted message.");
-            e.printStackTrace();
-            System.exit(1);
-        }
-        
+        sendFrame(KICK, "", users);
     }
     
     /**************************************************************************
      * Alerts the server that this Client is disconnecting.
      *************************************************************************/
     public void alertExit() {
+        sendFrame(EXIT, "", "Nothing To See Here");
+    }
+    
+    /**************************************************************************
+     * Encrypts a message and sends it to the Server as a compact frame.
+     * @param code is the command, such as @send or @bcst
+     * @param otherClient is the name of the receiving Client, empty if the 
+     * command doesn't have one
+     * @param message is the plaintext to encrypt
+     *************************************************************************/
+    private void sendFrame(String code, String otherClient, String message) {
+        sendFrame(code, otherClient, message, cipherKey, suite);
+    }
+    
+    /**************************************************************************
+     * Encrypts a message with a given key and sends it to the Server as a 
+     * compact frame.
+     * @param code is the command, such as @send or @bcst
+     * @param otherClient is the name of the receiving Client, or the epoch of
+     * the group key, empty if the command doesn't have one
+     * @param message is the plaintext to encrypt
+     * @param key is the key to encrypt with
+     * @param suite is the cipher suite to encrypt with
+     *************************************************************************/
+    private void sendFrame(String code, String otherClient, String message,
+        SecretKey key, CipherSuite suite) {
         
         /*
-         * Message format:
-         * @exit (5 bytes)
-         *       (10 bytes)
+         * Message format (see Frames):
+         * @code (5 bytes)
+         * iv (16 bytes)
+         * receiverName (10 bytes)
          * SenderName (10 bytes)
          * size (10 bytes)
-         * users (1024 bytes)
+         * message (size bytes)
          */
-        byte[] buffer = new byte[1024 + 51];
+        byte[] buffer = null;
         try {
-            byte[] exit = EXIT.getBytes("ISO-8859-1");
+            byte[] command = code.getBytes("ISO-8859-1");
             byte[] iv = generateIV().getIV();
+            byte[] receiver = Arrays.copyOf(
+                otherClient.getBytes("ISO-8859-1"), 10);
             byte[] sender = Arrays.copyOf(name.getBytes("ISO-8859-1"), 10);
-            byte[] msg = "Nothing To See Here".getBytes("ISO-8859-1");
-            msg = encrypt(msg, iv);
+            byte[] msg = message.getBytes("ISO-8859-1");
+            if (compression != null 
+                && (code.equals(BROADCAST) || code.equals(SEND))) {
+                msg = compression.compress(msg, compressThreshold);
+            }
+            msg = encrypt(msg, key, iv, suite);
             byte[] size = 
                 String.format("%10d", msg.length).getBytes("ISO-8859-1");
-            System.arraycopy(exit, 0, buffer, 0, 5);
+            buffer = new byte[51 + msg.length];
+            System.arraycopy(command, 0, buffer, 0, 5);
             System.arraycopy(iv, 0, buffer, 5, 16);
+            System.arraycopy(receiver, 0, buffer, 21, 10);
             System.arraycopy(sender, 0, buffer, 31, 10);
             System.arraycopy(size, 0, buffer, 41, 10);
             System.arraycopy(msg, 0, buffer, 51, msg.length);
@@ -368,27 +542,108 @@ public class Client {
             e.printStackTrace();
             System.exit(1);
         }
+        if (buffer.length > Frames.MAX_COMPACT_SIZE - 64) {
+            System.err.println("Message too long to send.");
+            return;
+        }
+        byte[] frame = Frames.toCompact(buffer);
         try {
-            output.write(buffer, 0, 1024 + 51);
+            synchronized (output) {
+                output.write(frame, 0, frame.length);
+            }
         } catch (IOException e) {
-            System.err.println("Couldn't send encrypted message.");
-            e.printStackTrace();
-            System.exit(1);
+            fail("Couldn't send encrypted message.", e, true);
         }
+        
     }
     
     /**************************************************************************
-     * Sends out the name of this Client.
+     * Sends out the name of this Client, asking the Server for compact 
+     * frames, the group key, pair keys and roster deltas, and listing the
+     * cipher suites and compression codecs this Client supports. Then waits 
+     * for the Server's choice of cipher suite and codec, which comes before 
+     * any other message.
      *************************************************************************/
     public void sendName() {
         try {
             // Maybe send the name and the symmetric at the same time?
-            output.writeBytes(name + "\n");
+            output.writeBytes(name + "\tframes=2\tgroupkeys=1\tpairkeys=1"
+                + "\trosterdeltas=1\ttickets=1\tcompress=" 
+                + Compression.names(Compression.all()) + "\tsuites=" 
+                + CipherSuite.names(CipherSuite.supported()) + "\n");
         } catch (IOException e) {
-            System.err.println("Could not send Client name to the server.");
-            e.printStackTrace();
+            fail("Could not send Client name to the server.", e, false);
             return;
         }
+        byte[] reply = receiveBytes(input);
+        String[] parsedReply = parseMessage(reply);
+        if (parsedReply != null && resuming != null 
+            && parsedReply[0].equals(SessionTickets.MAGIC)) {
+            // Start over with a new key and the full key transport
+            Log.info(Log.CRYPTO, "The Server turned down our ticket.");
+            resuming = null;
+            secretKey = generateAESKey();
+            cipherKey = secretKey;
+            sendSymmetricKey();
+            sendName();
+            return;
+        }
+        if (parsedReply != null && keyExchange != null
+            && parsedReply[0].equals(KeyExchange.MAGIC)) {
+            KeyExchange agreed = keyExchange;
+            keyExchange = null;
+            int size = Integer.parseInt(parsedReply[3].trim());
+            if (size == 0) {
+                // Start over with the RSA key transport
+                Log.info(Log.CRYPTO, "The Server turned down our key "
+                    + "agreement.");
+                identityKey = null;
+                sendSymmetricKey();
+                sendName();
+                return;
+            }
+            try {
+                secretKey = agreed.finish(Arrays.copyOfRange(reply, 51, 
+                    51 + size), identityKey);
+            } catch (GeneralSecurityException e) {
+                fail("Couldn't agree on a key with the Server.", e, true);
+                return;
+            }
+            cipherKey = secretKey;
+            reply = receiveBytes(input);
+            parsedReply = parseMessage(reply);
+        }
+        if (parsedReply == null || !parsedReply[0].equals(KEY)) {
+            fail("The Server didn't choose a cipher suite.", null, true);
+        }
+        int size = Integer.parseInt(parsedReply[3].trim());
+        // The suite, then the codec and threshold if it compresses
+        String[] choice = new String(reply, 51, size).split("\t");
+        CipherSuite chosen = CipherSuite.forName(choice[0]);
+        if (chosen == null) {
+            fail("The Server chose an unknown cipher suite.", null, true);
+        }
+        compression = null;
+        for (int i = 1; i < choice.length; ++i) {
+            try {
+                if (choice[i].startsWith("compress=")) {
+                    compression = Compression.forName(choice[i].substring(9));
+                } else if (choice[i].startsWith("threshold=")) {
+                    compressThreshold = Integer.parseInt(
+                        choice[i].substring(10).trim());
+                }
+            } catch (NumberFormatException e) {
+                // Keep the default threshold
+            }
+        }
+        suite = chosen;
+        cipherKey = suite.cipherKey(secretKey);
+        resumed = resuming != null;
+        Log.info(Log.CRYPTO, "Using cipher suite " + suite.getName());
+        if (compression != null) {
+            Log.info(Log.CRYPTO, "Compressing messages with " 
+                + compression.getName());
+        }
     }
     
     /**************************************************************************
@@ -403,11 +658,46 @@ public class Client {
         String code = parsedMessage[0];
         String sender = parsedMessage[2].trim();
         String size = parsedMessage[3].trim();
-        byte[] decoded = decode(message, size);
+        if (code.equals(GROUP_BROADCAST)) {
+            return receiveGroupBroadcast(message, parsedMessage[1], sender,
+                size);
+        } else if (code.equals(PAIR_SEND)) {
+            return receivePairMessage(message, sender, size);
+        }
+        byte[] decoded = decode(message, size, cipherKey, suite);
+        if (decoded == null) {
+            Log.warn(Log.CRYPTO, "Dropped a message that couldn't be "
+                + "decrypted.");
+            return "";
+        }
+        if (compression != null 
+            && (code.equals(BROADCAST) || code.equals(SEND))) {
+            decoded = Compression.decompress(decoded, 
+                Frames.MAX_COMPACT_SIZE);
+            if (decoded == null) {
+                Log.warn(Log.PROTOCOL, "Dropped a malformed compressed "
+                    + "message from " + sender);
+                return "";
+            }
+        }
         String messageStr = new String(decoded);
-        if (code.equals(CLIENTLIST)) {
-            System.out.println("\"" + messageStr + "\"");
-            processClientList(messageStr);
+        if (code.equals(GROUP_KEY)) {
+            processGroupKey(decoded);
+            return "";
+        } else if (code.equals(PAIR_KEY)) {
+            processPairKey(sender, decoded);
+            return "";
+        } else if (code.equals(TICKET)) {
+            if (decoded.length <= SessionTickets.MAX_TICKET)
+                ticket = new Ticket(name, decoded, secretKey);
+            return "";
+        } else if (code.equals(CLIENTLIST)) {
+            if (Log.enabled(Log.ROSTER, Log.TRACE))
+                Log.trace(Log.ROSTER, "Client list: \"" + messageStr + "\"");
+            processClientList(messageStr, parsedMessage[1]);
+            return "";
+        } else if (code.equals(ROSTER_DELTA)) {
+            processRosterDelta(messageStr, parsedMessage[1]);
             return "";
         } else if (code.equals(EXIT)) {
             return EXIT;
@@ -418,6 +708,101 @@ public class Client {
         return sender.toUpperCase() + ": " + messageStr;
     }
     
+    /**************************************************************************
+     * Decrypts a broadcast that was encrypted with a group key.
+     * @param message is the message received from the Server
+     * @param epochStr is the epoch of the group key used
+     * @param sender is the name of the sending Client
+     * @param size is the size of the encrypted message
+     * @return the message to display, or "" if the key is unknown
+     *************************************************************************/
+    private String receiveGroupBroadcast(byte[] message, String epochStr,
+        String sender, String size) {
+        SecretKey key = null;
+        try {
+            key = groupKeys.get(Integer.parseInt(epochStr.trim()));
+        } catch (NumberFormatException e) {
+            // Handled below as an unknown key
+        }
+        if (key == null) {
+            Log.warn(Log.CRYPTO, "No group key for epoch " + epochStr);
+            return "";
+        }
+        byte[] decoded = decode(message, size, key, groupSuite);
+        if (decoded == null) {
+            Log.warn(Log.CRYPTO, "Dropped a broadcast from " + sender 
+                + " that couldn't be decrypted.");
+            return "";
+        }
+        return sender.toUpperCase() + ": " + new String(decoded);
+    }
+    
+    /**************************************************************************
+     * Decrypts a message that was encrypted with a pair key.
+     * @param message is the message received from the Server
+     * @param sender is the name of the sending Client
+     * @param size is the size of the encrypted message
+     * @return the message to display, or "" if the key is unknown
+     *************************************************************************/
+    private String receivePairMessage(byte[] message, String sender, 
+        String size) {
+        SecretKey key = pairKeys.get(sender);
+        if (key == null) {
+            Log.warn(Log.CRYPTO, "No pair key shared with " + sender);
+            return "";
+        }
+        byte[] decoded = decode(message, size, key, pairSuite);
+        if (decoded == null) {
+            Log.warn(Log.CRYPTO, "Dropped a message from " + sender 
+                + " that couldn't be decrypted.");
+            return "";
+        }
+        return sender.toUpperCase() + ": " + new String(decoded);
+    }
+    
+    /**************************************************************************
+     * Stores a key shared with another Client, sent by the Server. The 
+     * plaintext is the 16-byte key and the name of the cipher suite to use
+     * it with. A new key for the same Client replaces the old one.
+     * @param other is the name of the Client that shares the key
+     * @param decoded is the decrypted pair key message
+     *************************************************************************/
+    private void processPairKey(String other, byte[] decoded) {
+        CipherSuite keySuite = CipherSuite.forName(
+            new String(decoded, 16, decoded.length - 16));
+        if (keySuite == null) {
+            Log.warn(Log.CRYPTO, "Pair key for an unknown cipher suite.");
+            return;
+        }
+        pairSuite = keySuite;
+        pairKeys.put(other, pairSuite.cipherKey(
+            new SecretKeySpec(decoded, 0, 16, "AES")));
+    }
+    
+    /**************************************************************************
+     * Stores a new group key sent by the Server. The plaintext is the 4-byte
+     * epoch, the 16-byte key and the name of the cipher suite to use it with.
+     * Keys from a few older epochs are kept for broadcasts that were already
+     * on their way.
+     * @param decoded is the decrypted group key message
+     *************************************************************************/
+    private void processGroupKey(byte[] decoded) {
+        int epoch = ((decoded[0] & 0xFF) << 24) | ((decoded[1] & 0xFF) << 16)
+            | ((decoded[2] & 0xFF) << 8) | (decoded[3] & 0xFF);
+        CipherSuite keySuite = CipherSuite.forName(
+            new String(decoded, 20, decoded.length - 20));
+        if (keySuite == null) {
+            Log.warn(Log.CRYPTO, "Group key for an unknown cipher suite.");
+            return;
+        }
+        groupSuite = keySuite;
+        groupKeys.put(epoch, groupSuite.cipherKey(
+            new SecretKeySpec(decoded, 4, 16, "AES")));
+        if (epoch > groupEpoch)
+            groupEpoch = epoch;
+        groupKeys.remove(epoch - 4);
+    }
+    
     /**********************************************************************
      * Parses the first x bytes from a message obtained from the Client and
      * returns the message parameters formatted as Strings. In parsing
@@ -440,15 +825,18 @@ public class Client {
             parsed[1] = new String(buffer, 21, 10, "ISO-8859-1").trim();
             parsed[2] = new String(buffer, 31, 10, "ISO-8859-1").trim();
             parsed[3] = new String(buffer, 41, 10, "ISO-8859-1");
-            parsed[4] = new String(buffer, 51, 1024, "ISO-8859-1");
+            parsed[4] = new String(buffer, 51, buffer.length - 51, 
+                "ISO-8859-1");
         } catch (UnsupportedEncodingException e) {
             System.err.println("Encoding specified is unsupported.");
             e.printStackTrace();
             System.exit(1);
         }
-        for (String s: parsed) {
-            if (!s.isEmpty())
-                System.out.println(s.trim());
+        if (Log.enabled(Log.PROTOCOL, Log.TRACE)) {
+            for (String s: parsed) {
+                if (!s.isEmpty())
+                    Log.trace(Log.PROTOCOL, s.trim());
+            }
         }
         return parsed;
     }   
@@ -460,16 +848,22 @@ public class Client {
      * @param buffer contains the cipherText.
      * @param sizeStr is a String containing the size of the message to be
      * decoded
-     * @return a byte buffer containing the decoded text.
+     * @param key is the key the message was encrypted with
+     * @param suite is the cipher suite the message was encrypted with
+     * @return a byte buffer containing the decoded text, or null if it
+     * couldn't be decrypted
      *********************************************************************/
-    private byte[] decode(byte[] buffer, String sizeStr) {
+    private byte[] decode(byte[] buffer, String sizeStr, SecretKey key,
+        CipherSuite suite) {
         int size = 0;
-        System.out.println("size of the message to decode: " + sizeStr);
+        if (Log.enabled(Log.CRYPTO, Log.DEBUG)) {
+            Log.debug(Log.CRYPTO, "Size of the message to decode: "
+                + sizeStr.trim());
+        }
         try {
             size = Integer.parseInt(sizeStr.trim());
         } catch (NumberFormatException e) {
-            e.printStackTrace();
-            System.exit(1);
+            fail("Malformed message size from the Server.", e, true);
         }
         byte[] iv = new byte[16];
         System.arraycopy(buffer, 5, iv, 0, 16);
@@ -477,42 +871,70 @@ public class Client {
         for (int i = 51; i < size + 51; ++i) {
             cipherText[i - 51] = buffer[i];
         }
-        byte[] decoded = decrypt(cipherText, iv);
-        System.out.println("Decoded message: " + new String(decoded));
+        byte[] decoded = decrypt(cipherText, key, iv, suite);
+        if (decoded == null)
+            return null;
+        if (Log.enabled(Log.CRYPTO, Log.TRACE))
+            Log.trace(Log.CRYPTO, "Decoded message: " + new String(decoded));
         return decoded;
     }
         
     /**********************************************************************
-     * Gets the byte form of the message sent from the client.
+     * Gets the byte form of the next message sent from the Server, which 
+     * sends compact frames since this Client asks for them. Messages that
+     * arrive together are kept in the decoder and handed out one per call.
      * @param input is the InputStream reading the data
-     * @return a byte array containing the message
+     * @return a byte array containing the message, or null if the frame
+     * was malformed
      *********************************************************************/
-    private static byte[] receiveBytes(InputStream input) {
-        byte[] buffer = new byte[1024 + 51];
+    private byte[] receiveBytes(InputStream input) {
         try {
-            int n = input.read(buffer, 0, 1024 + 51);
-            if (n == -1) {
-                System.err.println("Couldn't read bytes from Server.");
-                System.exit(1);
+            byte[] message;
+            while ((message = decoder.nextFrame()) == null) {
+                int n = decoder.readFrom(input);
+                if (n == -1)
+                    fail("Couldn't read bytes from Server.", null, true);
+                if (Log.enabled(Log.NET, Log.DEBUG))
+                    Log.debug(Log.NET, "Read " + n + " bytes from Server.");
             }
-            System.out.println("Read " + n + " bytes from Server.");
+            return message;
         } catch (IOException e) {
-            System.err.println("Couldn't read bytes sent from the Server.");
-            e.printStackTrace();
+            fail("Couldn't read bytes sent from the Server.", e, false);
+        } catch (IllegalArgumentException e) {
+            // The stream can't be resynchronized after a bad frame
+            fail("Malformed frame from the Server.", e, true);
         }
-        return buffer;
+        return null;
     }
         
     /************************************************************
-     * Sends the symmetric key to the server after encrypting it
+     * Sends the symmetric key to the server after encrypting it,
+     * the ticket this Client resumes a session with, or this 
+     * Client's half of a key agreement
     ************************************************************/
     public void sendSymmetricKey() {
-        byte encryptedsecret[] = RSAEncrypt(secretKey.getEncoded());
+        byte encryptedsecret[];
+        if (resuming != null) {
+            encryptedsecret = SessionTickets.resumption(resuming.sealed);
+        } else if (identityKey != null) {
+            try {
+                keyExchange = new KeyExchange(KeyExchange.preferredGroup());
+            } catch (GeneralSecurityException e) {
+                fail("Couldn't start a key agreement.", e, true);
+                return;
+            }
+            encryptedsecret = keyExchange.offer();
+        } else {
+            // The Server must not mistake the key for a ticket or an offer
+            do {
+                encryptedsecret = RSAEncrypt(secretKey.getEncoded());
+            } while (SessionTickets.isResumption(encryptedsecret)
+                || KeyExchange.isOffer(encryptedsecret));
+        }
         try {
             output.write(encryptedsecret, 0, 256);
         } catch (IOException e) {
-            System.err.println("Couldn't send symmetric key to server.");
-            e.printStackTrace();
+            fail("Couldn't send symmetric key to server.", e, false);
         }
     }
     
@@ -555,11 +977,14 @@ public class Client {
      ************************************************************/
     public byte[] RSAEncrypt(byte[] plaintext){
         try {
-            Cipher c = Cipher.getInstance(
+            Cipher c = CipherCache.get(
                 "RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
             c.init(Cipher.ENCRYPT_MODE, publicKey);
             byte[] ciphertext = c.doFinal(plaintext);
-            System.out.println("Encrypted length: " + ciphertext.length);
+            if (Log.enabled(Log.CRYPTO, Log.DEBUG)) {
+                Log.debug(Log.CRYPTO, "Encrypted length: "
+                    + ciphertext.length);
+            }
             return ciphertext;
         } catch(Exception e) {
             System.out.println("RSA Encrypt Exception");
@@ -575,12 +1000,13 @@ public class Client {
      * @param secretKey is the secret key used to encrypt the plaintext data
      * @param iv is the initialization vector used to initialize the encryption
      * cipher
+     * @param suite is the cipher suite to use
      * @return a byte array containing the encrypted data
      *************************************************************************/
-    private byte[] encrypt(byte[] plainText, byte[] iv) {
+    private byte[] encrypt(byte[] plainText, SecretKey secretKey, byte[] iv,
+        CipherSuite suite) {
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            c.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+            Cipher c = suite.init(Cipher.ENCRYPT_MODE, secretKey, iv);
             byte[] cipherText = c.doFinal(plainText);
             return cipherText;
         } catch (NoSuchAlgorithmException e) {
@@ -626,66 +1052,137 @@ public class Client {
      * @param secretKey is the secret key used to decrypt the ciphertext data
      * @param iv is the initialization vector used to initialize the decryption
      * cipher
-     * @return a byte array containing the decrypted data
+     * @param suite is the cipher suite to use
+     * @return a byte array containing the decrypted data, or null if the
+     * message can't be decrypted or wasn't authentic
      *************************************************************************/
-    private byte[] decrypt(byte[] cipherText, byte[] iv) {
+    private byte[] decrypt(byte[] cipherText, SecretKey secretKey, 
+        byte[] iv, CipherSuite suite) {
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            c.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+            Cipher c = suite.init(Cipher.DECRYPT_MODE, secretKey, iv);
             byte[] plainText = c.doFinal(cipherText);
             return plainText;
         } catch (NoSuchAlgorithmException e) {
             System.err.println("Specified algorithm doesn't exist.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (NoSuchPaddingException e) {
             System.err.println("Specified padding doesn't exist.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (InvalidKeyException e) {
             System.err.println("The encryption key doesn't exist.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (InvalidAlgorithmParameterException e) {
             System.err.println("The algorithm parameter isn't valid.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (IllegalStateException e) {
             System.err.println("The cipher is in the wrong state.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (IllegalBlockSizeException e) {
             System.err.println("Unable to process input data.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (AEADBadTagException e) {
             System.err.println("Authentication tag doesn't match calculated "
                 + "value.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (BadPaddingException e) {
             System.err.println("Data not bounded by the appropriate padding.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         }
     }
     
     /**************************************************************************
      * Processes a message containing list of clients
+     * @param message is the comma-separated list of all connected clients
+     * @param versionStr is the version of the roster the list matches
      *************************************************************************/
-    private void processClientList(String message) {
-        String[] clients = message.split(",");
-        for (int i = 0; i < clients.length; ++i) {
-            if (!otherClients.contains(clients[i]) 
-                && !clients[i].equals(name)) {
-                otherClients.add(clients[i]);
+    private void processClientList(String message, String versionStr) {
+        Set<String> clients = new HashSet<String>(
+            Arrays.asList(message.split(",")));
+        for (String cname: clients) {
+            if (!otherClients.contains(cname) && !cname.equals(name)) {
+                otherClients.add(cname);
             }
         }
         for (String cname: otherClients) {
-            if (!Arrays.asList(clients).contains(cname)) {
+            if (!clients.contains(cname)) {
                 otherClients.remove(cname);   
             }
         }
+        // A Client that left takes its pair key with it
+        for (String cname: pairKeys.keySet()) {
+            if (!clients.contains(cname)) {
+                pairKeys.remove(cname);
+            }
+        }
+        rosterVersion = parseVersion(versionStr);
+        rosterRequested = false;
+    }
+    
+    /**************************************************************************
+     * Processes a message telling which clients joined (+name) and left 
+     * (-name) since the previous version of the roster. If a version was
+     * missed, the whole client list is asked for instead.
+     * @param message is the comma-separated list of changes
+     * @param versionStr is the version of the roster after the changes
+     *************************************************************************/
+    private void processRosterDelta(String message, String versionStr) {
+        int version = parseVersion(versionStr);
+        if (version <= rosterVersion || rosterRequested) {
+            // Already part of the client list we have or asked for
+            return;
+        }
+        if (version != rosterVersion + 1) {
+            rosterRequested = true;
+            sendFrame(CLIENTLIST, "", "");
+            return;
+        }
+        for (String change: message.split(",")) {
+            if (change.length() < 2)
+                continue;
+            String cname = change.substring(1);
+            if (change.charAt(0) == '-') {
+                otherClients.remove(cname);
+                pairKeys.remove(cname);
+            } else if (!otherClients.contains(cname) && !cname.equals(name)) {
+                otherClients.add(cname);
+            }
+        }
+        rosterVersion = version;
+    }
+    
+    /**************************************************************************
+     * Parses the roster version sent in place of the receiver's name.
+     * @param versionStr is the version as sent by the Server
+     * @return the version, 0 if the Server didn't send one
+     *************************************************************************/
+    private static int parseVersion(String versionStr) {
+        try {
+            return Integer.parseInt(versionStr.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**************************************************************************
+     * Gives the newest ticket from the Server, to resume this session with
+     * after losing the connection.
+     * @return the ticket, or null if the Server hasn't sent one
+     *************************************************************************/
+    public Ticket getTicket() {
+        return this.ticket;
+    }
+    
+    /** Tells whether this Client resumed its session with a ticket. */
+    public boolean isResumed() {
+        return this.resumed;
     }
     
     /**************************************************************************
@@ -700,19 +1197,21 @@ public class Client {
      * Closes the connection between client and server.
      *************************************************************************/
     public void closeConnection() {
-        System.out.println("Closing the input and output.");
+        Log.debug(Log.NET, "Closing the input and output.");
         try {
             input.close();
-            System.out.println("Input closed.");
+            Log.debug(Log.NET, "Input closed.");
             output.flush();
-            System.out.println("Output flushed.");
+            Log.debug(Log.NET, "Output flushed.");
             output.close();
-            System.out.println("Output closed.");
+            Log.debug(Log.NET, "Output closed.");
         } catch (IOException e) {
-            System.err.println("Couldn't close input and output streams.");
-            e.printStackTrace();
+            if (exitOnFailure) {
+                System.err.println("Couldn't close input and output streams.");
+                e.printStackTrace();
+            }
         }
-        System.out.println("Done closing the input and output.");
+        Log.debug(Log.NET, "Done closing the input and output.");
     }
     
     
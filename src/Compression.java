@@ -0,0 +1,341 @@
+import java.io.UnsupportedEncodingException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/******************************************************************************
+ * A compression stage for chat messages, run on the plaintext before it is
+ * encrypted, since ciphertext doesn't compress. Both codecs are Deflate
+ * primed with a preset dictionary of the words and phrases common in chat
+ * and in pasted logs, so even a line of text shrinks: "deflate" searches
+ * harder for matches, "deflate-fast" takes the first one it finds.
+ *
+ * A Client lists the codecs it supports on its name line, for example
+ *     alice	frames=2	compress=deflate,deflate-fast	suites=aes-gcm
+ * and the Server names the one it picked, with the size below which
+ * messages are sent as they are, after the cipher suite in its @pkey
+ * message. From then on the plaintext of every @bcst and @send between them
+ * starts with a byte telling how the rest is compressed: STORED for
+ * messages below the threshold or that wouldn't get smaller, or the codec's
+ * id. Other messages, and Clients that list no codecs, are never
+ * compressed.
+ *
+ * Deflaters hold a fair amount of native memory, so they are pooled rather
+ * than kept per thread, which would cost one per virtual thread.
+ *****************************************************************************/
+public class Compression {
+
+    /** Deflate, searching for the best matches. */
+    public static final Compression DEFLATE = new Compression("deflate", 1,
+        Deflater.DEFAULT_COMPRESSION);
+
+    /** Deflate, taking the first match, for less CPU. */
+    public static final Compression DEFLATE_FAST = new Compression(
+        "deflate-fast", 2, Deflater.BEST_SPEED);
+
+    /** Every codec. */
+    private static final Compression[] ALL = { DEFLATE, DEFLATE_FAST };
+
+    /** The first byte of a message sent as it is. */
+    private static final byte STORED = 0;
+
+    /** The size below which messages are sent as they are by default. */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /**
+     * The preset dictionary. Deflate finds matches in it as if it came
+     * before every message; the most common strings go at the end, where
+     * their distances are the shortest.
+     */
+    private static final byte[] DICTIONARY = dictionary(
+        "Caused by: java.lang.NullPointerException java.io.IOException "
+        + "java.lang.IllegalStateException java.lang.RuntimeException "
+        + "\tat java.util.concurrent.ThreadPoolExecutor.runWorker("
+        + "ThreadPoolExecutor.java:\n\tat java.lang.Thread.run(Thread.java:"
+        + "\n\tat sun.reflect.NativeMethodAccessorImpl.invoke(\n\tat org. "
+        + "Exception in thread \"main\" ... more\n"
+        + "Traceback (most recent call last):\n  File \"line , in "
+        + "Error: error: warning: failed to undefined null true false "
+        + "TRACE DEBUG INFO WARN ERROR FATAL [main] [INFO] [ERROR] "
+        + "2024-01-01T00:00:00.000Z 2025-01-01 00:00:00,000 "
+        + "GET POST HTTP/1.1\" 200 404 500 localhost 127.0.0.1 "
+        + "https://github.com/ https://www. .com/ .org/ .html .java .txt "
+        + "connection refused timeout exception stack trace server client "
+        + "message file build test error log config version update "
+        + "please could you would should maybe actually probably really "
+        + "something anything everything nothing someone anyone "
+        + "because though about after before again right there their "
+        + "tomorrow today tonight morning afternoon evening weekend "
+        + "meeting lunch dinner coffee work home later soon sorry thanks "
+        + "thank you see you talk to you later let me know I don't know "
+        + "I think I'm not sure what do you think sounds good no problem "
+        + "how are you what's up lol haha yeah okay ok yes no hi hello "
+        + "hey the and that this with have for are you was but not what "
+        + "all can just your it's I'm don't will from they there when "
+        + "one out about get like know would been their the ");
+
+    /** The inflaters not in use, shared by all codecs. */
+    private static Queue<Inflater> inflaters =
+        new ConcurrentLinkedQueue<Inflater>();
+
+    /**************************************************************************
+     * A chat message the Server relays, compressed at most once per codec
+     * however many Clients receive it. A message that arrived compressed is
+     * passed on as it is to the Clients with the sender's codec.
+     *************************************************************************/
+    public static class Payload {
+
+        /** The plaintext. */
+        private byte[] plain;
+
+        /** The size below which the message is sent as it is. */
+        private int threshold;
+
+        /** The message with each codec, indexed by id, or STORED for all. */
+        private byte[][] compressed = new byte[ALL.length + 1][];
+
+        /**********************************************************************
+         * Constructs a Payload.
+         * @param plain is the plaintext
+         * @param received is the message as the sender compressed it, or 
+         * null if the sender doesn't compress
+         * @param threshold is the size below which the message is sent as
+         * it is
+         *********************************************************************/
+        public Payload(byte[] plain, byte[] received, int threshold) {
+            this.plain = plain;
+            this.threshold = threshold;
+            if (received != null && received.length > 0)
+                compressed[received[0]] = received;
+        }
+
+        /**********************************************************************
+         * Gives the message for a Client, compressing it the first time a 
+         * codec asks for it.
+         * @param codec is the Client's codec, or null if it doesn't compress
+         * @return the plaintext to encrypt for the Client
+         *********************************************************************/
+        public synchronized byte[] forCodec(Compression codec) {
+            if (codec == null)
+                return plain;
+            if (compressed[STORED] != null)
+                // Too short, or it didn't get smaller for the sender
+                return compressed[STORED];
+            if (compressed[codec.id] == null) {
+                long start = System.nanoTime();
+                compressed[codec.id] = codec.compress(plain, threshold);
+                ServerMetrics.compressed(plain.length, compressed[codec.id],
+                    start);
+            }
+            return compressed[codec.id];
+        }
+
+    }
+
+    /** The name of the codec, as sent on the wire. */
+    private String name;
+
+    /** The first byte of a message compressed with the codec. */
+    private byte id;
+
+    /** The Deflate level. */
+    private int level;
+
+    /** The deflaters not in use. */
+    private Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    /**************************************************************************
+     * Constructs a Compression.
+     * @param name is the name of the codec, as sent on the wire
+     * @param id is the first byte of a message compressed with the codec
+     * @param level is the Deflate level
+     *************************************************************************/
+    private Compression(String name, int id, int level) {
+        this.name = name;
+        this.id = (byte) id;
+        this.level = level;
+    }
+
+    /** Gives access to the name of the codec. */
+    public String getName() {
+        return this.name;
+    }
+
+    /** Gives access to the first byte of a message compressed with it. */
+    public byte getId() {
+        return this.id;
+    }
+
+    /**************************************************************************
+     * Compresses a message, unless it is below the threshold or wouldn't get
+     * any smaller.
+     * @param plain is the message
+     * @param threshold is the size below which it is sent as it is
+     * @return the codec's id and the compressed message, or STORED and the
+     * message
+     *************************************************************************/
+    public byte[] compress(byte[] plain, int threshold) {
+        if (plain.length < threshold)
+            return store(plain);
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+        }
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] compressed = new byte[1 + plain.length];
+        compressed[0] = id;
+        int size = 1;
+        while (!deflater.finished() && size < compressed.length) {
+            size += deflater.deflate(compressed, size,
+                compressed.length - size);
+        }
+        boolean smaller = deflater.finished() && size < compressed.length;
+        deflaters.offer(deflater);
+        if (!smaller)
+            return store(plain);
+        return Arrays.copyOf(compressed, size);
+    }
+
+    /**************************************************************************
+     * Tells whether a message was compressed.
+     * @param payload is the message, with its first byte
+     * @return false if it was sent as it is
+     *************************************************************************/
+    public static boolean isCompressed(byte[] payload) {
+        return payload.length > 0 && payload[0] != STORED;
+    }
+
+    /**************************************************************************
+     * Restores a message compressed with any codec, or sent as it is.
+     * @param payload is the message, with its first byte
+     * @param maxSize is the largest the restored message may be
+     * @return the message, or null if it is malformed or too large
+     *************************************************************************/
+    public static byte[] decompress(byte[] payload, int maxSize) {
+        if (payload.length == 0)
+            return null;
+        if (payload[0] == STORED)
+            return Arrays.copyOfRange(payload, 1, payload.length);
+        if (forId(payload[0]) == null)
+            return null;
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            inflater.reset();
+        }
+        try {
+            inflater.setInput(payload, 1, payload.length - 1);
+            byte[] plain = new byte[Math.min(maxSize, 4 * payload.length)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == plain.length) {
+                    if (size == maxSize)
+                        return null;
+                    plain = Arrays.copyOf(plain,
+                        Math.min(maxSize, 2 * plain.length));
+                }
+                int n = inflater.inflate(plain, size, plain.length - size);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (n == 0 && inflater.needsInput()) {
+                    return null;
+                }
+                size += n;
+            }
+            return Arrays.copyOf(plain, size);
+        } catch (DataFormatException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // A dictionary the message wasn't compressed with
+            return null;
+        } finally {
+            inflaters.offer(inflater);
+        }
+    }
+
+    /**************************************************************************
+     * Finds a codec by its name.
+     * @param name is the name of the codec, as sent on the wire
+     * @return the codec, or null if there is no such codec
+     *************************************************************************/
+    public static Compression forName(String name) {
+        for (Compression codec: ALL) {
+            if (codec.name.equals(name.trim()))
+                return codec;
+        }
+        return null;
+    }
+
+    /**************************************************************************
+     * Gives every codec, the one that compresses best first.
+     * @return the codecs
+     *************************************************************************/
+    public static List<Compression> all() {
+        return new ArrayList<Compression>(Arrays.asList(ALL));
+    }
+
+    /**************************************************************************
+     * Lists the names of some codecs, for the name line.
+     * @param codecs are the codecs
+     * @return their names, separated by commas
+     *************************************************************************/
+    public static String names(List<Compression> codecs) {
+        StringBuilder names = new StringBuilder();
+        for (Compression codec: codecs) {
+            if (names.length() > 0)
+                names.append(',');
+            names.append(codec.name);
+        }
+        return names.toString();
+    }
+
+    /**************************************************************************
+     * Finds a codec by the first byte of its messages.
+     * @param id is the first byte
+     * @return the codec, or null if there is no such codec
+     *************************************************************************/
+    private static Compression forId(byte id) {
+        for (Compression codec: ALL) {
+            if (codec.id == id)
+                return codec;
+        }
+        return null;
+    }
+
+    /**************************************************************************
+     * Marks a message as sent as it is.
+     * @param plain is the message
+     * @return STORED and the message
+     *************************************************************************/
+    private static byte[] store(byte[] plain) {
+        byte[] stored = new byte[1 + plain.length];
+        stored[0] = STORED;
+        System.arraycopy(plain, 0, stored, 1, plain.length);
+        return stored;
+    }
+
+    /**************************************************************************
+     * Encodes the preset dictionary.
+     * @param text is the dictionary
+     * @return its ISO-8859-1 bytes
+     *************************************************************************/
+    private static byte[] dictionary(String text) {
+        try {
+            return text.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/******************************************************************************
+ * Spreads the work of sending one message to many Clients over a pool of
+ * worker threads. The recipients are split into batches; each batch is
+ * re-encrypted and queued by whichever worker picks it up, so a broadcast
+ * to a big room takes about as long as one batch instead of the whole room.
+ * Small recipient lists are handled on the calling thread, where handing
+ * them to the pool would cost more than it saves.
+ *****************************************************************************/
+public class FanOut {
+
+    /**************************************************************************
+     * The work done for each batch of recipients.
+     *************************************************************************/
+    public interface Delivery {
+
+        /**********************************************************************
+         * Encodes and queues the message for a batch of recipients.
+         * @param recipients are the names of the Clients in the batch
+         *********************************************************************/
+        void deliver(List<String> recipients);
+
+    }
+
+    /** The worker threads. */
+    private ForkJoinPool pool;
+
+    /** The largest number of recipients in a batch. */
+    private int batchSize;
+
+    /**************************************************************************
+     * Constructs a FanOut with its own pool of worker threads.
+     * @param threads is the number of worker threads
+     * @param batchSize is the largest number of recipients in a batch
+     *************************************************************************/
+    public FanOut(int threads, int batchSize) {
+        this.pool = new ForkJoinPool(threads);
+        this.batchSize = batchSize;
+    }
+
+    /**************************************************************************
+     * Delivers a message to every recipient and waits until it's done.
+     * @param recipients are the names of the Clients receiving the message
+     * @param delivery does the work for each batch
+     *************************************************************************/
+    public void run(List<String> recipients, Delivery delivery) {
+        if (recipients.size() <= batchSize) {
+            delivery.deliver(recipients);
+            return;
+        }
+        pool.invoke(new Batch(recipients, delivery));
+    }
+
+    /**************************************************************************
+     * A range of recipients, split in half until it is small enough to
+     * deliver as one batch.
+     *************************************************************************/
+    private class Batch extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /** The recipients in this range. */
+        private List<String> recipients;
+
+        /** The work done for each batch. */
+        private Delivery delivery;
+
+        /**********************************************************************
+         * Constructs a Batch for a range of recipients.
+         * @param recipients are the recipients in the range
+         * @param delivery does the work for each batch
+         *********************************************************************/
+        public Batch(List<String> recipients, Delivery delivery) {
+            this.recipients = recipients;
+            this.delivery = delivery;
+        }
+
+        @Override
+        protected void compute() {
+            int size = recipients.size();
+            if (size <= batchSize) {
+                delivery.deliver(recipients);
+                return;
+            }
+            Batch left = new Batch(recipients.subList(0, size / 2), delivery);
+            Batch right = new Batch(recipients.subList(size / 2, size),
+                delivery);
+            invokeAll(left, right);
+        }
+
+    }
+
+}
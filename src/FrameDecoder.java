@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/******************************************************************************
+ * Reassembles frames from a stream of bytes. TCP may split one frame across
+ * several reads or deliver several frames in a single read, so received
+ * bytes are collected in a ring buffer and frames are only taken out once
+ * they have fully arrived. Any number of frames can be taken out after each
+ * read. Besides frames, the decoder also hands out the handshake pieces that
+ * come before them (the encrypted secret key and the name line).
+ * A decoder is not thread-safe; each connection reads through its own.
+ *****************************************************************************/
+public class FrameDecoder {
+
+    /** The initial capacity of the ring buffer, enough for a few frames. */
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /** The frame format being decoded, Frames.LEGACY or Frames.COMPACT. */
+    private int format;
+
+    /** The ring buffer. Its length is always a power of two. */
+    private byte[] ring = new byte[INITIAL_CAPACITY];
+
+    /** The position of the first unread byte in the ring. */
+    private int head = 0;
+
+    /** The number of unread bytes in the ring. */
+    private int size = 0;
+
+    /** Holds each compact frame while it is unpacked, reused for all. */
+    private byte[] scratch = new byte[INITIAL_CAPACITY];
+
+    /**************************************************************************
+     * Constructs a FrameDecoder for the given frame format.
+     * @param format is Frames.LEGACY or Frames.COMPACT
+     *************************************************************************/
+    public FrameDecoder(int format) {
+        this.format = format;
+    }
+
+    /**************************************************************************
+     * Changes the frame format, for when it is only known after the
+     * handshake. Bytes already received are decoded in the new format.
+     * @param format is Frames.LEGACY or Frames.COMPACT
+     *************************************************************************/
+    public void setFormat(int format) {
+        this.format = format;
+    }
+
+    /**************************************************************************
+     * Gives the number of received bytes that haven't been taken out yet.
+     * @return the number of unread bytes
+     *************************************************************************/
+    public int available() {
+        return size;
+    }
+
+    /**************************************************************************
+     * Adds received bytes to the decoder.
+     * @param data is the array containing the bytes
+     * @param offset is the position of the first byte in the array
+     * @param length is the number of bytes to add
+     *************************************************************************/
+    public void feed(byte[] data, int offset, int length) {
+        ensureFree(length);
+        int tail = (head + size) & (ring.length - 1);
+        int first = Math.min(length, ring.length - tail);
+        System.arraycopy(data, offset, ring, tail, first);
+        System.arraycopy(data, offset + first, ring, 0, length - first);
+        size += length;
+    }
+
+    /**************************************************************************
+     * Adds all the remaining bytes of a buffer to the decoder.
+     * @param data is the buffer, which is left with nothing remaining
+     *************************************************************************/
+    public void feed(ByteBuffer data) {
+        int length = data.remaining();
+        ensureFree(length);
+        int tail = (head + size) & (ring.length - 1);
+        int first = Math.min(length, ring.length - tail);
+        data.get(ring, tail, first);
+        data.get(ring, 0, length - first);
+        size += length;
+    }
+
+    /**************************************************************************
+     * Reads once from a stream, straight into the ring buffer. Blocks until
+     * at least one byte arrives.
+     * @param input is the stream to read from
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the stream can't be read
+     *************************************************************************/
+    public int readFrom(InputStream input) throws IOException {
+        ensureFree(1);
+        int tail = (head + size) & (ring.length - 1);
+        int free = ring.length - size;
+        int n = input.read(ring, tail, Math.min(free, ring.length - tail));
+        if (n > 0)
+            size += n;
+        return n;
+    }
+
+    /**************************************************************************
+     * Takes a fixed number of bytes out of the decoder.
+     * @param count is the number of bytes wanted
+     * @return the bytes, or null if fewer than count have arrived
+     *************************************************************************/
+    public byte[] nextBytes(int count) {
+        if (size < count)
+            return null;
+        byte[] bytes = new byte[count];
+        take(bytes, count);
+        return bytes;
+    }
+
+    /**************************************************************************
+     * Takes a newline-terminated line of ISO-8859-1 text out of the decoder.
+     * @param maxLength is the longest line accepted
+     * @return the line without its newline, or null if it hasn't fully
+     * arrived yet
+     * @throws IllegalArgumentException if the line is longer than maxLength
+     *************************************************************************/
+    public String nextLine(int maxLength) {
+        int length = -1;
+        for (int i = 0; i < size && i <= maxLength; ++i) {
+            if (ring[(head + i) & (ring.length - 1)] == '\n') {
+                length = i;
+                break;
+            }
+        }
+        if (length == -1) {
+            if (size > maxLength)
+                throw new IllegalArgumentException("Line too long.");
+            return null;
+        }
+        byte[] line = new byte[length];
+        take(line, length);
+        skip(1);
+        try {
+            return new String(line, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**************************************************************************
+     * Takes the next complete frame out of the decoder.
+     * @return the message, laid out as described in Frames, or null if the
+     * next frame hasn't fully arrived yet
+     * @throws IllegalArgumentException if the frame is malformed; the
+     * connection can't be trusted after that
+     *************************************************************************/
+    public byte[] nextFrame() {
+        if (format == Frames.LEGACY) {
+            byte[] message = nextBytes(Frames.LEGACY_SIZE);
+            if (message != null)
+                Frames.checkSize(message);
+            return message;
+        }
+        if (size < 4)
+            return null;
+        int length = ((peek(0) & 0xFF) << 24) | ((peek(1) & 0xFF) << 16)
+            | ((peek(2) & 0xFF) << 8) | (peek(3) & 0xFF);
+        if (length < 0 || length > Frames.MAX_COMPACT_SIZE)
+            throw new IllegalArgumentException("Bad frame length: " + length);
+        if (size < 4 + length)
+            return null;
+        skip(4);
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        take(scratch, length);
+        return Frames.fromCompact(scratch, 0, length);
+    }
+
+    /**************************************************************************
+     * Takes every complete frame out of the decoder.
+     * @return the messages in the order they arrived, possibly none
+     * @throws IllegalArgumentException if a frame is malformed
+     *************************************************************************/
+    public List<byte[]> nextFrames() {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        byte[] frame;
+        while ((frame = nextFrame()) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**************************************************************************
+     * Looks at an unread byte without taking it out.
+     * @param index is the position of the byte after the first unread one
+     * @return the byte
+     *************************************************************************/
+    private byte peek(int index) {
+        return ring[(head + index) & (ring.length - 1)];
+    }
+
+    /**************************************************************************
+     * Copies unread bytes out of the ring and marks them as read.
+     * @param destination is the array receiving the bytes
+     * @param count is the number of bytes to take
+     *************************************************************************/
+    private void take(byte[] destination, int count) {
+        int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, destination, 0, first);
+        System.arraycopy(ring, 0, destination, first, count - first);
+        skip(count);
+    }
+
+    /**************************************************************************
+     * Marks unread bytes as read.
+     * @param count is the number of bytes to skip
+     *************************************************************************/
+    private void skip(int count) {
+        head = (head + count) & (ring.length - 1);
+        size -= count;
+        if (size == 0)
+            head = 0; // Keeps the next read contiguous
+    }
+
+    /**************************************************************************
+     * Grows the ring buffer, if needed, so it has room for more bytes.
+     * @param needed is the number of free bytes needed
+     *************************************************************************/
+    private void ensureFree(int needed) {
+        if (ring.length - size >= needed)
+            return;
+        int capacity = ring.length;
+        while (capacity - size < needed) {
+            capacity *= 2;
+        }
+        byte[] larger = new byte[capacity];
+        int unread = size;
+        take(larger, unread);
+        ring = larger;
+        head = 0;
+        size = unread;
+    }
+
+}
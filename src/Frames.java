@@ -0,0 +1,251 @@
+import java.io.UnsupportedEncodingException;
+
+/******************************************************************************
+ * Converts messages between the two wire formats spoken by the chat program.
+ *
+ * Inside the Server and Client a message is always laid out like a legacy
+ * frame's header, followed by only as much ciphertext as there is:
+ *     @code    (5 bytes)
+ *     iv       (16 bytes)
+ *     receiver (10 bytes)
+ *     sender   (10 bytes)
+ *     size     (10 bytes, formatted with %10d)
+ *     message  (size bytes)
+ *
+ * On the wire, a legacy frame is always padded to 1024 + 51 bytes. A compact
+ * frame only sends the bytes that are used:
+ *     length   (4 bytes, the number of bytes that follow)
+ *     code     (1 byte, see COMMANDS)
+ *     iv       (16 bytes)
+ *     receiver (1 byte length, then the name)
+ *     sender   (1 byte length, then the name)
+ *     message  (the rest of the frame)
+ * Clients ask for compact frames by adding "frames=2" to their name line.
+ *****************************************************************************/
+public class Frames {
+
+    /** The fixed-size frame format understood by every Client. */
+    public static final int LEGACY = 1;
+
+    /** The length-prefixed frame format. */
+    public static final int COMPACT = 2;
+
+    /** The size of a message header. */
+    public static final int HEADER_SIZE = 51;
+
+    /** The size of every legacy frame. */
+    public static final int LEGACY_SIZE = 1024 + 51;
+
+    /** The largest compact frame accepted, not counting its length. */
+    public static final int MAX_COMPACT_SIZE = 64 * 1024;
+
+    /** The position of the IV in a compact frame, counting its length. */
+    public static final int COMPACT_IV_OFFSET = 5;
+
+    /** The commands, indexed by their compact code. */
+    private static final String[] COMMANDS = { "", "@bcst", "@send",
+        "@kick", "@list", "@exit", "@pkey", "@ivec", "@gkey", "@gbct",
+        "@pair", "@psnd", "@rdlt", "@tckt", "@rsum", "@ecdh" };
+
+    /**************************************************************************
+     * Builds the compact frame for a message, including its length prefix.
+     * @param message is the message, laid out as described above
+     * @return the compact frame
+     *************************************************************************/
+    public static byte[] toCompact(byte[] message) {
+        int size = payloadSize(message);
+        byte[] frame = new byte[compactHeaderSize(message) + size];
+        int position = writeCompactHeader(message, frame, size);
+        System.arraycopy(message, 5, frame, COMPACT_IV_OFFSET, 16);
+        System.arraycopy(message, HEADER_SIZE, frame, position, size);
+        return frame;
+    }
+
+    /**************************************************************************
+     * Gives the size of everything in a message's compact frame that comes
+     * before the payload, including the length prefix.
+     * @param message is the message, laid out as described above
+     * @return the size of the frame's header
+     *************************************************************************/
+    public static int compactHeaderSize(byte[] message) {
+        return 4 + 1 + 16 + 1 + nameLength(message, 21) + 1 
+            + nameLength(message, 31);
+    }
+
+    /**************************************************************************
+     * Writes the header of a message's compact frame, for a payload that is
+     * written into the frame separately, such as ciphertext encrypted in
+     * place. The IV is left for the caller to write at COMPACT_IV_OFFSET.
+     * @param message is the message whose command and names are used
+     * @param frame is the array receiving the frame, which must have room for
+     * the header and the payload
+     * @param size is the size of the payload
+     * @return the position of the payload in the frame
+     *************************************************************************/
+    public static int writeCompactHeader(byte[] message, byte[] frame, 
+        int size) {
+        int receiverLength = nameLength(message, 21);
+        int senderLength = nameLength(message, 31);
+        int length = 1 + 16 + 1 + receiverLength + 1 + senderLength + size;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = (byte) commandCode(message);
+        int position = COMPACT_IV_OFFSET + 16;
+        frame[position++] = (byte) receiverLength;
+        System.arraycopy(message, 21, frame, position, receiverLength);
+        position += receiverLength;
+        frame[position++] = (byte) senderLength;
+        System.arraycopy(message, 31, frame, position, senderLength);
+        position += senderLength;
+        return position;
+    }
+
+    /**************************************************************************
+     * Rebuilds a message from a compact frame.
+     * @param frame is an array containing the frame
+     * @param offset is where the frame starts, just after its length prefix
+     * @param length is the frame's length, as given by its prefix
+     * @return the message, laid out as described above
+     * @throws IllegalArgumentException if the frame is malformed
+     *************************************************************************/
+    public static byte[] fromCompact(byte[] frame, int offset, int length) {
+        int end = offset + length;
+        if (length < 19)
+            throw new IllegalArgumentException("Compact frame too short.");
+        int code = frame[offset] & 0xFF;
+        if (code < 1 || code >= COMMANDS.length)
+            throw new IllegalArgumentException("Unknown command: " + code);
+        int position = offset + 17;
+        int receiverLength = frame[position++] & 0xFF;
+        if (receiverLength > 10 || position + receiverLength + 1 > end)
+            throw new IllegalArgumentException("Malformed receiver name.");
+        int receiverStart = position;
+        position += receiverLength;
+        int senderLength = frame[position++] & 0xFF;
+        if (senderLength > 10 || position + senderLength > end)
+            throw new IllegalArgumentException("Malformed sender name.");
+        int senderStart = position;
+        position += senderLength;
+        int size = end - position;
+
+        byte[] message = new byte[HEADER_SIZE + size];
+        try {
+            System.arraycopy(COMMANDS[code].getBytes("ISO-8859-1"), 0,
+                message, 0, 5);
+            System.arraycopy(String.format("%10d", size).getBytes(
+                "ISO-8859-1"), 0, message, 41, 10);
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.arraycopy(frame, offset + 1, message, 5, 16);
+        System.arraycopy(frame, receiverStart, message, 21, receiverLength);
+        System.arraycopy(frame, senderStart, message, 31, senderLength);
+        System.arraycopy(frame, position, message, HEADER_SIZE, size);
+        return message;
+    }
+
+    /**************************************************************************
+     * Pads a message out to a legacy frame.
+     * @param message is the message, laid out as described above
+     * @return the legacy frame, which is the message itself if it is already
+     * full size
+     * @throws IllegalArgumentException if the message doesn't fit
+     *************************************************************************/
+    public static byte[] toLegacy(byte[] message) {
+        if (message.length == LEGACY_SIZE)
+            return message;
+        if (message.length > LEGACY_SIZE)
+            throw new IllegalArgumentException("Message too long.");
+        byte[] frame = new byte[LEGACY_SIZE];
+        System.arraycopy(message, 0, frame, 0, message.length);
+        return frame;
+    }
+
+    /**************************************************************************
+     * Checks that the size in a message's header is a number that fits in
+     * the message. Compact frames always agree with their size, but legacy
+     * frames are padded and carry whatever size the Client wrote.
+     * @param message is the message, laid out as described above
+     * @throws IllegalArgumentException if the size is malformed
+     *************************************************************************/
+    public static void checkSize(byte[] message) {
+        String sizeStr = "";
+        try {
+            sizeStr = new String(message, 41, 10, "ISO-8859-1").trim();
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        int size;
+        try {
+            size = Integer.parseInt(sizeStr);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed message size.");
+        }
+        if (size < 0 || size > message.length - HEADER_SIZE)
+            throw new IllegalArgumentException("Bad message size: " + size);
+    }
+
+    /**************************************************************************
+     * Reads the size of a message's ciphertext from its header.
+     * @param message is the message, laid out as described above
+     * @return the size of the ciphertext, 0 if the size is missing
+     *************************************************************************/
+    public static int payloadSize(byte[] message) {
+        String sizeStr = "";
+        try {
+            sizeStr = new String(message, 41, 10, "ISO-8859-1").trim();
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        int size = 0;
+        try {
+            size = Integer.parseInt(sizeStr);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        return Math.max(0, Math.min(size, message.length - HEADER_SIZE));
+    }
+
+    /**************************************************************************
+     * Finds the compact code of a message's command.
+     * @param message is the message, laid out as described above
+     * @return the command's code, 0 if it isn't a known command
+     *************************************************************************/
+    private static int commandCode(byte[] message) {
+        for (int code = 1; code < COMMANDS.length; ++code) {
+            String command = COMMANDS[code];
+            boolean matches = true;
+            for (int i = 0; i < 5; ++i) {
+                if (message[i] != command.charAt(i)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches)
+                return code;
+        }
+        return 0;
+    }
+
+    /**************************************************************************
+     * Finds the length of a name in a 10-byte header field, which is padded
+     * with zeros or spaces.
+     * @param message is the message, laid out as described above
+     * @param offset is the start of the field
+     * @return the length of the name
+     *************************************************************************/
+    private static int nameLength(byte[] message, int offset) {
+        int length = 10;
+        while (length > 0 && (message[offset + length - 1] == 0
+            || message[offset + length - 1] == ' ')) {
+            --length;
+        }
+        return length;
+    }
+
+}
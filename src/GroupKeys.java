@@ -0,0 +1,104 @@
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/******************************************************************************
+ * The shared broadcast key of the chat room. Clients that use it encrypt a
+ * broadcast once with the group key, and the Server relays the ciphertext to
+ * every other member unchanged, instead of decrypting it and encrypting it
+ * again for each recipient.
+ *
+ * The key is replaced by a new one, with the next epoch number, whenever a
+ * Client joins, leaves or is kicked, so a Client can only read broadcasts
+ * sent while it is in the room. A few previous keys are kept so that a
+ * broadcast encrypted just before a change can still be decrypted by the
+ * Server and passed on under the new key.
+ *
+ * Group messages use one cipher suite, the Server's preferred one, so only
+ * Clients that support it can be members.
+ *****************************************************************************/
+public class GroupKeys {
+
+    /** The number of epochs whose keys are kept, including the current one. */
+    private static final int KEPT_EPOCHS = 4;
+
+    /** The current epoch, 0 until the first key is made. */
+    private int epoch = 0;
+
+    /** The keys of the kept epochs, as sent to the Clients. */
+    private Map<Integer,SecretKey> keys = new HashMap<Integer,SecretKey>();
+
+    /** The keys of the kept epochs, as derived for the cipher suite. */
+    private Map<Integer,SecretKey> cipherKeys = 
+        new HashMap<Integer,SecretKey>();
+
+    /** The cipher suite of group messages. */
+    private CipherSuite suite;
+
+    /** Makes the keys. */
+    private KeyGenerator generator;
+
+    /**************************************************************************
+     * Constructs GroupKeys. No key exists until rotate() is first called.
+     * @param suite is the cipher suite of group messages
+     *************************************************************************/
+    public GroupKeys(CipherSuite suite) {
+        this.suite = suite;
+        try {
+            generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Encryption algorithm doesn't exist.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**************************************************************************
+     * Replaces the group key with a new one and forgets the oldest kept key.
+     * @return the new epoch
+     *************************************************************************/
+    public synchronized int rotate() {
+        ++epoch;
+        SecretKey key = generator.generateKey();
+        keys.put(epoch, key);
+        cipherKeys.put(epoch, suite.cipherKey(key));
+        keys.remove(epoch - KEPT_EPOCHS);
+        cipherKeys.remove(epoch - KEPT_EPOCHS);
+        return epoch;
+    }
+
+    /** Gives the current epoch. */
+    public synchronized int getEpoch() {
+        return this.epoch;
+    }
+
+    /** Gives access to the cipher suite of group messages. */
+    public CipherSuite getSuite() {
+        return this.suite;
+    }
+
+    /**************************************************************************
+     * Gives the key of an epoch as sent to the Clients, if it is still kept.
+     * @param epoch is the epoch of the key
+     * @return the key, or null if the epoch is unknown or too old
+     *************************************************************************/
+    public synchronized SecretKey getKey(int epoch) {
+        return keys.get(epoch);
+    }
+
+    /**************************************************************************
+     * Gives the key of an epoch as used by the cipher suite, if it is still
+     * kept.
+     * @param epoch is the epoch of the key
+     * @return the key, or null if the epoch is unknown or too old
+     *************************************************************************/
+    public synchronized SecretKey getCipherKey(int epoch) {
+        return cipherKeys.get(epoch);
+    }
+
+}
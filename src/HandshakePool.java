@@ -0,0 +1,278 @@
+import java.net.InetAddress;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/******************************************************************************
+ * Admits new connections and unwraps their secret keys on a few threads of
+ * its own. The RSA private-key operation, or the key agreement that may take
+ * its place, is by far the most expensive thing a Client costs, so a
+ * reconnect storm run on the connections' own threads would take every core
+ * away from the chat traffic. Here at most a fixed
+ * number of unwraps run at once, a bounded queue holds the ones waiting, and
+ * a handshake that doesn't fit is turned away at once.
+ *
+ * A connection is admitted only while its address has fewer than a given
+ * number of handshakes pending, and is closed if its handshake isn't done
+ * within the timeout. A key whose connection timed out while it waited in
+ * the queue is never unwrapped.
+ *****************************************************************************/
+public class HandshakePool {
+
+    /** The number of threads unwrapping keys. */
+    private static int threads = Math.max(1,
+        Runtime.getRuntime().availableProcessors() / 2);
+
+    /** The most unwraps waiting for a thread. */
+    private static int queueSize = 1024;
+
+    /** The most handshakes pending from one address. */
+    private static int perAddress = 256;
+
+    /** How long a handshake may take, in milliseconds. */
+    private static int timeout = 10 * 1000;
+
+    /** Unwraps the keys, created when first needed. */
+    private static volatile ThreadPoolExecutor pool = null;
+
+    /** Times the handshakes out, created when first needed. */
+    private static volatile ScheduledThreadPoolExecutor timer = null;
+
+    /** The number of pending handshakes from each address. */
+    private static Map<InetAddress,Integer> pending =
+        new HashMap<InetAddress,Integer>();
+
+    /**************************************************************************
+     * Told the result of unwrapping a secret key.
+     *************************************************************************/
+    public interface Callback {
+
+        /**********************************************************************
+         * Takes the unwrapped key. Called on a thread of the pool, or on the
+         * caller's thread if the key was turned away.
+         * @param result is the key, with the Server's half of the key 
+         * agreement if there was one, or null if the key couldn't be 
+         * established, the pool was full or the handshake had timed out
+         *********************************************************************/
+        void unwrapped(KeyExchange.Result result);
+
+    }
+
+    /**************************************************************************
+     * The handshake of one admitted connection.
+     *************************************************************************/
+    public static class Handshake {
+
+        /** The address the connection came from. */
+        private InetAddress address;
+
+        /** True once the handshake finished or timed out. */
+        private AtomicBoolean over = new AtomicBoolean(false);
+
+        /** Closes the connection if the handshake takes too long. */
+        private ScheduledFuture<?> timeoutTask;
+
+        /**********************************************************************
+         * Constructs a Handshake and starts its timeout.
+         * @param address is the address the connection came from
+         * @param onTimeout closes the connection; runs on the timer thread
+         *********************************************************************/
+        private Handshake(InetAddress address, final Runnable onTimeout) {
+            this.address = address;
+            timeoutTask = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (end()) {
+                        ServerMetrics.handshakeTimedOut();
+                        onTimeout.run();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**********************************************************************
+         * Unwraps a secret key on the pool, calling back with the result.
+         * @param secret is the key encrypted with the Server's public key,
+         * or the Client's half of a key agreement
+         * @param callback takes the key
+         *********************************************************************/
+        public void unwrap(final byte[] secret, final Callback callback) {
+            final long queuedAt = System.nanoTime();
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ServerMetrics.handshakeDequeued(queuedAt);
+                        if (over.get()) {
+                            // Nobody is waiting for this key any more
+                            callback.unwrapped(null);
+                            return;
+                        }
+                        KeyExchange.Result result = null;
+                        long start = System.nanoTime();
+                        try {
+                            result = Server.establishKey(secret);
+                        } catch (RuntimeException e) {
+                            Log.warn(Log.CRYPTO, "Couldn't unwrap a key: "
+                                + e);
+                        }
+                        if (KeyExchange.isOffer(secret)) {
+                            ServerMetrics.keyAgreed(start);
+                        } else {
+                            ServerMetrics.rsaDecrypted(start);
+                        }
+                        callback.unwrapped(result);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ServerMetrics.handshakeRejected();
+                callback.unwrapped(null);
+            }
+        }
+
+        /**********************************************************************
+         * Unwraps a secret key on the pool, waiting for the result.
+         * @param secret is the key encrypted with the Server's public key,
+         * or the Client's half of a key agreement
+         * @return the key, or null if it couldn't be established, the pool 
+         * was full or the handshake timed out
+         * @throws InterruptedException if the caller is interrupted
+         *********************************************************************/
+        public KeyExchange.Result unwrap(byte[] secret) 
+            throws InterruptedException {
+            final KeyExchange.Result[] result = new KeyExchange.Result[1];
+            final CountDownLatch done = new CountDownLatch(1);
+            unwrap(secret, new Callback() {
+                @Override
+                public void unwrapped(KeyExchange.Result established) {
+                    result[0] = established;
+                    done.countDown();
+                }
+            });
+            done.await();
+            return result[0];
+        }
+
+        /**********************************************************************
+         * Ends the handshake, whether it succeeded or not, so its address
+         * may start another. Safe to call more than once.
+         * @return false if the handshake had already timed out
+         *********************************************************************/
+        public boolean finish() {
+            if (!end())
+                return false;
+            timeoutTask.cancel(false);
+            return true;
+        }
+
+        /**********************************************************************
+         * Marks the handshake over and gives its address's place back.
+         * @return true the first time only
+         *********************************************************************/
+        private boolean end() {
+            if (!over.compareAndSet(false, true))
+                return false;
+            synchronized (pending) {
+                int count = pending.get(address) - 1;
+                if (count == 0) {
+                    pending.remove(address);
+                } else {
+                    pending.put(address, count);
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**************************************************************************
+     * Sets the limits. Only call before Clients connect.
+     * @param handshakeThreads is the number of threads unwrapping keys
+     * @param handshakeQueue is the most unwraps waiting for a thread
+     * @param handshakesPerAddress is the most handshakes pending from one
+     * address
+     * @param timeoutMillis is how long a handshake may take, in ms
+     *************************************************************************/
+    public static synchronized void configure(int handshakeThreads,
+        int handshakeQueue, int handshakesPerAddress, int timeoutMillis) {
+        threads = handshakeThreads;
+        queueSize = handshakeQueue;
+        perAddress = handshakesPerAddress;
+        timeout = timeoutMillis;
+    }
+
+    /**************************************************************************
+     * Admits a new connection if its address doesn't have too many
+     * handshakes pending, and starts its timeout.
+     * @param address is the address the connection came from
+     * @param onTimeout closes the connection if the handshake takes too long;
+     * runs on the timer thread
+     * @return the handshake, which must be finished, or null if the
+     * connection should be closed at once
+     *************************************************************************/
+    public static Handshake admit(InetAddress address, Runnable onTimeout) {
+        start();
+        synchronized (pending) {
+            Integer count = pending.get(address);
+            if (count == null) {
+                count = 0;
+            } else if (count >= perAddress) {
+                ServerMetrics.handshakeRefused();
+                return null;
+            }
+            pending.put(address, count + 1);
+        }
+        return new Handshake(address, onTimeout);
+    }
+
+    /**************************************************************************
+     * Creates the pool and timer the first time they are needed.
+     *************************************************************************/
+    private static synchronized void start() {
+        if (pool != null)
+            return;
+        final AtomicInteger created = new AtomicInteger();
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "handshake-"
+                    + created.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        pool = new ThreadPoolExecutor(threads, threads, 0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), daemons);
+        timer = new ScheduledThreadPoolExecutor(1, daemons);
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Gives the number of unwraps waiting for a thread. */
+    public static int getQueued() {
+        ThreadPoolExecutor started = pool;
+        return started == null ? 0 : started.getQueue().size();
+    }
+
+    /** Gives the number of handshakes admitted and not yet over. */
+    public static int getPending() {
+        int total = 0;
+        synchronized (pending) {
+            for (int count: pending.values()) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/******************************************************************************
+ * Counts values, such as durations in nanoseconds, in power-of-two buckets.
+ * Recording a value only adds to two counters that threads rarely contend
+ * on, so it can be done for every message. Percentiles are worked out when
+ * they are read, and are accurate to within a factor of two.
+ *
+ * Bucket i holds the values below 2^i that didn't fit in bucket i - 1, so
+ * bucket 0 holds only 0. Only a range of buckets is reported, the values
+ * below it counting as part of its first bucket.
+ *****************************************************************************/
+public class Histogram {
+
+    /** One bucket for each bit length of a non-negative long, and zero. */
+    private static final int BUCKETS = 64;
+
+    /** The number of values recorded in each bucket. */
+    private LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    /** The sum of the values recorded. */
+    private LongAdder sum = new LongAdder();
+
+    /** The size of one recorded unit when reported, such as 1e-9 for ns. */
+    private double unit;
+
+    /** The first bucket reported. */
+    private int firstBucket;
+
+    /** The last bucket reported; larger values are only counted. */
+    private int lastBucket;
+
+    /**************************************************************************
+     * Constructs an empty Histogram.
+     * @param unit is the size of one recorded unit when reported, such as
+     * 1e-9 to record nanoseconds and report seconds
+     * @param firstBucket is the first bucket reported
+     * @param lastBucket is the last bucket reported
+     *************************************************************************/
+    public Histogram(double unit, int firstBucket, int lastBucket) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets[i] = new LongAdder();
+        }
+        this.unit = unit;
+        this.firstBucket = firstBucket;
+        this.lastBucket = lastBucket;
+    }
+
+    /**************************************************************************
+     * Records a value.
+     * @param value is the value, counted as 0 if negative
+     *************************************************************************/
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+    }
+
+    /** Gives the number of values recorded. */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket: buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /** Gives the sum of the values recorded, in reported units. */
+    public double getSum() {
+        return sum.sum() * unit;
+    }
+
+    /**************************************************************************
+     * Gives a percentile of the values recorded, rounded up to the end of its
+     * bucket.
+     * @param fraction is the percentile as a fraction, such as 0.99
+     * @return the percentile in reported units, 0 if nothing was recorded
+     *************************************************************************/
+    public double percentile(double fraction) {
+        long[] counts = counts();
+        long total = 0;
+        for (long count: counts) {
+            total += count;
+        }
+        long wanted = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= wanted && seen > 0)
+                return upperBound(i);
+        }
+        return 0;
+    }
+
+    /**************************************************************************
+     * Gives the reported buckets, each with the number of values recorded in
+     * it or below it, ending with every value recorded.
+     * @return the cumulative counts, from the first reported bucket to the
+     * last and then everything
+     *************************************************************************/
+    public long[] cumulativeCounts() {
+        long[] counts = counts();
+        long[] cumulative = new long[lastBucket - firstBucket + 2];
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (i >= firstBucket && i <= lastBucket)
+                cumulative[i - firstBucket] = seen;
+        }
+        cumulative[cumulative.length - 1] = seen;
+        return cumulative;
+    }
+
+    /**************************************************************************
+     * Gives the upper bounds of the reported buckets, in reported units, in
+     * the order of cumulativeCounts(), without the last.
+     * @return the upper bounds
+     *************************************************************************/
+    public double[] upperBounds() {
+        double[] bounds = new double[lastBucket - firstBucket + 1];
+        for (int i = firstBucket; i <= lastBucket; ++i) {
+            bounds[i - firstBucket] = upperBound(i);
+        }
+        return bounds;
+    }
+
+    /**************************************************************************
+     * Gives the largest value a bucket holds, in reported units.
+     * @param bucket is the bucket
+     * @return its upper bound
+     *************************************************************************/
+    private double upperBound(int bucket) {
+        return bucket == 0 ? 0 : Math.scalb(1.0, bucket) * unit - unit;
+    }
+
+    /**************************************************************************
+     * Reads the number of values in each bucket.
+     * @return the counts, indexed by bucket
+     *************************************************************************/
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+}
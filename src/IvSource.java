@@ -0,0 +1,76 @@
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/******************************************************************************
+ * Hands out random initialization vectors. Building a SecureRandom seeds it
+ * from the operating system, which is far too slow to do once per message,
+ * and one shared SecureRandom would make every thread wait on its lock. So
+ * each thread keeps its own long-lived generator (a DRBG where the JVM has
+ * one) and fetches random bytes for many IVs at once, handing them out 16 at
+ * a time.
+ *****************************************************************************/
+public class IvSource {
+
+    /** The size of an IV, one AES block. */
+    public static final int IV_SIZE = 16;
+
+    /** The number of IVs fetched from the generator at once. */
+    private static final int BLOCK_IVS = 64;
+
+    /** The generator and prefetched random bytes of the current thread. */
+    private static final ThreadLocal<IvSource> sources =
+        new ThreadLocal<IvSource>() {
+            @Override
+            protected IvSource initialValue() {
+                return new IvSource();
+            }
+        };
+
+    /** This thread's random generator. */
+    private SecureRandom random;
+
+    /** Random bytes fetched ahead of time. */
+    private byte[] block = new byte[BLOCK_IVS * IV_SIZE];
+
+    /** The position of the next unused bytes in the block. */
+    private int position = block.length;
+
+    /**************************************************************************
+     * Constructs an IvSource with a freshly seeded generator.
+     *************************************************************************/
+    private IvSource() {
+        try {
+            random = SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            // Older JVMs don't have a DRBG; use the default generator
+            random = new SecureRandom();
+        }
+    }
+
+    /**************************************************************************
+     * Gives a new random IV.
+     * @return a 16-byte IV
+     *************************************************************************/
+    public static byte[] next() {
+        byte[] iv = new byte[IV_SIZE];
+        next(iv, 0);
+        return iv;
+    }
+
+    /**************************************************************************
+     * Writes a new random IV into an existing array.
+     * @param destination is the array receiving the IV
+     * @param offset is the position of the IV in the array
+     *************************************************************************/
+    public static void next(byte[] destination, int offset) {
+        IvSource source = sources.get();
+        if (source.position == source.block.length) {
+            source.random.nextBytes(source.block);
+            source.position = 0;
+        }
+        System.arraycopy(source.block, source.position, destination, offset,
+            IV_SIZE);
+        source.position += IV_SIZE;
+    }
+
+}
@@ -0,0 +1,496 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/******************************************************************************
+ * An ephemeral Diffie-Hellman handshake, the faster alternative to sending
+ * the secret key encrypted with the Server's RSA key. The Client sends a new
+ * X25519 public key (P-256 where the JVM has no X25519, before Java 11) in
+ * place of the RSA-encrypted key, in a block of the same size that starts
+ * with MAGIC. The Server answers with an ephemeral key of its own, signed
+ * with its ECDSA identity key so that the Client knows whom it agreed with,
+ * and both derive the session key from the shared secret and both keys.
+ *
+ * Generating and signing a key costs more than the agreement itself, so the
+ * Server answers every Client with the same signed key for SHARE_LIFETIME,
+ * like the ephemeral keys TLS servers reuse. The signature carries the time
+ * the key expires, which the Client checks. The Server's share of the work
+ * is then one agreement per handshake, several times cheaper than an RSA
+ * decryption, and recorded traffic stays safe if the identity key leaks
+ * later, once the ephemeral keys that agreed on it have been replaced.
+ *****************************************************************************/
+public class KeyExchange {
+
+    /** What a key agreement block starts with. */
+    public static final String MAGIC = "@ecdh";
+
+    /** The X25519 group. */
+    public static final String X25519 = "x25519";
+
+    /** The NIST P-256 group. */
+    public static final String P256 = "p256";
+
+    /** The size of a key agreement block, the same as an RSA-encrypted key. */
+    private static final int BLOCK_SIZE = 256;
+
+    /** The size of the group's name in a block. */
+    private static final int GROUP_SIZE = 10;
+
+    /** The number of digits giving the size of a public key. */
+    private static final int LENGTH_DIGITS = 3;
+
+    /** How the Server signs its key with its identity key. */
+    private static final String SIGNATURE = "SHA256withECDSA";
+
+    /** How long the Server answers with the same signed key, in ms. */
+    private static final long SHARE_LIFETIME = 60 * 1000;
+
+    /** How far the Client's clock may be ahead of the Server's, in ms. */
+    private static final long CLOCK_SKEW = 5 * 60 * 1000;
+
+    /** True if this JVM has X25519. */
+    private static final boolean X25519_SUPPORTED = lookUp();
+
+    /** The Server's current signed key in each group. */
+    private static Map<String,Share> shares = new HashMap<String,Share>();
+
+    /**************************************************************************
+     * The Server's ephemeral key in one group, with its answer to Clients.
+     *************************************************************************/
+    private static class Share {
+
+        /** The identity key that signed the answer. */
+        private PrivateKey identityKey;
+
+        /** The ephemeral key pair. */
+        private KeyPair pair;
+
+        /** The encoded ephemeral public key. */
+        private byte[] encoded;
+
+        /** When the key expires, as System.currentTimeMillis(). */
+        private long expiry;
+
+        /** The answer to send Clients. */
+        private byte[] reply;
+
+        /**********************************************************************
+         * Generates and signs a new ephemeral key.
+         * @param group is X25519 or P256
+         * @param identityKey is the Server's ECDSA private key
+         * @throws GeneralSecurityException if the key can't be generated or
+         * signed
+         *********************************************************************/
+        private Share(String group, PrivateKey identityKey)
+            throws GeneralSecurityException {
+            this.identityKey = identityKey;
+            this.pair = generate(group);
+            this.encoded = pair.getPublic().getEncoded();
+            this.expiry = System.currentTimeMillis() + SHARE_LIFETIME;
+            Signature signer = Signature.getInstance(SIGNATURE);
+            signer.initSign(identityKey);
+            signer.update(signed(group, encoded, expiry));
+            byte[] signature = signer.sign();
+            ByteBuffer answer = ByteBuffer.allocate(LENGTH_DIGITS
+                + encoded.length + 8 + signature.length);
+            for (char digit: String.format("%03d", encoded.length)
+                .toCharArray()) {
+                answer.put((byte) digit);
+            }
+            answer.put(encoded).putLong(expiry).put(signature);
+            this.reply = answer.array();
+        }
+
+    }
+
+    /**************************************************************************
+     * The Server's side of a key agreement: the session key and the answer
+     * the Client needs to derive it too. Also used for an RSA-encrypted key,
+     * with no answer.
+     *************************************************************************/
+    public static class Result {
+
+        /** The session key. */
+        private SecretKey key;
+
+        /** The answer to send the Client, or null for none. */
+        private byte[] reply;
+
+        /**********************************************************************
+         * Constructs a Result.
+         * @param key is the session key
+         * @param reply is the answer to send the Client, or null for none
+         *********************************************************************/
+        public Result(SecretKey key, byte[] reply) {
+            this.key = key;
+            this.reply = reply;
+        }
+
+        /** Gives access to the session key. */
+        public SecretKey getKey() {
+            return this.key;
+        }
+
+        /** Gives access to the answer to send the Client, or null. */
+        public byte[] getReply() {
+            return this.reply;
+        }
+
+    }
+
+    /** The group of the ephemeral keys. */
+    private String group;
+
+    /** The Client's ephemeral key pair. */
+    private KeyPair pair;
+
+    /**************************************************************************
+     * Starts a Client's side of a key agreement with a new key pair.
+     * @param group is X25519 or P256
+     * @throws GeneralSecurityException if this JVM doesn't have the group
+     *************************************************************************/
+    public KeyExchange(String group) throws GeneralSecurityException {
+        this.group = group;
+        this.pair = generate(group);
+    }
+
+    /**************************************************************************
+     * Builds the block the Client sends in place of its RSA-encrypted key.
+     * @return the block: MAGIC, the group's name padded to 10 bytes, the
+     * size of the public key in 3 digits and the X.509-encoded public key
+     *************************************************************************/
+    public byte[] offer() {
+        byte[] encoded = pair.getPublic().getEncoded();
+        byte[] block = new byte[BLOCK_SIZE];
+        String header = MAGIC + String.format("%-10s%03d", group,
+            encoded.length);
+        for (int i = 0; i < header.length(); ++i) {
+            block[i] = (byte) header.charAt(i);
+        }
+        System.arraycopy(encoded, 0, block, header.length(), encoded.length);
+        return block;
+    }
+
+    /**************************************************************************
+     * Checks the Server's answer and derives the session key.
+     * @param reply is the Server's answer: the size of its public key in 3
+     * digits, the X.509-encoded key, the time it expires as 8 bytes and its
+     * signature
+     * @param identityKey is the Server's ECDSA public key
+     * @return the session key
+     * @throws GeneralSecurityException if the answer is malformed, wasn't
+     * signed by the Server or has expired
+     *************************************************************************/
+    public SecretKey finish(byte[] reply, PublicKey identityKey)
+        throws GeneralSecurityException {
+        int size = parseSize(reply, 0);
+        int signatureAt = LENGTH_DIGITS + size + 8;
+        if (size < 1 || signatureAt > reply.length)
+            throw new GeneralSecurityException("Malformed key agreement.");
+        byte[] serverKey = Arrays.copyOfRange(reply, LENGTH_DIGITS,
+            LENGTH_DIGITS + size);
+        long expiry = ByteBuffer.wrap(reply, LENGTH_DIGITS + size, 8)
+            .getLong();
+        Signature verifier = Signature.getInstance(SIGNATURE);
+        verifier.initVerify(identityKey);
+        verifier.update(signed(group, serverKey, expiry));
+        if (!verifier.verify(reply, signatureAt,
+            reply.length - signatureAt)) {
+            throw new GeneralSecurityException("Bad signature on the "
+                + "Server's key.");
+        }
+        if (expiry + CLOCK_SKEW < System.currentTimeMillis())
+            throw new GeneralSecurityException("The Server's key expired.");
+        return derive(group, pair.getPrivate(), decode(group, serverKey),
+            pair.getPublic().getEncoded(), serverKey);
+    }
+
+    /**************************************************************************
+     * Answers a Client's key agreement block with the Server's current
+     * signed key.
+     * @param block is the block sent by the Client
+     * @param identityKey is the Server's ECDSA private key
+     * @return the session key and the answer for the Client, or null if
+     * the block is malformed or its group isn't supported
+     *************************************************************************/
+    public static Result respond(byte[] block, PrivateKey identityKey) {
+        String group = group(block);
+        int offset = MAGIC.length() + GROUP_SIZE;
+        int size = parseSize(block, offset);
+        offset += LENGTH_DIGITS;
+        if (!isSupported(group) || size < 1 || offset + size > block.length)
+            return null;
+        byte[] clientKey = Arrays.copyOfRange(block, offset, offset + size);
+        try {
+            Share share = share(group, identityKey);
+            SecretKey key = derive(group, share.pair.getPrivate(),
+                decode(group, clientKey), clientKey, share.encoded);
+            return new Result(key, share.reply);
+        } catch (GeneralSecurityException e) {
+            if (Log.enabled(Log.CRYPTO, Log.DEBUG))
+                Log.debug(Log.CRYPTO, "Couldn't agree on a key: " + e);
+            return null;
+        }
+    }
+
+    /**************************************************************************
+     * Gives the Server's current signed key in a group, replacing it once it
+     * has expired.
+     * @param group is X25519 or P256
+     * @param identityKey is the Server's ECDSA private key
+     * @return the key
+     * @throws GeneralSecurityException if a new key can't be generated or
+     * signed
+     *************************************************************************/
+    private static synchronized Share share(String group,
+        PrivateKey identityKey) throws GeneralSecurityException {
+        Share share = shares.get(group);
+        if (share == null || share.identityKey != identityKey
+            || share.expiry <= System.currentTimeMillis()) {
+            share = new Share(group, identityKey);
+            shares.put(group, share);
+        }
+        return share;
+    }
+
+    /**************************************************************************
+     * Tells whether a Client sent a key agreement block rather than an
+     * RSA-encrypted secret key.
+     * @param block is the first 256 bytes the Client sent
+     * @return true if the block starts with MAGIC
+     *************************************************************************/
+    public static boolean isOffer(byte[] block) {
+        for (int i = 0; i < MAGIC.length(); ++i) {
+            if (block[i] != MAGIC.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**************************************************************************
+     * Gives the group a Client's key agreement block is in.
+     * @param block is the block sent by the Client
+     * @return the group's name
+     *************************************************************************/
+    public static String group(byte[] block) {
+        try {
+            return new String(block, MAGIC.length(), GROUP_SIZE,
+                "ISO-8859-1").trim();
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+
+    /**************************************************************************
+     * Checks whether this JVM can agree on keys in a group.
+     * @param group is the group's name
+     * @return true for X25519 from Java 11 on, and for P-256
+     *************************************************************************/
+    public static boolean isSupported(String group) {
+        return group.equals(P256) || (group.equals(X25519) && X25519_SUPPORTED);
+    }
+
+    /**************************************************************************
+     * Gives the fastest group this JVM has.
+     * @return X25519 if this JVM has it, P256 if not
+     *************************************************************************/
+    public static String preferredGroup() {
+        return X25519_SUPPORTED ? X25519 : P256;
+    }
+
+    /**************************************************************************
+     * Reads an ECDSA identity public key.
+     * @param filename is the local file containing the X.509-encoded key
+     * @return the key
+     * @throws Exception if the file can't be read or holds no EC key
+     *************************************************************************/
+    public static PublicKey readPublicKey(String filename) throws Exception {
+        return KeyFactory.getInstance("EC").generatePublic(
+            new X509EncodedKeySpec(read(filename)));
+    }
+
+    /**************************************************************************
+     * Reads an ECDSA identity private key.
+     * @param filename is the local file containing the PKCS#8-encoded key
+     * @return the key
+     * @throws Exception if the file can't be read or holds no EC key
+     *************************************************************************/
+    public static PrivateKey readPrivateKey(String filename) throws Exception {
+        return KeyFactory.getInstance("EC").generatePrivate(
+            new PKCS8EncodedKeySpec(read(filename)));
+    }
+
+    /**************************************************************************
+     * Reads a whole file.
+     * @param filename is the file
+     * @return its contents
+     * @throws IOException if the file can't be read
+     *************************************************************************/
+    private static byte[] read(String filename) throws IOException {
+        File f = new File(filename);
+        FileInputStream fs = new FileInputStream(f);
+        try {
+            byte[] bytes = new byte[(int) f.length()];
+            int n = 0;
+            while (n < bytes.length) {
+                int read = fs.read(bytes, n, bytes.length - n);
+                if (read == -1)
+                    throw new IOException("Short read of " + filename);
+                n += read;
+            }
+            return bytes;
+        } finally {
+            fs.close();
+        }
+    }
+
+    /**************************************************************************
+     * Checks whether this JVM has X25519.
+     * @return true from Java 11 on
+     *************************************************************************/
+    private static boolean lookUp() {
+        try {
+            KeyPairGenerator.getInstance("X25519");
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**************************************************************************
+     * Generates an ephemeral key pair.
+     * @param group is X25519 or P256
+     * @return the key pair
+     * @throws GeneralSecurityException if this JVM doesn't have the group
+     *************************************************************************/
+    private static KeyPair generate(String group)
+        throws GeneralSecurityException {
+        if (group.equals(X25519))
+            return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /**************************************************************************
+     * Decodes the other side's ephemeral public key.
+     * @param group is X25519 or P256
+     * @param encoded is the X.509-encoded key
+     * @return the key
+     * @throws GeneralSecurityException if the key is malformed
+     *************************************************************************/
+    private static PublicKey decode(String group, byte[] encoded)
+        throws GeneralSecurityException {
+        return KeyFactory.getInstance(group.equals(X25519) ? "X25519" : "EC")
+            .generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**************************************************************************
+     * Derives the 128-bit AES session key from the shared secret and both
+     * public keys.
+     * @param group is X25519 or P256
+     * @param own is this side's ephemeral private key
+     * @param other is the other side's ephemeral public key
+     * @param clientKey is the Client's encoded public key
+     * @param serverKey is the Server's encoded public key
+     * @return the session key
+     * @throws GeneralSecurityException if the keys don't agree
+     *************************************************************************/
+    private static SecretKey derive(String group, PrivateKey own,
+        PublicKey other, byte[] clientKey, byte[] serverKey)
+        throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance(
+            group.equals(X25519) ? "X25519" : "ECDH");
+        agreement.init(own);
+        agreement.doPhase(other, true);
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        sha.update(agreement.generateSecret());
+        sha.update(transcript(group, clientKey, serverKey));
+        return new SecretKeySpec(Arrays.copyOf(sha.digest(), 16), "AES");
+    }
+
+    /**************************************************************************
+     * Gives what the Server signs: the group, its key and when the key 
+     * expires.
+     * @param group is X25519 or P256
+     * @param serverKey is the Server's encoded public key
+     * @param expiry is when the key expires, as System.currentTimeMillis()
+     * @return the signed bytes
+     *************************************************************************/
+    private static byte[] signed(String group, byte[] serverKey,
+        long expiry) {
+        ByteBuffer signed = ByteBuffer.allocate(GROUP_SIZE + serverKey.length
+            + 8);
+        for (int i = 0; i < group.length(); ++i) {
+            signed.put(i, (byte) group.charAt(i));
+        }
+        signed.position(GROUP_SIZE);
+        signed.put(serverKey).putLong(expiry);
+        return signed.array();
+    }
+
+    /**************************************************************************
+     * Gives what both sides hash into the session key with the shared 
+     * secret: the group and both public keys.
+     * @param group is X25519 or P256
+     * @param clientKey is the Client's encoded public key
+     * @param serverKey is the Server's encoded public key
+     * @return the transcript
+     *************************************************************************/
+    private static byte[] transcript(String group, byte[] clientKey,
+        byte[] serverKey) {
+        byte[] transcript = new byte[GROUP_SIZE + clientKey.length
+            + serverKey.length];
+        for (int i = 0; i < group.length(); ++i) {
+            transcript[i] = (byte) group.charAt(i);
+        }
+        System.arraycopy(clientKey, 0, transcript, GROUP_SIZE,
+            clientKey.length);
+        System.arraycopy(serverKey, 0, transcript,
+            GROUP_SIZE + clientKey.length, serverKey.length);
+        return transcript;
+    }
+
+    /**************************************************************************
+     * Parses a 3-digit size.
+     * @param bytes holds the digits
+     * @param offset is where the digits start
+     * @return the size, or -1 if the digits are missing or malformed
+     *************************************************************************/
+    private static int parseSize(byte[] bytes, int offset) {
+        if (offset + LENGTH_DIGITS > bytes.length)
+            return -1;
+        try {
+            return Integer.parseInt(new String(bytes, offset, LENGTH_DIGITS,
+                "ISO-8859-1"));
+        } catch (UnsupportedEncodingException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ * A small logger that keeps console output off the threads moving messages.
+ * Lines are handed to a background thread, which prints them; if it falls
+ * behind, new lines are dropped and counted rather than making anyone wait.
+ *
+ * Every line belongs to a subsystem and has a level, and each subsystem has
+ * its own threshold. A line above its subsystem's threshold costs nothing
+ * but the check, as long as callers check with enabled() before building
+ * a message that isn't a constant. Plaintexts and whole parsed frames are
+ * only logged at TRACE.
+ *
+ * The thresholds are INFO unless configured, either by the Server's --log
+ * option or, for the Client, the chat.log system property, for example
+ *     --log=debug,crypto:off,protocol:trace
+ * where a bare level applies to every subsystem.
+ *****************************************************************************/
+public class Log {
+
+    /** Nothing is logged. */
+    public static final int OFF = -1;
+
+    /** Something failed. */
+    public static final int ERROR = 0;
+
+    /** Something unusual happened that was dealt with. */
+    public static final int WARN = 1;
+
+    /** Connections, disconnections and other rare events. */
+    public static final int INFO = 2;
+
+    /** Details of each message, without its contents. */
+    public static final int DEBUG = 3;
+
+    /** Everything, including message contents. */
+    public static final int TRACE = 4;
+
+    /** The names of the levels, indexed by level. */
+    private static final String[] LEVELS = { "ERROR", "WARN", "INFO",
+        "DEBUG", "TRACE" };
+
+    /** Starting up, connecting and disconnecting Clients. */
+    public static final int SERVER = 0;
+
+    /** Reading from and writing to sockets. */
+    public static final int NET = 1;
+
+    /** Parsing and dispatching messages. */
+    public static final int PROTOCOL = 2;
+
+    /** Keys, cipher suites, encrypting and decrypting. */
+    public static final int CRYPTO = 3;
+
+    /** Client lists and roster updates. */
+    public static final int ROSTER = 4;
+
+    /** The names of the subsystems, indexed by subsystem. */
+    private static final String[] SUBSYSTEMS = { "server", "net",
+        "protocol", "crypto", "roster" };
+
+    /** The most lines waiting to be printed. */
+    private static final int CAPACITY = 8192;
+
+    /** The threshold of each subsystem, indexed by subsystem. */
+    private static volatile int[] thresholds = { INFO, INFO, INFO, INFO,
+        INFO };
+
+    /** The lines waiting to be printed. */
+    private static ArrayBlockingQueue<Line> lines =
+        new ArrayBlockingQueue<Line>(CAPACITY);
+
+    /** The number of lines dropped because the printer fell behind. */
+    private static AtomicLong dropped = new AtomicLong();
+
+    /**************************************************************************
+     * A line waiting to be printed.
+     *************************************************************************/
+    private static class Line {
+
+        /** When the line was logged. */
+        private long time = System.currentTimeMillis();
+
+        /** The subsystem of the line. */
+        private int subsystem;
+
+        /** The level of the line. */
+        private int level;
+
+        /** The text of the line. */
+        private String message;
+
+        /**********************************************************************
+         * Constructs a Line.
+         * @param subsystem is the subsystem of the line
+         * @param level is the level of the line
+         * @param message is the text of the line
+         *********************************************************************/
+        public Line(int subsystem, int level, String message) {
+            this.subsystem = subsystem;
+            this.level = level;
+            this.message = message;
+        }
+
+    }
+
+    static {
+        String configuration = System.getProperty("chat.log");
+        if (configuration != null && !configure(configuration))
+            System.err.println("Bad chat.log setting: " + configuration);
+        Thread printer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                print();
+            }
+        }, "log-printer");
+        printer.setDaemon(true);
+        printer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**************************************************************************
+     * Sets the thresholds from a comma-separated list of levels, each either
+     * bare, for every subsystem, or after a subsystem's name and a colon.
+     * @param configuration is the list, such as "warn,roster:debug"
+     * @return false if the list isn't valid, in which case nothing changes
+     *************************************************************************/
+    public static boolean configure(String configuration) {
+        int[] changed = thresholds.clone();
+        for (String setting: configuration.split(",")) {
+            setting = setting.trim().toLowerCase();
+            if (setting.isEmpty())
+                continue;
+            int colon = setting.indexOf(':');
+            int level = parseLevel(setting.substring(colon + 1));
+            if (level < OFF)
+                return false;
+            if (colon == -1) {
+                for (int i = 0; i < changed.length; ++i) {
+                    changed[i] = level;
+                }
+                continue;
+            }
+            int subsystem = indexOf(SUBSYSTEMS, setting.substring(0, colon));
+            if (subsystem == -1)
+                return false;
+            changed[subsystem] = level;
+        }
+        thresholds = changed;
+        return true;
+    }
+
+    /**************************************************************************
+     * Parses the name of a level.
+     * @param name is the lowercase name of the level, or "off"
+     * @return the level, or OFF - 1 if there is no such level
+     *************************************************************************/
+    private static int parseLevel(String name) {
+        if (name.equals("off"))
+            return OFF;
+        int level = indexOf(LEVELS, name.toUpperCase());
+        return level == -1 ? OFF - 1 : level;
+    }
+
+    /**************************************************************************
+     * Finds a name in an array of names.
+     * @param names are the names
+     * @param name is the name to find
+     * @return its index, or -1 if it isn't there
+     *************************************************************************/
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**************************************************************************
+     * Tells whether lines of a subsystem at a level are logged. Check this
+     * before building a message that isn't a constant.
+     * @param subsystem is the subsystem, such as NET
+     * @param level is the level, such as DEBUG
+     * @return true if such lines are logged
+     *************************************************************************/
+    public static boolean enabled(int subsystem, int level) {
+        return level <= thresholds[subsystem];
+    }
+
+    /**************************************************************************
+     * Logs a line, if its subsystem logs lines of its level. Never waits.
+     * @param subsystem is the subsystem, such as NET
+     * @param level is the level, such as DEBUG
+     * @param message is the text of the line
+     *************************************************************************/
+    public static void log(int subsystem, int level, String message) {
+        if (!enabled(subsystem, level))
+            return;
+        if (!lines.offer(new Line(subsystem, level, message)))
+            dropped.incrementAndGet();
+    }
+
+    /** Logs an ERROR line. See log(). */
+    public static void error(int subsystem, String message) {
+        log(subsystem, ERROR, message);
+    }
+
+    /** Logs a WARN line. See log(). */
+    public static void warn(int subsystem, String message) {
+        log(subsystem, WARN, message);
+    }
+
+    /** Logs an INFO line. See log(). */
+    public static void info(int subsystem, String message) {
+        log(subsystem, INFO, message);
+    }
+
+    /** Logs a DEBUG line. See log(). */
+    public static void debug(int subsystem, String message) {
+        log(subsystem, DEBUG, message);
+    }
+
+    /** Logs a TRACE line. See log(). */
+    public static void trace(int subsystem, String message) {
+        log(subsystem, TRACE, message);
+    }
+
+    /** Gives the number of lines dropped because the printer fell behind. */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**************************************************************************
+     * Prints lines as they are logged, on the printer thread.
+     *************************************************************************/
+    private static void print() {
+        List<Line> batch = new ArrayList<Line>();
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        while (true) {
+            try {
+                batch.add(lines.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            lines.drainTo(batch);
+            for (Line line: batch) {
+                print(line, format);
+            }
+            batch.clear();
+            System.out.flush();
+        }
+    }
+
+    /**************************************************************************
+     * Prints the lines still waiting, when the program exits.
+     *************************************************************************/
+    private static void flush() {
+        List<Line> batch = new ArrayList<Line>();
+        lines.drainTo(batch);
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (Line line: batch) {
+            print(line, format);
+        }
+        System.out.flush();
+    }
+
+    /**************************************************************************
+     * Prints one line, errors and warnings to the error stream.
+     * @param line is the line
+     * @param format formats the time of the line
+     *************************************************************************/
+    private static void print(Line line, SimpleDateFormat format) {
+        PrintStream stream = line.level <= WARN ? System.err : System.out;
+        stream.println(format.format(new Date(line.time)) + " "
+            + LEVELS[line.level] + " " + SUBSYSTEMS[line.subsystem] + ": "
+            + line.message);
+    }
+
+}
@@ -0,0 +1,440 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/******************************************************************************
+ * The frames waiting to be written to one Client. Any thread may queue a
+ * frame without waiting for the Client's socket; a single writer (an
+ * OutboundWriter thread, or the Client's event loop in NIO mode) takes the
+ * frames out in order and writes them. So a Client that stops reading only
+ * delays its own messages, never those of the other Clients.
+ * The queue waits on a ReentrantLock rather than with synchronized/wait(),
+ * which would pin an idle virtual writer thread to its carrier thread.
+ *
+ * Every queue is bounded by a number of frames and a number of bytes, so a
+ * Client that stops reading can't make the server run out of memory. What
+ * happens to a chat frame that doesn't fit is decided by the slow-consumer
+ * policy: drop the oldest chat frames, drop the new frame, or disconnect the
+ * Client. Control frames (client lists, keys, kicks, exit notices) are
+ * never dropped and may go past the limits, up to a hard limit of twice
+ * them; a Client whose queue reaches it is disconnected whatever the policy,
+ * since it has stopped reading.
+ *
+ * A frame may be built in an array from the BufferPool; the queue then owns
+ * the array and releases it when the frame is dropped, and the writer
+ * releases it once the frame is written.
+ *****************************************************************************/
+public class OutboundQueue {
+
+    /** Drop the oldest queued chat frames to make room for a new one. */
+    public static final String DROP_OLDEST = "drop-oldest";
+
+    /** Drop a new chat frame that doesn't fit. */
+    public static final String DROP_NEW = "drop-new";
+
+    /** Disconnect a Client whose queue is full. */
+    public static final String DISCONNECT = "disconnect";
+
+    /** The largest number of frames queued for one Client. */
+    private static int maxFrames = 4096;
+
+    /** The largest number of bytes queued for one Client. */
+    private static int maxBytes = 4 * 1024 * 1024;
+
+    /** What to do with a chat frame that doesn't fit. */
+    private static String policy = DROP_OLDEST;
+
+    /** The number of chat frames dropped from all queues. */
+    private static AtomicLong droppedFrames = new AtomicLong();
+
+    /** The number of Clients disconnected for falling behind. */
+    private static AtomicLong evictedSessions = new AtomicLong();
+
+    /**************************************************************************
+     * Tells a non-blocking writer that it has something to do.
+     *************************************************************************/
+    public interface Listener {
+
+        /**********************************************************************
+         * Called after a frame was queued or the queue was closed. May be
+         * called on any thread.
+         *********************************************************************/
+        void framesQueued();
+
+    }
+
+    /** Guards the frames and the closed flag. */
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a frame is queued or the queue is closed. */
+    private Condition changed = lock.newCondition();
+
+    /** The frames not yet taken by the writer, oldest first. */
+    private ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+
+    /** The total size of the queued frames. */
+    private int bytes = 0;
+
+    /** Told about new frames and closing, or null. */
+    private Listener listener;
+
+    /** True once no more frames are accepted. */
+    private boolean closed = false;
+
+    /** True once the Client was disconnected for falling behind. */
+    private volatile boolean evicted = false;
+
+    /**************************************************************************
+     * A queued frame.
+     *************************************************************************/
+    public static class Frame {
+
+        /** The array holding the frame. */
+        private byte[] buffer;
+
+        /** The size of the frame, from the start of the array. */
+        private int length;
+
+        /** True if the frame must never be dropped. */
+        private boolean control;
+
+        /** True if the array came from the BufferPool. */
+        private boolean pooled;
+
+        /**********************************************************************
+         * Constructs a Frame.
+         * @param buffer is the array holding the frame
+         * @param length is the size of the frame
+         * @param control is true if the frame must never be dropped
+         * @param pooled is true if the array came from the BufferPool
+         *********************************************************************/
+        private Frame(byte[] buffer, int length, boolean control, 
+            boolean pooled) {
+            this.buffer = buffer;
+            this.length = length;
+            this.control = control;
+            this.pooled = pooled;
+        }
+
+        /** Gives access to the array holding the frame. */
+        public byte[] getBuffer() {
+            return this.buffer;
+        }
+
+        /** Gives access to the size of the frame. */
+        public int getLength() {
+            return this.length;
+        }
+
+        /**********************************************************************
+         * Gives a pooled array back to the BufferPool once the frame is 
+         * written or dropped. The frame must not be used afterwards.
+         *********************************************************************/
+        public void release() {
+            if (pooled)
+                BufferPool.release(buffer);
+        }
+
+    }
+
+    /**************************************************************************
+     * Sets the limits of every queue. Only call before Clients connect.
+     * @param frames is the largest number of frames queued for one Client
+     * @param bytes is the largest number of bytes queued for one Client
+     * @param slowPolicy is DROP_OLDEST, DROP_NEW or DISCONNECT
+     *************************************************************************/
+    public static void setLimits(int frames, int bytes, String slowPolicy) {
+        maxFrames = frames;
+        maxBytes = bytes;
+        policy = slowPolicy;
+    }
+
+    /** Gives the number of chat frames dropped from all queues. */
+    public static long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /** Gives the number of Clients disconnected for falling behind. */
+    public static long getEvictedSessions() {
+        return evictedSessions.get();
+    }
+
+    /**************************************************************************
+     * Constructs an OutboundQueue.
+     * @param listener is told whenever there is something to write or the
+     * queue is closed, may be null
+     *************************************************************************/
+    public OutboundQueue(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**************************************************************************
+     * Queues a frame to be written. Never waits for the Client. A chat frame
+     * that doesn't fit is handled according to the slow-consumer policy.
+     * @param frame is the frame, which must not be changed afterwards
+     * @param control is true for frames that must never be dropped
+     * @return false if the frame was dropped
+     *************************************************************************/
+    public boolean offer(byte[] frame, boolean control) {
+        return offer(new Frame(frame, frame.length, control, false));
+    }
+
+    /**************************************************************************
+     * Queues a frame built in an array from the BufferPool. The queue takes
+     * the array over, so the caller must not use it afterwards.
+     * @param buffer is the array holding the frame
+     * @param length is the size of the frame
+     * @param control is true for frames that must never be dropped
+     * @return false if the frame was dropped
+     *************************************************************************/
+    public boolean offerPooled(byte[] buffer, int length, boolean control) {
+        return offer(new Frame(buffer, length, control, true));
+    }
+
+    /**************************************************************************
+     * Queues a frame, or releases it if it is dropped.
+     * @param frame is the frame
+     * @return false if the frame was dropped
+     *************************************************************************/
+    private boolean offer(Frame frame) {
+        boolean queued = false;
+        lock.lock();
+        try {
+            if (!closed && (frame.control ? withinHardLimit(frame.length)
+                : makeRoom(frame.length))) {
+                frames.add(frame);
+                bytes += frame.length;
+                changed.signalAll();
+                queued = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!queued)
+            frame.release();
+        if (listener != null)
+            listener.framesQueued();
+        return queued;
+    }
+
+    /**************************************************************************
+     * Applies the slow-consumer policy so that a new chat frame fits. Must be
+     * called with the lock held.
+     * @param length is the size of the new frame
+     * @return true if the frame can be queued
+     *************************************************************************/
+    private boolean makeRoom(int length) {
+        if (fits(length))
+            return true;
+        if (policy.equals(DISCONNECT)) {
+            evict();
+            return false;
+        }
+        // A frame larger than the whole queue would empty it and still not
+        // fit, so only the new frame is dropped
+        if (policy.equals(DROP_OLDEST) && length <= maxBytes) {
+            Iterator<Frame> queued = frames.iterator();
+            while (!fits(length) && queued.hasNext()) {
+                Frame frame = queued.next();
+                if (!frame.control) {
+                    queued.remove();
+                    bytes -= frame.length;
+                    frame.release();
+                    droppedFrames.incrementAndGet();
+                }
+            }
+            if (fits(length))
+                return true;
+        }
+        droppedFrames.incrementAndGet();
+        return false;
+    }
+
+    /**************************************************************************
+     * Checks whether a new control frame stays within the hard limit, and
+     * disconnects the Client if it doesn't. Must be called with the lock 
+     * held.
+     * @param length is the size of the new frame
+     * @return true if the frame can be queued
+     *************************************************************************/
+    private boolean withinHardLimit(int length) {
+        if (frames.size() < 2L * maxFrames 
+            && (long) bytes + length <= 2L * maxBytes)
+            return true;
+        evict();
+        return false;
+    }
+
+    /**************************************************************************
+     * Disconnects the Client for falling behind, dropping everything queued.
+     * Must be called with the lock held.
+     *************************************************************************/
+    private void evict() {
+        evictedSessions.incrementAndGet();
+        evicted = true;
+        closed = true;
+        clear();
+        changed.signalAll();
+    }
+
+    /**************************************************************************
+     * Checks whether one more frame stays within the limits.
+     * @param length is the size of the new frame
+     * @return true if it fits
+     *************************************************************************/
+    private boolean fits(int length) {
+        return frames.size() < maxFrames && bytes + length <= maxBytes;
+    }
+
+    /**************************************************************************
+     * Drops every queued frame. Must be called with the lock held.
+     *************************************************************************/
+    private void clear() {
+        Frame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.release();
+        }
+        bytes = 0;
+    }
+
+    /**************************************************************************
+     * Takes the oldest frame without waiting. The caller releases it once it
+     * is written.
+     * @return the frame, or null if none is queued
+     *************************************************************************/
+    public Frame poll() {
+        lock.lock();
+        try {
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**************************************************************************
+     * Takes the oldest frame, waiting a while for one to be queued if needed.
+     * The caller releases it once it is written.
+     * @param nanos is the longest to wait, in nanoseconds
+     * @return the frame, or null if none was queued in time or the queue is
+     * closed and empty
+     * @throws InterruptedException if the writer is interrupted
+     *************************************************************************/
+    public Frame poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && nanos > 0) {
+                nanos = changed.awaitNanos(nanos);
+            }
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**************************************************************************
+     * Takes the oldest frame, waiting for one to be queued if needed. The 
+     * caller releases it once it is written.
+     * @return the frame, or null once the queue is closed and empty
+     * @throws InterruptedException if the writer is interrupted
+     *************************************************************************/
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                changed.await();
+            }
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**************************************************************************
+     * Takes the oldest frame out. Must be called with the lock held.
+     * @return the frame, or null if none is queued
+     *************************************************************************/
+    private Frame remove() {
+        Frame frame = frames.poll();
+        if (frame == null)
+            return null;
+        bytes -= frame.length;
+        return frame;
+    }
+
+    /**************************************************************************
+     * Stops accepting frames. Frames already queued are still handed out, so
+     * a Client that exits gets everything sent to it before.
+     *************************************************************************/
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (listener != null)
+            listener.framesQueued();
+    }
+
+    /**************************************************************************
+     * Stops accepting frames and drops those still queued, for when the
+     * Client's connection is gone.
+     *************************************************************************/
+    public void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**************************************************************************
+     * Tells whether the writer is done: the queue is closed and every frame
+     * has been taken.
+     * @return true if nothing more will ever be queued or taken
+     *************************************************************************/
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return closed && frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Gives the number of frames waiting to be written. */
+    public int getQueuedFrames() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Gives the total size of the frames waiting to be written. */
+    public int getQueuedBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**************************************************************************
+     * Tells whether the Client was disconnected for falling behind. Its
+     * writer should close the connection right away.
+     * @return true if the queue was evicted
+     *************************************************************************/
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+}
@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.Socket;
+
+/******************************************************************************
+ * Writes the frames queued for one Client to its socket, in thread and
+ * virtual thread mode. Runs on its own thread so that the threads queueing
+ * frames never wait on the socket. When the queue is closed and drained, or
+ * the socket fails, the socket is closed; the Client's reading thread then
+ * sees the connection end and cleans up. A Client evicted for falling behind
+ * has its socket closed at once, even if the writer is stuck writing to it.
+ *
+ * Frames are gathered into a batch and written together, so a burst of
+ * broadcasts costs one write, and usually one TCP segment, per batch rather
+ * than per frame. When the queue runs empty, the writer waits for more
+ * frames until the first one gathered has waited for the write budget, then
+ * writes the batch; a full batch, or one whose budget ran out while frames
+ * kept arriving, is written at once.
+ *****************************************************************************/
+public class OutboundWriter implements Runnable, OutboundQueue.Listener {
+
+    /** The most bytes gathered into one write. */
+    private static int batchBytes = 64 * 1024;
+
+    /** The longest a gathered frame waits to be written, in nanoseconds. */
+    private static long budget = 200 * 1000;
+
+    /** The name of the Client, for error messages. */
+    private String clientName;
+
+    /** The frames to write. */
+    private OutboundQueue queue;
+
+    /** The Client's socket. */
+    private Socket socket;
+
+    /**
+     * The first frame gathered for the next write. A frame alone is written
+     * from its own array; a second one starts a batch.
+     */
+    private OutboundQueue.Frame held = null;
+
+    /** The frames gathered for the next write, from the BufferPool. */
+    private byte[] batch = null;
+
+    /** The size of the gathered frames. */
+    private int batched = 0;
+
+    /** The number of frames gathered. */
+    private int batchedFrames = 0;
+
+    /** When the first gathered frame was taken, as System.nanoTime(). */
+    private long batchStart;
+
+    /**************************************************************************
+     * Sets how frames are gathered into writes, for all writers.
+     * @param bytes is the most bytes gathered into one write
+     * @param budgetMicros is the longest a gathered frame waits to be
+     * written, in microseconds
+     *************************************************************************/
+    public static void setBatching(int bytes, int budgetMicros) {
+        batchBytes = bytes;
+        budget = budgetMicros * 1000L;
+    }
+
+    /** Gives the most bytes gathered into one write. */
+    public static int getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**************************************************************************
+     * Constructs an OutboundWriter, and its queue, for one Client.
+     * @param clientName is the name of the Client
+     * @param socket is the Client's socket
+     *************************************************************************/
+    public OutboundWriter(String clientName, Socket socket) {
+        this.clientName = clientName;
+        this.queue = new OutboundQueue(this);
+        this.socket = socket;
+    }
+
+    /** Gives access to the queue of frames to write. */
+    public OutboundQueue getQueue() {
+        return this.queue;
+    }
+
+    /**************************************************************************
+     * Closes the socket of an evicted Client, which also unblocks a write
+     * that the Client isn't reading.
+     *************************************************************************/
+    @Override
+    public void framesQueued() {
+        if (queue.isEvicted()) {
+            closeSocket();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream output = socket.getOutputStream();
+            OutboundQueue.Frame frame;
+            while (true) {
+                if (batchedFrames > 0 
+                    && System.nanoTime() - batchStart >= budget) {
+                    // Frames keep coming, but the first has waited enough
+                    flush(output);
+                }
+                frame = queue.poll();
+                if (frame == null && batchedFrames > 0) {
+                    // Give the rest of a burst a moment to arrive
+                    frame = queue.poll(batchStart + budget 
+                        - System.nanoTime());
+                }
+                if (frame == null) {
+                    flush(output);
+                    frame = queue.take();
+                    if (frame == null)
+                        break;
+                }
+                gather(output, frame);
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't write to " + clientName + ": "
+                + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println("Writer of " + clientName + " interrupted.");
+        }
+        if (queue.isEvicted()) {
+            System.err.println("Disconnected " + clientName 
+                + " for falling behind.");
+        }
+        releaseBatch();
+        queue.discard();
+        closeSocket();
+    }
+
+    /**************************************************************************
+     * Adds a frame to the batch, writing the batch first if the frame
+     * doesn't fit. A frame larger than a whole batch is written on its own.
+     * Releases the frame once it is copied or written.
+     * @param output is the socket's stream
+     * @param frame is the frame
+     * @throws IOException if the socket fails
+     *************************************************************************/
+    private void gather(OutputStream output, OutboundQueue.Frame frame)
+        throws IOException {
+        int length = frame.getLength();
+        ServerMetrics.frameSent(length);
+        if (batched + length > batchBytes)
+            flush(output);
+        if (batchedFrames == 0) {
+            held = frame;
+            batched = length;
+            batchedFrames = 1;
+            batchStart = System.nanoTime();
+            return;
+        }
+        try {
+            if (batch == null) {
+                batch = BufferPool.acquire(batchBytes);
+                System.arraycopy(held.getBuffer(), 0, batch, 0, batched);
+                held.release();
+                held = null;
+            }
+            System.arraycopy(frame.getBuffer(), 0, batch, batched, length);
+            batched += length;
+            ++batchedFrames;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**************************************************************************
+     * Writes the gathered frames, if any.
+     * @param output is the socket's stream
+     * @throws IOException if the socket fails
+     *************************************************************************/
+    private void flush(OutputStream output) throws IOException {
+        if (batchedFrames == 0)
+            return;
+        if (held != null) {
+            output.write(held.getBuffer(), 0, batched);
+        } else {
+            output.write(batch, 0, batched);
+        }
+        ServerMetrics.socketWrite(batchedFrames);
+        releaseBatch();
+    }
+
+    /**************************************************************************
+     * Gives the gathered frames back to the pool, once written or when the
+     * connection is gone.
+     *************************************************************************/
+    private void releaseBatch() {
+        if (held != null)
+            held.release();
+        if (batch != null)
+            BufferPool.release(batch);
+        held = null;
+        batch = null;
+        batched = 0;
+        batchedFrames = 0;
+    }
+
+    /**************************************************************************
+     * Closes the Client's socket. Safe to call more than once.
+     *************************************************************************/
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Couldn't close client socket.");
+            e.printStackTrace();
+        }
+    }
+
+}
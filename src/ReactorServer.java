@@ -0,0 +1,734 @@
+import java.net.InetSocketAddress;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+/******************************************************************************
+ * A non-blocking version of the chat server's connection handling.
+ * Acceptor threads hand every new connection to one of a fixed number of
+ * event loops, where it stays for its whole life. Each event loop uses a
+ * Selector to read and write all of its clients' sockets, so thousands of
+ * idle clients only cost a few threads. Messages are handled by the same
+ * Server code as in thread mode, so all the commands behave the same.
+ *****************************************************************************/
+public class ReactorServer {
+
+    /** The size of the RSA-encrypted secret key sent by a new Client. */
+    private static final int SECRET_SIZE = 256;
+
+    /** The longest client name line accepted before giving up. */
+    private static final int MAX_NAME_LINE = 256;
+
+    /** The most frames gathered into one write to a client. */
+    private static final int GATHER_FRAMES = 64;
+
+    /** The channels on which client connections are accepted. */
+    private List<ServerSocketChannel> acceptors = 
+        new ArrayList<ServerSocketChannel>();
+
+    /** The event loops to which the clients are assigned. */
+    private EventLoop[] loops;
+
+    /** The number of connections assigned, which picks the next loop. */
+    private AtomicInteger assigned = new AtomicInteger();
+
+    /**************************************************************************
+     * Binds the server sockets and starts the event loop threads.
+     * @param options are the server's options, giving the addresses to
+     * listen on, the acceptors and backlog and the number of event loops
+     * @throws IOException if a server socket or a selector can't be opened
+     *************************************************************************/
+    public ReactorServer(ServerOptions options) throws IOException {
+        for (InetSocketAddress address: options.getBindAddresses()) {
+            ServerSocketChannel shared = null;
+            for (int i = 0; i < options.getAcceptors(); ++i) {
+                ServerSocketChannel acceptor = shared;
+                if (acceptor == null) {
+                    acceptor = ServerSocketChannel.open();
+                    if (options.reusePort())
+                        ReusePort.enable(acceptor);
+                    acceptor.bind(address, options.getBacklog());
+                    if (!options.reusePort())
+                        shared = acceptor;
+                }
+                acceptors.add(acceptor);
+            }
+            Log.info(Log.NET, "Listening on " + address + " with " 
+                + options.getAcceptors() + " acceptors.");
+        }
+        int loopCount = options.getEventLoops();
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; ++i) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.start();
+        }
+        Log.info(Log.SERVER, "Started " + loopCount + " event loops.");
+    }
+
+    /**************************************************************************
+     * Starts a thread for each acceptor, which accepts client connections
+     * until its channel is closed and assigns them to the event loops in
+     * turn.
+     *************************************************************************/
+    public void run() {
+        for (int i = 0; i < acceptors.size(); ++i) {
+            final ServerSocketChannel acceptor = acceptors.get(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    accept(acceptor);
+                }
+            }, "acceptor-" + i).start();
+        }
+    }
+
+    /**************************************************************************
+     * Accepts client connections on one channel until it is closed. A failed
+     * accept only costs that connection.
+     * @param acceptor is the channel, which may have other acceptors
+     *************************************************************************/
+    private void accept(ServerSocketChannel acceptor) {
+        while (acceptor.isOpen()) {
+            SocketChannel channel = null;
+            try {
+                channel = acceptor.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ServerMetrics.connectionAccepted();
+                int next = assigned.getAndIncrement() & Integer.MAX_VALUE;
+                loops[next % loops.length].register(channel);
+            } catch (IOException e) {
+                close(channel);
+                Server.acceptFailed(e);
+            } catch (RuntimeException e) {
+                // Don't let one bad connection stop the acceptor
+                close(channel);
+                Server.acceptFailed(e);
+            }
+        }
+    }
+
+    /**************************************************************************
+     * Closes a channel, ignoring any errors.
+     * @param channel is the channel to close, may be null
+     *************************************************************************/
+    private static void close(SocketChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with this channel
+        }
+    }
+
+    /**************************************************************************
+     * A single-threaded loop that reads and writes the sockets of the clients
+     * assigned to it.
+     *************************************************************************/
+    private static class EventLoop implements Runnable {
+
+        /** Selects the channels that are ready for reading or writing. */
+        private Selector selector;
+
+        /** Newly accepted channels waiting to be registered. */
+        private ConcurrentLinkedQueue<SocketChannel> registrations =
+            new ConcurrentLinkedQueue<SocketChannel>();
+
+        /** Receives data from each socket before it is decoded. */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+        /** Sessions that have queued data and need to be written. */
+        private ConcurrentLinkedQueue<Session> writers =
+            new ConcurrentLinkedQueue<Session>();
+
+        /** Work handed to this loop by other threads. */
+        private ConcurrentLinkedQueue<Task> tasks =
+            new ConcurrentLinkedQueue<Task>();
+
+        /**********************************************************************
+         * Constructs an EventLoop with its own Selector.
+         * @throws IOException if the Selector can't be opened
+         *********************************************************************/
+        public EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**********************************************************************
+         * Hands a new channel to this loop. Safe to call from any thread.
+         * @param channel is the accepted, non-blocking client channel
+         *********************************************************************/
+        public void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        /**********************************************************************
+         * Asks this loop to write a session's queued data. Safe to call from
+         * any thread.
+         * @param session is the session with data to write
+         *********************************************************************/
+        public void requestWrite(Session session) {
+            writers.add(session);
+            selector.wakeup();
+        }
+
+        /**********************************************************************
+         * Runs a task on this loop's thread. Safe to call from any thread.
+         * @param session is the session the task touches, closed if the 
+         * task fails
+         * @param task is the task
+         *********************************************************************/
+        public void execute(Session session, Runnable task) {
+            tasks.add(new Task(session, task));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Event loop couldn't select.");
+                    e.printStackTrace();
+                    continue;
+                }
+
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null) {
+                    try {
+                        SelectionKey key = channel.register(selector,
+                            SelectionKey.OP_READ);
+                        Session session = new Session(this, channel, key);
+                        if (!session.admit()) {
+                            key.cancel();
+                            close(channel);
+                            continue;
+                        }
+                        key.attach(session);
+                    } catch (IOException e) {
+                        System.err.println("Couldn't register client.");
+                        e.printStackTrace();
+                        close(channel);
+                    }
+                }
+
+                Task task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.work.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Closing client after error.");
+                        e.printStackTrace();
+                        task.session.close();
+                    }
+                }
+
+                Session writer;
+                while ((writer = writers.poll()) != null) {
+                    try {
+                        writer.write();
+                    } catch (RuntimeException e) {
+                        System.err.println("Closing client after error.");
+                        e.printStackTrace();
+                        writer.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            session.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.write();
+                        }
+                    } catch (RuntimeException e) {
+                        // Don't let one bad client stop the whole loop
+                        System.err.println("Closing client after error.");
+                        e.printStackTrace();
+                        session.close();
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**************************************************************************
+     * Work handed to an event loop on behalf of one of its sessions.
+     *************************************************************************/
+    private static class Task {
+
+        /** The session the work touches. */
+        private Session session;
+
+        /** The work. */
+        private Runnable work;
+
+        /**********************************************************************
+         * Constructs a Task.
+         * @param session is the session the work touches
+         * @param work is the work
+         *********************************************************************/
+        public Task(Session session, Runnable work) {
+            this.session = session;
+            this.work = work;
+        }
+
+    }
+
+    /**************************************************************************
+     * The state of one client connection. Only ever read and written on its
+     * event loop's thread; other threads only queue outgoing data.
+     *************************************************************************/
+    private static class Session implements OutboundQueue.Listener {
+
+        /** Waiting for the encrypted secret key or a resumption block. */
+        private static final int READING_SECRET = 0;
+
+        /** Waiting for the client's name. */
+        private static final int READING_NAME = 1;
+
+        /** Receiving messages. */
+        private static final int READING_MESSAGES = 2;
+
+        /** Waiting for the handshake pool to establish the secret key. */
+        private static final int UNWRAPPING = 3;
+
+        /** The loop that owns this session. */
+        private EventLoop loop;
+
+        /** The client's socket. */
+        private SocketChannel channel;
+
+        /** The client's registration with the loop's selector. */
+        private SelectionKey key;
+
+        /** Holds received bytes until a whole message has arrived. */
+        private FrameDecoder decoder = new FrameDecoder(Frames.LEGACY);
+
+        /** What is expected next from the client. */
+        private int state = READING_SECRET;
+
+        /** The encrypted secret key or resumption block the client sent. */
+        private byte[] secret;
+
+        /**
+         * The number of times the client's ticket or key agreement was 
+         * turned down.
+         */
+        private int turnedDown = 0;
+
+        /** The client's symmetric key. */
+        private SecretKey clientKey;
+
+        /** The client's name, once it has been received. */
+        private String clientName;
+
+        /** When the connection was accepted, as System.nanoTime(). */
+        private long acceptedAt = System.nanoTime();
+
+        /** The client's handshake, until it is finished. */
+        private HandshakePool.Handshake handshake;
+
+        /** The frame format the client asked for. */
+        private int format = Frames.LEGACY;
+
+        /** Frames waiting to be written to the client. */
+        private OutboundQueue outbound = new OutboundQueue(this);
+
+        /**
+         * The frames being written, in one gathering write, from
+         * pendingStart. The socket may have accepted part of the first.
+         */
+        private ByteBuffer[] pending = new ByteBuffer[GATHER_FRAMES];
+
+        /** The frames that pending wraps, each released once written. */
+        private OutboundQueue.Frame[] pendingFrames =
+            new OutboundQueue.Frame[GATHER_FRAMES];
+
+        /** The index of the first frame being written. */
+        private int pendingStart = 0;
+
+        /** The number of frames being written. */
+        private int pendingCount = 0;
+
+        /** True while a write has been requested but not yet performed. */
+        private AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+        /** True once the client has exited; closes after the last frame. */
+        private volatile boolean exiting = false;
+
+        /** True once the channel has been closed. */
+        private volatile boolean closed = false;
+
+        /**********************************************************************
+         * Constructs a Session for a newly registered channel.
+         * @param loop is the loop that owns the session
+         * @param channel is the client's socket
+         * @param key is the channel's registration with the loop's selector
+         *********************************************************************/
+        public Session(EventLoop loop, SocketChannel channel,
+            SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**********************************************************************
+         * Admits the session's handshake to the HandshakePool. A handshake
+         * that times out closes the session on its loop.
+         * @return false if the client's address has too many handshakes
+         * pending, and the channel should be closed
+         *********************************************************************/
+        public boolean admit() {
+            handshake = HandshakePool.admit(channel.socket().getInetAddress(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        loop.execute(Session.this, new Runnable() {
+                            @Override
+                            public void run() {
+                                close();
+                            }
+                        });
+                    }
+                });
+            return handshake != null;
+        }
+
+        /**********************************************************************
+         * Reads whatever the client has sent and handles every complete
+         * message in it.
+         *********************************************************************/
+        public void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n == -1) {
+                close();
+                return;
+            }
+            ServerMetrics.bytesReceived(n);
+            buffer.flip();
+            decoder.feed(buffer);
+            buffer.clear();
+            consumeAll();
+        }
+
+        /**********************************************************************
+         * Handles every complete handshake step and message in the decoder.
+         *********************************************************************/
+        private void consumeAll() {
+            try {
+                while (!closed && !exiting && consume()) {
+                    // Keep consuming until the decoder runs out of messages
+                }
+            } catch (IllegalArgumentException e) {
+                Log.warn(Log.PROTOCOL, "Malformed data from " 
+                    + (clientName == null ? "a client" : clientName) + ": " 
+                    + e.getMessage());
+                close();
+            }
+        }
+
+        /**********************************************************************
+         * Consumes one handshake step or message from the decoder.
+         * @return true if something was consumed, false if more data is
+         * needed
+         *********************************************************************/
+        private boolean consume() {
+            if (state == READING_SECRET) {
+                secret = decoder.nextBytes(SECRET_SIZE);
+                if (secret == null)
+                    return false;
+                state = READING_NAME;
+                return true;
+            } else if (state == UNWRAPPING) {
+                return false;
+            } else if (state == READING_NAME) {
+                String hello = decoder.nextLine(MAX_NAME_LINE);
+                if (hello == null)
+                    return false;
+                if (Server.helloName(hello).isEmpty()) {
+                    System.err.println(
+                        "Failed in getting the client name. Retrying.");
+                    return true;
+                }
+                if (SessionTickets.isResumption(secret)) {
+                    return resume(hello);
+                }
+                if (!Server.acceptsKey(secret)) {
+                    return turnDown(hello);
+                }
+                // Stop reading until the pool has established the key
+                state = UNWRAPPING;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                final String unwrapping = hello;
+                handshake.unwrap(secret, new HandshakePool.Callback() {
+                    @Override
+                    public void unwrapped(
+                        final KeyExchange.Result unwrapped) {
+                        loop.execute(Session.this, new Runnable() {
+                            @Override
+                            public void run() {
+                                keyUnwrapped(unwrapping, unwrapped);
+                            }
+                        });
+                    }
+                });
+                return false;
+            } else {
+                byte[] message = decoder.nextFrame();
+                if (message == null)
+                    return false;
+                if (Server.handleMessage(message)) {
+                    Log.info(Log.SERVER, "Client has exited gracefully: "
+                        + clientName);
+                    exiting = true;
+                }
+                return true;
+            }
+        }
+
+        /**********************************************************************
+         * Resumes the client's session with the ticket it sent.
+         * @param hello is the line sent by the client
+         * @return true if the handshake went on, false if it was closed
+         *********************************************************************/
+        private boolean resume(String hello) {
+            SecretKey resumed = Server.resume(secret, hello);
+            if (resumed != null)
+                return join(hello, resumed);
+            return turnDown(hello);
+        }
+
+        /**********************************************************************
+         * Tells the client that its ticket or key agreement was turned down,
+         * after which it sends the next of these, ending with the 
+         * RSA-encrypted key. The client is closed if it keeps sending blocks
+         * that are turned down.
+         * @param hello is the line sent by the client
+         * @return true if the handshake went on, false if it was closed
+         *********************************************************************/
+        private boolean turnDown(String hello) {
+            if (turnedDown == 2) {
+                close();
+                return false;
+            }
+            ++turnedDown;
+            outbound.offer(Server.keyTurnedDown(secret, hello), true);
+            state = READING_SECRET;
+            return true;
+        }
+
+        /**********************************************************************
+         * Carries on with the handshake once the pool has established the
+         * secret key, reading any messages that have already arrived. The
+         * Server's half of a key agreement goes out first.
+         * @param hello is the line sent by the client
+         * @param unwrapped is the key, or null if it couldn't be established
+         *********************************************************************/
+        private void keyUnwrapped(String hello, KeyExchange.Result unwrapped) {
+            if (closed)
+                return;
+            if (unwrapped == null) {
+                Log.debug(Log.NET, "Handshake turned away or timed out.");
+                close();
+                return;
+            }
+            if (unwrapped.getReply() != null)
+                outbound.offer(Server.keyReply(unwrapped.getReply(), hello),
+                    true);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (join(hello, unwrapped.getKey()))
+                consumeAll();
+        }
+
+        /**********************************************************************
+         * Ends the handshake and adds the client to the chat room.
+         * @param hello is the line sent by the client
+         * @param secretKey is the client's secret key
+         * @return false if the handshake had timed out and was closed
+         *********************************************************************/
+        private boolean join(String hello, SecretKey secretKey) {
+            if (!handshake.finish()) {
+                close();
+                return false;
+            }
+            clientKey = secretKey;
+            clientName = Server.helloName(hello);
+            format = Server.helloFormat(hello);
+            Log.info(Log.SERVER, "Client " + clientName + " connected to "
+                + "the server.");
+            state = READING_MESSAGES;
+            decoder.setFormat(format);
+            ServerMetrics.handshakeDone(acceptedAt);
+            Server.addClient(hello, outbound, clientKey);
+            return true;
+        }
+
+        /**********************************************************************
+         * Asks the loop to write the queued frames. Called by the outbound
+         * queue on whichever thread queued a frame.
+         *********************************************************************/
+        @Override
+        public void framesQueued() {
+            if (writeRequested.compareAndSet(false, true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        /**********************************************************************
+         * Writes as much queued data as the socket accepts, gathering several
+         * frames into each write, and waits for the socket to become writable
+         * if any is left over.
+         *********************************************************************/
+        public void write() {
+            writeRequested.set(false);
+            if (closed)
+                return;
+            if (outbound.isEvicted()) {
+                System.err.println("Disconnected " + clientName 
+                    + " for falling behind.");
+                close();
+                return;
+            }
+            try {
+                while (gather()) {
+                    channel.write(pending, pendingStart, pendingCount);
+                    ServerMetrics.socketWrite(pendingCount);
+                    while (pendingCount > 0 
+                        && !pending[pendingStart].hasRemaining()) {
+                        ServerMetrics.frameSent(
+                            pendingFrames[pendingStart].getLength());
+                        releaseFirst();
+                    }
+                    if (pendingCount > 0) {
+                        key.interestOps(key.interestOps()
+                            | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (outbound.isDrained()) {
+                // The client exited and has been sent everything
+                close();
+            }
+        }
+
+        /**********************************************************************
+         * Closes the client's socket. Forgets the client if it disconnected
+         * without exiting.
+         *********************************************************************/
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            key.cancel();
+            ReactorServer.close(channel);
+            outbound.discard();
+            releasePending();
+            if (handshake != null)
+                handshake.finish();
+            if (state != READING_MESSAGES)
+                ServerMetrics.handshakeFailed();
+            if (clientName != null && !exiting) {
+                Log.info(Log.SERVER, "Lost connection to " + clientName);
+                Server.dropClient(clientName, outbound);
+            }
+        }
+
+        /**********************************************************************
+         * Adds queued frames to those being written, up to the gathering
+         * limits, so that one write sends them all.
+         * @return true if there is anything to write
+         *********************************************************************/
+        private boolean gather() {
+            if (pendingStart > 0) {
+                System.arraycopy(pending, pendingStart, pending, 0,
+                    pendingCount);
+                System.arraycopy(pendingFrames, pendingStart, pendingFrames,
+                    0, pendingCount);
+                Arrays.fill(pending, pendingCount, pendingStart
+                    + pendingCount, null);
+                Arrays.fill(pendingFrames, pendingCount, pendingStart
+                    + pendingCount, null);
+                pendingStart = 0;
+            }
+            long gathered = 0;
+            for (int i = 0; i < pendingCount; ++i) {
+                gathered += pending[i].remaining();
+            }
+            int limit = OutboundWriter.getBatchBytes();
+            while (pendingCount < GATHER_FRAMES && gathered < limit) {
+                OutboundQueue.Frame frame = outbound.poll();
+                if (frame == null)
+                    break;
+                pendingFrames[pendingCount] = frame;
+                pending[pendingCount] = ByteBuffer.wrap(frame.getBuffer(), 0,
+                    frame.getLength());
+                gathered += frame.getLength();
+                ++pendingCount;
+            }
+            return pendingCount > 0;
+        }
+
+        /**********************************************************************
+         * Gives the first frame being written back to the pool, once it is
+         * written.
+         *********************************************************************/
+        private void releaseFirst() {
+            pendingFrames[pendingStart].release();
+            pendingFrames[pendingStart] = null;
+            pending[pendingStart] = null;
+            ++pendingStart;
+            --pendingCount;
+        }
+
+        /**********************************************************************
+         * Gives the frames being written back to the pool, once the
+         * connection is gone.
+         *********************************************************************/
+        private void releasePending() {
+            while (pendingCount > 0) {
+                releaseFirst();
+            }
+            pendingStart = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+import java.nio.channels.ServerSocketChannel;
+
+/******************************************************************************
+ * Access to SO_REUSEPORT, which lets several sockets listen on the same port
+ * so that the kernel spreads new connections across their acceptors. The
+ * option only exists from Java 9 on, and not on every platform, so it is
+ * looked up by reflection and the rest of the chat program still builds and
+ * runs without it.
+ *****************************************************************************/
+public class ReusePort {
+
+    /** The SO_REUSEPORT option, or null if this JVM doesn't have it. */
+    private static final SocketOption<Boolean> OPTION = lookUp();
+
+    /**************************************************************************
+     * Finds the SO_REUSEPORT option.
+     * @return the option, or null if this JVM doesn't have it
+     *************************************************************************/
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookUp() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                .getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**************************************************************************
+     * Checks whether listening sockets can share a port on this platform.
+     * @return true if SO_REUSEPORT can be turned on
+     *************************************************************************/
+    public static boolean isSupported() {
+        if (OPTION == null)
+            return false;
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                return channel.supportedOptions().contains(OPTION);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**************************************************************************
+     * Turns on SO_REUSEPORT for a channel, before it is bound. Only call if
+     * isSupported().
+     * @param channel is the unbound channel
+     * @throws IOException if the option can't be set
+     *************************************************************************/
+    public static void enable(ServerSocketChannel channel) throws IOException {
+        channel.setOption(OPTION, true);
+    }
+
+    /**************************************************************************
+     * Turns on SO_REUSEPORT for a server socket, before it is bound. Only
+     * call if isSupported().
+     * @param socket is the unbound socket
+     * @throws IOException if the option can't be set
+     *************************************************************************/
+    public static void enable(ServerSocket socket) throws IOException {
+        try {
+            ServerSocket.class.getMethod("setOption", SocketOption.class,
+                Object.class).invoke(socket, OPTION, true);
+        } catch (Exception e) {
+            throw new IOException("Couldn't set SO_REUSEPORT.", e);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ * Folds the Clients joining and leaving over a short window into a single
+ * roster update. When a network blip drops and reconnects hundreds of
+ * Clients, everyone gets one update per window instead of one per Client.
+ *
+ * The first change after a quiet spell opens a window; when it ends, the
+ * changes are published together. A Client that left and came back within
+ * the window is published as "-name,+name", so the others forget what
+ * they knew about its old connection; one that came and went is not
+ * published at all.
+ *****************************************************************************/
+public class RosterPublisher {
+
+    /**************************************************************************
+     * Sends a roster update to the Clients.
+     *************************************************************************/
+    public interface Publication {
+
+        /**********************************************************************
+         * Publishes the changes folded over one window.
+         * @param changes are the changes, in order, each "+name" for a Client
+         * that joined or "-name" for one that left
+         * @param joined are the names of the Clients that joined during the
+         * window, which need the whole client list
+         *********************************************************************/
+        void publish(List<String> changes, Set<String> joined);
+
+    }
+
+    /**************************************************************************
+     * The changes of one Client during the window.
+     *************************************************************************/
+    private static class Change {
+
+        /** True if the first change was joining, false if it was leaving. */
+        private boolean firstJoined;
+
+        /** True if the last change was joining, false if it was leaving. */
+        private boolean lastJoined;
+
+        /**********************************************************************
+         * Constructs a Change.
+         * @param joined is true if the Client joined, false if it left
+         *********************************************************************/
+        public Change(boolean joined) {
+            this.firstJoined = joined;
+            this.lastJoined = joined;
+        }
+
+    }
+
+    /** How long changes are folded together, in milliseconds. */
+    private long window;
+
+    /** Sends the updates. */
+    private Publication publication;
+
+    /** Ends the windows. */
+    private ScheduledExecutorService timer;
+
+    /** The changes of the open window, by Client name, in order. */
+    private Map<String,Change> pending = new LinkedHashMap<String,Change>();
+
+    /** The Clients that joined during the open window. */
+    private Set<String> joined = new HashSet<String>();
+
+    /** The number of changes made during the open window. */
+    private int pendingChanges = 0;
+
+    /** True while a window is open. */
+    private boolean scheduled = false;
+
+    /** The number of updates published. */
+    private AtomicLong updates = new AtomicLong();
+
+    /** The number of changes folded into the published updates. */
+    private AtomicLong changes = new AtomicLong();
+
+    /** The largest number of changes folded into one update. */
+    private volatile int largestUpdate = 0;
+
+    /**************************************************************************
+     * Constructs a RosterPublisher with a thread of its own to end windows.
+     * @param window is how long changes are folded together, in milliseconds
+     * @param publication sends the updates
+     *************************************************************************/
+    public RosterPublisher(long window, Publication publication) {
+        this.window = window;
+        this.publication = publication;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "roster-publisher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**************************************************************************
+     * Records that a Client joined or left, opening a window if none is.
+     * @param client is the name of the Client
+     * @param joinedRoom is true if the Client joined, false if it left
+     *************************************************************************/
+    public synchronized void changed(String client, boolean joinedRoom) {
+        Change change = pending.get(client);
+        if (change == null) {
+            pending.put(client, new Change(joinedRoom));
+        } else {
+            change.lastJoined = joinedRoom;
+        }
+        if (joinedRoom) {
+            joined.add(client);
+        } else {
+            joined.remove(client);
+        }
+        ++pendingChanges;
+        if (!scheduled) {
+            scheduled = true;
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**************************************************************************
+     * Ends the open window and publishes its changes, if any are left once
+     * they are folded.
+     *************************************************************************/
+    private void flush() {
+        Map<String,Change> folded;
+        Set<String> newClients;
+        int count;
+        synchronized (this) {
+            folded = pending;
+            newClients = joined;
+            count = pendingChanges;
+            pending = new LinkedHashMap<String,Change>();
+            joined = new HashSet<String>();
+            pendingChanges = 0;
+            scheduled = false;
+        }
+        List<String> published = new ArrayList<String>();
+        for (Map.Entry<String,Change> entry: folded.entrySet()) {
+            Change change = entry.getValue();
+            if (!change.firstJoined)
+                published.add("-" + entry.getKey());
+            if (change.lastJoined)
+                published.add("+" + entry.getKey());
+        }
+        if (published.isEmpty() && newClients.isEmpty())
+            return;
+        try {
+            publication.publish(published, newClients);
+        } catch (RuntimeException e) {
+            // Keep the timer thread alive for the next window
+            System.err.println("Couldn't publish the roster.");
+            e.printStackTrace();
+            return;
+        }
+        updates.incrementAndGet();
+        changes.addAndGet(count);
+        if (count > largestUpdate)
+            largestUpdate = count;
+        if (Log.enabled(Log.ROSTER, Log.DEBUG)) {
+            Log.debug(Log.ROSTER, "Folded " + count + " roster changes into "
+                + "one update.");
+        }
+    }
+
+    /** Gives the number of updates published. */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /** Gives the number of changes folded into the published updates. */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    /** Gives the largest number of changes folded into one update. */
+    public int getLargestUpdate() {
+        return largestUpdate;
+    }
+
+}
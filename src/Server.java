@@ -1,21 +1,29 @@
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.io.DataInputStream;
 import java.io.InputStream;
 
-import java.nio.channels.IllegalBlockingModeException;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.crypto.SecretKey;
 import javax.crypto.KeyGenerator;
@@ -27,6 +35,7 @@ import javax.crypto.AEADBadTagException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
@@ -34,19 +43,17 @@ import java.security.PublicKey;
 import java.security.PrivateKey;
 import java.security.KeyFactory;
 import java.security.spec.*;
-import java.security.SecureRandom;
 
 // import java.lang.IllegalStateException;
 
-
-import javax.xml.bind.DatatypeConverter;
-
 /******************************************************************************
  * A simple chat server.
  * Accepts connections from multiple clients.
  * Sends encrypted packets to other clients.
  * Supports some administrative actions (kicking other users).
  * Uses the port # 48700 and sets up on whatever machine is running it.
+ * Runs a thread per client (a virtual one with --mode=virtual) or, with
+ * --mode=nio, a ReactorServer.
  * @author Frank Derry Wanye
  * @author Gloire Rubambiza
  * @since 10/27/2016
@@ -70,8 +77,8 @@ public class Server {
      * - Re-encrypt messages and send them to a destination
      */
      
-    /** The port number used by the server */
-    private static final int port = 48700;
+    /** How long an acceptor pauses after failing to accept, in ms. */
+    private static final long ACCEPT_PAUSE = 10;
     
     /* 
      * A list of codes to be inserted in front of the message, so the Server
@@ -107,6 +114,24 @@ public class Server {
     /** The iv code - sends initialization vector to Server. */
     private static final String IV = "@ivec";
     
+    /** The group key code - gives a Client the new group key. */
+    private static final String GROUP_KEY = "@gkey";
+    
+    /** The group broadcast code - a broadcast encrypted with the group key. */
+    private static final String GROUP_BROADCAST = "@gbct";
+    
+    /** The pair key code - gives two Clients a key of their own. */
+    private static final String PAIR_KEY = "@pair";
+    
+    /** The pair send code - a message encrypted with a pair key. */
+    private static final String PAIR_SEND = "@psnd";
+    
+    /** The roster delta code - tells a Client who joined or left. */
+    private static final String ROSTER_DELTA = "@rdlt";
+    
+    /** The ticket code - gives a Client a ticket to resume its session. */
+    private static final String TICKET = "@tckt";
+    
     /** The public key used for RSA encryption. */
     private static PublicKey publicKey;
     
@@ -114,11 +139,11 @@ public class Server {
     private static PrivateKey privateKey;
     
     /** 
-     * A map using client names as keys and client output streams as values.
+     * A map using client names as keys and outbound frame queues as values.
      * Contains all the currently connected clients.
      */
-    private static ConcurrentHashMap<String,DataOutputStream> clientOutputs = 
-        new ConcurrentHashMap<String,DataOutputStream>();
+    private static ConcurrentHashMap<String,OutboundQueue> clientOutputs = 
+        new ConcurrentHashMap<String,OutboundQueue>();
         
     /**
      * A map using client names as keys and symmetric keys as values. 
@@ -133,6 +158,127 @@ public class Server {
      */
     private static ConcurrentHashMap<String,IvParameterSpec> clientIVs = 
         new ConcurrentHashMap<String,IvParameterSpec>();
+        
+    /**
+     * A map using client names as keys and frame formats (Frames.LEGACY or
+     * Frames.COMPACT) as values. Contains all the currently connected clients.
+     */
+    private static ConcurrentHashMap<String,Integer> clientFormats = 
+        new ConcurrentHashMap<String,Integer>();
+    
+    /**
+     * A map using client names as keys and the cipher suites they use as
+     * values. Contains all the currently connected clients.
+     */
+    private static ConcurrentHashMap<String,CipherSuite> clientSuites = 
+        new ConcurrentHashMap<String,CipherSuite>();
+    
+    /** The supported cipher suites, the preferred one first. */
+    private static List<CipherSuite> suitePreference = CipherSuite.supported();
+    
+    /**
+     * A map using the names of the Clients whose chat messages are 
+     * compressed as keys, and their codecs as values.
+     */
+    private static ConcurrentHashMap<String,Compression> clientCompression =
+        new ConcurrentHashMap<String,Compression>();
+    
+    /** The codecs chat messages may be compressed with, empty for none. */
+    private static List<Compression> compressionPreference = 
+        new ArrayList<Compression>();
+    
+    /** The size below which chat messages are sent as they are. */
+    private static int compressThreshold = Compression.DEFAULT_THRESHOLD;
+    
+    /**
+     * A map using the names of the Clients that use the group key as keys.
+     * The values are not used.
+     */
+    private static ConcurrentHashMap<String,Boolean> groupMembers = 
+        new ConcurrentHashMap<String,Boolean>();
+    
+    /**
+     * A map using the names of the Clients waiting for their first group key
+     * as keys. They become members, and are sent the key, at the next 
+     * rotation; until then they are sent broadcasts one by one. The values
+     * are not used.
+     */
+    private static ConcurrentHashMap<String,Boolean> joiningMembers = 
+        new ConcurrentHashMap<String,Boolean>();
+    
+    /** The shared broadcast key, or null if group keys are turned off. */
+    private static GroupKeys groupKeys = null;
+    
+    /** How long group key rotations are folded together, in milliseconds. */
+    private static long rotationWindow = 0;
+    
+    /** 
+     * Ends the rotation windows, or null if the group key is rotated right
+     * away on every change.
+     */
+    private static ScheduledExecutorService rotationTimer = null;
+    
+    /** True while a rotation is scheduled. */
+    private static AtomicBoolean rotationScheduled = new AtomicBoolean();
+    
+    /**
+     * A map using the names of the Clients that accept pair keys as keys.
+     * The values are not used.
+     */
+    private static ConcurrentHashMap<String,Boolean> pairKeyClients = 
+        new ConcurrentHashMap<String,Boolean>();
+    
+    /**
+     * A map using the pairs of Clients that were given a pair key, named as
+     * by pairName(), as keys. The values are not used; the pair keys 
+     * themselves are not kept by the Server.
+     */
+    private static ConcurrentHashMap<String,Boolean> keyedPairs = 
+        new ConcurrentHashMap<String,Boolean>();
+    
+    /** Makes the pair keys, or null if pair keys are turned off. */
+    private static KeyGenerator pairKeyGenerator = null;
+    
+    /** Issues resumption tickets, or null if tickets are turned off. */
+    private static SessionTickets sessionTickets = null;
+    
+    /** 
+     * The ECDSA key the Server signs its half of a key agreement with, or 
+     * null if key agreement is turned off.
+     */
+    private static PrivateKey identityKey = null;
+    
+    /**
+     * A map using the names of the Clients that are sent roster deltas 
+     * instead of the whole client list as keys. The values are not used.
+     */
+    private static ConcurrentHashMap<String,Boolean> rosterDeltaClients = 
+        new ConcurrentHashMap<String,Boolean>();
+    
+    /** The number of roster changes published so far. */
+    private static int rosterVersion = 0;
+    
+    /** Publishes roster changes one at a time. */
+    private static final Object rosterLock = new Object();
+    
+    /**
+     * Folds the roster changes made within a short window into one update.
+     * Null means every change is published on its own, right away.
+     */
+    private static RosterPublisher rosterPublisher = null;
+    
+    /**
+     * Creates the threads that read from and write to each Client in thread
+     * and virtual thread mode.
+     */
+    private static ThreadFactory threadFactory = 
+        Executors.defaultThreadFactory();
+    
+    /**
+     * Re-encrypts messages sent to many Clients in parallel batches. Null
+     * means every recipient is handled in turn on the sending Client's thread.
+     */
+    private static FanOut fanOut = null;
     
     /**************************************************************************
      * Generates an initialization vector for message encryption.
@@ -140,10 +286,7 @@ public class Server {
      *************************************************************************/
     private static IvParameterSpec generateIV() {
         // Generate an initialization vector
-        SecureRandom r = new SecureRandom();
-    	byte ivbytes[] = new byte[16];
-    	r.nextBytes(ivbytes);
-    	return new IvParameterSpec(ivbytes);
+        return new IvParameterSpec(IvSource.next());
     }
     
     /**************************************************************************
@@ -153,14 +296,16 @@ public class Server {
      * @param secretKey is the secret key used to encrypt the plaintext data
      * @param iv is the initialization vector used to initialize the encryption
      * cipher
+     * @param suite is the cipher suite of the Client
      * @return a byte array containing the encrypted data
      *************************************************************************/
     private static byte[] encrypt(byte[] plainText, SecretKey secretKey, 
-        IvParameterSpec iv) {
+        IvParameterSpec iv, CipherSuite suite) {
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            c.init(Cipher.ENCRYPT_MODE, secretKey, iv);
+            long start = System.nanoTime();
+            Cipher c = suite.init(Cipher.ENCRYPT_MODE, secretKey, iv.getIV());
             byte[] cipherText = c.doFinal(plainText);
+            ServerMetrics.encrypted(start);
             return cipherText;
         } catch (NoSuchAlgorithmException e) {
             System.err.println("Specified algorithm doesn't exist.");
@@ -199,54 +344,57 @@ public class Server {
     }
     
     /**************************************************************************
-     * Decrypts ciphertext into plaintext, given a provided secret key and 
-     * IvParameterSpec.
-     * @param cipherText is the ciphertext to be decrypted
+     * Decrypts the ciphertext of a message into plaintext, given a provided
+     * secret key, using the IV from the message's header. The ciphertext is
+     * read where it is, without copying it out first.
+     * @param message is the message, whose ciphertext starts after its header
+     * @param size is the size of the ciphertext
      * @param secretKey is the secret key used to decrypt the ciphertext data
-     * @param iv is the initialization vector used to initialize the decryption
-     * cipher
-     * @return a byte array containing the decrypted data
+     * @param suite is the cipher suite of the Client
+     * @return a byte array containing the decrypted data, or null if the
+     * message can't be decrypted or wasn't authentic
      *************************************************************************/
-    private static byte[] decrypt(byte[] cipherText, SecretKey secretKey, 
-        IvParameterSpec iv) {
+    private static byte[] decrypt(byte[] message, int size, 
+        SecretKey secretKey, CipherSuite suite) {
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            c.init(Cipher.DECRYPT_MODE, secretKey, iv);
-            byte[] plainText = c.doFinal(cipherText);
+            long start = System.nanoTime();
+            Cipher c = suite.init(Cipher.DECRYPT_MODE, secretKey, message, 5);
+            byte[] plainText = c.doFinal(message, 51, size);
+            ServerMetrics.decrypted(start);
             return plainText;
         } catch (NoSuchAlgorithmException e) {
             System.err.println("Specified algorithm doesn't exist.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (NoSuchPaddingException e) {
             System.err.println("Specified padding doesn't exist.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (InvalidKeyException e) {
             System.err.println("The encryption key doesn't exist.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (InvalidAlgorithmParameterException e) {
             System.err.println("The algorithm parameter isn't valid.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (IllegalStateException e) {
             System.err.println("The cipher is in the wrong state.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (IllegalBlockSizeException e) {
             System.err.println("Unable to process input data.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (AEADBadTagException e) {
             System.err.println("Authentication tag doesn't match calculated "
                 + "value.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         } catch (BadPaddingException e) {
             System.err.println("Data not bounded by the appropriate padding.");
             e.printStackTrace();
-            return cipherText;
+            return null;
         }
     }
     
@@ -258,7 +406,7 @@ public class Server {
      *************************************************************************/
     private static byte[] RSAencrypt(byte[] plainText) {
         try {
-            Cipher c = Cipher.getInstance(
+            Cipher c = CipherCache.get(
                 "RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
             c.init(Cipher.ENCRYPT_MODE, publicKey);
             byte[] cipherText = c.doFinal(plainText);
@@ -304,7 +452,7 @@ public class Server {
      *************************************************************************/
     private static byte[] RSAdecrypt(byte[] cipherText) {
         try {
-            Cipher c = Cipher.getInstance(
+            Cipher c = CipherCache.get(
                 "RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
             c.init(Cipher.DECRYPT_MODE, privateKey);
             byte[] plainText = c.doFinal(cipherText);
@@ -362,6 +510,20 @@ public class Server {
         }
     }
     
+    /**************************************************************************
+     * Sets up the server's identity key, which signs its half of a key 
+     * agreement. Without it, Clients fall back to the RSA key transport.
+     * @param filename is the local file containing the private key
+     *************************************************************************/
+    private static void setIdentityKey(String filename) {
+        try {
+            identityKey = KeyExchange.readPrivateKey(filename);
+        } catch (Exception e) {
+            System.err.println("No identity key in " + filename 
+                + ", Clients will use RSA.");
+        }
+    }
+    
     /**************************************************************************
      * Sets up the server's public key. Used for communicating with all clients
      * @param filename is the local file containing the public key
@@ -382,266 +544,1071 @@ public class Server {
         }
     }
     
-     /**************************************************************************
-     * Uses RSA to encrypt plaintext data. Used here only for establishing a 
-     * private key pair between client and server.
-     * @param plainText is a byte array containing the plaintext to be encrypted
-     * @return a byte array containing the encrypted ciphertext
+    /**************************************************************************
+     * Recovers a Client's symmetric key from the RSA-encrypted secret it sends
+     * when it first connects.
+     * @param encryptedSecret is the 256-byte encrypted secret
+     * @return the client's secret key as a SecretKey object
      *************************************************************************/
-    public static void main(String[] args) {
-        
-        // Create the server's socket
-        ServerSocket serverSocket = null;
-        try {
-            serverSocket = new ServerSocket(port);
-        } catch (IOException e) {
-            System.err.println("Couldn't create server socket.");
-            e.printStackTrace();
-            System.exit(1);
-        } catch (SecurityException e) {
-            System.err.println("Couldn't create server socket.");
-            e.printStackTrace();
-            System.exit(1);
-        } catch (IllegalArgumentException e) {
-            System.err.println("Couldn't create server socket.");
-            e.printStackTrace();
-            System.exit(1);
+    static SecretKey unwrapSecretKey(byte[] encryptedSecret) {
+        return new SecretKeySpec(RSAdecrypt(encryptedSecret), "AES");
+    }
+    
+    /**************************************************************************
+     * Establishes a Client's symmetric key from the block it sends when it
+     * first connects: either its half of a key agreement, or its key 
+     * encrypted with the Server's public key.
+     * @param secret is the 256-byte block sent by the Client
+     * @return the key, with the Server's half of the key agreement to send 
+     * back if there is one, or null if the block is malformed
+     *************************************************************************/
+    static KeyExchange.Result establishKey(byte[] secret) {
+        if (KeyExchange.isOffer(secret))
+            return KeyExchange.respond(secret, identityKey);
+        return new KeyExchange.Result(unwrapSecretKey(secret), null);
+    }
+    
+    /**************************************************************************
+     * Checks whether the Server can establish a key from the block a Client
+     * sent. It can't agree on one if key agreement is turned off, or if the
+     * Client chose a group this JVM doesn't have.
+     * @param secret is the 256-byte block sent by the Client, which isn't a
+     * resumption block
+     * @return true if the block can be passed to establishKey()
+     *************************************************************************/
+    static boolean acceptsKey(byte[] secret) {
+        if (!KeyExchange.isOffer(secret))
+            return true;
+        return identityKey != null 
+            && KeyExchange.isSupported(KeyExchange.group(secret));
+    }
+    
+    /**************************************************************************
+     * Obtains the client name from the line a Client sends when it connects.
+     * The name may be followed by tab-separated options, such as frames=2.
+     * @param hello is the line sent by the Client, without the newline
+     * @return the client's name
+     *************************************************************************/
+    static String helloName(String hello) {
+        int tab = hello.indexOf('\t');
+        return (tab == -1 ? hello : hello.substring(0, tab)).trim();
+    }
+    
+    /**************************************************************************
+     * Obtains the frame format a Client asked for when it connected.
+     * @param hello is the line sent by the Client, without the newline
+     * @return Frames.COMPACT if the Client asked for it, Frames.LEGACY if not
+     *************************************************************************/
+    static int helloFormat(String hello) {
+        for (String option: hello.split("\t")) {
+            if (option.trim().equals("frames=2"))
+                return Frames.COMPACT;
         }
-        
-        // Set up the private and public keys
-        setPrivateKey("RSApriv.der");
-        setPublicKey("RSApub.der");
-        
-        // Accepts client connections
-        while (true) {
-            System.out.println("Waiting for a client to connect.");
-            Socket socket = null;
-            try {
-                socket = serverSocket.accept();
-            } catch (IOException e) {
-                System.err.println("Couldn't accept client socket.");
-                e.printStackTrace();
-                System.exit(1);
-            } catch (SecurityException e) {
-                System.err.println("Couldn't accept client socket.");
-                e.printStackTrace();
-                System.exit(1);
-            } catch (IllegalArgumentException e) {
-                System.err.println("Couldn't accept client socket.");
-                e.printStackTrace();
-                System.exit(1);
-            } catch (IllegalBlockingModeException e) {
-                System.err.println("Couldn't accept client socket.");
-                e.printStackTrace();
-                System.exit(1);
-            }
-            ConnectionHandler myHandler = new ConnectionHandler(socket);
-            Thread thread = new Thread(myHandler);
-            myHandler.setThread(thread);
-            thread.start();
+        return Frames.LEGACY;
+    }
+    
+    /**************************************************************************
+     * Checks whether a Client asked to use the group key when it connected.
+     * Only Clients with compact frames can, since legacy frames have no code
+     * for group messages.
+     * @param hello is the line sent by the Client, without the newline
+     * @return true if the Client asked for the group key
+     *************************************************************************/
+    static boolean helloGroupKeys(String hello) {
+        if (helloFormat(hello) != Frames.COMPACT)
+            return false;
+        for (String option: hello.split("\t")) {
+            if (option.trim().equals("groupkeys=1"))
+                return true;
         }
-        
+        return false;
     }
     
     /**************************************************************************
-     * Private class handles connections from clients.
+     * Checks whether a Client asked for pair keys when it connected. Only 
+     * Clients with compact frames can, since legacy frames have no code for
+     * end-to-end messages.
+     * @param hello is the line sent by the Client, without the newline
+     * @return true if the Client asked for pair keys
      *************************************************************************/
-    private static class ConnectionHandler implements Runnable {
-        
-        /** The client socket whose connection this class is handling */
-        private static Socket clientSocket;
-        
-        /** The thread on which this connection is running */
-        private Thread thread;
-        
-        /**********************************************************************
-         * Constructs a ConnectionHandler class with the given client socket.
-         *********************************************************************/
-        public ConnectionHandler(Socket clientSocket) {
-            this.clientSocket = clientSocket;
+    static boolean helloPairKeys(String hello) {
+        if (helloFormat(hello) != Frames.COMPACT)
+            return false;
+        for (String option: hello.split("\t")) {
+            if (option.trim().equals("pairkeys=1"))
+                return true;
         }
-        
-        /**********************************************************************
-         * Sets the value of this thread variable.
-         *********************************************************************/
-        public void setThread(Thread thread) {
-            this.thread = thread;
+        return false;
+    }
+    
+    /**************************************************************************
+     * Checks whether a Client asked for resumption tickets when it 
+     * connected. Only Clients with compact frames can, since legacy frames 
+     * have no code for them.
+     * @param hello is the line sent by the Client, without the newline
+     * @return true if the Client asked for tickets
+     *************************************************************************/
+    static boolean helloTickets(String hello) {
+        if (helloFormat(hello) != Frames.COMPACT)
+            return false;
+        for (String option: hello.split("\t")) {
+            if (option.trim().equals("tickets=1"))
+                return true;
         }
-        
-        /**********************************************************************
-         * Sends a list of all currently connected clients to all Clients.
-         *********************************************************************/
-        private static void sendClientList() {
-            
-            // Get all currently connected client names
-            String clientList = "";
-            for (Enumeration<String> clients = clientOutputs.keys(); 
-                 clients.hasMoreElements(); ) {
-                clientList += clients.nextElement() + ",";         
-            }
-            byte[] buffer = new byte[1024 + 51];
-            System.arraycopy(CLIENTLIST.getBytes(), 0, buffer, 0, 5);
-            for (Enumeration<String> clients = clientOutputs.keys(); 
-                 clients.hasMoreElements(); ) {
-                String client = clients.nextElement();
-                byte[] iv = generateIV().getIV();
-                byte[] encoded = encrypt(clientList.getBytes(), 
-                    clientKeys.get(client), new IvParameterSpec(iv));
-                byte[] size = new byte[10];
-                try {
-                    size = String.format("%10d", encoded.length).getBytes(
-                        "ISO-8859-1");
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                    System.exit(1);
+        return false;
+    }
+    
+    /**************************************************************************
+     * Checks whether a Client asked for roster deltas when it connected.
+     * Only Clients with compact frames can, since legacy frames have no code
+     * for them.
+     * @param hello is the line sent by the Client, without the newline
+     * @return true if the Client asked for roster deltas
+     *************************************************************************/
+    static boolean helloRosterDeltas(String hello) {
+        if (helloFormat(hello) != Frames.COMPACT)
+            return false;
+        for (String option: hello.split("\t")) {
+            if (option.trim().equals("rosterdeltas=1"))
+                return true;
+        }
+        return false;
+    }
+    
+    /**************************************************************************
+     * Obtains the compression codecs a Client listed when it connected.
+     * @param hello is the line sent by the Client, without the newline
+     * @return the names of the codecs, empty if the Client listed none
+     *************************************************************************/
+    static List<String> helloCompression(String hello) {
+        List<String> codecs = new ArrayList<String>();
+        for (String option: hello.split("\t")) {
+            option = option.trim();
+            if (option.startsWith("compress=")) {
+                for (String codec: option.substring(9).split(",")) {
+                    codecs.add(codec.trim());
                 }
-                System.arraycopy(iv, 0, buffer, 5, 16);
-                System.arraycopy(size, 0, buffer, 41, 10);
-                System.arraycopy(encoded, 0, buffer, 51, encoded.length);
-                try {
-                    clientOutputs.get(client).write(buffer);
-                } catch (IOException e) {
-                    System.err.println("Could not send client list to: " + 
-                        client);
-                    e.printStackTrace();
-                } 
             }
-            
-            System.out.println("Sent clientList to all clients.");
-            
         }
-        
-        @Override
-        public void run() {
-            
-            DataInputStream secretInput = null;
-            try {
-                secretInput = new DataInputStream(
-                    clientSocket.getInputStream());
-            } catch (IOException e) {
-                System.err.println("Couldn't establish D.O.Stream.");
-                e.printStackTrace();
-                System.exit(1);
-            }
-            
-            // Receive and decrypt the symmetric key from the Client
-            SecretKey clientKey = getSecretKey(secretInput);
-            
-            //IvParameterSpec iv = getIV(secretInput);
-            
-            BufferedReader input = null;
-            try {
-                input = new BufferedReader(new InputStreamReader(
-                    clientSocket.getInputStream()));
-            } catch (IOException e) {
-                System.err.println("Couldn't create a reader for client "
-                    + "socket.");
-                e.printStackTrace();
-                System.exit(1);
-            }
-            
-            DataOutputStream output = null;
-            try {
-                output = new DataOutputStream(clientSocket.getOutputStream());
-            } catch (IOException e) {
-                System.err.println("Couldn't create output stream for client "
-                    + "socket.");
-                e.printStackTrace();
-                System.exit(1);
-            }
-            
-            String clientName = getClientName(input);
-            
-            System.out.println("Client " + clientName + " connected to the "
-                + "server.");
-            
-            clientOutputs.put(clientName, output);
-            clientKeys.put(clientName, clientKey);
-            //clientIVs.put(clientName, iv);
-            
-            sendClientList();
-            
-            try {
-                secretInput = new DataInputStream(
-                    clientSocket.getInputStream());
-            } catch (IOException e) {
-                System.err.println("Couldn't establish D.O.Stream.");
-                e.printStackTrace();
-                System.exit(1);
-            }
-            
-            while (true) {
-                byte[] message = receiveBytes(secretInput, clientName);
-                String[] parsedMessage = parseMessage(message);
-                String command = parsedMessage[0];
-                String receiver = parsedMessage[1].trim();
-                String sender = parsedMessage[2].trim();
-                String size = parsedMessage[3].trim();
-                
-                // Perform operations based on the command from the Client
-                if (command.equals(BROADCAST)) {
-                    broadcast(message, sender, size);
-                } else if (command.equals(SEND)) {
-                    send(message, sender, receiver, size);
-                } else if (command.equals(KICK)) {
-                    kick(message, sender, size);
-                } else if (command.equals(EXIT)) {
-                    exit(message, sender, clientSocket);
-                    // Completes while loop and ends this thread
-                    break;
-                } // if statement
-                
-            }  // while loop 
-            
-            // clientOutputs.remove(clientName);
-            // clientKeys.remove(clientName);
-            // clientIVs.remove(clientName);
-            // try {
-            //     clientSocket.close();
-            // } catch (IOException e) {
-            //     System.err.println("Couldn't close client socket.");
-            //     e.printStackTrace();
-            // }
-            try {
-                secretInput.close();
-                input.close();
-            } catch (IOException e) {
-                System.err.println("Couldn't close input streams.");
-                e.printStackTrace();
-                System.exit(1);
+        return codecs;
+    }
+    
+    /**************************************************************************
+     * Obtains the cipher suites a Client listed when it connected.
+     * @param hello is the line sent by the Client, without the newline
+     * @return the names of the suites, empty if the Client listed none
+     *************************************************************************/
+    static List<String> helloSuites(String hello) {
+        List<String> suites = new ArrayList<String>();
+        for (String option: hello.split("\t")) {
+            option = option.trim();
+            if (option.startsWith("suites=")) {
+                for (String suite: option.substring(7).split(",")) {
+                    suites.add(suite.trim());
+                }
             }
-            System.out.println("Client has exited gracefully: " + clientName);
         }
-            
-        /**********************************************************************
-         * Obtains client's name from a client message to the server.
-         * @param input is the BufferedReader that reads data from the client
-         * @return a String containing the client name
-         **********************************************************************/
-        private static String getClientName(BufferedReader input) {
-            String clientName = receiveMessage(input);
-            while (clientName.isEmpty()) {
-                System.err.println(
-                    "Failed in getting the client name. Retrying.");
-                clientName = receiveMessage(input);
-            }
-            return clientName;
+        return suites;
+    }
+    
+    /**************************************************************************
+     * Picks the preferred cipher suite among those a Client supports.
+     * @param offered are the names of the suites the Client supports
+     * @return the chosen suite, AES-CBC if there is none in common
+     *************************************************************************/
+    private static CipherSuite chooseSuite(List<String> offered) {
+        for (CipherSuite suite: suitePreference) {
+            if (offered.contains(suite.getName()))
+                return suite;
         }
-        
-        /**********************************************************************
-         * Obtains the secret key from a client message to the server.
-         * @param input is the BufferedReader that reads data from the client
-         * @return the client's secret key as a SecretKey object
+        return CipherSuite.AES_CBC;
+    }
+    
+    /**************************************************************************
+     * Picks the preferred compression codec among those a Client supports.
+     * @param offered are the names of the codecs the Client supports
+     * @return the chosen codec, or null if there is none in common
+     *************************************************************************/
+    private static Compression chooseCompression(List<String> offered) {
+        for (Compression codec: compressionPreference) {
+            if (offered.contains(codec.getName()))
+                return codec;
+        }
+        return null;
+    }
+    
+    /**************************************************************************
+     * Registers a newly connected Client and sends the updated client list to
+     * all Clients. A Client that listed cipher suites is first told which one
+     * was chosen, in a @pkey message that comes before anything else, along
+     * with the compression codec chosen for its chat messages, if any. A
+     * session still registered under the same name is replaced.
+     * @param hello is the line sent by the Client, without the newline
+     * @param output is the queue through which the Client is sent messages
+     * @param clientKey is the Client's symmetric key
+     *************************************************************************/
+    static void addClient(String hello, OutboundQueue output, 
+        SecretKey clientKey) {
+        String clientName = helloName(hello);
+        int format = helloFormat(hello);
+        List<String> offered = helloSuites(hello);
+        CipherSuite suite = chooseSuite(offered);
+        Compression codec = offered.isEmpty() 
+            ? null : chooseCompression(helloCompression(hello));
+        if (!offered.isEmpty()) {
+            String choice = suite.getName();
+            if (codec != null) {
+                choice += "\tcompress=" + codec.getName() + "\tthreshold=" 
+                    + compressThreshold;
+            }
+            byte[] name = choice.getBytes();
+            byte[] message = new byte[51 + name.length];
+            System.arraycopy(KEY.getBytes(), 0, message, 0, 5);
+            System.arraycopy(String.format("%10d", name.length).getBytes(), 
+                0, message, 41, 10);
+            System.arraycopy(name, 0, message, 51, name.length);
+            output.offer(frameFor(format, message), true);
+        }
+        // A Client that came back before its old connection was seen to end
+        // takes over the name; the old session is forgotten first, and its
+        // connection closed once it has been sent what was queued for it
+        OutboundQueue previous = clientOutputs.remove(clientName);
+        if (previous != null) {
+            forgetSession(clientName);
+            previous.close();
+        }
+        // Pair keys given to an earlier session with this name were sent
+        // under its old key, so they are given again
+        forgetPairKeys(clientName);
+        // The key goes in first so that nobody sends to a client without one
+        clientKeys.put(clientName, suite.cipherKey(clientKey));
+        clientSuites.put(clientName, suite);
+        if (codec != null) {
+            clientCompression.put(clientName, codec);
+        } else {
+            clientCompression.remove(clientName);
+        }
+        clientFormats.put(clientName, format);
+        clientOutputs.put(clientName, output);
+        boolean groupMember = groupKeys != null && helloGroupKeys(hello) 
+            && offered.contains(groupKeys.getSuite().getName());
+        if (groupMember) {
+            joiningMembers.put(clientName, Boolean.TRUE);
+            ConnectionHandler.scheduleRotation();
+        }
+        if (pairKeyGenerator != null && helloPairKeys(hello)
+            && offered.contains(suitePreference.get(0).getName()))
+            pairKeyClients.put(clientName, Boolean.TRUE);
+        if (helloRosterDeltas(hello))
+            rosterDeltaClients.put(clientName, Boolean.TRUE);
+        ConnectionHandler.rosterChanged(clientName, true);
+        if (sessionTickets != null && helloTickets(hello))
+            ConnectionHandler.sendTicket(clientName, clientKey);
+    }
+    
+    /**************************************************************************
+     * Redeems the ticket a Client sent to resume its session, in place of 
+     * its RSA-encrypted secret key.
+     * @param block is the resumption block sent by the Client
+     * @param hello is the line sent by the Client, without the newline
+     * @return the Client's secret key, or null if tickets are turned off or
+     * the ticket can't be redeemed
+     *************************************************************************/
+    static SecretKey resume(byte[] block, String hello) {
+        if (sessionTickets == null)
+            return null;
+        return sessionTickets.redeem(block, helloName(hello));
+    }
+    
+    /**************************************************************************
+     * Builds the frame telling a Client that its ticket or its key agreement
+     * was turned down, after which it sends its RSA-encrypted secret key and
+     * its name again.
+     * @param secret is the block sent by the Client
+     * @param hello is the line sent by the Client, without the newline
+     * @return the frame, a bare header with the block's code
+     *************************************************************************/
+    static byte[] keyTurnedDown(byte[] secret, String hello) {
+        byte[] message = new byte[51];
+        System.arraycopy(secret, 0, message, 0, 5);
+        System.arraycopy(String.format("%10d", 0).getBytes(), 0, message, 
+            41, 10);
+        return frameFor(helloFormat(hello), message);
+    }
+    
+    /**************************************************************************
+     * Builds the frame giving a Client the Server's half of a key agreement.
+     * It goes out before anything else, in plaintext.
+     * @param reply is the Server's half, from establishKey()
+     * @param hello is the line sent by the Client, without the newline
+     * @return the frame, an @ecdh message
+     *************************************************************************/
+    static byte[] keyReply(byte[] reply, String hello) {
+        byte[] message = new byte[51 + reply.length];
+        System.arraycopy(KeyExchange.MAGIC.getBytes(), 0, message, 0, 5);
+        System.arraycopy(String.format("%10d", reply.length).getBytes(), 0,
+            message, 41, 10);
+        System.arraycopy(reply, 0, message, 51, reply.length);
+        return frameFor(helloFormat(hello), message);
+    }
+    
+    /**************************************************************************
+     * Forgets a Client whose connection was lost without an exit message, and
+     * sends the updated client list to the remaining Clients. Does nothing if
+     * the name has since been taken over by another connection.
+     * @param clientName is the name of the disconnected Client
+     * @param output is the queue that belonged to the disconnected Client
+     *************************************************************************/
+    static void dropClient(String clientName, OutboundQueue output) {
+        if (clientOutputs.remove(clientName, output)) {
+            forgetSession(clientName);
+            ConnectionHandler.rosterChanged(clientName, false);
+        }
+    }
+    
+    /**************************************************************************
+     * Forgets everything kept for a Client's session but its queue, which
+     * the caller has already removed.
+     * @param clientName is the name of the Client
+     *************************************************************************/
+    private static void forgetSession(String clientName) {
+        clientKeys.remove(clientName);
+        clientSuites.remove(clientName);
+        clientCompression.remove(clientName);
+        clientFormats.remove(clientName);
+        joiningMembers.remove(clientName);
+        if (groupMembers.remove(clientName) != null)
+            ConnectionHandler.scheduleRotation();
+        forgetPairKeys(clientName);
+        rosterDeltaClients.remove(clientName);
+    }
+    
+    /**************************************************************************
+     * Forgets which Clients share a pair key with a Client that left or whose
+     * key changed, so that the next session with the name is given new pair
+     * keys. The pairs are cleared even if the name wasn't taking pair keys,
+     * in case a key was being sent to it as it left.
+     * @param clientName is the name of the Client
+     *************************************************************************/
+    private static void forgetPairKeys(String clientName) {
+        pairKeyClients.remove(clientName);
+        for (String pair: keyedPairs.keySet()) {
+            if (pair.startsWith(clientName + "\t") 
+                || pair.endsWith("\t" + clientName))
+                keyedPairs.remove(pair);
+        }
+    }
+    
+    /**************************************************************************
+     * Names a pair of Clients the same way whatever their order.
+     * @param first is the name of one Client
+     * @param second is the name of the other Client
+     * @return the name of the pair
+     *************************************************************************/
+    private static String pairName(String first, String second) {
+        return first.compareTo(second) < 0 
+            ? first + "\t" + second : second + "\t" + first;
+    }
+    
+    /**************************************************************************
+     * Reports that accepting a connection failed, and pauses the acceptor
+     * for a moment so that running out of file descriptors doesn't turn
+     * into a busy loop. The acceptor then carries on.
+     * @param e is why accepting failed
+     *************************************************************************/
+    static void acceptFailed(Exception e) {
+        ServerMetrics.acceptFailed();
+        Log.warn(Log.NET, "Couldn't accept client socket: " + e);
+        try {
+            Thread.sleep(ACCEPT_PAUSE);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**************************************************************************
+     * Gives the queues of the connected Clients, for the metrics.
+     * @return a live view of the queues
+     *************************************************************************/
+    static Collection<OutboundQueue> outboundQueues() {
+        return clientOutputs.values();
+    }
+    
+    /**************************************************************************
+     * Performs the operation requested by a single message from a Client.
+     * @param message is the full message received from the Client
+     * @return true if the Client exited, false otherwise
+     *************************************************************************/
+    static boolean handleMessage(byte[] message) {
+        return ConnectionHandler.dispatch(message);
+    }
+    
+    /**************************************************************************
+     * Queues a message to be written to a single Client. Never waits for the
+     * Client's socket; the Client's writer sends the queued frames in order.
+     * Chat messages may be dropped if the Client has fallen behind; control
+     * messages never are.
+     * @param client is the name of the Client receiving the message
+     * @param message is the encoded message
+     *************************************************************************/
+    private static void writeMessage(String client, byte[] message) {
+        OutboundQueue output = clientOutputs.get(client);
+        Integer format = clientFormats.get(client);
+        if (output == null || format == null) {
+            // The client left meanwhile
+            return;
+        }
+        byte[] frame = frameFor(format, message);
+        output.offer(frame, isControl(message));
+    }
+    
+    /**************************************************************************
+     * Tells whether a message must reach its Client even if the Client has
+     * fallen behind. Only chat messages may be dropped.
+     * @param message is the message
+     * @return true for control messages
+     *************************************************************************/
+    private static boolean isControl(byte[] message) {
+        String command = new String(message, 0, 5);
+        return !command.equals(BROADCAST) && !command.equals(SEND)
+            && !command.equals(PAIR_SEND);
+    }
+    
+    /**************************************************************************
+     * Builds the frame that carries a message in a Client's frame format.
+     * @param format is Frames.LEGACY or Frames.COMPACT
+     * @param message is the encoded message
+     * @return the frame
+     *************************************************************************/
+    private static byte[] frameFor(int format, byte[] message) {
+        if (format == Frames.COMPACT) {
+            return Frames.toCompact(message);
+        }
+        return Frames.toLegacy(message);
+    }
+    
+    /**************************************************************************
+     * Sets up how messages are handled, from the options: the cipher suites,
+     * the queues, and the group keys, pair keys, tickets and roster updates.
+     * Doesn't read any key files or accept any connections. Only call once,
+     * before Clients connect.
+     * @param options are the server options
+     *************************************************************************/
+    static void configure(ServerOptions options) {
+        suitePreference = CipherSuite.rankByThroughput();
+        compressionPreference = options.getCompression();
+        compressThreshold = options.getCompressThreshold();
+        fanOut = new FanOut(options.getFanOutThreads(), 
+            options.getFanOutBatch());
+        OutboundQueue.setLimits(options.getOutboundFrames(), 
+            options.getOutboundBytes(), options.getSlowPolicy());
+        OutboundWriter.setBatching(options.getWriteBatch(), 
+            options.getWriteBudget());
+        HandshakePool.configure(options.getHandshakeThreads(),
+            options.getHandshakeQueue(), options.getHandshakesPerAddress(),
+            options.getHandshakeTimeout());
+        if (options.debugBuffers())
+            BufferPool.enableDebug();
+        if (options.getRosterWindow() > 0) {
+            rosterPublisher = new RosterPublisher(options.getRosterWindow(),
+                new RosterPublisher.Publication() {
+                    @Override
+                    public void publish(List<String> changes, 
+                        Set<String> joined) {
+                        ConnectionHandler.sendRosterChanges(changes, joined);
+                    }
+                });
+            ServerMetrics.register(rosterPublisher);
+        }
+        if (options.getMetricsPort() > 0)
+            ServerMetrics.serve(options.getMetricsPort());
+        if (options.useGroupKeys()) {
+            groupKeys = new GroupKeys(suitePreference.get(0));
+            rotationWindow = options.getRosterWindow();
+        }
+        if (groupKeys != null && rotationWindow > 0) {
+            rotationTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "group-key-rotation");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        if (options.useTickets())
+            sessionTickets = new SessionTickets(options.getTicketLifetime());
+        if (options.usePairKeys()) {
+            try {
+                pairKeyGenerator = KeyGenerator.getInstance("AES");
+                pairKeyGenerator.init(128);
+            } catch (NoSuchAlgorithmException e) {
+                System.err.println("Encryption algorithm doesn't exist.");
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+    
+    /**************************************************************************
+     * Starts the chat server. Runs a platform thread per Client unless the
+     * options select another mode.
+     * @param args are the server options, see ServerOptions
+     *************************************************************************/
+    public static void main(String[] args) {
+        
+        ServerOptions options = ServerOptions.parse(args);
+        configure(options);
+        if (options.useKeyAgreement())
+            setIdentityKey("ECpriv.der");
+        
+        if (options.getMode().equals(ServerOptions.NIO_MODE)) {
+            setPrivateKey("RSApriv.der");
+            setPublicKey("RSApub.der");
+            try {
+                new ReactorServer(options).run();
+            } catch (IOException e) {
+                System.err.println("Couldn't create server socket.");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        
+        // Choose what kind of thread each client runs on
+        if (options.getMode().equals(ServerOptions.VIRTUAL_MODE)) {
+            if (!VirtualThreads.isSupported()) {
+                System.err.println("Virtual threads need Java 21 or newer.");
+                System.exit(1);
+            }
+            threadFactory = VirtualThreads.factory();
+            Log.info(Log.SERVER, "Running clients on virtual threads.");
+        }
+        
+        // Set up the private and public keys
+        setPrivateKey("RSApriv.der");
+        setPublicKey("RSApub.der");
+        
+        // Accept client connections on every address
+        for (InetSocketAddress address: options.getBindAddresses()) {
+            ServerSocket shared = null;
+            for (int i = 0; i < options.getAcceptors(); ++i) {
+                ServerSocket serverSocket = shared;
+                if (serverSocket == null) {
+                    serverSocket = listen(address, options.getBacklog(),
+                        options.reusePort());
+                    if (!options.reusePort())
+                        shared = serverSocket;
+                }
+                new Thread(new Acceptor(serverSocket), "acceptor-" 
+                    + address.getPort() + "-" + i).start();
+            }
+            Log.info(Log.NET, "Listening on " + address + " with " 
+                + options.getAcceptors() + " acceptors.");
+        }
+        
+    }
+    
+    /**************************************************************************
+     * Creates a server socket. Exits if it can't, since the Server is of no
+     * use without it.
+     * @param address is the address to listen on
+     * @param backlog is the most connections waiting to be accepted
+     * @param reusePort is true if other sockets may listen on the same port
+     * @return the bound socket
+     *************************************************************************/
+    private static ServerSocket listen(InetSocketAddress address, int backlog,
+        boolean reusePort) {
+        ServerSocket serverSocket = null;
+        try {
+            serverSocket = new ServerSocket();
+            if (reusePort)
+                ReusePort.enable(serverSocket);
+            serverSocket.bind(address, backlog);
+        } catch (IOException e) {
+            System.err.println("Couldn't create server socket.");
+            e.printStackTrace();
+            System.exit(1);
+        } catch (SecurityException e) {
+            System.err.println("Couldn't create server socket.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return serverSocket;
+    }
+    
+    /**************************************************************************
+     * Accepts client connections on one server socket and starts a thread
+     * for each, until the socket is closed. A failed accept only costs that
+     * connection.
+     *************************************************************************/
+    private static class Acceptor implements Runnable {
+        
+        /** The socket to accept connections on. */
+        private ServerSocket serverSocket;
+        
+        /**********************************************************************
+         * Constructs an Acceptor for a bound server socket.
+         * @param serverSocket is the socket, which may have other Acceptors
+         *********************************************************************/
+        public Acceptor(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+        
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                Log.debug(Log.NET, "Waiting for a client to connect.");
+                Socket socket = null;
+                try {
+                    socket = serverSocket.accept();
+                    ServerMetrics.connectionAccepted();
+                    final Socket admitted = socket;
+                    HandshakePool.Handshake handshake = HandshakePool.admit(
+                        socket.getInetAddress(), new Runnable() {
+                            @Override
+                            public void run() {
+                                // Wakes the handler from its blocking read
+                                close(admitted);
+                            }
+                        });
+                    if (handshake == null) {
+                        close(socket);
+                        continue;
+                    }
+                    ConnectionHandler myHandler = 
+                        new ConnectionHandler(socket, handshake);
+                    Thread thread = threadFactory.newThread(myHandler);
+                    myHandler.setThread(thread);
+                    thread.start();
+                } catch (IOException e) {
+                    acceptFailed(e);
+                } catch (RuntimeException e) {
+                    // Don't let one bad connection stop the acceptor
+                    close(socket);
+                    acceptFailed(e);
+                }
+            }
+        }
+        
+        /**********************************************************************
+         * Closes a socket that couldn't be handled, ignoring any errors.
+         * @param socket is the socket, may be null
+         *********************************************************************/
+        private static void close(Socket socket) {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with this socket
+            }
+        }
+        
+    }
+    
+    /**************************************************************************
+     * Private class handles connections from clients.
+     *************************************************************************/
+    private static class ConnectionHandler implements Runnable {
+        
+        /** The client socket whose connection this class is handling */
+        private Socket clientSocket;
+        
+        /** The thread on which this connection is running */
+        private Thread thread;
+        
+        /** When the connection was accepted, as System.nanoTime() */
+        private long acceptedAt = System.nanoTime();
+        
+        /** The handshake of this connection, admitted by the acceptor */
+        private HandshakePool.Handshake handshake;
+        
+        /**********************************************************************
+         * Constructs a ConnectionHandler class with the given client socket.
+         * @param clientSocket is the socket of the new connection
+         * @param handshake is the connection's admitted handshake
+         *********************************************************************/
+        public ConnectionHandler(Socket clientSocket, 
+            HandshakePool.Handshake handshake) {
+            this.clientSocket = clientSocket;
+            this.handshake = handshake;
+        }
+        
+        /**********************************************************************
+         * Sets the value of this thread variable.
+         *********************************************************************/
+        public void setThread(Thread thread) {
+            this.thread = thread;
+        }
+        
+        /**********************************************************************
+         * Tells all Clients that a Client joined or left, either right away 
+         * or folded with the other changes of the roster publisher's window.
+         * @param client is the name of the Client that joined or left
+         * @param joined is true if the Client joined, false if it left
+         *********************************************************************/
+        private static void rosterChanged(String client, boolean joined) {
+            if (rosterPublisher != null) {
+                rosterPublisher.changed(client, joined);
+                return;
+            }
+            Set<String> newClients = new HashSet<String>();
+            if (joined)
+                newClients.add(client);
+            sendRosterChanges(Collections.singletonList(
+                (joined ? "+" : "-") + client), newClients);
+        }
+        
+        /**********************************************************************
+         * Tells all Clients about some Clients joining or leaving, as a new 
+         * version of the roster. Clients that take roster deltas are only 
+         * sent the changes; the others, and the Clients that just joined, are
+         * sent the whole client list. Versions are published one at a time,
+         * so every Client gets them in order.
+         * @param changes are the changes, each "+name" or "-name"
+         * @param joined are the names of the Clients that just joined
+         *********************************************************************/
+        private static void sendRosterChanges(List<String> changes, 
+            Set<String> joined) {
+            synchronized (rosterLock) {
+                ++rosterVersion;
+                List<String> deltaRecipients = new ArrayList<String>();
+                List<String> listRecipients = new ArrayList<String>();
+                for (Enumeration<String> clients = clientOutputs.keys(); 
+                     clients.hasMoreElements(); ) {
+                    String clientName = clients.nextElement();
+                    if (rosterDeltaClients.containsKey(clientName)
+                        && !joined.contains(clientName)) {
+                        deltaRecipients.add(clientName);
+                    } else {
+                        listRecipients.add(clientName);
+                    }
+                }
+                StringBuilder delta = new StringBuilder();
+                for (String change: changes) {
+                    delta.append(change).append(',');
+                }
+                sendToAll(deltaRecipients, rosterHeader(ROSTER_DELTA), 
+                    delta.toString().getBytes());
+                if (!listRecipients.isEmpty()) {
+                    sendToAll(listRecipients, rosterHeader(CLIENTLIST), 
+                        clientList());
+                }
+                if (Log.enabled(Log.ROSTER, Log.DEBUG)) {
+                    Log.debug(Log.ROSTER, "Sent roster version " 
+                        + rosterVersion + " to all clients.");
+                }
+            }
+        }
+        
+        /**********************************************************************
+         * Sends the whole client list to one Client, for instance when it
+         * missed a roster delta.
+         * @param client is the name of the Client
+         *********************************************************************/
+        private static void sendClientList(String client) {
+            synchronized (rosterLock) {
+                byte[] encoded = encodeFor(client, rosterHeader(CLIENTLIST), 
+                    clientList());
+                if (encoded != null)
+                    writeMessage(client, encoded);
+            }
+        }
+        
+        /**********************************************************************
+         * Gives the names of all currently connected clients, each followed
+         * by a comma.
+         * @return the client list
+         *********************************************************************/
+        private static byte[] clientList() {
+            StringBuilder clientList = new StringBuilder();
+            for (Enumeration<String> clients = clientOutputs.keys(); 
+                 clients.hasMoreElements(); ) {
+                clientList.append(clients.nextElement()).append(',');
+            }
+            return clientList.toString().getBytes();
+        }
+        
+        /**********************************************************************
+         * Builds the header of a roster message, which carries the roster
+         * version in place of the receiver's name. Must be called while
+         * holding the roster lock.
+         * @param code is CLIENTLIST or ROSTER_DELTA
+         * @return the header
+         *********************************************************************/
+        private static byte[] rosterHeader(String code) {
+            byte[] header = new byte[51];
+            try {
+                System.arraycopy(code.getBytes("ISO-8859-1"), 0, header, 0, 5);
+                System.arraycopy(Arrays.copyOf(String.valueOf(rosterVersion)
+                    .getBytes("ISO-8859-1"), 10), 0, header, 21, 10);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return header;
+        }
+        
+        @Override
+        public void run() {
+            
+            InputStream input = null;
+            try {
+                input = clientSocket.getInputStream();
+            } catch (IOException e) {
+                System.err.println("Couldn't establish D.O.Stream.");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            
+            // Everything the client sends is read through one decoder, so 
+            // nothing is lost between the handshake and the first message
+            FrameDecoder decoder = new FrameDecoder(Frames.LEGACY);
+            
+            // Receive the symmetric key from the Client, its half of a key
+            // agreement, or a ticket to resume its last session with. A 
+            // ticket or key agreement that is turned down is followed by 
+            // the next of these, ending with the RSA-encrypted key
+            SecretKey clientKey = null;
+            String hello = null;
+            for (int attempt = 0; attempt < 3; ++attempt) {
+                byte[] secret = getSecret(input, decoder);
+                hello = secret == null ? null : getClientName(input, decoder);
+                if (hello == null)
+                    break;
+                if (SessionTickets.isResumption(secret)) {
+                    clientKey = resume(secret, hello);
+                } else if (acceptsKey(secret)) {
+                    clientKey = getSecretKey(secret, hello, handshake);
+                    break;
+                }
+                if (clientKey != null || !turnDown(secret, hello))
+                    break;
+            }
+            
+            //IvParameterSpec iv = getIV(secretInput);
+            
+            if (!handshake.finish() || clientKey == null)
+                hello = null;
+            if (hello == null) {
+                ServerMetrics.handshakeFailed();
+                System.err.println("Client left during the handshake.");
+                closeSocket();
+                return;
+            }
+            String clientName = helloName(hello);
+            int format = helloFormat(hello);
+            decoder.setFormat(format);
+            ServerMetrics.handshakeDone(acceptedAt);
+            
+            Log.info(Log.SERVER, "Client " + clientName + " connected to the "
+                + "server.");
+            
+            // Messages to this client are written by a thread of its own
+            OutboundWriter writer = new OutboundWriter(clientName, 
+                clientSocket);
+            OutboundQueue output = writer.getQueue();
+            threadFactory.newThread(writer).start();
+            addClient(hello, output, clientKey);
+            //clientIVs.put(clientName, iv);
+            
+            while (true) {
+                byte[] message = receiveBytes(input, decoder, clientName);
+                if (message == null) {
+                    Log.warn(Log.NET, "Lost connection to " + clientName);
+                    dropClient(clientName, output);
+                    output.discard();
+                    closeSocket();
+                    return;
+                }
+                try {
+                    if (dispatch(message)) {
+                        // Completes while loop and ends this thread
+                        break;
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.warn(Log.PROTOCOL, "Malformed data from " 
+                        + clientName + ": " + e.getMessage());
+                    dropClient(clientName, output);
+                    output.discard();
+                    closeSocket();
+                    return;
+                }
+            }  // while loop 
+            
+            // clientOutputs.remove(clientName);
+            // clientKeys.remove(clientName);
+            // clientIVs.remove(clientName);
+            // try {
+            //     clientSocket.close();
+            // } catch (IOException e) {
+            //     System.err.println("Couldn't close client socket.");
+            //     e.printStackTrace();
+            // }
+            // The writer closes the socket once the exit notice is sent
+            Log.info(Log.SERVER, "Client has exited gracefully: " 
+                + clientName);
+        }
+        
+        /**********************************************************************
+         * Closes the client socket after the connection was lost.
+         *********************************************************************/
+        private void closeSocket() {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Couldn't close client socket.");
+                e.printStackTrace();
+            }
+        }
+            
+        /**********************************************************************
+         * Performs the operation requested by a single message from a Client.
+         * @param message is the full message received from the Client
+         * @return true if the Client exited, false otherwise
+         *********************************************************************/
+        private static boolean dispatch(byte[] message) {
+            String[] parsedMessage = parseMessage(message);
+            String command = parsedMessage[0];
+            String receiver = parsedMessage[1].trim();
+            String sender = parsedMessage[2].trim();
+            String size = parsedMessage[3].trim();
+            ServerMetrics.frameReceived(command);
+            
+            // Perform operations based on the command from the Client
+            if (command.equals(BROADCAST)) {
+                broadcast(message, sender, size);
+            } else if (command.equals(GROUP_BROADCAST)) {
+                groupBroadcast(message, sender, receiver, size);
+            } else if (command.equals(SEND)) {
+                send(message, sender, receiver, size);
+            } else if (command.equals(PAIR_SEND)) {
+                pairSend(message, sender, receiver);
+            } else if (command.equals(KICK)) {
+                kick(message, sender, size);
+            } else if (command.equals(CLIENTLIST)) {
+                sendClientList(sender);
+            } else if (command.equals(EXIT)) {
+                exit(message, sender);
+                return true;
+            } // if statement
+            return false;
+        }
+            
+        /**********************************************************************
+         * Obtains client's name from a client message to the server.
+         * @param input is the InputStream that reads data from the client
+         * @param decoder holds the data read from the client
+         * @return a String containing the client name and any options, or 
+         * null if the client disconnected first
          **********************************************************************/
-        private static SecretKey getSecretKey(InputStream input) {
-            byte[] encryptedSecret = new byte[256];
+        private static String getClientName(InputStream input, 
+            FrameDecoder decoder) {
             try {
-                int n = input.read(encryptedSecret, 0, 256);
-                System.out.println("Received secret: " + n);
+                while (true) {
+                    String clientName = decoder.nextLine(256);
+                    if (clientName == null) {
+                        if (decoder.readFrom(input) == -1)
+                            return null;
+                    } else if (helloName(clientName).isEmpty()) {
+                        System.err.println(
+                            "Failed in getting the client name. Retrying.");
+                    } else {
+                        return clientName;
+                    }
+                }
             } catch (IOException e) {
+                System.err.println("Couldn't read message from the client.");
                 e.printStackTrace();
+                return null;
+            } catch (IllegalArgumentException e) {
+                System.err.println("Client name too long.");
+                return null;
+            }
+        }
+        
+        /**********************************************************************
+         * Obtains the encrypted secret key, or a resumption block, from a 
+         * client message to the server.
+         * @param input is the InputStream that reads data from the client
+         * @param decoder holds the data read from the client
+         * @return the 256 bytes sent by the client, or null if the client 
+         * disconnected first
+         **********************************************************************/
+        private static byte[] getSecret(InputStream input, 
+            FrameDecoder decoder) {
+            byte[] encryptedSecret;
+            try {
+                while ((encryptedSecret = decoder.nextBytes(256)) == null) {
+                    if (decoder.readFrom(input) == -1)
+                        return null;
+                }
+                Log.debug(Log.NET, "Received secret: 256");
+            } catch (IOException e) {
+                // Also how a handshake that timed out ends
+                if (Log.enabled(Log.NET, Log.DEBUG))
+                    Log.debug(Log.NET, "Couldn't read the secret key: " + e);
+                return null;
+            }
+            return encryptedSecret;
+        }
+        
+        /**********************************************************************
+         * Obtains the secret key from the encrypted secret or key agreement
+         * sent by a client, and sends the client the Server's half of the
+         * key agreement. The key is established on the HandshakePool.
+         * @param encryptedSecret is the secret key encrypted with the 
+         * server's public key, or the client's half of a key agreement
+         * @param hello is the line sent by the client, without the newline
+         * @param handshake is the connection's handshake
+         * @return the client's secret key as a SecretKey object, or null if 
+         * the key couldn't be established
+         **********************************************************************/
+        private SecretKey getSecretKey(byte[] encryptedSecret, String hello,
+            HandshakePool.Handshake handshake) {
+            KeyExchange.Result result;
+            try {
+                result = handshake.unwrap(encryptedSecret);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (result == null)
+                return null;
+            if (result.getReply() != null 
+                && !answer(keyReply(result.getReply(), hello)))
+                return null;
+            return result.getKey();
+        }
+        
+        /**********************************************************************
+         * Tells the client that its ticket or key agreement was turned down,
+         * so that it sends its RSA-encrypted secret key instead.
+         * @param secret is the block sent by the client
+         * @param hello is the line sent by the client, without the newline
+         * @return false if the connection was lost
+         *********************************************************************/
+        private boolean turnDown(byte[] secret, String hello) {
+            return answer(keyTurnedDown(secret, hello));
+        }
+        
+        /**********************************************************************
+         * Writes a frame straight to the client's socket, during the 
+         * handshake, before the client's output queue is written.
+         * @param frame is the frame
+         * @return false if the connection was lost
+         *********************************************************************/
+        private boolean answer(byte[] frame) {
+            try {
+                clientSocket.getOutputStream().write(frame);
+                return true;
+            } catch (IOException e) {
+                if (Log.enabled(Log.NET, Log.DEBUG))
+                    Log.debug(Log.NET, "Couldn't answer the handshake: " + e);
+                return false;
             }
-            return new SecretKeySpec(RSAdecrypt(encryptedSecret), "AES");
         }
         
         /**********************************************************************
@@ -654,7 +1621,8 @@ public class Server {
             byte[] ivBuffer = new byte[16];
             try {
                 int n = input.read(ivBuffer, 0, 16);
-                System.out.println(n + "bytes of iv read.");
+                if (Log.enabled(Log.CRYPTO, Log.DEBUG))
+                    Log.debug(Log.CRYPTO, n + " bytes of iv read.");
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(1);
@@ -662,6 +1630,337 @@ public class Server {
             return new IvParameterSpec(ivBuffer);
         }
         
+        /**********************************************************************
+         * Encrypts a message for a particular Client. The header of the
+         * original message is kept, and a fresh IV, size and ciphertext are
+         * filled in on a copy of it, so the same original can be encoded for
+         * several Clients at once. The copy is only as long as it needs to be;
+         * it is padded out when sent to a legacy Client.
+         * @param client is the name of the Client receiving the message
+         * @param message is the original message, whose header is kept
+         * @param decoded is the plaintext to encrypt for the Client
+         * @return the encoded message, or null if the Client isn't connected
+         *********************************************************************/
+        private static byte[] encodeFor(String client, byte[] message, 
+            byte[] decoded) {
+            SecretKey key = clientKeys.get(client);
+            CipherSuite suite = clientSuites.get(client);
+            Integer format = clientFormats.get(client);
+            if (key == null || suite == null || format == null) {
+                // The client left (or hasn't finished joining) meanwhile
+                return null;
+            }
+            byte[] encodedMessage = encodeWith(suite, key, message, decoded);
+            int maxSize = format == Frames.COMPACT 
+                ? Frames.MAX_COMPACT_SIZE - 64 : 1024;
+            if (encodedMessage.length - 51 > maxSize) {
+                Log.warn(Log.PROTOCOL, "Message too long to send to " 
+                    + client);
+                return null;
+            }
+            return encodedMessage;
+        }
+        
+        /**********************************************************************
+         * Encrypts a message with a given key, on a copy of the original
+         * message's header.
+         * @param suite is the cipher suite to encrypt with
+         * @param key is the key to encrypt with
+         * @param message is the original message, whose header is kept
+         * @param decoded is the plaintext to encrypt
+         * @return the encoded message
+         *********************************************************************/
+        private static byte[] encodeWith(CipherSuite suite, SecretKey key, 
+            byte[] message, byte[] decoded) {
+            byte[] iv = generateIV().getIV();
+            byte[] encoded = encrypt(decoded, key, new IvParameterSpec(iv), 
+                suite);
+            byte[] encodedMessage = new byte[51 + encoded.length];
+            System.arraycopy(message, 0, encodedMessage, 0, 51);
+            String size = String.format("%10d", encoded.length);
+            try {
+                System.arraycopy(iv, 0, encodedMessage, 5, 16);
+                System.arraycopy(size.getBytes("ISO-8859-1"), 0, 
+                    encodedMessage, 41, 10);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.arraycopy(encoded, 0, encodedMessage, 51, encoded.length);
+            return encodedMessage;
+        }
+        
+        /**********************************************************************
+         * Encrypts a message for a particular Client and queues it. For a
+         * Client with compact frames, the ciphertext is encrypted straight
+         * into a frame borrowed from the BufferPool, which goes back to the
+         * pool once written, so nothing is left behind for the garbage
+         * collector. Legacy Clients are sent a padded copy as before.
+         * @param client is the name of the Client receiving the message
+         * @param message is the original message, whose header is kept
+         * @param decoded is the plaintext to encrypt for the Client
+         * @return false if the Client isn't connected or the message can't
+         * be sent to it
+         *********************************************************************/
+        private static boolean sendEncoded(String client, byte[] message, 
+            byte[] decoded) {
+            Integer format = clientFormats.get(client);
+            if (format != null && format != Frames.COMPACT) {
+                byte[] encoded = encodeFor(client, message, decoded);
+                if (encoded == null)
+                    return false;
+                writeMessage(client, encoded);
+                return true;
+            }
+            SecretKey key = clientKeys.get(client);
+            CipherSuite suite = clientSuites.get(client);
+            OutboundQueue output = clientOutputs.get(client);
+            if (format == null || key == null || suite == null 
+                || output == null) {
+                // The client left (or hasn't finished joining) meanwhile
+                return false;
+            }
+            int headerSize = Frames.compactHeaderSize(message);
+            // No suite adds more than a block of padding or a 16-byte tag
+            byte[] frame = BufferPool.acquire(headerSize + decoded.length 
+                + 16);
+            try {
+                long start = System.nanoTime();
+                IvSource.next(frame, Frames.COMPACT_IV_OFFSET);
+                Cipher c = suite.init(Cipher.ENCRYPT_MODE, key, frame, 
+                    Frames.COMPACT_IV_OFFSET);
+                int size = c.doFinal(decoded, 0, decoded.length, frame, 
+                    headerSize);
+                ServerMetrics.encrypted(start);
+                if (size > Frames.MAX_COMPACT_SIZE - 64) {
+                    Log.warn(Log.PROTOCOL, "Message too long to send to " 
+                        + client);
+                    BufferPool.release(frame);
+                    return false;
+                }
+                Frames.writeCompactHeader(message, frame, size);
+                output.offerPooled(frame, headerSize + size, 
+                    isControl(message));
+                return true;
+            } catch (GeneralSecurityException e) {
+                System.err.println("Couldn't encrypt a message for " 
+                    + client);
+                e.printStackTrace();
+                BufferPool.release(frame);
+                return false;
+            }
+        }
+        
+        /**********************************************************************
+         * Encrypts a message for each of a group of Clients and sends it to
+         * them. Large groups are split into batches that are encrypted and
+         * queued in parallel by the fan-out threads.
+         * @param recipients are the names of the Clients receiving the message
+         * @param message is the original message, whose header is kept
+         * @param decoded is the plaintext to encrypt for each Client
+         *********************************************************************/
+        private static void sendToAll(List<String> recipients, 
+            final byte[] message, final byte[] decoded) {
+            deliverAll(recipients, new FanOut.Delivery() {
+                @Override
+                public void deliver(List<String> batch) {
+                    for (String client: batch) {
+                        sendEncoded(client, message, decoded);
+                    }
+                }
+            });
+        }
+        
+        /**********************************************************************
+         * Encrypts a chat message for each of a group of Clients and sends it
+         * to them, compressed for the Clients that compress chat messages.
+         * @param recipients are the names of the Clients receiving the message
+         * @param message is the original message, whose header is kept
+         * @param payload is the plaintext to encrypt for each Client
+         *********************************************************************/
+        private static void sendToAll(List<String> recipients, 
+            final byte[] message, final Compression.Payload payload) {
+            deliverAll(recipients, new FanOut.Delivery() {
+                @Override
+                public void deliver(List<String> batch) {
+                    for (String client: batch) {
+                        sendEncoded(client, message, 
+                            payload.forCodec(clientCompression.get(client)));
+                    }
+                }
+            });
+        }
+        
+        /**********************************************************************
+         * Runs a delivery for a group of Clients, in batches on the fan-out
+         * threads if there are any.
+         * @param recipients are the names of the Clients receiving the message
+         * @param delivery encrypts and queues the message for a batch
+         *********************************************************************/
+        private static void deliverAll(List<String> recipients, 
+            FanOut.Delivery delivery) {
+            long start = System.nanoTime();
+            if (fanOut == null) {
+                delivery.deliver(recipients);
+            } else {
+                fanOut.run(recipients, delivery);
+            }
+            ServerMetrics.fannedOut(recipients.size(), start);
+        }
+        
+        /**********************************************************************
+         * Issues a resumption ticket to a Client that joined and sends it,
+         * encrypted with the Client's own key.
+         * @param client is the name of the Client
+         * @param clientKey is the secret key the Client sent
+         *********************************************************************/
+        private static void sendTicket(String client, SecretKey clientKey) {
+            byte[] ticket = sessionTickets.issue(client, clientKey);
+            if (ticket == null)
+                return;
+            byte[] header = new byte[51];
+            System.arraycopy(TICKET.getBytes(), 0, header, 0, 5);
+            byte[] encoded = encodeFor(client, header, ticket);
+            if (encoded != null)
+                writeMessage(client, encoded);
+        }
+        
+        /**********************************************************************
+         * Rotates the group key at the end of the window, along with every
+         * other change made during it, so that a burst of Clients joining 
+         * or leaving costs one rotation rather than one each.
+         *********************************************************************/
+        private static void scheduleRotation() {
+            if (rotationTimer == null) {
+                rotateGroupKey();
+                return;
+            }
+            if (!rotationScheduled.compareAndSet(false, true))
+                return;
+            rotationTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Changes from now on need another rotation
+                    rotationScheduled.set(false);
+                    try {
+                        rotateGroupKey();
+                    } catch (RuntimeException e) {
+                        System.err.println("Couldn't rotate the group key.");
+                        e.printStackTrace();
+                    }
+                }
+            }, rotationWindow, TimeUnit.MILLISECONDS);
+        }
+        
+        /**********************************************************************
+         * Replaces the group key and sends the new one to every Client that
+         * uses it, encrypted with each Client's own key, starting with those
+         * waiting for their first one. Rotations are done one at a time so 
+         * every Client receives the epochs in order.
+         *********************************************************************/
+        private static void rotateGroupKey() {
+            synchronized (groupKeys) {
+                for (String joining: joiningMembers.keySet()) {
+                    if (joiningMembers.remove(joining) != null
+                        && clientOutputs.containsKey(joining))
+                        groupMembers.put(joining, Boolean.TRUE);
+                }
+                int epoch = groupKeys.rotate();
+                byte[] key = groupKeys.getKey(epoch).getEncoded();
+                byte[] suite = groupKeys.getSuite().getName().getBytes();
+                // The plaintext is the 4-byte epoch, the key and the suite
+                byte[] decoded = new byte[4 + key.length + suite.length];
+                decoded[0] = (byte) (epoch >>> 24);
+                decoded[1] = (byte) (epoch >>> 16);
+                decoded[2] = (byte) (epoch >>> 8);
+                decoded[3] = (byte) epoch;
+                System.arraycopy(key, 0, decoded, 4, key.length);
+                System.arraycopy(suite, 0, decoded, 4 + key.length, 
+                    suite.length);
+                byte[] header = new byte[51];
+                System.arraycopy(GROUP_KEY.getBytes(), 0, header, 0, 5);
+                for (String member: groupMembers.keySet()) {
+                    byte[] encoded = encodeFor(member, header, decoded);
+                    if (encoded != null)
+                        writeMessage(member, encoded);
+                }
+                if (Log.enabled(Log.CRYPTO, Log.DEBUG)) {
+                    Log.debug(Log.CRYPTO, "Rotated group key to epoch " 
+                        + epoch);
+                }
+            }
+        }
+        
+        /**********************************************************************
+         * Relays a broadcast that the sender encrypted with the group key.
+         * Other group members get the ciphertext as it is, so the Server
+         * doesn't encrypt anything for them; it is only decrypted once for
+         * the Clients that don't use the group key. A broadcast encrypted
+         * with a recently replaced key is encrypted again, once, with the
+         * current key.
+         * @param message is the message to be relayed
+         * @param sender is the sender of the message
+         * @param epochStr is the epoch of the key used by the sender
+         * @param sizeStr is the size of the encoded message
+         *********************************************************************/
+        private static void groupBroadcast(byte[] message, String sender, 
+            String epochStr, String sizeStr) {
+            int epoch = -1;
+            try {
+                epoch = Integer.parseInt(epochStr.trim());
+            } catch (NumberFormatException e) {
+                // Handled below as an unknown epoch
+            }
+            SecretKey key = groupKeys == null 
+                ? null : groupKeys.getCipherKey(epoch);
+            if (key == null || !groupMembers.containsKey(sender)) {
+                Log.warn(Log.CRYPTO, "Dropped group broadcast from " + sender
+                    + " with unknown epoch " + epochStr);
+                return;
+            }
+            byte[] decoded = null;
+            byte[] relayed = message;
+            CipherSuite suite = groupKeys.getSuite();
+            int current = groupKeys.getEpoch();
+            if (epoch != current) {
+                decoded = decodeWith(suite, key, message, sizeStr);
+                relayed = encodeWith(suite, groupKeys.getCipherKey(current), 
+                    message, decoded);
+                try {
+                    System.arraycopy(Arrays.copyOf(String.valueOf(current)
+                        .getBytes("ISO-8859-1"), 10), 0, relayed, 21, 10);
+                } catch (UnsupportedEncodingException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+            // Every member gets the very same frame
+            byte[] frame = Frames.toCompact(relayed);
+            List<String> others = new ArrayList<String>();
+            for (Enumeration<String> clients = clientOutputs.keys(); 
+                 clients.hasMoreElements(); ) {
+                String clientName = clients.nextElement();
+                if (sender.equals(clientName)) {
+                    continue;
+                }
+                if (groupMembers.containsKey(clientName)) {
+                    OutboundQueue output = clientOutputs.get(clientName);
+                    if (output != null)
+                        output.offer(frame, false);
+                } else {
+                    others.add(clientName);
+                }
+            }
+            if (!others.isEmpty()) {
+                if (decoded == null)
+                    decoded = decodeWith(suite, key, message, sizeStr);
+                byte[] header = Arrays.copyOf(message, 51);
+                System.arraycopy(BROADCAST.getBytes(), 0, header, 0, 5);
+                sendToAll(others, header, 
+                    new Compression.Payload(decoded, null, compressThreshold));
+            }
+        }
+        
         /**********************************************************************
          * Sends a message to all clients except the one that requested the 
          * broadcast.
@@ -671,36 +1970,20 @@ public class Server {
          *********************************************************************/
         private static void broadcast(byte[] message, String sender, 
             String sizeStr) {
-            byte[] decoded = decode(sender, message, sizeStr);
+            Compression.Payload payload = decodeChat(sender, message, 
+                sizeStr);
+            if (payload == null)
+                return;
             // Loop through connected clients
+            List<String> recipients = new ArrayList<String>();
             for (Enumeration<String> clients = clientOutputs.keys(); 
                  clients.hasMoreElements(); ) {
                 String clientName = clients.nextElement();
                 if (!sender.equals(clientName)) {
-                    //Encode the data
-                    byte[] iv = generateIV().getIV();
-                    byte[] encoded = encrypt(decoded, 
-                        clientKeys.get(clientName), new IvParameterSpec(iv));
-                    String size = String.format("%10d", encoded.length);
-                    try {
-                        System.arraycopy(iv, 0, message, 5, 16);
-                        System.arraycopy(size.getBytes("ISO-8859-1"), 0, 
-                            message, 41, 10);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-                    System.arraycopy(encoded, 0, message, 51, encoded.length);
-                    try {
-                        clientOutputs.get(clientName).write(
-                            message, 0, 1024 + 51);
-                    } catch (IOException e) {
-                        System.err.println("Couldn't send broadcast message.");
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
+                    recipients.add(clientName);
                 }
             }
+            sendToAll(recipients, message, payload);
         }
         
         /***********************************************************************
@@ -712,38 +1995,102 @@ public class Server {
          **********************************************************************/
         private static void send(byte[] message, String sender, String receiver, 
             String sizeStr) {
-            byte[] decoded = decode(sender, message, sizeStr);
-            // Find the destination client
-            for (Enumeration<String> clients = clientOutputs.keys(); 
-                clients.hasMoreElements(); ) {
-                String client = clients.nextElement();
-                if (client.equals(receiver)) {
-                    byte[] iv = generateIV().getIV();
-                    byte[] encoded = encrypt(decoded, clientKeys.get(client), 
-                        new IvParameterSpec(iv));
-                    String size = String.format("%10d", encoded.length);
-                    try {
-                        System.arraycopy(iv, 0, message, 5, 16);
-                        System.arraycopy(size.getBytes("ISO-8859-1"), 0, 
-                            message, 41, 10);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-                    System.arraycopy(encoded, 0, message, 51, encoded.length);
-                    try {
-                        clientOutputs.get(client).write(
-                            message, 0, 1024 + 51);
-                    } catch (IOException e) {
-                        System.err.println("Couldn't send broadcast message.");
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-                    break; // No need to loop through others
-                }
+            Compression.Payload payload = decodeChat(sender, message, 
+                sizeStr);
+            if (payload == null)
+                return;
+            if (!sendEncoded(receiver, message, 
+                payload.forCodec(clientCompression.get(receiver)))) {
+                Log.warn(Log.SERVER, "No such client: " + receiver);
+                return;
+            }
+            if (pairKeyClients.containsKey(sender) 
+                && pairKeyClients.containsKey(receiver)) {
+                // From now on they can skip the Server's encryption
+                sendPairKey(receiver, sender);
+            }
+        }
+        
+        /**********************************************************************
+         * Passes on a message that the sender encrypted with the key it 
+         * shares with the receiver. The Server can't read it: the ciphertext
+         * is forwarded untouched, in a frame addressed to the receiver.
+         * @param message is the message to be passed on
+         * @param sender is the message's source Client
+         * @param receiver is the message's destination Client
+         *********************************************************************/
+        private static void pairSend(byte[] message, String sender, 
+            String receiver) {
+            if (!keyedPairs.containsKey(pairName(sender, receiver))) {
+                Log.warn(Log.CRYPTO, "Dropped end-to-end message from " 
+                    + sender + " to " + receiver + ", who share no pair key.");
+                return;
+            }
+            writeMessage(receiver, message);
+        }
+        
+        /**********************************************************************
+         * Makes a key for two Clients to encrypt the messages they send each
+         * other, and sends it to both of them, encrypted with each Client's
+         * own key. Does nothing if they already have one. The first Client is
+         * sent the key first, so it always has the key before the second one
+         * can use it.
+         * @param first is the name of one Client
+         * @param second is the name of the other Client
+         *********************************************************************/
+        private static void sendPairKey(String first, String second) {
+            String pair = pairName(first, second);
+            if (keyedPairs.putIfAbsent(pair, Boolean.TRUE) != null)
+                return;
+            if (!pairKeyClients.containsKey(first) 
+                || !pairKeyClients.containsKey(second)) {
+                // One of them left meanwhile
+                keyedPairs.remove(pair);
+                return;
+            }
+            SecretKey key;
+            synchronized (pairKeyGenerator) {
+                key = pairKeyGenerator.generateKey();
+            }
+            byte[] raw = key.getEncoded();
+            byte[] suite = suitePreference.get(0).getName().getBytes();
+            // The plaintext is the key and the suite to use it with
+            byte[] decoded = new byte[raw.length + suite.length];
+            System.arraycopy(raw, 0, decoded, 0, raw.length);
+            System.arraycopy(suite, 0, decoded, raw.length, suite.length);
+            sendPairKeyTo(first, second, decoded);
+            sendPairKeyTo(second, first, decoded);
+            if (Log.enabled(Log.CRYPTO, Log.DEBUG)) {
+                Log.debug(Log.CRYPTO, "Sent a pair key to " + first + " and " 
+                    + second);
             }
         }
         
+        /**********************************************************************
+         * Sends a pair key to one of the two Clients that share it.
+         * @param client is the name of the Client receiving the key
+         * @param other is the name of the Client it shares the key with
+         * @param decoded is the key and the name of its cipher suite
+         *********************************************************************/
+        private static void sendPairKeyTo(String client, String other, 
+            byte[] decoded) {
+            byte[] header = new byte[51];
+            try {
+                System.arraycopy(PAIR_KEY.getBytes("ISO-8859-1"), 0, header, 
+                    0, 5);
+                System.arraycopy(Arrays.copyOf(client.getBytes("ISO-8859-1"),
+                    10), 0, header, 21, 10);
+                System.arraycopy(Arrays.copyOf(other.getBytes("ISO-8859-1"),
+                    10), 0, header, 31, 10);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            byte[] encoded = encodeFor(client, header, decoded);
+            if (encoded != null)
+                writeMessage(client, encoded);
+        }
+        
         /**********************************************************************
          * Kicks a particular Client from the conversation.
          * @param message is a byte array that contains the kick message.
@@ -762,30 +2109,22 @@ public class Server {
                 System.exit(1);
             }
             String[] clients = msg.split(",");
+            boolean membersKicked = false;
             for(int i = 0; i < clients.length; ++i){
-                System.out.println("Trying to kick: " + clients[i]);
-                byte[] iv = generateIV().getIV();
-                byte[] encoded = encrypt(decoded, clientKeys.get(clients[i]), 
-                    new IvParameterSpec(iv));
-                String size = String.format("%10d", encoded.length);
-                try {
-                    System.arraycopy(iv, 0, message, 5, 16);
-                    System.arraycopy(size.getBytes("ISO-8859-1"), 0, 
-                        message, 41, 10);
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                    System.exit(1);
-                }
-                System.arraycopy(encoded, 0, message, 51, encoded.length);
-                try {
-                    clientOutputs.get(clients[i]).write(
-                        message, 0, 1024 + 51);
-                } catch (IOException e) {
-                    System.err.println("Couldn't send broadcast message.");
-                    e.printStackTrace();
-                    System.exit(1);
+                // A kicked Client that stays isn't sent the next group key,
+                // only broadcasts one by one until it leaves
+                joiningMembers.remove(clients[i]);
+                if (groupMembers.remove(clients[i]) != null)
+                    membersKicked = true;
+                Log.info(Log.SERVER, "Trying to kick: " + clients[i]);
+                byte[] encoded = encodeFor(clients[i], message, decoded);
+                if (encoded == null) {
+                    continue;
                 }
+                writeMessage(clients[i], encoded);
             }
+            if (membersKicked)
+                scheduleRotation();
             //sendClientList();
         }
         
@@ -794,14 +2133,31 @@ public class Server {
          * @param message is a String containing the exit message
          * @param sender is the name of the source Client
          *********************************************************************/
-        private static void exit(byte[] message, String sender, Socket socket) {
+        private static void exit(byte[] message, String sender) {
+            // Free the name before confirming, since the Client may come 
+            // straight back with it, resuming its session
+            OutboundQueue output = clientOutputs.remove(sender);
+            Integer format = clientFormats.remove(sender);
+            if (null == clientKeys.remove(sender))
+                System.err.println(sender + "'s key not removed.");
+            clientSuites.remove(sender);
+            clientCompression.remove(sender);
+            joiningMembers.remove(sender);
+            if (groupMembers.remove(sender) != null)
+                scheduleRotation();
+            forgetPairKeys(sender);
+            rosterDeltaClients.remove(sender);
+            //if (null == clientIVs.remove(sender))
+            //    System.err.println(sender + "'s iv not removed.");
             // Confirm to Client that it can disconnect
-            try {
-                clientOutputs.get(sender).write(message, 0, 1024 + 51);
-            } catch (IOException e) {
-                System.err.println("Could not send exit notice back"
-                    + " to client.");
-                e.printStackTrace();
+            if (null == output || null == format) {
+                System.err.println(sender + "'s output not removed.");
+            } else {
+                if (Log.enabled(Log.SERVER, Log.DEBUG))
+                    Log.debug(Log.SERVER, "Closing socket of " + sender);
+                output.offer(frameFor(format, 
+                    Arrays.copyOf(message, message.length)), true);
+                output.close(); // Closes the connection once flushed
             }
             // Alert other users that client is disconnecting 
             String msg = sender + " has disconnected gracefully.";
@@ -814,71 +2170,57 @@ public class Server {
                 e.printStackTrace();
                 System.exit(1);
             }
+            List<String> recipients = new ArrayList<String>();
             for (Enumeration<String> clients = clientOutputs.keys(); 
                 clients.hasMoreElements(); ) {
                 String client = clients.nextElement(); 
                 if (!sender.equals(client)) {
-                    System.out.println("Alerting " + client + " about " + sender 
-                        + "'s exit.");
-                    //Encode the data
-                    byte[] iv = generateIV().getIV();
-                    byte[] encoded = encrypt(decoded, clientKeys.get(client), 
-                        new IvParameterSpec(iv));
-                    String size = String.format("%10d", encoded.length);
-                    try {
-                        System.arraycopy(iv, 0, message, 5, 16);
-                        System.arraycopy(size.getBytes("ISO-8859-1"), 0, 
-                            message, 41, 10);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-                    System.arraycopy(encoded, 0, message, 51, encoded.length);
-                    try {
-                        clientOutputs.get(client).write(
-                            message, 0, 1024 + 51);
-                    } catch (IOException e) {
-                        System.err.println("Couldn't send exit notice.");
-                        e.printStackTrace();
-                        System.exit(1);
+                    if (Log.enabled(Log.SERVER, Log.DEBUG)) {
+                        Log.debug(Log.SERVER, "Alerting " + client + " about " 
+                            + sender + "'s exit.");
                     }
-                    System.out.println("Done alerting " + client + " about " 
-                        + sender + "'s exit.");
+                    recipients.add(client);
                 }
             }
-            //Close client socket, remove client from maps
-            System.out.println("Closing socket of " + sender);
-            // try {
-            //     socket.close();
-            // } catch (IOException e) {
-            //     System.err.println("Couldn't close client socket.");
-            //     e.printStackTrace();
-            // }
-            if (null == clientOutputs.remove(sender))
-                System.err.println(sender + "'s output not removed.");
-            if (null == clientKeys.remove(sender))
-                System.err.println(sender + "'s key not removed.");
-            //if (null == clientIVs.remove(sender))
-            //    System.err.println(sender + "'s iv not removed.");
-            sendClientList();
+            sendToAll(recipients, message, 
+                new Compression.Payload(decoded, null, compressThreshold));
+            rosterChanged(sender, false);
         }
         
         /**********************************************************************
-         * Gets the byte form of the message sent from the client.
+         * Gets the byte form of the next message sent from the client. Reads
+         * from the socket only when the decoder doesn't already hold a whole
+         * message, so messages that arrive together are all handled.
          * @param input is the InputStream reading the data
-         * @return a byte array containing the message
+         * @param decoder holds the data read from the client
+         * @param client is the name of the client
+         * @return a byte array containing the message, or null if the 
+         * connection was lost or the client sent a malformed frame
          *********************************************************************/
-        private static byte[] receiveBytes(InputStream input, String client) {
-            byte[] buffer = new byte[1024 + 51];
+        private static byte[] receiveBytes(InputStream input, 
+            FrameDecoder decoder, String client) {
             try {
-                int n = input.read(buffer, 0, 1024 + 51);
-                System.out.println("Read " + n + " bytes from client.");
+                byte[] message;
+                while ((message = decoder.nextFrame()) == null) {
+                    int n = decoder.readFrom(input);
+                    if (n == -1)
+                        return null;
+                    ServerMetrics.bytesReceived(n);
+                    if (Log.enabled(Log.NET, Log.DEBUG)) {
+                        Log.debug(Log.NET, "Read " + n + " bytes from " 
+                            + client + ".");
+                    }
+                }
+                return message;
             } catch (IOException e) {
                 System.err.println("Couldn't read bytes sent from: " + client);
                 e.printStackTrace();
-                System.exit(1);
+                return null;
+            } catch (IllegalArgumentException e) {
+                Log.warn(Log.PROTOCOL, "Malformed frame from " + client + ": "
+                    + e.getMessage());
+                return null;
             }
-            return buffer;
         }
         
         /**********************************************************************
@@ -892,7 +2234,7 @@ public class Server {
          * [1] optional parameter (destination)
          * [2] optional parameter (source)
          * [3] the size of the message, if there is one one
-         * [4] the encrypted message - most likely not going to be used
+         * [4] the encrypted message - empty unless protocol tracing is on
          *********************************************************************/
         public static String[] parseMessage(byte[] buffer) {
             String[] parsed = new String[5];
@@ -901,15 +2243,22 @@ public class Server {
                 parsed[1] = new String(buffer, 21, 10, "ISO-8859-1").trim();
                 parsed[2] = new String(buffer, 31, 10, "ISO-8859-1").trim();
                 parsed[3] = new String(buffer, 41, 10, "ISO-8859-1");
-                parsed[4] = new String(buffer, 51, 1024, "ISO-8859-1");
+                // Only built when the whole message is being traced
+                parsed[4] = "";
+                if (Log.enabled(Log.PROTOCOL, Log.TRACE)) {
+                    parsed[4] = new String(buffer, 51, buffer.length - 51, 
+                        "ISO-8859-1");
+                }
             } catch (UnsupportedEncodingException e) {
                 System.err.println("Encoding specified is unsupported.");
                 e.printStackTrace();
                 System.exit(1);
             }
-            for (String s: parsed) {
-                if (!s.isEmpty())
-                    System.out.println(s.trim());
+            if (Log.enabled(Log.PROTOCOL, Log.TRACE)) {
+                for (String s: parsed) {
+                    if (!s.isEmpty())
+                        Log.trace(Log.PROTOCOL, s.trim());
+                }
             }
             return parsed;
         }
@@ -925,40 +2274,74 @@ public class Server {
          *********************************************************************/
         private static byte[] decode(String clientName, byte[] buffer, 
             String sizeStr) {
+            CipherSuite suite = clientSuites.get(clientName);
+            if (suite == null) {
+                // Unknown sender; the missing key makes decryption fail
+                suite = CipherSuite.AES_CBC;
+            }
+            return decodeWith(suite, clientKeys.get(clientName), buffer, 
+                sizeStr);
+        }
+        
+        /**********************************************************************
+         * Obtains the plaintext of a chat message, restoring it if the 
+         * sender compressed it.
+         * @param clientName is the name of the sending Client
+         * @param buffer contains the cipherText
+         * @param sizeStr is a String containing the size of the message to be
+         * decoded
+         * @return the plaintext, or null if it was malformed
+         *********************************************************************/
+        private static Compression.Payload decodeChat(String clientName, 
+            byte[] buffer, String sizeStr) {
+            byte[] decoded = decode(clientName, buffer, sizeStr);
+            if (!clientCompression.containsKey(clientName))
+                return new Compression.Payload(decoded, null, 
+                    compressThreshold);
+            long start = System.nanoTime();
+            byte[] plain = Compression.decompress(decoded, 
+                Frames.MAX_COMPACT_SIZE);
+            if (plain == null) {
+                Log.warn(Log.PROTOCOL, "Dropped a malformed compressed "
+                    + "message from " + clientName);
+                return null;
+            }
+            ServerMetrics.decompressed(decoded, plain.length, start);
+            return new Compression.Payload(plain, decoded, compressThreshold);
+        }
+        
+        /**********************************************************************
+         * Obtains the decoded message given a key and ciphertext.
+         * @param suite is the cipher suite the message was encrypted with
+         * @param key is the key the message was encrypted with
+         * @param buffer contains the cipherText.
+         * @param sizeStr is a String containing the size of the message to be
+         * decoded
+         * @return a byte buffer containing the decoded text.
+         * @throws IllegalArgumentException if the message's size is 
+         * malformed or it can't be decrypted, so that the sender is dropped
+         *********************************************************************/
+        private static byte[] decodeWith(CipherSuite suite, SecretKey key, 
+            byte[] buffer, String sizeStr) {
             int size = 0;
             try {
                 size = Integer.parseInt(sizeStr.trim());
             } catch (NumberFormatException e) {
-                e.printStackTrace();
-                System.exit(1);
+                throw new IllegalArgumentException("Malformed message size.");
             }
-            byte[] cipherText = new byte[size];
-            for (int i = 51; i < size + 51; ++i) {
-                cipherText[i - 51] = buffer[i];
+            if (size < 0 || size > buffer.length - 51)
+                throw new IllegalArgumentException("Bad message size: " + size);
+            byte[] decoded = decrypt(buffer, size, key, suite);
+            if (decoded == null) {
+                // Forged, corrupted or sent with the wrong key
+                throw new IllegalArgumentException("Couldn't decrypt a " 
+                    + "message");
             }
-            byte[] iv = new byte[16];
-            System.arraycopy(buffer, 5, iv, 0, 16);
-            byte[] decoded = decrypt(cipherText, clientKeys.get(clientName), 
-                new IvParameterSpec(iv));
-            System.out.println("Decoded message: " + new String(decoded));
-            return decoded;
-        }
-        
-        /***********************************************************************
-         * Receives a message from a Client.
-         * @param input is the BufferedReader that reads data from the client
-         * @return the message as a String object
-         **********************************************************************/
-        private static String receiveMessage(BufferedReader input) {
-            String message = "";
-            try {
-                message = input.readLine();
-            } catch (IOException e) {
-                System.err.println("Couldn't read message from the client.");
-                e.printStackTrace();
-                return "";
+            if (Log.enabled(Log.CRYPTO, Log.TRACE)) {
+                Log.trace(Log.CRYPTO, "Decoded message: " 
+                    + new String(decoded));
             }
-            return message;
+            return decoded;
         }
         
     }
@@ -0,0 +1,741 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/******************************************************************************
+ * Counts what the Server does, for capacity planning and alerting:
+ * connections and handshakes, frames received per command, bytes in and
+ * out, how long compressing, encrypting, decrypting and fanning out take,
+ * how much compression saves, and how many frames are waiting in the
+ * Clients' queues. Counting is cheap enough to do
+ * for every message; everything else is worked out when the metrics are
+ * read.
+ *
+ * The metrics are registered as the MBean "EncryptedChat:type=Server", so
+ * jconsole and other JMX tools can read them, and with --metrics-port they
+ * are also served on the loopback interface, at /metrics in the Prometheus
+ * text format and at /stats as JSON.
+ *****************************************************************************/
+public class ServerMetrics {
+
+    /** The name of the MBean. */
+    private static final String MBEAN_NAME = "EncryptedChat:type=Server";
+
+    /** The commands whose frames are counted separately. */
+    private static final String[] COMMANDS = { "@bcst", "@gbct", "@send",
+        "@psnd", "@kick", "@list", "@exit" };
+
+    /** Frames received, indexed as COMMANDS, then anything else. */
+    private static LongAdder[] framesReceived =
+        new LongAdder[COMMANDS.length + 1];
+
+    static {
+        for (int i = 0; i < framesReceived.length; ++i) {
+            framesReceived[i] = new LongAdder();
+        }
+    }
+
+    /** The number of connections accepted. */
+    private static LongAdder connections = new LongAdder();
+
+    /** The number of times accepting a connection failed. */
+    private static LongAdder acceptFailures = new LongAdder();
+
+    /** The second, as System.nanoTime() / 1e9, counted by acceptsThisSecond. */
+    private static long acceptSecond = 0;
+
+    /** The number of connections accepted during acceptSecond. */
+    private static long acceptsThisSecond = 0;
+
+    /** The number of connections accepted during the second before it. */
+    private static long acceptsLastSecond = 0;
+
+    /** The number of Clients that finished the handshake. */
+    private static LongAdder handshakes = new LongAdder();
+
+    /** The number of connections lost during the handshake. */
+    private static LongAdder handshakeFailures = new LongAdder();
+
+    /** The number of handshakes turned away because the pool was full. */
+    private static LongAdder handshakesRejected = new LongAdder();
+
+    /** The number of connections refused for their address's handshakes. */
+    private static LongAdder handshakesRefused = new LongAdder();
+
+    /** The number of handshakes that took too long. */
+    private static LongAdder handshakeTimeouts = new LongAdder();
+
+    /** The number of resumption tickets issued. */
+    private static LongAdder ticketsIssued = new LongAdder();
+
+    /** The number of sessions resumed with a ticket. */
+    private static LongAdder resumptions = new LongAdder();
+
+    /** The number of tickets that couldn't be redeemed. */
+    private static LongAdder resumptionsRejected = new LongAdder();
+
+    /** The number of messages compressed for Clients. */
+    private static LongAdder compressions = new LongAdder();
+
+    /** The number of messages sent as they are to compressing Clients. */
+    private static LongAdder compressionsSkipped = new LongAdder();
+
+    /** The number of bytes compressed for Clients. */
+    private static LongAdder compressedIn = new LongAdder();
+
+    /** The number of bytes they were compressed to. */
+    private static LongAdder compressedOut = new LongAdder();
+
+    /** The number of compressed messages received from Clients. */
+    private static LongAdder decompressions = new LongAdder();
+
+    /** The number of compressed bytes received from Clients. */
+    private static LongAdder decompressedIn = new LongAdder();
+
+    /** The number of bytes they were restored to. */
+    private static LongAdder decompressedOut = new LongAdder();
+
+    /** The number of bytes read from Clients. */
+    private static LongAdder bytesReceived = new LongAdder();
+
+    /** The number of bytes written to Clients. */
+    private static LongAdder bytesSent = new LongAdder();
+
+    /** The number of frames written to Clients. */
+    private static LongAdder framesSent = new LongAdder();
+
+    /** The number of writes to Clients' sockets. */
+    private static LongAdder socketWrites = new LongAdder();
+
+    /** How long from accepting a connection to the end of the handshake. */
+    private static Histogram handshakeTime = new Histogram(1e-9, 16, 34);
+
+    /** How long a secret key waits for a handshake thread. */
+    private static Histogram handshakeWait = new Histogram(1e-9, 10, 34);
+
+    /** How long unwrapping a secret key with RSA takes. */
+    private static Histogram rsaTime = new Histogram(1e-9, 14, 30);
+
+    /** How long answering a key agreement takes. */
+    private static Histogram keyAgreementTime = new Histogram(1e-9, 14, 30);
+
+    /** How long compressing a message takes. */
+    private static Histogram compressTime = new Histogram(1e-9, 10, 30);
+
+    /** How long restoring a compressed message takes. */
+    private static Histogram decompressTime = new Histogram(1e-9, 10, 30);
+
+    /** How long encrypting a message for one Client takes. */
+    private static Histogram encryptTime = new Histogram(1e-9, 10, 30);
+
+    /** How long decrypting a message from a Client takes. */
+    private static Histogram decryptTime = new Histogram(1e-9, 10, 30);
+
+    /** How long sending a message to many Clients takes. */
+    private static Histogram fanOutTime = new Histogram(1e-9, 10, 34);
+
+    /** The number of Clients each message is sent to at once. */
+    private static Histogram fanOutSize = new Histogram(1, 0, 16);
+
+    /** The number of frames gathered into each socket write. */
+    private static Histogram writeSize = new Histogram(1, 0, 12);
+
+    /** Publishes the roster updates, or null if there is none. */
+    private static RosterPublisher rosterPublisher = null;
+
+    /** Counts that a connection was accepted. */
+    public static void connectionAccepted() {
+        connections.increment();
+        synchronized (ServerMetrics.class) {
+            rollAcceptSecond();
+            ++acceptsThisSecond;
+        }
+    }
+
+    /** Counts that accepting a connection failed. */
+    public static void acceptFailed() {
+        acceptFailures.increment();
+    }
+
+    /**************************************************************************
+     * Moves the accept counts on to the current second. Must be called with
+     * the class locked.
+     *************************************************************************/
+    private static void rollAcceptSecond() {
+        long second = System.nanoTime() / 1000000000L;
+        if (second == acceptSecond)
+            return;
+        acceptsLastSecond = second == acceptSecond + 1 ? acceptsThisSecond
+            : 0;
+        acceptsThisSecond = 0;
+        acceptSecond = second;
+    }
+
+    /**************************************************************************
+     * Gives the number of connections accepted in the last whole second.
+     * @return the accept rate, per second
+     *************************************************************************/
+    private static synchronized long acceptRate() {
+        rollAcceptSecond();
+        return acceptsLastSecond;
+    }
+
+    /**************************************************************************
+     * Counts that a Client finished the handshake.
+     * @param acceptedAt is System.nanoTime() when its connection was accepted
+     *************************************************************************/
+    public static void handshakeDone(long acceptedAt) {
+        handshakes.increment();
+        handshakeTime.record(System.nanoTime() - acceptedAt);
+    }
+
+    /** Counts that a connection was lost during the handshake. */
+    public static void handshakeFailed() {
+        handshakeFailures.increment();
+    }
+
+    /** Counts a handshake turned away because the pool was full. */
+    public static void handshakeRejected() {
+        handshakesRejected.increment();
+    }
+
+    /** Counts a connection refused for its address's pending handshakes. */
+    public static void handshakeRefused() {
+        handshakesRefused.increment();
+    }
+
+    /** Counts a handshake that took too long. */
+    public static void handshakeTimedOut() {
+        handshakeTimeouts.increment();
+    }
+
+    /** Counts a resumption ticket issued. */
+    public static void ticketIssued() {
+        ticketsIssued.increment();
+    }
+
+    /** Counts a session resumed with a ticket. */
+    public static void sessionResumed() {
+        resumptions.increment();
+    }
+
+    /** Counts a ticket that couldn't be redeemed. */
+    public static void resumptionRejected() {
+        resumptionsRejected.increment();
+    }
+
+    /**************************************************************************
+     * Records how long a secret key waited for a handshake thread.
+     * @param queuedAt is System.nanoTime() when the key was queued
+     *************************************************************************/
+    public static void handshakeDequeued(long queuedAt) {
+        handshakeWait.record(System.nanoTime() - queuedAt);
+    }
+
+    /**************************************************************************
+     * Records how long unwrapping a secret key took.
+     * @param start is System.nanoTime() when unwrapping started
+     *************************************************************************/
+    public static void rsaDecrypted(long start) {
+        rsaTime.record(System.nanoTime() - start);
+    }
+
+    /**************************************************************************
+     * Records how long answering a key agreement took.
+     * @param start is System.nanoTime() when the agreement started
+     *************************************************************************/
+    public static void keyAgreed(long start) {
+        keyAgreementTime.record(System.nanoTime() - start);
+    }
+
+    /**************************************************************************
+     * Records a message compressed for Clients, or sent as it is.
+     * @param plainSize is the size of the message
+     * @param payload is the message as sent, with its first byte
+     * @param start is System.nanoTime() when compressing started
+     *************************************************************************/
+    public static void compressed(int plainSize, byte[] payload, long start) {
+        if (!Compression.isCompressed(payload)) {
+            compressionsSkipped.increment();
+            return;
+        }
+        compressTime.record(System.nanoTime() - start);
+        compressions.increment();
+        compressedIn.add(plainSize);
+        compressedOut.add(payload.length);
+    }
+
+    /**************************************************************************
+     * Records a message received from a Client, if it was compressed.
+     * @param payload is the message as received, with its first byte
+     * @param plainSize is the size it was restored to
+     * @param start is System.nanoTime() when restoring started
+     *************************************************************************/
+    public static void decompressed(byte[] payload, int plainSize,
+        long start) {
+        if (!Compression.isCompressed(payload))
+            return;
+        decompressTime.record(System.nanoTime() - start);
+        decompressions.increment();
+        decompressedIn.add(payload.length);
+        decompressedOut.add(plainSize);
+    }
+
+    /**************************************************************************
+     * Works out how much compression shrinks the messages it is used on, 
+     * both ways.
+     * @return the compressed size as a percentage of the plaintext, or 100
+     * if nothing was compressed
+     *************************************************************************/
+    private static long compressionRatio() {
+        long plain = compressedIn.sum() + decompressedOut.sum();
+        long compressed = compressedOut.sum() + decompressedIn.sum();
+        return plain == 0 ? 100 : compressed * 100 / plain;
+    }
+
+    /**************************************************************************
+     * Counts a frame received from a Client.
+     * @param command is the message's command, such as "@bcst"
+     *************************************************************************/
+    public static void frameReceived(String command) {
+        int i = 0;
+        while (i < COMMANDS.length && !COMMANDS[i].equals(command)) {
+            ++i;
+        }
+        framesReceived[i].increment();
+    }
+
+    /**************************************************************************
+     * Counts bytes read from a Client.
+     * @param count is the number of bytes
+     *************************************************************************/
+    public static void bytesReceived(int count) {
+        bytesReceived.add(count);
+    }
+
+    /**************************************************************************
+     * Counts a frame written to a Client.
+     * @param length is the size of the frame
+     *************************************************************************/
+    public static void frameSent(int length) {
+        framesSent.increment();
+        bytesSent.add(length);
+    }
+
+    /**************************************************************************
+     * Counts a write to a Client's socket.
+     * @param frames is the number of frames, or parts of frames, written
+     *************************************************************************/
+    public static void socketWrite(int frames) {
+        socketWrites.increment();
+        writeSize.record(frames);
+    }
+
+    /**************************************************************************
+     * Records how long encrypting a message took.
+     * @param start is System.nanoTime() when encrypting started
+     *************************************************************************/
+    public static void encrypted(long start) {
+        encryptTime.record(System.nanoTime() - start);
+    }
+
+    /**************************************************************************
+     * Records how long decrypting a message took.
+     * @param start is System.nanoTime() when decrypting started
+     *************************************************************************/
+    public static void decrypted(long start) {
+        decryptTime.record(System.nanoTime() - start);
+    }
+
+    /**************************************************************************
+     * Records a message sent to many Clients at once.
+     * @param recipients is the number of Clients
+     * @param start is System.nanoTime() when sending started
+     *************************************************************************/
+    public static void fannedOut(int recipients, long start) {
+        fanOutTime.record(System.nanoTime() - start);
+        fanOutSize.record(recipients);
+    }
+
+    /**************************************************************************
+     * Registers the metrics as an MBean.
+     * @param publisher publishes the roster updates, may be null
+     *************************************************************************/
+    public static void register(RosterPublisher publisher) {
+        rosterPublisher = publisher;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Bean(), new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            System.err.println("Couldn't register the server's MBean.");
+            e.printStackTrace();
+        }
+    }
+
+    /**************************************************************************
+     * Serves the metrics over HTTP on the loopback interface, on a thread of
+     * its own.
+     * @param port is the port to serve them on
+     *************************************************************************/
+    public static void serve(int port) {
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            System.err.println("Couldn't serve the metrics on port " + port);
+            e.printStackTrace();
+            return;
+        }
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "text/plain; version=0.0.4", prometheus());
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "application/json", json());
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "metrics-http");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        server.start();
+        Log.info(Log.SERVER, "Serving metrics on http://localhost:" + port
+            + "/metrics and /stats.");
+    }
+
+    /**************************************************************************
+     * Sends a whole response to an HTTP request.
+     * @param exchange is the request
+     * @param type is the content type of the response
+     * @param body is the response
+     * @throws IOException if the response can't be sent
+     *************************************************************************/
+    private static void respond(HttpExchange exchange, String type,
+        String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+            type + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+
+    /**************************************************************************
+     * Reads the counters, which only ever go up.
+     * @return the counters by name
+     *************************************************************************/
+    private static Map<String,Long> counters() {
+        Map<String,Long> counters = new LinkedHashMap<String,Long>();
+        counters.put("connections_accepted_total", connections.sum());
+        counters.put("accept_failures_total", acceptFailures.sum());
+        counters.put("handshakes_total", handshakes.sum());
+        counters.put("handshake_failures_total", handshakeFailures.sum());
+        counters.put("handshakes_rejected_total", handshakesRejected.sum());
+        counters.put("handshakes_refused_total", handshakesRefused.sum());
+        counters.put("handshake_timeouts_total", handshakeTimeouts.sum());
+        counters.put("tickets_issued_total", ticketsIssued.sum());
+        counters.put("sessions_resumed_total", resumptions.sum());
+        counters.put("resumptions_rejected_total", 
+            resumptionsRejected.sum());
+        counters.put("compressions_total", compressions.sum());
+        counters.put("compressions_skipped_total", 
+            compressionsSkipped.sum());
+        counters.put("compressed_in_bytes_total", compressedIn.sum());
+        counters.put("compressed_out_bytes_total", compressedOut.sum());
+        counters.put("decompressions_total", decompressions.sum());
+        counters.put("decompressed_in_bytes_total", decompressedIn.sum());
+        counters.put("decompressed_out_bytes_total", decompressedOut.sum());
+        counters.put("bytes_received_total", bytesReceived.sum());
+        counters.put("bytes_sent_total", bytesSent.sum());
+        counters.put("frames_sent_total", framesSent.sum());
+        counters.put("socket_writes_total", socketWrites.sum());
+        counters.put("frames_dropped_total",
+            OutboundQueue.getDroppedFrames());
+        counters.put("clients_evicted_total",
+            OutboundQueue.getEvictedSessions());
+        counters.put("buffers_acquired_total", BufferPool.getAcquired());
+        counters.put("buffers_allocated_total", BufferPool.getAllocated());
+        if (rosterPublisher != null) {
+            counters.put("roster_updates_total",
+                rosterPublisher.getUpdates());
+            counters.put("roster_changes_total",
+                rosterPublisher.getChanges());
+        }
+        counters.put("log_lines_dropped_total", Log.getDropped());
+        return counters;
+    }
+
+    /**************************************************************************
+     * Reads the gauges, which go up and down.
+     * @return the gauges by name
+     *************************************************************************/
+    private static Map<String,Long> gauges() {
+        long clients = 0;
+        long queuedFrames = 0;
+        long queuedBytes = 0;
+        long longestQueue = 0;
+        for (OutboundQueue queue: Server.outboundQueues()) {
+            int frames = queue.getQueuedFrames();
+            ++clients;
+            queuedFrames += frames;
+            queuedBytes += queue.getQueuedBytes();
+            longestQueue = Math.max(longestQueue, frames);
+        }
+        Map<String,Long> gauges = new LinkedHashMap<String,Long>();
+        gauges.put("connected_clients", clients);
+        gauges.put("accepts_per_second", acceptRate());
+        gauges.put("handshakes_pending", (long) HandshakePool.getPending());
+        gauges.put("handshakes_queued", (long) HandshakePool.getQueued());
+        gauges.put("compression_ratio_percent", compressionRatio());
+        gauges.put("queued_frames", queuedFrames);
+        gauges.put("queued_bytes", queuedBytes);
+        gauges.put("longest_queue_frames", longestQueue);
+        if (rosterPublisher != null) {
+            gauges.put("largest_roster_update",
+                (long) rosterPublisher.getLargestUpdate());
+        }
+        return gauges;
+    }
+
+    /**************************************************************************
+     * Gives the histograms.
+     * @return the histograms by name
+     *************************************************************************/
+    private static Map<String,Histogram> histograms() {
+        Map<String,Histogram> histograms =
+            new LinkedHashMap<String,Histogram>();
+        histograms.put("handshake_seconds", handshakeTime);
+        histograms.put("handshake_wait_seconds", handshakeWait);
+        histograms.put("rsa_seconds", rsaTime);
+        histograms.put("key_agreement_seconds", keyAgreementTime);
+        histograms.put("compress_seconds", compressTime);
+        histograms.put("decompress_seconds", decompressTime);
+        histograms.put("encrypt_seconds", encryptTime);
+        histograms.put("decrypt_seconds", decryptTime);
+        histograms.put("fanout_seconds", fanOutTime);
+        histograms.put("fanout_recipients", fanOutSize);
+        histograms.put("write_frames", writeSize);
+        return histograms;
+    }
+
+    /**************************************************************************
+     * Names the command counted at an index of framesReceived.
+     * @param index is the index
+     * @return the command without its @, or "other"
+     *************************************************************************/
+    private static String commandName(int index) {
+        return index < COMMANDS.length ? COMMANDS[index].substring(1)
+            : "other";
+    }
+
+    /**************************************************************************
+     * Writes the metrics in the Prometheus text format.
+     * @return the metrics
+     *************************************************************************/
+    private static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE chat_frames_received_total counter\n");
+        for (int i = 0; i < framesReceived.length; ++i) {
+            text.append("chat_frames_received_total{command=\"")
+                .append(commandName(i)).append("\"} ")
+                .append(framesReceived[i].sum()).append('\n');
+        }
+        for (Map.Entry<String,Long> counter: counters().entrySet()) {
+            text.append("# TYPE chat_").append(counter.getKey())
+                .append(" counter\n");
+            text.append("chat_").append(counter.getKey()).append(' ')
+                .append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String,Long> gauge: gauges().entrySet()) {
+            text.append("# TYPE chat_").append(gauge.getKey())
+                .append(" gauge\n");
+            text.append("chat_").append(gauge.getKey()).append(' ')
+                .append(gauge.getValue()).append('\n');
+        }
+        for (Map.Entry<String,Histogram> entry: histograms().entrySet()) {
+            String name = "chat_" + entry.getKey();
+            Histogram histogram = entry.getValue();
+            long[] counts = histogram.cumulativeCounts();
+            double[] bounds = histogram.upperBounds();
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            for (int i = 0; i < bounds.length; ++i) {
+                text.append(name).append("_bucket{le=\"")
+                    .append(number(bounds[i])).append("\"} ")
+                    .append(counts[i]).append('\n');
+            }
+            long count = counts[counts.length - 1];
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(count)
+                .append('\n');
+            text.append(name).append("_sum ")
+                .append(number(histogram.getSum())).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**************************************************************************
+     * Writes the metrics as a JSON object, with a summary of each histogram.
+     * @return the metrics
+     *************************************************************************/
+    private static String json() {
+        StringBuilder text = new StringBuilder("{\n  \"frames_received\": {");
+        for (int i = 0; i < framesReceived.length; ++i) {
+            text.append(i == 0 ? "" : ", ").append('"')
+                .append(commandName(i)).append("\": ")
+                .append(framesReceived[i].sum());
+        }
+        text.append("}");
+        Map<String,Long> values = counters();
+        values.putAll(gauges());
+        for (Map.Entry<String,Long> value: values.entrySet()) {
+            text.append(",\n  \"").append(value.getKey()).append("\": ")
+                .append(value.getValue());
+        }
+        for (Map.Entry<String,Histogram> entry: histograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            text.append(",\n  \"").append(entry.getKey())
+                .append("\": {\"count\": ").append(histogram.getCount())
+                .append(", \"sum\": ").append(number(histogram.getSum()))
+                .append(", \"p50\": ")
+                .append(number(histogram.percentile(0.5)))
+                .append(", \"p99\": ")
+                .append(number(histogram.percentile(0.99))).append("}");
+        }
+        return text.append("\n}\n").toString();
+    }
+
+    /**************************************************************************
+     * Writes a number in a form both Prometheus and JSON accept.
+     * @param value is the number
+     * @return the number as text
+     *************************************************************************/
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return String.valueOf((long) value);
+        return Double.toString(value);
+    }
+
+    /**************************************************************************
+     * Reads every metric as a plain number, for JMX, histograms as their
+     * count, p50 and p99.
+     * @return the metrics by name
+     *************************************************************************/
+    private static Map<String,Object> attributes() {
+        Map<String,Object> attributes = new LinkedHashMap<String,Object>();
+        for (int i = 0; i < framesReceived.length; ++i) {
+            attributes.put("frames_received_" + commandName(i),
+                framesReceived[i].sum());
+        }
+        attributes.putAll(counters());
+        attributes.putAll(gauges());
+        for (Map.Entry<String,Histogram> entry: histograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            attributes.put(entry.getKey() + "_count", histogram.getCount());
+            attributes.put(entry.getKey() + "_p50",
+                histogram.percentile(0.5));
+            attributes.put(entry.getKey() + "_p99",
+                histogram.percentile(0.99));
+        }
+        return attributes;
+    }
+
+    /**************************************************************************
+     * Shows the metrics to JMX as read-only attributes.
+     *************************************************************************/
+    private static class Bean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String name)
+            throws AttributeNotFoundException {
+            Object value = attributes().get(name);
+            if (value == null)
+                throw new AttributeNotFoundException(name);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String,Object> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name: names) {
+                if (attributes.containsKey(name))
+                    list.add(new Attribute(name, attributes.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName()
+                + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params,
+            String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos =
+                new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String,Object> attribute:
+                 attributes().entrySet()) {
+                infos.add(new MBeanAttributeInfo(attribute.getKey(),
+                    attribute.getValue().getClass().getName(),
+                    attribute.getKey().replace('_', ' '), true, false,
+                    false));
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(),
+                "Chat server metrics",
+                infos.toArray(new MBeanAttributeInfo[infos.size()]),
+                null, null, null);
+        }
+
+    }
+
+}
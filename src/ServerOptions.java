@@ -0,0 +1,481 @@
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/******************************************************************************
+ * Startup options for the chat Server, parsed from the command line.
+ * Options are given as --name=value pairs, for example:
+ *     java Server --mode=nio --loops=4
+ * Any option that isn't given keeps its default value.
+ *****************************************************************************/
+public class ServerOptions {
+
+    /** Thread mode - one platform thread per connected client. */
+    public static final String THREAD_MODE = "thread";
+
+    /** Virtual mode - one virtual thread per connected client. */
+    public static final String VIRTUAL_MODE = "virtual";
+
+    /** NIO mode - a few selector event loops shared by all clients. */
+    public static final String NIO_MODE = "nio";
+
+    /** The port the server listens on unless told otherwise. */
+    public static final int DEFAULT_PORT = 48700;
+
+    /** The execution mode of the server. */
+    private String mode = THREAD_MODE;
+
+    /** The addresses the server listens on. */
+    private List<InetSocketAddress> bindAddresses = 
+        new ArrayList<InetSocketAddress>();
+
+    /** The number of threads accepting connections on each address. */
+    private int acceptors = 1;
+
+    /** The most connections waiting to be accepted on each socket. */
+    private int backlog = 50;
+
+    /** True if each acceptor has its own socket, sharing the port. */
+    private boolean reusePort = false;
+
+    /** The number of threads unwrapping the keys of new connections. */
+    private int handshakeThreads = Math.max(1,
+        Runtime.getRuntime().availableProcessors() / 2);
+
+    /** The most handshakes waiting for a handshake thread. */
+    private int handshakeQueue = 1024;
+
+    /** The most handshakes pending from one address. */
+    private int handshakesPerAddress = 256;
+
+    /** How long a handshake may take, in milliseconds. */
+    private int handshakeTimeout = 10 * 1000;
+
+    /** The number of event loops used in NIO mode. */
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /** The number of threads re-encrypting messages sent to many clients. */
+    private int fanOutThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The largest number of recipients handled by one fan-out thread. */
+    private int fanOutBatch = 32;
+
+    /** The largest number of frames queued for one client. */
+    private int outboundFrames = 4096;
+
+    /** The largest number of bytes queued for one client. */
+    private int outboundBytes = 4 * 1024 * 1024;
+
+    /** What to do when a client's queue is full. */
+    private String slowPolicy = OutboundQueue.DROP_OLDEST;
+
+    /** The most bytes gathered into one write to a client. */
+    private int writeBatch = 64 * 1024;
+
+    /** The longest a gathered frame waits to be written, in microseconds. */
+    private int writeBudget = 200;
+
+    /** True if Clients may encrypt broadcasts once with a group key. */
+    private boolean groupKeys = false;
+
+    /** True if pairs of Clients may send each other end-to-end messages. */
+    private boolean pairKeys = false;
+
+    /** True if Clients are given tickets to resume their sessions with. */
+    private boolean tickets = false;
+
+    /** How long a resumption ticket can be used, in seconds. */
+    private int ticketLifetime = 60 * 60;
+
+    /** True if Clients may agree on their keys instead of using RSA. */
+    private boolean keyAgreement = true;
+
+    /** The codecs chat messages may be compressed with, in order. */
+    private List<Compression> compression = new ArrayList<Compression>();
+
+    /** The size below which chat messages aren't compressed. */
+    private int compressThreshold = Compression.DEFAULT_THRESHOLD;
+
+    /** 
+     * How long roster changes, and group key rotations, are folded into one
+     * update, in ms; 0 publishes each change right away.
+     */
+    private int rosterWindow = 100;
+
+    /** True if pooled buffers are tracked to find leaks. */
+    private boolean bufferDebug = false;
+
+    /** The local port serving the metrics over HTTP, 0 if they aren't. */
+    private int metricsPort = 0;
+
+    /**************************************************************************
+     * Parses the server's command line arguments. Exits if an argument isn't
+     * recognized.
+     * @param args are the command line arguments given to Server.main
+     * @return the parsed ServerOptions
+     *************************************************************************/
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg: args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split == -1) {
+                usage("Malformed option: " + arg);
+            }
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            if (name.equals("mode")) {
+                if (!value.equals(THREAD_MODE) && !value.equals(VIRTUAL_MODE)
+                    && !value.equals(NIO_MODE)) {
+                    usage("Unknown mode: " + value);
+                }
+                options.mode = value;
+            } else if (name.equals("bind")) {
+                options.bindAddresses.clear();
+                for (String endpoint: value.split(",")) {
+                    options.bindAddresses.add(parseEndpoint(endpoint));
+                }
+            } else if (name.equals("acceptors")) {
+                options.acceptors = parsePositive(name, value);
+            } else if (name.equals("backlog")) {
+                options.backlog = parsePositive(name, value);
+            } else if (name.equals("reuse-port")) {
+                options.reusePort = parseSwitch(name, value);
+            } else if (name.equals("loops")) {
+                options.eventLoops = parsePositive(name, value);
+            } else if (name.equals("fanout-threads")) {
+                options.fanOutThreads = parsePositive(name, value);
+            } else if (name.equals("fanout-batch")) {
+                options.fanOutBatch = parsePositive(name, value);
+            } else if (name.equals("outbound-frames")) {
+                options.outboundFrames = parsePositive(name, value);
+            } else if (name.equals("outbound-bytes")) {
+                options.outboundBytes = parsePositive(name, value);
+            } else if (name.equals("slow-policy")) {
+                if (!value.equals(OutboundQueue.DROP_OLDEST)
+                    && !value.equals(OutboundQueue.DROP_NEW)
+                    && !value.equals(OutboundQueue.DISCONNECT)) {
+                    usage("Unknown slow-consumer policy: " + value);
+                }
+                options.slowPolicy = value;
+            } else if (name.equals("handshake-threads")) {
+                options.handshakeThreads = parsePositive(name, value);
+            } else if (name.equals("handshake-queue")) {
+                options.handshakeQueue = parsePositive(name, value);
+            } else if (name.equals("handshakes-per-address")) {
+                options.handshakesPerAddress = parsePositive(name, value);
+            } else if (name.equals("handshake-timeout")) {
+                options.handshakeTimeout = parsePositive(name, value);
+            } else if (name.equals("write-batch")) {
+                options.writeBatch = parsePositive(name, value);
+            } else if (name.equals("write-budget")) {
+                options.writeBudget = parsePositive(name, value);
+            } else if (name.equals("group-keys")) {
+                options.groupKeys = parseSwitch(name, value);
+            } else if (name.equals("pair-keys")) {
+                options.pairKeys = parseSwitch(name, value);
+            } else if (name.equals("tickets")) {
+                options.tickets = parseSwitch(name, value);
+            } else if (name.equals("ticket-lifetime")) {
+                options.ticketLifetime = parsePositive(name, value);
+            } else if (name.equals("ecdh")) {
+                options.keyAgreement = parseSwitch(name, value);
+            } else if (name.equals("compression")) {
+                options.compression = parseCompression(name, value);
+            } else if (name.equals("compress-threshold")) {
+                options.compressThreshold = parsePositive(name, value);
+            } else if (name.equals("roster-window")) {
+                options.rosterWindow = parseNonNegative(name, value);
+            } else if (name.equals("buffer-debug")) {
+                options.bufferDebug = parseSwitch(name, value);
+            } else if (name.equals("metrics-port")) {
+                options.metricsPort = parsePositive(name, value);
+            } else if (name.equals("log")) {
+                // Applied at once, so startup is logged at the given levels
+                if (!Log.configure(value)) {
+                    usage("Option log must list levels, such as "
+                        + "debug,crypto:off: " + value);
+                }
+            } else {
+                usage("Unknown option: " + name);
+            }
+        }
+        if (options.bindAddresses.isEmpty())
+            options.bindAddresses.add(new InetSocketAddress(DEFAULT_PORT));
+        if (options.reusePort && !ReusePort.isSupported()) {
+            System.err.println("SO_REUSEPORT isn't supported here; the "
+                + "acceptors will share one socket.");
+            options.reusePort = false;
+        }
+        return options;
+    }
+
+    /**************************************************************************
+     * Parses an address to listen on, as HOST:PORT, [IPv6]:PORT or just
+     * PORT. A missing or * host listens on every interface.
+     * @param endpoint is the address
+     * @return the address, resolved
+     *************************************************************************/
+    private static InetSocketAddress parseEndpoint(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        String host = colon == -1 ? "" : endpoint.substring(0, colon);
+        int port = 0;
+        try {
+            port = Integer.parseInt(endpoint.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            usage("Option bind needs HOST:PORT: " + endpoint);
+        }
+        if (port < 1 || port > 65535) {
+            usage("Option bind has a bad port: " + endpoint);
+        }
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        if (host.isEmpty() || host.equals("*"))
+            return new InetSocketAddress(port);
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            usage("Option bind has an unknown host: " + endpoint);
+        }
+        return address;
+    }
+
+    /**************************************************************************
+     * Parses a strictly positive integer option.
+     * @param name is the name of the option being parsed
+     * @param value is the String value of the option
+     * @return the value as an int
+     *************************************************************************/
+    private static int parsePositive(String name, String value) {
+        int parsed = 0;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            usage("Option " + name + " must be a number: " + value);
+        }
+        if (parsed < 1) {
+            usage("Option " + name + " must be positive: " + value);
+        }
+        return parsed;
+    }
+
+    /**************************************************************************
+     * Parses an integer option that may be zero.
+     * @param name is the name of the option being parsed
+     * @param value is the String value of the option
+     * @return the value as an int
+     *************************************************************************/
+    private static int parseNonNegative(String name, String value) {
+        int parsed = 0;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            usage("Option " + name + " must be a number: " + value);
+        }
+        if (parsed < 0) {
+            usage("Option " + name + " can't be negative: " + value);
+        }
+        return parsed;
+    }
+
+    /**************************************************************************
+     * Parses an on/off option.
+     * @param name is the name of the option being parsed
+     * @param value is the String value of the option
+     * @return true for on, false for off
+     *************************************************************************/
+    private static boolean parseSwitch(String name, String value) {
+        if (!value.equals("on") && !value.equals("off")) {
+            usage("Option " + name + " must be on or off: " + value);
+        }
+        return value.equals("on");
+    }
+
+    /**************************************************************************
+     * Parses a list of compression codecs, or off.
+     * @param name is the name of the option being parsed
+     * @param value is the String value of the option
+     * @return the codecs, in order, empty for off
+     *************************************************************************/
+    private static List<Compression> parseCompression(String name,
+        String value) {
+        List<Compression> codecs = new ArrayList<Compression>();
+        if (value.equals("off"))
+            return codecs;
+        for (String codecName: value.split(",")) {
+            Compression codec = Compression.forName(codecName);
+            if (codec == null) {
+                usage("Option " + name + " has an unknown codec: " 
+                    + codecName);
+            }
+            codecs.add(codec);
+        }
+        return codecs;
+    }
+
+    /**************************************************************************
+     * Prints an error and the accepted options, then exits.
+     * @param error is the reason the options couldn't be parsed
+     *************************************************************************/
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: java Server [--mode=thread|virtual|nio] "
+            + "[--loops=N]\n                   [--bind=HOST:PORT,...] "
+            + "[--acceptors=N]\n                   [--backlog=N] "
+            + "[--reuse-port=on|off]\n                   "
+            + "[--handshake-threads=N] [--handshake-queue=N]\n"
+            + "                   [--handshakes-per-address=N] "
+            + "[--handshake-timeout=MS]\n"
+            + "                   [--fanout-threads=N] "
+            + "[--fanout-batch=N]\n                   [--outbound-frames=N] "
+            + "[--outbound-bytes=N]\n                   "
+            + "[--slow-policy=drop-oldest|drop-new|disconnect]\n"
+            + "                   [--write-batch=BYTES] "
+            + "[--write-budget=MICROS]\n"
+            + "                   [--group-keys=on|off] [--pair-keys=on|off]"
+            + "\n                   [--tickets=on|off] "
+            + "[--ticket-lifetime=SECONDS]"
+            + "\n                   [--ecdh=on|off] "
+            + "[--compression=off|deflate|deflate-fast,...]"
+            + "\n                   [--compress-threshold=BYTES] "
+            + "[--roster-window=MS]\n                   "
+            + "[--buffer-debug=on|off] [--metrics-port=N]\n"
+            + "                   [--log=LEVEL,SUBSYSTEM:LEVEL,...]");
+        System.exit(1);
+    }
+
+    /** Gives access to the execution mode. */
+    public String getMode() {
+        return this.mode;
+    }
+
+    /** Gives access to the addresses the server listens on. */
+    public List<InetSocketAddress> getBindAddresses() {
+        return this.bindAddresses;
+    }
+
+    /** Gives access to the number of acceptors per address. */
+    public int getAcceptors() {
+        return this.acceptors;
+    }
+
+    /** Gives access to the accept backlog of each socket. */
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /** Tells whether each acceptor has its own socket, sharing the port. */
+    public boolean reusePort() {
+        return this.reusePort;
+    }
+
+    /** Gives access to the number of handshake threads. */
+    public int getHandshakeThreads() {
+        return this.handshakeThreads;
+    }
+
+    /** Gives access to the most handshakes waiting for a thread. */
+    public int getHandshakeQueue() {
+        return this.handshakeQueue;
+    }
+
+    /** Gives access to the most handshakes pending from one address. */
+    public int getHandshakesPerAddress() {
+        return this.handshakesPerAddress;
+    }
+
+    /** Gives access to how long a handshake may take, in milliseconds. */
+    public int getHandshakeTimeout() {
+        return this.handshakeTimeout;
+    }
+
+    /** Gives access to the number of NIO event loops. */
+    public int getEventLoops() {
+        return this.eventLoops;
+    }
+
+    /** Gives access to the number of fan-out threads. */
+    public int getFanOutThreads() {
+        return this.fanOutThreads;
+    }
+
+    /** Gives access to the largest fan-out batch. */
+    public int getFanOutBatch() {
+        return this.fanOutBatch;
+    }
+
+    /** Gives access to the largest number of frames queued per client. */
+    public int getOutboundFrames() {
+        return this.outboundFrames;
+    }
+
+    /** Gives access to the largest number of bytes queued per client. */
+    public int getOutboundBytes() {
+        return this.outboundBytes;
+    }
+
+    /** Gives access to the slow-consumer policy. */
+    public String getSlowPolicy() {
+        return this.slowPolicy;
+    }
+
+    /** Gives access to the most bytes gathered into one write. */
+    public int getWriteBatch() {
+        return this.writeBatch;
+    }
+
+    /** Gives access to the longest a gathered frame waits, in microseconds. */
+    public int getWriteBudget() {
+        return this.writeBudget;
+    }
+
+    /** Tells whether group keys are turned on. */
+    public boolean useGroupKeys() {
+        return this.groupKeys;
+    }
+
+    /** Tells whether pair keys are turned on. */
+    public boolean usePairKeys() {
+        return this.pairKeys;
+    }
+
+    /** Tells whether resumption tickets are turned on. */
+    public boolean useTickets() {
+        return this.tickets;
+    }
+
+    /** Gives access to how long a ticket can be used, in seconds. */
+    public int getTicketLifetime() {
+        return this.ticketLifetime;
+    }
+
+    /** Tells whether key agreement is turned on. */
+    public boolean useKeyAgreement() {
+        return this.keyAgreement;
+    }
+
+    /** Gives access to the codecs chat messages may be compressed with. */
+    public List<Compression> getCompression() {
+        return this.compression;
+    }
+
+    /** Gives access to the size below which messages aren't compressed. */
+    public int getCompressThreshold() {
+        return this.compressThreshold;
+    }
+
+    /** Gives access to the roster window, in milliseconds. */
+    public int getRosterWindow() {
+        return this.rosterWindow;
+    }
+
+    /** Tells whether pooled buffers are tracked to find leaks. */
+    public boolean debugBuffers() {
+        return this.bufferDebug;
+    }
+
+    /** Gives access to the metrics port, 0 if the metrics aren't served. */
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+}
@@ -0,0 +1,290 @@
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/******************************************************************************
+ * Resumption tickets, which let a Client that lost its connection come back
+ * without another RSA key transport. After a Client joins, the Server sends
+ * it a ticket holding its name, its secret key and an expiry time, sealed
+ * with AES-GCM under a key only the Server knows. To reconnect, the Client
+ * sends the ticket in place of its RSA-encrypted secret key, in a block of
+ * the same size that starts with MAGIC, and the Server only has to open the
+ * ticket to know the Client's key again.
+ *
+ * A ticket can only be redeemed once, before it expires, and only for the
+ * name it was issued to; the resumed session is given a new ticket. The
+ * sealing key is replaced every lifetime, and the previous one is kept for
+ * the tickets issued under it.
+ *****************************************************************************/
+public class SessionTickets {
+
+    /** What a resumption block starts with. */
+    public static final String MAGIC = "@rsum";
+
+    /** The size of a resumption block, the same as an RSA-encrypted key. */
+    public static final int BLOCK_SIZE = 256;
+
+    /** The size of the ticket's nonce. */
+    private static final int NONCE_SIZE = 12;
+
+    /** The size of the GCM tag sealing the ticket. */
+    private static final int TAG_SIZE = 16;
+
+    /** The number of digits giving the ticket's size in a block. */
+    private static final int LENGTH_DIGITS = 3;
+
+    /** The largest ticket that fits in a block. */
+    public static final int MAX_TICKET =
+        BLOCK_SIZE - MAGIC.length() - LENGTH_DIGITS;
+
+    /** How often redeemed tickets that have expired are forgotten, in ms. */
+    private static final long PURGE_INTERVAL = 60 * 1000;
+
+    /** How long a ticket can be redeemed for, in milliseconds. */
+    private long lifetime;
+
+    /** The key sealing new tickets. */
+    private SecretKey key;
+
+    /** The key that sealed tickets before the current one, or null. */
+    private SecretKey previousKey = null;
+
+    /** When the current key was made, as System.currentTimeMillis(). */
+    private long keyMadeAt;
+
+    /** Makes the sealing keys. */
+    private KeyGenerator generator;
+
+    /** The nonces of the redeemed tickets, with their expiry times. */
+    private Map<String,Long> redeemed = new ConcurrentHashMap<String,Long>();
+
+    /** When the expired redeemed tickets are next forgotten. */
+    private long nextPurge;
+
+    /**************************************************************************
+     * Constructs SessionTickets with a new sealing key.
+     * @param lifetimeSeconds is how long a ticket can be redeemed for
+     *************************************************************************/
+    public SessionTickets(int lifetimeSeconds) {
+        this.lifetime = lifetimeSeconds * 1000L;
+        try {
+            generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Encryption algorithm doesn't exist.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        key = generator.generateKey();
+        keyMadeAt = System.currentTimeMillis();
+        nextPurge = keyMadeAt + PURGE_INTERVAL;
+    }
+
+    /**************************************************************************
+     * Issues a ticket for a Client that has joined.
+     * @param name is the Client's name
+     * @param secretKey is the secret key the Client sent
+     * @return the sealed ticket, or null if the name is too long for one
+     *************************************************************************/
+    public byte[] issue(String name, SecretKey secretKey) {
+        byte[] nameBytes;
+        try {
+            nameBytes = name.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+        byte[] encoded = secretKey.getEncoded();
+        int size = 8 + 1 + encoded.length + nameBytes.length;
+        if (NONCE_SIZE + size + TAG_SIZE > MAX_TICKET)
+            return null;
+        ByteBuffer contents = ByteBuffer.allocate(size);
+        contents.putLong(System.currentTimeMillis() + lifetime);
+        contents.put((byte) encoded.length).put(encoded).put(nameBytes);
+        byte[] ticket = Arrays.copyOf(IvSource.next(),
+            NONCE_SIZE + size + TAG_SIZE);
+        try {
+            Cipher c = CipherSuite.AES_GCM.init(Cipher.ENCRYPT_MODE,
+                currentKey(), ticket, 0);
+            c.doFinal(contents.array(), 0, size, ticket, NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Couldn't seal a ticket.");
+            e.printStackTrace();
+            return null;
+        }
+        ServerMetrics.ticketIssued();
+        return ticket;
+    }
+
+    /**************************************************************************
+     * Redeems the ticket in a resumption block.
+     * @param block is the block the Client sent in place of its secret key
+     * @param name is the name the Client connected with
+     * @return the Client's secret key, or null if the ticket is malformed,
+     * forged, expired, already redeemed or issued to another name
+     *************************************************************************/
+    public SecretKey redeem(byte[] block, String name) {
+        SecretKey secretKey = open(block, name);
+        if (secretKey == null) {
+            ServerMetrics.resumptionRejected();
+        } else {
+            ServerMetrics.sessionResumed();
+        }
+        return secretKey;
+    }
+
+    /**************************************************************************
+     * Opens and checks the ticket in a resumption block, and marks it
+     * redeemed.
+     * @param block is the block the Client sent in place of its secret key
+     * @param name is the name the Client connected with
+     * @return the Client's secret key, or null if the ticket isn't valid
+     *************************************************************************/
+    private SecretKey open(byte[] block, String name) {
+        int size;
+        try {
+            size = Integer.parseInt(new String(block, MAGIC.length(),
+                LENGTH_DIGITS, "ISO-8859-1"));
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (size < NONCE_SIZE + TAG_SIZE + 9 || size > MAX_TICKET)
+            return null;
+        byte[] ticket = Arrays.copyOfRange(block,
+            MAGIC.length() + LENGTH_DIGITS,
+            MAGIC.length() + LENGTH_DIGITS + size);
+        byte[] contents = unseal(ticket, currentKey());
+        if (contents == null) {
+            SecretKey previous = getPreviousKey();
+            if (previous != null)
+                contents = unseal(ticket, previous);
+        }
+        if (contents == null)
+            return null;
+        ByteBuffer parsed = ByteBuffer.wrap(contents);
+        long expiry = parsed.getLong();
+        int keySize = parsed.get() & 0xff;
+        long now = System.currentTimeMillis();
+        if (expiry < now || keySize > parsed.remaining())
+            return null;
+        byte[] encoded = new byte[keySize];
+        parsed.get(encoded);
+        String issuedTo;
+        try {
+            issuedTo = new String(contents, parsed.position(),
+                parsed.remaining(), "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        if (!issuedTo.equals(name))
+            return null;
+        purge(now);
+        try {
+            String nonce = new String(ticket, 0, NONCE_SIZE, "ISO-8859-1");
+            if (redeemed.put(nonce, expiry) != null)
+                return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        return new SecretKeySpec(encoded, "AES");
+    }
+
+    /**************************************************************************
+     * Decrypts and authenticates a ticket with one sealing key.
+     * @param ticket is the ticket
+     * @param sealedWith is the key to try
+     * @return the contents, or null if the key didn't seal this ticket
+     *************************************************************************/
+    private static byte[] unseal(byte[] ticket, SecretKey sealedWith) {
+        try {
+            Cipher c = CipherSuite.AES_GCM.init(Cipher.DECRYPT_MODE,
+                sealedWith, ticket, 0);
+            return c.doFinal(ticket, NONCE_SIZE, ticket.length - NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    /**************************************************************************
+     * Gives the key sealing new tickets, replacing it once it has been used
+     * for a whole lifetime.
+     * @return the current key
+     *************************************************************************/
+    private synchronized SecretKey currentKey() {
+        long now = System.currentTimeMillis();
+        if (now - keyMadeAt >= lifetime) {
+            previousKey = key;
+            key = generator.generateKey();
+            keyMadeAt = now;
+        }
+        return key;
+    }
+
+    /** Gives the key that sealed tickets before the current one, or null. */
+    private synchronized SecretKey getPreviousKey() {
+        return this.previousKey;
+    }
+
+    /**************************************************************************
+     * Forgets the redeemed tickets that have expired, once in a while, as
+     * they can't be redeemed again anyway.
+     * @param now is System.currentTimeMillis()
+     *************************************************************************/
+    private void purge(long now) {
+        synchronized (redeemed) {
+            if (now < nextPurge)
+                return;
+            nextPurge = now + PURGE_INTERVAL;
+        }
+        Iterator<Long> expiries = redeemed.values().iterator();
+        while (expiries.hasNext()) {
+            if (expiries.next() < now)
+                expiries.remove();
+        }
+    }
+
+    /**************************************************************************
+     * Tells whether a Client sent a resumption block rather than an
+     * RSA-encrypted secret key.
+     * @param block is the first 256 bytes the Client sent
+     * @return true if the block starts with MAGIC
+     *************************************************************************/
+    public static boolean isResumption(byte[] block) {
+        for (int i = 0; i < MAGIC.length(); ++i) {
+            if (block[i] != MAGIC.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**************************************************************************
+     * Builds the resumption block a Client sends to redeem a ticket.
+     * @param ticket is the ticket, as the Server sent it
+     * @return the block, BLOCK_SIZE bytes
+     *************************************************************************/
+    public static byte[] resumption(byte[] ticket) {
+        byte[] block = new byte[BLOCK_SIZE];
+        String header = MAGIC + String.format("%03d", ticket.length);
+        for (int i = 0; i < header.length(); ++i) {
+            block[i] = (byte) header.charAt(i);
+        }
+        System.arraycopy(ticket, 0, block, header.length(), ticket.length);
+        return block;
+    }
+
+}
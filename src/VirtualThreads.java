@@ -0,0 +1,40 @@
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ThreadFactory;
+
+/******************************************************************************
+ * Access to virtual threads. They only exist from Java 21 on, so they are
+ * looked up by reflection and the rest of the chat program still builds and
+ * runs on older Java versions.
+ *****************************************************************************/
+public class VirtualThreads {
+
+    /**************************************************************************
+     * Checks whether this JVM supports virtual threads.
+     * @return true if virtual threads can be created
+     *************************************************************************/
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**************************************************************************
+     * Creates a factory for virtual threads. Only call if isSupported().
+     * @return a ThreadFactory whose threads are virtual
+     *************************************************************************/
+    public static ThreadFactory factory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            throw new IllegalStateException("Virtual threads unavailable.", e);
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests the compression of chat messages: that every codec restores what it
+ * compressed, and that a message a Client made up can't make the restored
+ * plaintext larger than allowed or get past as something it isn't.
+ *****************************************************************************/
+public class CompressionTest {
+
+    /** A chat message long enough to be compressed. */
+    private static final byte[] CHAT = text("hey, are you coming to the "
+        + "meeting later today? I think so but not sure what time it starts "
+        + "lol. thanks, sounds good, see you then. let me know when the "
+        + "build is fixed, it failed again with a NullPointerException in "
+        + "the server log. no problem, talk to you later!");
+
+    /**************************************************************************
+     * Encodes text as the Client does.
+     * @param text is the text
+     * @return its ISO-8859-1 bytes
+     *************************************************************************/
+    private static byte[] text(String text) {
+        try {
+            return text.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Every codec restores what it compressed, smaller than it was. */
+    @Test
+    public void roundTrips() {
+        for (Compression codec: Compression.all()) {
+            byte[] compressed = codec.compress(CHAT, 64);
+            assertTrue(codec.getName(), Compression.isCompressed(compressed));
+            assertEquals(codec.getName(), codec.getId(), compressed[0]);
+            assertTrue(codec.getName(), compressed.length < CHAT.length);
+            assertArrayEquals(codec.getName(), CHAT,
+                Compression.decompress(compressed, CHAT.length));
+        }
+    }
+
+    /** A message below the threshold is sent as it is. */
+    @Test
+    public void storesShortMessage() {
+        byte[] stored = Compression.DEFLATE.compress(CHAT, CHAT.length + 1);
+        assertFalse(Compression.isCompressed(stored));
+        assertEquals(CHAT.length + 1, stored.length);
+        assertArrayEquals(CHAT, Compression.decompress(stored, 4096));
+    }
+
+    /** A message that wouldn't get smaller is sent as it is. */
+    @Test
+    public void storesIncompressibleMessage() {
+        byte[] noise = new byte[1024];
+        new Random(42).nextBytes(noise);
+        byte[] stored = Compression.DEFLATE_FAST.compress(noise, 0);
+        assertFalse(Compression.isCompressed(stored));
+        assertArrayEquals(noise, Compression.decompress(stored, 4096));
+    }
+
+    /** An empty message survives the trip. */
+    @Test
+    public void roundTripsEmptyMessage() {
+        byte[] stored = Compression.DEFLATE.compress(new byte[0], 0);
+        assertEquals(0, Compression.decompress(stored, 16).length);
+        assertNull(Compression.decompress(new byte[0], 16));
+    }
+
+    /** A small message that restores to more than allowed is refused. */
+    @Test
+    public void refusesBomb() {
+        byte[] zeros = new byte[1024 * 1024];
+        byte[] bomb = Compression.DEFLATE.compress(zeros, 0);
+        assertTrue(bomb.length < 2048);
+        assertNull(Compression.decompress(bomb, 64 * 1024));
+        assertEquals(zeros.length,
+            Compression.decompress(bomb, zeros.length).length);
+    }
+
+    /** A message marked with a codec that doesn't exist is refused. */
+    @Test
+    public void refusesUnknownCodec() {
+        byte[] compressed = Compression.DEFLATE.compress(CHAT, 0);
+        compressed[0] = 99;
+        assertNull(Compression.decompress(compressed, 4096));
+        compressed[0] = -1;
+        assertNull(Compression.decompress(compressed, 4096));
+    }
+
+    /** Garbage and cut-short messages are refused, not half restored. */
+    @Test
+    public void refusesMalformedMessage() {
+        byte[] compressed = Compression.DEFLATE.compress(CHAT, 0);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        assertNull(Compression.decompress(truncated, 4096));
+        byte[] garbage = new byte[64];
+        new Random(7).nextBytes(garbage);
+        garbage[0] = Compression.DEFLATE.getId();
+        assertNull(Compression.decompress(garbage, 4096));
+    }
+
+    /** The Server passes a message on as the sender compressed it. */
+    @Test
+    public void relaysPayloadOncePerCodec() {
+        byte[] received = Compression.DEFLATE.compress(CHAT, 0);
+        Compression.Payload payload = new Compression.Payload(CHAT, received,
+            0);
+        assertSame(CHAT, payload.forCodec(null));
+        assertSame(received, payload.forCodec(Compression.DEFLATE));
+        byte[] fast = payload.forCodec(Compression.DEFLATE_FAST);
+        assertEquals(Compression.DEFLATE_FAST.getId(), fast[0]);
+        assertSame(fast, payload.forCodec(Compression.DEFLATE_FAST));
+        assertArrayEquals(CHAT, Compression.decompress(fast, 4096));
+    }
+
+    /** A message the sender didn't compress is passed on as it is. */
+    @Test
+    public void relaysStoredPayload() {
+        byte[] received = Compression.DEFLATE.compress(CHAT, 4096);
+        Compression.Payload payload = new Compression.Payload(CHAT, received,
+            0);
+        assertSame(received, payload.forCodec(Compression.DEFLATE_FAST));
+    }
+
+    /** Codecs are found by the names sent on the wire. */
+    @Test
+    public void findsCodecsByName() {
+        assertSame(Compression.DEFLATE, Compression.forName("deflate"));
+        assertSame(Compression.DEFLATE_FAST,
+            Compression.forName(" deflate-fast "));
+        assertNull(Compression.forName("lz4"));
+        assertEquals("deflate,deflate-fast",
+            Compression.names(Compression.all()));
+    }
+
+}
@@ -0,0 +1,208 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests the reassembly of frames from the bytes read from a Client, which
+ * may split a frame over several reads or bring several frames at once.
+ *****************************************************************************/
+public class FrameDecoderTest {
+
+    /**************************************************************************
+     * Builds a message, laid out as described in Frames.
+     * @param code is the command
+     * @param size is the size to write in the header
+     * @param payload is the ciphertext
+     * @return the message
+     *************************************************************************/
+    private static byte[] message(String code, String size, byte[] payload)
+        throws UnsupportedEncodingException {
+        byte[] message = new byte[Frames.HEADER_SIZE + payload.length];
+        System.arraycopy(code.getBytes("ISO-8859-1"), 0, message, 0, 5);
+        System.arraycopy("bob".getBytes("ISO-8859-1"), 0, message, 21, 3);
+        System.arraycopy("alice".getBytes("ISO-8859-1"), 0, message, 31, 5);
+        System.arraycopy(String.format("%10s", size).getBytes("ISO-8859-1"),
+            0, message, 41, 10);
+        System.arraycopy(payload, 0, message, Frames.HEADER_SIZE,
+            payload.length);
+        return message;
+    }
+
+    /**************************************************************************
+     * Builds a message whose header gives the size of its payload.
+     * @param code is the command
+     * @param payloadSize is the size of the ciphertext
+     * @return the message
+     *************************************************************************/
+    private static byte[] message(String code, int payloadSize)
+        throws UnsupportedEncodingException {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; ++i) {
+            payload[i] = (byte) i;
+        }
+        return message(code, String.valueOf(payloadSize), payload);
+    }
+
+    /** A compact frame read a byte at a time comes out once, whole. */
+    @Test
+    public void reassemblesSplitFrame() throws Exception {
+        byte[] message = message("@bcst", 48);
+        byte[] frame = Frames.toCompact(message);
+        FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+        for (int i = 0; i < frame.length - 1; ++i) {
+            decoder.feed(frame, i, 1);
+            assertNull(decoder.nextFrame());
+        }
+        decoder.feed(frame, frame.length - 1, 1);
+        assertArrayEquals(message, decoder.nextFrame());
+        assertNull(decoder.nextFrame());
+    }
+
+    /** Frames that arrive in one read come out one at a time, in order. */
+    @Test
+    public void separatesCoalescedFrames() throws Exception {
+        byte[] first = message("@bcst", 16);
+        byte[] second = message("@send", 300);
+        byte[] third = message("@exit", 32);
+        byte[] frames = concat(Frames.toCompact(first),
+            Frames.toCompact(second), Frames.toCompact(third));
+        FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+        // The third frame is cut short
+        decoder.feed(frames, 0, frames.length - 5);
+        List<byte[]> decoded = decoder.nextFrames();
+        assertEquals(2, decoded.size());
+        assertArrayEquals(first, decoded.get(0));
+        assertArrayEquals(second, decoded.get(1));
+        decoder.feed(frames, frames.length - 5, 5);
+        assertArrayEquals(third, decoder.nextFrame());
+    }
+
+    /** A length prefix beyond the largest frame is refused at once. */
+    @Test
+    public void refusesOversizeLength() {
+        FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+        int length = Frames.MAX_COMPACT_SIZE + 1;
+        decoder.feed(new byte[] { (byte) (length >>> 24),
+            (byte) (length >>> 16), (byte) (length >>> 8), (byte) length },
+            0, 4);
+        try {
+            decoder.nextFrame();
+            fail("Accepted a frame of " + length + " bytes");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /** A negative length prefix is refused. */
+    @Test
+    public void refusesNegativeLength() {
+        FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+        decoder.feed(new byte[] { (byte) 0x80, 0, 0, 0 }, 0, 4);
+        try {
+            decoder.nextFrame();
+            fail("Accepted a negative frame length");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /** A compact frame with an unknown command is refused. */
+    @Test
+    public void refusesUnknownCommand() throws Exception {
+        byte[] frame = Frames.toCompact(message("@bcst", 16));
+        frame[4] = (byte) 0xFF;
+        FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+        decoder.feed(frame, 0, frame.length);
+        try {
+            decoder.nextFrame();
+            fail("Accepted an unknown command");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /** A legacy frame comes out once all of its padding has arrived. */
+    @Test
+    public void reassemblesLegacyFrame() throws Exception {
+        byte[] frame = Frames.toLegacy(message("@bcst", 48));
+        FrameDecoder decoder = new FrameDecoder(Frames.LEGACY);
+        decoder.feed(frame, 0, 600);
+        assertNull(decoder.nextFrame());
+        decoder.feed(frame, 600, frame.length - 600);
+        assertArrayEquals(frame, decoder.nextFrame());
+    }
+
+    /** Legacy frames whose size isn't a number that fits are refused. */
+    @Test
+    public void refusesBadLegacySizes() throws Exception {
+        String[] sizes = { "xx", "-5", "1025", "99999999" };
+        for (String size: sizes) {
+            byte[] frame = Frames.toLegacy(message("@bcst", size,
+                new byte[48]));
+            FrameDecoder decoder = new FrameDecoder(Frames.LEGACY);
+            decoder.feed(frame, 0, frame.length);
+            try {
+                decoder.nextFrame();
+                fail("Accepted a legacy frame of size " + size);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    /** The name line is split from the data that follows it. */
+    @Test
+    public void splitsHelloLine() throws Exception {
+        byte[] hello = "alice\tframes=2\n".getBytes("ISO-8859-1");
+        byte[] frame = Frames.toCompact(message("@list", 0));
+        FrameDecoder decoder = new FrameDecoder(Frames.LEGACY);
+        byte[] data = concat(hello, frame);
+        decoder.feed(data, 0, data.length);
+        assertEquals("alice\tframes=2", decoder.nextLine(256));
+        decoder.setFormat(Frames.COMPACT);
+        assertEquals(Frames.HEADER_SIZE, decoder.nextFrame().length);
+    }
+
+    /** A name line longer than allowed is refused before it ends. */
+    @Test
+    public void refusesLongLine() {
+        byte[] line = new byte[300];
+        Arrays.fill(line, (byte) 'a');
+        FrameDecoder decoder = new FrameDecoder(Frames.LEGACY);
+        decoder.feed(line, 0, line.length);
+        try {
+            decoder.nextLine(256);
+            fail("Accepted a line of " + line.length + " bytes");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**************************************************************************
+     * Joins arrays together.
+     * @param arrays are the arrays
+     * @return their contents, one after the other
+     *************************************************************************/
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array: arrays) {
+            length += array.length;
+        }
+        byte[] joined = new byte[length];
+        int position = 0;
+        for (byte[] array: arrays) {
+            System.arraycopy(array, 0, joined, position, array.length);
+            position += array.length;
+        }
+        return joined;
+    }
+
+}
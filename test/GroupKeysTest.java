@@ -0,0 +1,128 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests the group key: that a member leaving makes the Server send the
+ * remaining members a new key, under a new epoch, and that a broadcast
+ * encrypted with the group key reaches the other members as it was sent.
+ *****************************************************************************/
+public class GroupKeysTest {
+
+    /** Sets up the Server. */
+    @BeforeClass
+    public static void configure() {
+        ServerFixture.configure();
+    }
+
+    /**************************************************************************
+     * Reads the epoch out of a @gkey message.
+     * @param session is the Client the message was sent to
+     * @param message is the @gkey message
+     * @return the epoch
+     *************************************************************************/
+    private static int epoch(ServerFixture.Session session, byte[] message)
+        throws Exception {
+        byte[] decoded = session.decrypt(message);
+        return ((decoded[0] & 0xFF) << 24) | ((decoded[1] & 0xFF) << 16)
+            | ((decoded[2] & 0xFF) << 8) | (decoded[3] & 0xFF);
+    }
+
+    /**************************************************************************
+     * Reads the group key out of a @gkey message.
+     * @param session is the Client the message was sent to
+     * @param message is the @gkey message
+     * @return the key, as sent
+     *************************************************************************/
+    private static byte[] key(ServerFixture.Session session, byte[] message)
+        throws Exception {
+        return Arrays.copyOfRange(session.decrypt(message), 4, 20);
+    }
+
+    /**************************************************************************
+     * Reads the suite to use the group key with out of a @gkey message.
+     * @param session is the Client the message was sent to
+     * @param message is the @gkey message
+     * @return the suite
+     *************************************************************************/
+    private static CipherSuite suite(ServerFixture.Session session,
+        byte[] message) throws Exception {
+        byte[] decoded = session.decrypt(message);
+        return CipherSuite.forName(new String(decoded, 20,
+            decoded.length - 20, "ISO-8859-1"));
+    }
+
+    /**************************************************************************
+     * Takes the newest group key sent to a Client.
+     * @param session is the Client
+     * @return the newest @gkey message
+     *************************************************************************/
+    private static byte[] newestKey(ServerFixture.Session session) {
+        List<byte[]> keys = session.received("@gkey");
+        assertFalse(keys.isEmpty());
+        return keys.get(keys.size() - 1);
+    }
+
+    /** A member leaving gives the remaining members a new key. */
+    @Test
+    public void rekeysRemainingMembersOnLeave() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice7",
+            "\tgroupkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob7",
+            "\tgroupkeys=1");
+        ServerFixture.Session carol = ServerFixture.connect("carol7",
+            "\tgroupkeys=1");
+        byte[] before = newestKey(alice);
+        assertArrayEquals(key(alice, before), key(bob, newestKey(bob)));
+        carol.received();
+
+        carol.drop();
+        List<byte[]> toAlice = alice.received("@gkey");
+        List<byte[]> toBob = bob.received("@gkey");
+        assertEquals(1, toAlice.size());
+        assertEquals(1, toBob.size());
+        assertTrue(epoch(alice, toAlice.get(0)) > epoch(alice, before));
+        assertEquals(epoch(alice, toAlice.get(0)), epoch(bob, toBob.get(0)));
+        assertFalse(Arrays.equals(key(alice, before),
+            key(alice, toAlice.get(0))));
+        assertArrayEquals(key(alice, toAlice.get(0)),
+            key(bob, toBob.get(0)));
+        assertTrue(carol.received().isEmpty());
+        alice.drop();
+        bob.drop();
+    }
+
+    /** A group broadcast reaches the other members as it was sent. */
+    @Test
+    public void relaysGroupBroadcastUntouched() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice8",
+            "\tgroupkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob8",
+            "\tgroupkeys=1");
+        byte[] keyMessage = newestKey(alice);
+        bob.received();
+        CipherSuite suite = suite(alice, keyMessage);
+        SecretKey key = suite.cipherKey(
+            new SecretKeySpec(key(alice, keyMessage), "AES"));
+        byte[] sent = alice.send("@gbct",
+            String.valueOf(epoch(alice, keyMessage)), "hello all", key,
+            suite);
+        List<byte[]> toBob = bob.received("@gbct");
+        assertEquals(1, toBob.size());
+        assertArrayEquals(sent, toBob.get(0));
+        assertTrue(alice.received("@gbct").isEmpty());
+        alice.drop();
+        bob.drop();
+    }
+
+}
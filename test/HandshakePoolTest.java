@@ -0,0 +1,109 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests the admission of new connections: an address with too many
+ * handshakes pending is refused until one of them is over, and a handshake
+ * that takes too long is closed and never unwrapped.
+ *****************************************************************************/
+public class HandshakePoolTest {
+
+    /** Does nothing when a handshake times out. */
+    private static final Runnable IGNORE = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /** Puts back the default limits for the other tests. */
+    @After
+    public void resetLimits() {
+        HandshakePool.configure(Math.max(1,
+            Runtime.getRuntime().availableProcessors() / 2), 1024, 256,
+            10 * 1000);
+    }
+
+    /**************************************************************************
+     * Makes an address without looking it up.
+     * @param last is the last byte of the address
+     * @return 10.0.0.last
+     *************************************************************************/
+    private static InetAddress address(int last) throws Exception {
+        return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last });
+    }
+
+    /** An address is refused once it has too many handshakes pending. */
+    @Test
+    public void refusesBusyAddress() throws Exception {
+        HandshakePool.configure(1, 1024, 2, 10 * 1000);
+        HandshakePool.Handshake first = HandshakePool.admit(address(1),
+            IGNORE);
+        HandshakePool.Handshake second = HandshakePool.admit(address(1),
+            IGNORE);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(HandshakePool.admit(address(1), IGNORE));
+        // Other addresses aren't held up
+        HandshakePool.Handshake other = HandshakePool.admit(address(2),
+            IGNORE);
+        assertNotNull(other);
+        // Finishing one makes room for another
+        assertTrue(first.finish());
+        HandshakePool.Handshake third = HandshakePool.admit(address(1),
+            IGNORE);
+        assertNotNull(third);
+        second.finish();
+        third.finish();
+        other.finish();
+    }
+
+    /** Finishing a handshake twice gives back only one place. */
+    @Test
+    public void finishesOnce() throws Exception {
+        HandshakePool.configure(1, 1024, 1, 10 * 1000);
+        HandshakePool.Handshake first = HandshakePool.admit(address(3),
+            IGNORE);
+        assertTrue(first.finish());
+        assertFalse(first.finish());
+        HandshakePool.Handshake second = HandshakePool.admit(address(3),
+            IGNORE);
+        assertNotNull(second);
+        assertNull(HandshakePool.admit(address(3), IGNORE));
+        second.finish();
+    }
+
+    /** A handshake that takes too long is closed and gives its place back. */
+    @Test
+    public void timesOutSlowHandshake() throws Exception {
+        HandshakePool.configure(1, 1024, 1, 200);
+        final CountDownLatch closed = new CountDownLatch(1);
+        HandshakePool.Handshake slow = HandshakePool.admit(address(4),
+            new Runnable() {
+                @Override
+                public void run() {
+                    closed.countDown();
+                }
+            });
+        assertNotNull(slow);
+        assertNull(HandshakePool.admit(address(4), IGNORE));
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        // Too late to finish, and its key is never unwrapped
+        assertFalse(slow.finish());
+        assertNull(slow.unwrap(new byte[256]));
+        HandshakePool.Handshake next = HandshakePool.admit(address(4),
+            IGNORE);
+        assertNotNull(next);
+        next.finish();
+    }
+
+}
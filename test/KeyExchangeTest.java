@@ -0,0 +1,126 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests the key agreement: both sides derive the same key, the Server's
+ * signed answer is reused across Clients but still gives each its own key,
+ * and a Client refuses an answer that the Server's identity key didn't sign.
+ *****************************************************************************/
+public class KeyExchangeTest {
+
+    /** The Server's identity key pair. */
+    private KeyPair identity;
+
+    /**************************************************************************
+     * Makes an ECDSA identity key pair.
+     * @return the key pair
+     *************************************************************************/
+    private static KeyPair identityKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /** Makes the Server's identity key pair. */
+    @Before
+    public void setUp() throws Exception {
+        identity = identityKeys();
+    }
+
+    /** Both sides derive the same key, in every group this JVM has. */
+    @Test
+    public void agreesOnKey() throws Exception {
+        String[] groups = { KeyExchange.X25519, KeyExchange.P256 };
+        for (String group: groups) {
+            if (!KeyExchange.isSupported(group))
+                continue;
+            KeyExchange client = new KeyExchange(group);
+            byte[] offer = client.offer();
+            assertTrue(KeyExchange.isOffer(offer));
+            KeyExchange.Result server = KeyExchange.respond(offer,
+                identity.getPrivate());
+            assertNotNull(group, server);
+            assertArrayEquals(group, server.getKey().getEncoded(),
+                client.finish(server.getReply(), identity.getPublic())
+                .getEncoded());
+        }
+    }
+
+    /** Clients get the same signed answer but keys of their own. */
+    @Test
+    public void reusesSignedShare() throws Exception {
+        String group = KeyExchange.preferredGroup();
+        KeyExchange first = new KeyExchange(group);
+        KeyExchange second = new KeyExchange(group);
+        KeyExchange.Result toFirst = KeyExchange.respond(first.offer(),
+            identity.getPrivate());
+        KeyExchange.Result toSecond = KeyExchange.respond(second.offer(),
+            identity.getPrivate());
+        assertArrayEquals(toFirst.getReply(), toSecond.getReply());
+        assertFalse(Arrays.equals(toFirst.getKey().getEncoded(),
+            toSecond.getKey().getEncoded()));
+        // Another identity key gets a share of its own
+        KeyExchange third = new KeyExchange(group);
+        KeyPair other = identityKeys();
+        KeyExchange.Result toThird = KeyExchange.respond(third.offer(),
+            other.getPrivate());
+        assertArrayEquals(toThird.getKey().getEncoded(),
+            third.finish(toThird.getReply(), other.getPublic())
+            .getEncoded());
+    }
+
+    /** An answer not signed by the Server's identity key is refused. */
+    @Test
+    public void refusesForgedAnswer() throws Exception {
+        String group = KeyExchange.preferredGroup();
+        KeyExchange client = new KeyExchange(group);
+        KeyExchange.Result server = KeyExchange.respond(client.offer(),
+            identityKeys().getPrivate());
+        try {
+            client.finish(server.getReply(), identity.getPublic());
+            fail("Accepted an answer signed by another key");
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+        byte[] changed = KeyExchange.respond(client.offer(),
+            identity.getPrivate()).getReply().clone();
+        // Pushes the expiry, after the size and the key, into the future
+        int size = Integer.parseInt(new String(changed, 0, 3, "ISO-8859-1"));
+        changed[3 + size] ^= 1;
+        try {
+            client.finish(changed, identity.getPublic());
+            fail("Accepted a changed answer");
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+    }
+
+    /** A malformed offer or one in an unknown group gets no answer. */
+    @Test
+    public void refusesMalformedOffer() throws Exception {
+        byte[] offer = new KeyExchange(KeyExchange.preferredGroup()).offer();
+        byte[] unknown = offer.clone();
+        unknown[KeyExchange.MAGIC.length()] = 'z';
+        assertNull(KeyExchange.respond(unknown, identity.getPrivate()));
+        byte[] oversize = offer.clone();
+        int digits = KeyExchange.MAGIC.length() + 10;
+        oversize[digits] = '9';
+        assertNull(KeyExchange.respond(oversize, identity.getPrivate()));
+        assertFalse(KeyExchange.isOffer(new byte[256]));
+    }
+
+}
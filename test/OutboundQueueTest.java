@@ -0,0 +1,206 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests the limits of the queue of frames waiting for a Client, under each
+ * slow-consumer policy, and that control frames are never dropped but can't
+ * grow the queue without bound either.
+ *****************************************************************************/
+public class OutboundQueueTest {
+
+    /** Puts back the default limits for the other tests. */
+    @After
+    public void resetLimits() {
+        OutboundQueue.setLimits(4096, 4 * 1024 * 1024,
+            OutboundQueue.DROP_OLDEST);
+    }
+
+    /**************************************************************************
+     * Builds a frame whose first byte tells it apart.
+     * @param tag is the first byte
+     * @param length is the size of the frame
+     * @return the frame
+     *************************************************************************/
+    private static byte[] frame(int tag, int length) {
+        byte[] frame = new byte[length];
+        frame[0] = (byte) tag;
+        return frame;
+    }
+
+    /**************************************************************************
+     * Takes the frames out of a queue.
+     * @param queue is the queue
+     * @return the first byte of each frame, in order
+     *************************************************************************/
+    private static String drain(OutboundQueue queue) {
+        StringBuilder tags = new StringBuilder();
+        OutboundQueue.Frame frame;
+        while ((frame = queue.poll()) != null) {
+            tags.append(frame.getBuffer()[0]).append(' ');
+            frame.release();
+        }
+        return tags.toString().trim();
+    }
+
+    /** Frames come out in the order they were queued. */
+    @Test
+    public void keepsOrder() {
+        OutboundQueue queue = new OutboundQueue(null);
+        for (int i = 1; i <= 5; ++i) {
+            assertTrue(queue.offer(frame(i, 10), i % 2 == 0));
+        }
+        assertEquals(5, queue.getQueuedFrames());
+        assertEquals(50, queue.getQueuedBytes());
+        assertEquals("1 2 3 4 5", drain(queue));
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    /** Drop-oldest makes room by dropping the oldest chat frames only. */
+    @Test
+    public void dropsOldestChatFrames() {
+        OutboundQueue.setLimits(3, 1000, OutboundQueue.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(null);
+        long dropped = OutboundQueue.getDroppedFrames();
+        queue.offer(frame(1, 10), true);
+        queue.offer(frame(2, 10), false);
+        queue.offer(frame(3, 10), false);
+        assertTrue(queue.offer(frame(4, 10), false));
+        assertTrue(queue.offer(frame(5, 10), false));
+        assertEquals(2, OutboundQueue.getDroppedFrames() - dropped);
+        assertEquals("1 4 5", drain(queue));
+        assertFalse(queue.isEvicted());
+    }
+
+    /** Drop-oldest also makes room by size. */
+    @Test
+    public void dropsOldestByBytes() {
+        OutboundQueue.setLimits(100, 100, OutboundQueue.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(null);
+        queue.offer(frame(1, 40), false);
+        queue.offer(frame(2, 40), false);
+        assertTrue(queue.offer(frame(3, 60), false));
+        assertEquals("2 3", drain(queue));
+    }
+
+    /** Drop-oldest keeps the backlog when the new frame could never fit. */
+    @Test
+    public void dropsOversizeFrameOnly() {
+        OutboundQueue.setLimits(100, 100, OutboundQueue.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(null);
+        long dropped = OutboundQueue.getDroppedFrames();
+        queue.offer(frame(1, 40), false);
+        queue.offer(frame(2, 40), false);
+        assertFalse(queue.offer(frame(3, 101), false));
+        assertEquals(1, OutboundQueue.getDroppedFrames() - dropped);
+        assertEquals("1 2", drain(queue));
+    }
+
+    /** Drop-new refuses a chat frame that doesn't fit. */
+    @Test
+    public void dropsNewChatFrame() {
+        OutboundQueue.setLimits(2, 1000, OutboundQueue.DROP_NEW);
+        OutboundQueue queue = new OutboundQueue(null);
+        long dropped = OutboundQueue.getDroppedFrames();
+        queue.offer(frame(1, 10), false);
+        queue.offer(frame(2, 10), false);
+        assertFalse(queue.offer(frame(3, 10), false));
+        assertEquals(1, OutboundQueue.getDroppedFrames() - dropped);
+        assertEquals("1 2", drain(queue));
+        assertFalse(queue.isEvicted());
+    }
+
+    /** Disconnect evicts the Client and drops everything queued. */
+    @Test
+    public void disconnectsSlowClient() {
+        OutboundQueue.setLimits(2, 1000, OutboundQueue.DISCONNECT);
+        OutboundQueue queue = new OutboundQueue(null);
+        long evicted = OutboundQueue.getEvictedSessions();
+        queue.offer(frame(1, 10), false);
+        queue.offer(frame(2, 10), false);
+        assertFalse(queue.offer(frame(3, 10), false));
+        assertTrue(queue.isEvicted());
+        assertEquals(1, OutboundQueue.getEvictedSessions() - evicted);
+        assertNull(queue.poll());
+        assertTrue(queue.isDrained());
+        assertFalse(queue.offer(frame(4, 10), true));
+    }
+
+    /** Control frames go past the limits, without dropping anything. */
+    @Test
+    public void queuesControlFramesPastLimits() {
+        String[] policies = { OutboundQueue.DROP_OLDEST,
+            OutboundQueue.DROP_NEW, OutboundQueue.DISCONNECT };
+        for (String policy: policies) {
+            OutboundQueue.setLimits(2, 1000, policy);
+            OutboundQueue queue = new OutboundQueue(null);
+            queue.offer(frame(1, 10), false);
+            queue.offer(frame(2, 10), false);
+            assertTrue(policy, queue.offer(frame(3, 10), true));
+            assertTrue(policy, queue.offer(frame(4, 10), true));
+            assertFalse(policy, queue.isEvicted());
+            assertEquals(policy, "1 2 3 4", drain(queue));
+        }
+    }
+
+    /** Control frames that reach the hard limit evict the Client. */
+    @Test
+    public void evictsAtHardLimit() {
+        OutboundQueue.setLimits(100, 1000, OutboundQueue.DROP_NEW);
+        OutboundQueue queue = new OutboundQueue(null);
+        long evicted = OutboundQueue.getEvictedSessions();
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(queue.offer(frame(i, 100), true));
+        }
+        assertFalse(queue.offer(frame(20, 100), true));
+        assertTrue(queue.isEvicted());
+        assertEquals(1, OutboundQueue.getEvictedSessions() - evicted);
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    /** The hard limit also counts frames, however small. */
+    @Test
+    public void evictsAtHardFrameLimit() {
+        OutboundQueue.setLimits(5, 1000, OutboundQueue.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(null);
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(queue.offer(frame(i, 1), true));
+        }
+        assertFalse(queue.offer(frame(10, 1), true));
+        assertTrue(queue.isEvicted());
+    }
+
+    /** A closed queue hands out what it holds, then nothing more. */
+    @Test
+    public void drainsAfterClose() throws Exception {
+        OutboundQueue queue = new OutboundQueue(null);
+        queue.offer(frame(1, 10), false);
+        queue.close();
+        assertFalse(queue.offer(frame(2, 10), true));
+        assertFalse(queue.isDrained());
+        assertEquals("1", drain(queue));
+        assertTrue(queue.isDrained());
+        assertNull(queue.take());
+    }
+
+    /** The listener hears about every frame offered. */
+    @Test
+    public void tellsListener() {
+        final int[] calls = new int[1];
+        OutboundQueue queue = new OutboundQueue(new OutboundQueue.Listener() {
+            @Override
+            public void framesQueued() {
+                ++calls[0];
+            }
+        });
+        queue.offer(frame(1, 10), false);
+        queue.offer(frame(2, 10), true);
+        queue.close();
+        assertEquals(3, calls[0]);
+    }
+
+}
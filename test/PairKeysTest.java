@@ -0,0 +1,137 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests that two Clients that take pair keys are given the same key once
+ * they exchange a message, and that the Server then passes on what they
+ * encrypt with it exactly as it was sent.
+ *****************************************************************************/
+public class PairKeysTest {
+
+    /** Sets up the Server. */
+    @BeforeClass
+    public static void configure() {
+        ServerFixture.configure();
+    }
+
+    /**************************************************************************
+     * Reads the pair key out of a @pair message.
+     * @param session is the Client the message was sent to
+     * @param message is the @pair message
+     * @return the key, ready for its suite's init()
+     *************************************************************************/
+    static SecretKey pairKey(ServerFixture.Session session, byte[] message)
+        throws Exception {
+        byte[] decoded = session.decrypt(message);
+        return suite(session, message).cipherKey(
+            new SecretKeySpec(decoded, 0, 16, "AES"));
+    }
+
+    /**************************************************************************
+     * Reads the suite to use a pair key with out of a @pair message.
+     * @param session is the Client the message was sent to
+     * @param message is the @pair message
+     * @return the suite
+     *************************************************************************/
+    static CipherSuite suite(ServerFixture.Session session, byte[] message)
+        throws Exception {
+        byte[] decoded = session.decrypt(message);
+        return CipherSuite.forName(new String(decoded, 16,
+            decoded.length - 16, "ISO-8859-1"));
+    }
+
+    /** A private message gives both Clients the same pair key. */
+    @Test
+    public void sharesKeyAfterMessage() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice1",
+            "\tpairkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob1",
+            "\tpairkeys=1");
+        alice.received();
+        bob.received();
+        alice.send("@send", "bob1", "hi bob");
+        List<byte[]> toBob = bob.received();
+        assertEquals("@send", ServerFixture.code(toBob.get(0)));
+        assertEquals("@pair", ServerFixture.code(toBob.get(1)));
+        List<byte[]> toAlice = alice.received("@pair");
+        assertEquals(1, toAlice.size());
+        assertEquals("bob1", ServerFixture.sender(toAlice.get(0)));
+        assertArrayEquals(pairKey(bob, toBob.get(1)).getEncoded(),
+            pairKey(alice, toAlice.get(0)).getEncoded());
+        // Only once per pair
+        bob.send("@send", "alice1", "hi alice");
+        assertEquals(0, alice.received("@pair").size());
+        alice.drop();
+        bob.drop();
+    }
+
+    /** An end-to-end message reaches the receiver byte for byte. */
+    @Test
+    public void relaysPairMessageUntouched() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice2",
+            "\tpairkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob2",
+            "\tpairkeys=1");
+        alice.send("@send", "bob2", "hi bob");
+        byte[] keyMessage = alice.received("@pair").get(0);
+        SecretKey key = pairKey(alice, keyMessage);
+        CipherSuite suite = suite(alice, keyMessage);
+        SecretKey bobKey = pairKey(bob, bob.received("@pair").get(0));
+        byte[] sent = alice.send("@psnd", "bob2", "for your eyes only",
+            key, suite);
+        List<byte[]> toBob = bob.received();
+        assertEquals(1, toBob.size());
+        assertArrayEquals(sent, toBob.get(0));
+        assertEquals("for your eyes only", new String(
+            ServerFixture.decrypt(toBob.get(0), bobKey, suite), "ISO-8859-1"));
+        alice.drop();
+        bob.drop();
+    }
+
+    /** An end-to-end message between Clients without a pair key is dropped. */
+    @Test
+    public void dropsPairMessageWithoutKey() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice3",
+            "\tpairkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob3",
+            "\tpairkeys=1");
+        bob.received();
+        alice.send("@psnd", "bob3", "guessed key");
+        assertTrue(bob.received().isEmpty());
+        alice.drop();
+        bob.drop();
+    }
+
+    /** A Client that comes back under its name is given new pair keys. */
+    @Test
+    public void forgetsPairKeysOfLeavingClient() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice4",
+            "\tpairkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob4",
+            "\tpairkeys=1");
+        alice.send("@send", "bob4", "hi bob");
+        byte[] first = alice.received("@pair").get(0);
+        bob.drop();
+        bob = ServerFixture.connect("bob4", "\tpairkeys=1");
+        alice.send("@send", "bob4", "welcome back");
+        List<byte[]> again = alice.received("@pair");
+        assertEquals(1, again.size());
+        assertFalse(Arrays.equals(pairKey(alice, first).getEncoded(),
+            pairKey(alice, again.get(0)).getEncoded()));
+        assertEquals(1, bob.received("@pair").size());
+        alice.drop();
+        bob.drop();
+    }
+
+}
@@ -0,0 +1,85 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests a Client coming back under its name, as a resumed session does,
+ * while the Server still holds its old session: the old session is replaced
+ * rather than left half registered, and the new one is given pair keys.
+ *****************************************************************************/
+public class ReconnectTest {
+
+    /** Sets up the Server. */
+    @BeforeClass
+    public static void configure() {
+        ServerFixture.configure();
+    }
+
+    /** The old connection is closed and the new one is given pair keys. */
+    @Test
+    public void reissuesPairKeysOnTakeover() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice5",
+            "\tpairkeys=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob5",
+            "\tpairkeys=1");
+        alice.send("@send", "bob5", "hi bob");
+        assertEquals(1, alice.received("@pair").size());
+        bob.received();
+
+        // The old connection hasn't been seen to end yet
+        ServerFixture.Session newBob = ServerFixture.connect("bob5",
+            "\tpairkeys=1");
+        newBob.received();
+        bob.received();
+        assertTrue(bob.getQueue().isDrained());
+        assertFalse(bob.getQueue().offer(new byte[1], true));
+
+        alice.send("@send", "bob5", "welcome back");
+        List<byte[]> toNewBob = newBob.received();
+        assertEquals("@send", ServerFixture.code(toNewBob.get(0)));
+        assertEquals("welcome back", new String(
+            newBob.decrypt(toNewBob.get(0)), "ISO-8859-1"));
+        assertEquals("@pair", ServerFixture.code(toNewBob.get(1)));
+        List<byte[]> toAlice = alice.received("@pair");
+        assertEquals(1, toAlice.size());
+        SecretKey key = PairKeysTest.pairKey(alice, toAlice.get(0));
+        assertArrayEquals(key.getEncoded(),
+            PairKeysTest.pairKey(newBob, toNewBob.get(1)).getEncoded());
+        alice.drop();
+        newBob.drop();
+    }
+
+    /** The old connection ending at last leaves the new session alone. */
+    @Test
+    public void keepsNewSessionWhenOldOneDrops() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice6",
+            "\tpairkeys=1\trosterdeltas=1");
+        ServerFixture.Session bob = ServerFixture.connect("bob6",
+            "\tpairkeys=1");
+        ServerFixture.Session newBob = ServerFixture.connect("bob6",
+            "\tpairkeys=1");
+        alice.received();
+        bob.drop();
+        assertTrue(alice.received("@rdlt").isEmpty());
+
+        alice.send("@send", "bob6", "still there?");
+        byte[] keyMessage = alice.received("@pair").get(0);
+        byte[] sent = alice.send("@psnd", "bob6", "yes",
+            PairKeysTest.pairKey(alice, keyMessage),
+            PairKeysTest.suite(alice, keyMessage));
+        List<byte[]> toNewBob = newBob.received("@psnd");
+        assertEquals(1, toNewBob.size());
+        assertArrayEquals(sent, toNewBob.get(0));
+        alice.drop();
+        newBob.drop();
+    }
+
+}
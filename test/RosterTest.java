@@ -0,0 +1,183 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests versioned roster updates: the Server sends Clients that take roster
+ * deltas only the changes, one version at a time, and the whole client list
+ * when asked; a Client that sees a version go missing asks for the whole
+ * list and ignores deltas until it arrives.
+ *****************************************************************************/
+public class RosterTest {
+
+    /** Sets up the Server. */
+    @BeforeClass
+    public static void configure() {
+        ServerFixture.configure();
+    }
+
+    /**************************************************************************
+     * Reads the roster version out of a roster message.
+     * @param message is the @rdlt or @list message
+     * @return the version
+     *************************************************************************/
+    private static int version(byte[] message) {
+        return Integer.parseInt(ServerFixture.receiver(message));
+    }
+
+    /**************************************************************************
+     * Reads the names out of a client list.
+     * @param session is the Client the list was sent to
+     * @param message is the @list message
+     * @return the names
+     *************************************************************************/
+    private static HashSet<String> names(ServerFixture.Session session,
+        byte[] message) throws Exception {
+        return new HashSet<String>(Arrays.asList(new String(
+            session.decrypt(message), "ISO-8859-1").split(",")));
+    }
+
+    /** The Server sends deltas in order and the whole list when asked. */
+    @Test
+    public void sendsDeltasThenSnapshot() throws Exception {
+        ServerFixture.Session alice = ServerFixture.connect("alice9",
+            "\trosterdeltas=1");
+        int joined = version(alice.received("@list").get(0));
+        ServerFixture.Session bob = ServerFixture.connect("bob9", "");
+        ServerFixture.Session carol = ServerFixture.connect("carol9",
+            "\trosterdeltas=1");
+        List<byte[]> deltas = alice.received("@rdlt");
+        assertEquals(2, deltas.size());
+        assertEquals(joined + 1, version(deltas.get(0)));
+        assertEquals("+bob9,", new String(alice.decrypt(deltas.get(0)),
+            "ISO-8859-1"));
+        assertEquals(joined + 2, version(deltas.get(1)));
+        assertEquals("+carol9,", new String(alice.decrypt(deltas.get(1)),
+            "ISO-8859-1"));
+
+        // Having missed a version, Alice asks for the whole list
+        alice.send("@list", "", "");
+        List<byte[]> lists = alice.received("@list");
+        assertEquals(1, lists.size());
+        assertEquals(joined + 2, version(lists.get(0)));
+        assertTrue(names(alice, lists.get(0)).containsAll(
+            Arrays.asList("alice9", "bob9", "carol9")));
+
+        bob.drop();
+        deltas = carol.received("@rdlt");
+        assertEquals("-bob9,", new String(
+            carol.decrypt(deltas.get(deltas.size() - 1)), "ISO-8859-1"));
+        assertEquals(joined + 3, version(deltas.get(deltas.size() - 1)));
+        alice.drop();
+        carol.drop();
+    }
+
+    /** A Client asks for the whole list when a version goes missing. */
+    @Test
+    public void clientFallsBackToSnapshot() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair serverKeys = generator.generateKeyPair();
+        ServerSocket listener = new ServerSocket(0, 1,
+            InetAddress.getLoopbackAddress());
+        Client client = new Client("dave", "127.0.0.1",
+            listener.getLocalPort(), serverKeys.getPublic());
+        Socket socket = listener.accept();
+        listener.close();
+        try {
+            DataInputStream input = new DataInputStream(
+                socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+
+            // The handshake, with the Server's side played by the test
+            client.sendSymmetricKey();
+            byte[] secret = new byte[256];
+            input.readFully(secret);
+            Cipher rsa = Cipher.getInstance(
+                "RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+            rsa.init(Cipher.DECRYPT_MODE, serverKeys.getPrivate());
+            SecretKey key = new SecretKeySpec(rsa.doFinal(secret), "AES");
+            // The choice of suite is sent in plaintext, after an empty IV
+            byte[] choice = new byte[16 + 7];
+            System.arraycopy("aes-gcm".getBytes("ISO-8859-1"), 0, choice,
+                16, 7);
+            output.write(Frames.toCompact(ServerFixture.message("@pkey", "",
+                "", choice)));
+            client.sendName();
+            while (input.read() != '\n') {
+                // Skips the name line
+            }
+
+            send(output, key, "@list", 5, "dave,erin,");
+            client.receiveMessage();
+            send(output, key, "@rdlt", 6, "+frank,");
+            client.receiveMessage();
+            assertEquals(new HashSet<String>(Arrays.asList("erin",
+                "frank")), new HashSet<String>(client.getOtherClients()));
+
+            // Version 7 goes missing
+            send(output, key, "@rdlt", 8, "+gina,");
+            client.receiveMessage();
+            FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+            byte[] request;
+            while ((request = decoder.nextFrame()) == null) {
+                decoder.readFrom(input);
+            }
+            assertEquals("@list", ServerFixture.code(request));
+            assertEquals(new HashSet<String>(Arrays.asList("erin",
+                "frank")), new HashSet<String>(client.getOtherClients()));
+
+            // Deltas that come before the list are left to it
+            send(output, key, "@rdlt", 9, "-erin,");
+            client.receiveMessage();
+            send(output, key, "@list", 9, "dave,frank,gina,");
+            client.receiveMessage();
+            assertEquals(new HashSet<String>(Arrays.asList("frank",
+                "gina")), new HashSet<String>(client.getOtherClients()));
+            send(output, key, "@rdlt", 10, "+hal,");
+            client.receiveMessage();
+            assertEquals(new HashSet<String>(Arrays.asList("frank",
+                "gina", "hal")), new HashSet<String>(
+                client.getOtherClients()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**************************************************************************
+     * Sends the Client a roster message, as the Server would.
+     * @param output is the Server's end of the connection
+     * @param key is the Client's key
+     * @param code is @list or @rdlt
+     * @param version is the roster version
+     * @param text is the plaintext
+     *************************************************************************/
+    private static void send(OutputStream output, SecretKey key, String code,
+        int version, String text) throws Exception {
+        output.write(Frames.toCompact(ServerFixture.message(code,
+            String.valueOf(version), "", ServerFixture.encrypt(text, key,
+            CipherSuite.AES_GCM))));
+        output.flush();
+    }
+
+}
@@ -0,0 +1,305 @@
+import java.io.UnsupportedEncodingException;
+
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/******************************************************************************
+ * Runs the Server's message handling inside the test, without sockets. Each
+ * Client is a queue the Server writes to, and its messages are handed
+ * straight to the Server, encrypted as a Client would. The Server is set up
+ * once for all tests, with group keys and pair keys on and every roster
+ * change and group key rotation done right away.
+ *****************************************************************************/
+public class ServerFixture {
+
+    /** The options the Server is set up with. */
+    private static final String[] OPTIONS = { "--group-keys=on",
+        "--pair-keys=on", "--roster-window=0", "--ecdh=off" };
+
+    /** True once the Server is set up. */
+    private static boolean configured = false;
+
+    /** Makes the IVs. */
+    private static SecureRandom random = new SecureRandom();
+
+    /**************************************************************************
+     * A Client connected to the Server through a queue.
+     *************************************************************************/
+    public static class Session {
+
+        /** The name of the Client. */
+        private String name;
+
+        /** The Client's secret key. */
+        private SecretKey secretKey;
+
+        /** The queue the Server writes the Client's frames to. */
+        private OutboundQueue queue = new OutboundQueue(null);
+
+        /** Turns the queued frames back into messages. */
+        private FrameDecoder decoder = new FrameDecoder(Frames.COMPACT);
+
+        /** The suite the Server chose. */
+        private CipherSuite suite;
+
+        /**********************************************************************
+         * Constructs a Session and makes its secret key.
+         * @param name is the name of the Client
+         *********************************************************************/
+        private Session(String name) throws Exception {
+            this.name = name;
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128);
+            secretKey = generator.generateKey();
+        }
+
+        /** Gives access to the name of the Client. */
+        public String getName() {
+            return this.name;
+        }
+
+        /** Gives access to the queue the Server writes to. */
+        public OutboundQueue getQueue() {
+            return this.queue;
+        }
+
+        /** Gives access to the suite the Server chose. */
+        public CipherSuite getSuite() {
+            return this.suite;
+        }
+
+        /**********************************************************************
+         * Sends the Server a message encrypted with the Client's own key.
+         * @param code is the command
+         * @param receiver is the receiving Client, or empty
+         * @param text is the plaintext
+         * @return the message, as handed to the Server
+         *********************************************************************/
+        public byte[] send(String code, String receiver, String text)
+            throws Exception {
+            return send(code, receiver, text, suite.cipherKey(secretKey),
+                suite);
+        }
+
+        /**********************************************************************
+         * Sends the Server a message encrypted with a given key.
+         * @param code is the command
+         * @param receiver is the receiving Client or the group key's epoch,
+         * or empty
+         * @param text is the plaintext
+         * @param key is the key, as returned by CipherSuite.cipherKey()
+         * @param keySuite is the suite to encrypt with
+         * @return the message, as handed to the Server
+         *********************************************************************/
+        public byte[] send(String code, String receiver, String text,
+            SecretKey key, CipherSuite keySuite) throws Exception {
+            byte[] message = message(code, receiver, name,
+                encrypt(text, key, keySuite));
+            Server.handleMessage(message);
+            return message;
+        }
+
+        /**********************************************************************
+         * Takes the messages the Server queued for the Client.
+         * @return the messages, in order, laid out as described in Frames
+         *********************************************************************/
+        public List<byte[]> received() {
+            List<byte[]> messages = new ArrayList<byte[]>();
+            OutboundQueue.Frame frame;
+            while ((frame = queue.poll()) != null) {
+                decoder.feed(frame.getBuffer(), 0, frame.getLength());
+                frame.release();
+            }
+            byte[] message;
+            while ((message = decoder.nextFrame()) != null) {
+                messages.add(message);
+            }
+            return messages;
+        }
+
+        /**********************************************************************
+         * Takes the messages the Server queued for the Client, keeping those
+         * with one command.
+         * @param code is the command
+         * @return the messages with that command, in order
+         *********************************************************************/
+        public List<byte[]> received(String code) {
+            List<byte[]> matching = new ArrayList<byte[]>();
+            for (byte[] message: received()) {
+                if (code(message).equals(code))
+                    matching.add(message);
+            }
+            return matching;
+        }
+
+        /**********************************************************************
+         * Decrypts a message the Server encrypted with the Client's own key.
+         * @param message is the message
+         * @return the plaintext
+         *********************************************************************/
+        public byte[] decrypt(byte[] message) throws Exception {
+            return ServerFixture.decrypt(message, suite.cipherKey(secretKey),
+                suite);
+        }
+
+        /** Tells the Server the Client's connection was lost. */
+        public void drop() {
+            Server.dropClient(name, queue);
+        }
+
+    }
+
+    /**************************************************************************
+     * Sets up the Server, the first time only.
+     *************************************************************************/
+    public static synchronized void configure() {
+        if (configured)
+            return;
+        Server.configure(ServerOptions.parse(OPTIONS));
+        configured = true;
+    }
+
+    /**************************************************************************
+     * Connects a Client that asks for compact frames and offers every
+     * cipher suite, and takes the Server's choice of suite.
+     * @param name is the name of the Client
+     * @param options are the other options the Client asks for, each
+     * starting with a tab
+     * @return the Client
+     *************************************************************************/
+    public static Session connect(String name, String options)
+        throws Exception {
+        Session session = new Session(name);
+        Server.addClient(name + "\tframes=2" + options + "\tsuites="
+            + CipherSuite.names(CipherSuite.supported()), session.queue,
+            session.secretKey);
+        OutboundQueue.Frame first = session.queue.poll();
+        session.decoder.feed(first.getBuffer(), 0, first.getLength());
+        first.release();
+        byte[] choice = session.decoder.nextFrame();
+        if (!code(choice).equals("@pkey"))
+            throw new IllegalStateException("No cipher suite chosen");
+        session.suite = CipherSuite.forName(new String(payload(choice),
+            "ISO-8859-1").split("\t")[0]);
+        return session;
+    }
+
+    /**************************************************************************
+     * Builds a message, laid out as described in Frames.
+     * @param code is the command
+     * @param receiver is the receiving Client, or empty
+     * @param sender is the sending Client
+     * @param encrypted is the IV followed by the ciphertext
+     * @return the message
+     *************************************************************************/
+    public static byte[] message(String code, String receiver, String sender,
+        byte[] encrypted) throws UnsupportedEncodingException {
+        int size = encrypted.length - 16;
+        byte[] message = new byte[Frames.HEADER_SIZE + size];
+        System.arraycopy(code.getBytes("ISO-8859-1"), 0, message, 0, 5);
+        System.arraycopy(encrypted, 0, message, 5, 16);
+        System.arraycopy(Arrays.copyOf(receiver.getBytes("ISO-8859-1"), 10),
+            0, message, 21, 10);
+        System.arraycopy(Arrays.copyOf(sender.getBytes("ISO-8859-1"), 10),
+            0, message, 31, 10);
+        System.arraycopy(String.format("%10d", size).getBytes("ISO-8859-1"),
+            0, message, 41, 10);
+        System.arraycopy(encrypted, 16, message, Frames.HEADER_SIZE, size);
+        return message;
+    }
+
+    /**************************************************************************
+     * Encrypts a plaintext with a new IV.
+     * @param text is the plaintext
+     * @param key is the key, as returned by CipherSuite.cipherKey()
+     * @param suite is the suite to encrypt with
+     * @return the IV followed by the ciphertext
+     *************************************************************************/
+    public static byte[] encrypt(String text, SecretKey key,
+        CipherSuite suite) throws Exception {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        byte[] cipherText = suite.init(Cipher.ENCRYPT_MODE, key, iv)
+            .doFinal(text.getBytes("ISO-8859-1"));
+        byte[] encrypted = Arrays.copyOf(iv, 16 + cipherText.length);
+        System.arraycopy(cipherText, 0, encrypted, 16, cipherText.length);
+        return encrypted;
+    }
+
+    /**************************************************************************
+     * Decrypts a message.
+     * @param message is the message
+     * @param key is the key, as returned by CipherSuite.cipherKey()
+     * @param suite is the suite it was encrypted with
+     * @return the plaintext
+     *************************************************************************/
+    public static byte[] decrypt(byte[] message, SecretKey key,
+        CipherSuite suite) throws Exception {
+        return suite.init(Cipher.DECRYPT_MODE, key, message, 5)
+            .doFinal(message, Frames.HEADER_SIZE,
+                message.length - Frames.HEADER_SIZE);
+    }
+
+    /**************************************************************************
+     * Gives the command of a message.
+     * @param message is the message
+     * @return the command, such as "@send"
+     *************************************************************************/
+    public static String code(byte[] message) {
+        return field(message, 0, 5);
+    }
+
+    /**************************************************************************
+     * Gives the receiver field of a message, which some commands use for the
+     * group key's epoch or the roster version.
+     * @param message is the message
+     * @return the field, trimmed
+     *************************************************************************/
+    public static String receiver(byte[] message) {
+        return field(message, 21, 10).trim();
+    }
+
+    /**************************************************************************
+     * Gives the sender field of a message.
+     * @param message is the message
+     * @return the name of the sender, trimmed
+     *************************************************************************/
+    public static String sender(byte[] message) {
+        return field(message, 31, 10).trim();
+    }
+
+    /**************************************************************************
+     * Gives the payload of a message, which is ciphertext unless the message
+     * is the choice of cipher suite.
+     * @param message is the message
+     * @return the bytes after the header
+     *************************************************************************/
+    public static byte[] payload(byte[] message) {
+        return Arrays.copyOfRange(message, Frames.HEADER_SIZE,
+            message.length);
+    }
+
+    /**************************************************************************
+     * Reads a text field of a message.
+     * @param message is the message
+     * @param offset is where the field starts
+     * @param length is the size of the field
+     * @return the field, with any zero padding
+     *************************************************************************/
+    private static String field(byte[] message, int offset, int length) {
+        try {
+            return new String(message, offset, length, "ISO-8859-1")
+                .replace("\0", "");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
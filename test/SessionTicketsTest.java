@@ -0,0 +1,134 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/******************************************************************************
+ * Tests that a resumption ticket gives back the Client's key exactly once,
+ * only to the name it was issued to and only before it expires, and that
+ * tickets survive one replacement of the sealing key.
+ *****************************************************************************/
+public class SessionTicketsTest {
+
+    /** The secret key the Client sent. */
+    private SecretKey clientKey;
+
+    /** Makes the Client's key. */
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        clientKey = generator.generateKey();
+    }
+
+    /** A ticket gives back the key it was issued with. */
+    @Test
+    public void redeemsTicket() {
+        SessionTickets tickets = new SessionTickets(60);
+        byte[] block = SessionTickets.resumption(
+            tickets.issue("alice", clientKey));
+        assertTrue(SessionTickets.isResumption(block));
+        SecretKey key = tickets.redeem(block, "alice");
+        assertNotNull(key);
+        assertArrayEquals(clientKey.getEncoded(), key.getEncoded());
+    }
+
+    /** A ticket can't be redeemed twice. */
+    @Test
+    public void refusesReplay() {
+        SessionTickets tickets = new SessionTickets(60);
+        byte[] block = SessionTickets.resumption(
+            tickets.issue("alice", clientKey));
+        assertNotNull(tickets.redeem(block, "alice"));
+        assertNull(tickets.redeem(block, "alice"));
+    }
+
+    /** A ticket is only good for the name it was issued to. */
+    @Test
+    public void refusesOtherName() {
+        SessionTickets tickets = new SessionTickets(60);
+        byte[] block = SessionTickets.resumption(
+            tickets.issue("alice", clientKey));
+        assertNull(tickets.redeem(block, "mallory"));
+        assertNull(tickets.redeem(block, "alic"));
+        // Being turned down doesn't use the ticket up
+        assertNotNull(tickets.redeem(block, "alice"));
+    }
+
+    /** A ticket from another Server, or a changed one, is refused. */
+    @Test
+    public void refusesForgedTicket() {
+        SessionTickets tickets = new SessionTickets(60);
+        SessionTickets other = new SessionTickets(60);
+        byte[] block = SessionTickets.resumption(
+            other.issue("alice", clientKey));
+        assertNull(tickets.redeem(block, "alice"));
+        byte[] ticket = tickets.issue("alice", clientKey);
+        ticket[ticket.length / 2] ^= 1;
+        assertNull(tickets.redeem(SessionTickets.resumption(ticket),
+            "alice"));
+    }
+
+    /** Blocks with a malformed or impossible size are refused. */
+    @Test
+    public void refusesMalformedBlock() {
+        SessionTickets tickets = new SessionTickets(60);
+        byte[] block = SessionTickets.resumption(
+            tickets.issue("alice", clientKey));
+        String[] sizes = { "abc", "000", "999", "-01" };
+        for (String size: sizes) {
+            byte[] changed = block.clone();
+            for (int i = 0; i < 3; ++i) {
+                changed[SessionTickets.MAGIC.length() + i] =
+                    (byte) size.charAt(i);
+            }
+            assertNull(size, tickets.redeem(changed, "alice"));
+        }
+        assertFalse(SessionTickets.isResumption(new byte[256]));
+    }
+
+    /** A name too long to fit in a ticket gets none. */
+    @Test
+    public void refusesLongName() {
+        SessionTickets tickets = new SessionTickets(60);
+        StringBuilder name = new StringBuilder();
+        while (name.length() < SessionTickets.MAX_TICKET) {
+            name.append("alice");
+        }
+        assertNull(tickets.issue(name.toString(), clientKey));
+    }
+
+    /** A ticket can't be redeemed once it has expired. */
+    @Test
+    public void refusesExpiredTicket() throws Exception {
+        SessionTickets tickets = new SessionTickets(1);
+        byte[] block = SessionTickets.resumption(
+            tickets.issue("alice", clientKey));
+        Thread.sleep(1100);
+        assertNull(tickets.redeem(block, "alice"));
+    }
+
+    /** A ticket sealed just before the key was replaced still works. */
+    @Test
+    public void redeemsAfterKeyRotation() throws Exception {
+        SessionTickets tickets = new SessionTickets(2);
+        Thread.sleep(1500);
+        // Sealed with the first key, good for two more seconds
+        byte[] block = SessionTickets.resumption(
+            tickets.issue("alice", clientKey));
+        Thread.sleep(700);
+        // Replaces the first key
+        byte[] newer = SessionTickets.resumption(
+            tickets.issue("bob", clientKey));
+        assertNotNull(tickets.redeem(block, "alice"));
+        assertNotNull(tickets.redeem(newer, "bob"));
+    }
+
+}